@@ -31,18 +31,39 @@ import android.support.annotation.Nullable;
 import android.support.v4.view.ViewCompat;
 import android.util.AttributeSet;
 import java.io.File;
+import java.io.OutputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import namnh.com.cameraandroid.R;
 import namnh.com.cameraandroid.camera.base.AspectRatio;
+import namnh.com.cameraandroid.camera.base.BracketListener;
+import namnh.com.cameraandroid.camera.base.BufferPool;
+import namnh.com.cameraandroid.camera.base.BurstListener;
+import namnh.com.cameraandroid.camera.base.CaptureMetrics;
+import namnh.com.cameraandroid.camera.base.CaptureScheduler;
 import namnh.com.cameraandroid.camera.base.Constants;
 import namnh.com.cameraandroid.camera.base.DisplayOrientationDetector;
+import namnh.com.cameraandroid.camera.base.ExposureFusion;
+import namnh.com.cameraandroid.camera.base.FrameDispatcher;
+import namnh.com.cameraandroid.camera.base.FrameFanOut;
+import namnh.com.cameraandroid.camera.base.FrameProcessor;
+import namnh.com.cameraandroid.camera.base.FrameRateMonitor;
+import namnh.com.cameraandroid.camera.base.FrameRateRange;
+import namnh.com.cameraandroid.camera.base.FrameRing;
+import namnh.com.cameraandroid.camera.base.JpegEncoder;
+import namnh.com.cameraandroid.camera.base.JpegImage;
+import namnh.com.cameraandroid.camera.base.PictureRequest;
+import namnh.com.cameraandroid.camera.base.PictureWriter;
+import namnh.com.cameraandroid.camera.base.PreviewBufferPool;
 import namnh.com.cameraandroid.camera.base.Size;
 import namnh.com.cameraandroid.camera.base.VideoQuality;
+import namnh.com.cameraandroid.camera.base.YuvImageJpegEncoder;
 import namnh.com.cameraandroid.camera.v14.Camera1;
+import namnh.com.cameraandroid.camera.v14.SurfaceViewPreview;
 import namnh.com.cameraandroid.camera.v14.TextureViewPreview;
 import namnh.com.cameraandroid.camera.v21.Camera2;
 import namnh.com.cameraandroid.camera.v23.Camera2Api23;
@@ -84,18 +105,42 @@ public class CameraView extends CameraViewLayout {
         int FLASH_RED_EYE = Constants.FLASH_RED_EYE;
     }
 
+    /** The view showing the camera preview */
+    @IntDef({ Preview.PREVIEW_TEXTURE_VIEW, Preview.PREVIEW_SURFACE_VIEW })
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Preview {
+        /** A TextureView, which supports transforms and alpha. */
+        int PREVIEW_TEXTURE_VIEW = Constants.PREVIEW_TEXTURE_VIEW;
+
+        /** A SurfaceView, with lower latency and power draw but no transforms or alpha. */
+        int PREVIEW_SURFACE_VIEW = Constants.PREVIEW_SURFACE_VIEW;
+    }
+
     private CameraViewImpl cameraViewImpl;
 
     private final CallbackBridge callbacks;
 
     private boolean adjustViewBounds;
 
+    @Preview
+    private int previewType = Preview.PREVIEW_TEXTURE_VIEW;
+
     private boolean isStarted;
 
     private final DisplayOrientationDetector displayOrientationDetector;
 
     private Handler uiHandler = new Handler(Looper.getMainLooper());
 
+    private final BufferPool bufferPool = new BufferPool(BufferPool.DEFAULT_MAX_BYTES);
+
+    private final PictureWriter pictureWriter = new PictureWriter();
+
+    private final CaptureMetrics captureMetrics = new CaptureMetrics();
+
+    private final FrameFanOut frameFanOut = new FrameFanOut();
+
+    private final FrameRateMonitor frameRateMonitor = new FrameRateMonitor();
+
     public CameraView(Context context) {
         this(context, null);
     }
@@ -113,6 +158,11 @@ public class CameraView extends CameraViewLayout {
             return;
         }
 
+        // The preview view is chosen once, before the camera is created
+        TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.CameraView, defStyleAttr,
+                R.style.Widget_CameraView);
+        previewType = a.getInt(R.styleable.CameraView_preview, Preview.PREVIEW_TEXTURE_VIEW);
+
         // Internal setup
         final PreviewImpl preview = createPreviewImpl(context);
         callbacks = new CallbackBridge(this);
@@ -127,11 +177,14 @@ public class CameraView extends CameraViewLayout {
         } else {
             cameraViewImpl = new Camera2Api23(callbacks, preview, context);
         }
+        cameraViewImpl.setBufferPool(bufferPool);
+        cameraViewImpl.setPictureWriter(pictureWriter);
+        cameraViewImpl.setCaptureMetrics(captureMetrics);
+        cameraViewImpl.setFrameFanOut(frameFanOut);
+        cameraViewImpl.setFrameRateMonitor(frameRateMonitor);
 
         isStarted = false;
         // Attributes
-        TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.CameraView, defStyleAttr,
-                R.style.Widget_CameraView);
         adjustViewBounds = a.getBoolean(R.styleable.CameraView_android_adjustViewBounds, false);
         setFacing(a.getInt(R.styleable.CameraView_facing, Facing.FACING_BACK));
         String aspectRatio = a.getString(R.styleable.CameraView_aspectRatio);
@@ -166,6 +219,9 @@ public class CameraView extends CameraViewLayout {
 
     @NonNull
     private PreviewImpl createPreviewImpl(Context context) {
+        if (previewType == Preview.PREVIEW_SURFACE_VIEW) {
+            return new SurfaceViewPreview(context, this);
+        }
         return new TextureViewPreview(context, this);
     }
 
@@ -254,6 +310,7 @@ public class CameraView extends CameraViewLayout {
         state.flash = getFlash();
         state.zoom = getZoom();
         state.pictureSize = getPictureSize();
+        state.frameRateRange = getFrameRateRange();
         return state;
     }
 
@@ -271,6 +328,7 @@ public class CameraView extends CameraViewLayout {
         setFlash(ss.flash);
         setZoom(ss.zoom);
         setPictureSize(ss.pictureSize);
+        setFrameRateRange(ss.frameRateRange);
     }
 
     /**
@@ -288,7 +346,26 @@ public class CameraView extends CameraViewLayout {
             //store the state ,and restore this state after fall back o Camera1
             Parcelable state = onSaveInstanceState();
             // Camera2 uses legacy hardware layer; fall back to Camera1
+            CaptureScheduler scheduler = cameraViewImpl.getCaptureScheduler();
+            Size thumbnailSize = cameraViewImpl.getJpegThumbnailSize();
+            long focusTimeout = cameraViewImpl.getFocusLockTimeoutMillis();
+            long exposureTimeout = cameraViewImpl.getExposureTimeoutMillis();
+            FrameDispatcher.Backpressure backpressure = cameraViewImpl.getFrameBackpressure();
+            int frameQueueDepth = cameraViewImpl.getFrameQueueDepth();
+            Size analysisSize = cameraViewImpl.getAnalysisSize();
             cameraViewImpl = new Camera1(callbacks, createPreviewImpl(getContext()));
+            cameraViewImpl.setBufferPool(bufferPool);
+            cameraViewImpl.setPictureWriter(pictureWriter);
+            cameraViewImpl.setCaptureMetrics(captureMetrics);
+            cameraViewImpl.setMaxPicturesInFlight(scheduler.getMaxInFlight());
+            cameraViewImpl.setPictureQueue(scheduler.getQueueCapacity(),
+                    scheduler.getOverflowPolicy());
+            cameraViewImpl.setJpegThumbnailSize(thumbnailSize);
+            cameraViewImpl.setConvergenceTimeouts(focusTimeout, exposureTimeout);
+            cameraViewImpl.setFrameBackpressure(backpressure, frameQueueDepth);
+            cameraViewImpl.setAnalysisSize(analysisSize);
+            cameraViewImpl.setFrameFanOut(frameFanOut);
+            cameraViewImpl.setFrameRateMonitor(frameRateMonitor);
             onRestoreInstanceState(state);
             uiHandler.postDelayed(new Runnable() {
                 @Override
@@ -357,6 +434,15 @@ public class CameraView extends CameraViewLayout {
         return adjustViewBounds;
     }
 
+    /**
+     * @return The view showing the preview, set by the {@code preview} XML attribute: either
+     * {@link Preview#PREVIEW_TEXTURE_VIEW} or {@link Preview#PREVIEW_SURFACE_VIEW}.
+     */
+    @Preview
+    public int getPreviewType() {
+        return previewType;
+    }
+
     /**
      * Chooses camera by the direction it faces.
      *
@@ -454,10 +540,435 @@ public class CameraView extends CameraViewLayout {
 
     /**
      * Take a picture. The result will be returned to
-     * {@link Callback#onPictureTaken(CameraView, byte[])}.
+     * {@link Callback#onPictureTaken(CameraView, JpegImage)}.
+     * <p>
+     * Pictures are captured a few at a time, see {@link #setMaxPicturesInFlight(int)}; requests
+     * made meanwhile wait in a queue, see
+     * {@link #setPictureQueue(int, CaptureScheduler.OverflowPolicy)}.
+     *
+     * @return The request, to follow its progress
+     */
+    public PictureRequest takePicture() {
+        return cameraViewImpl.takePicture((PictureRequest.Listener) null);
+    }
+
+    /**
+     * Take a picture. The result will be returned to
+     * {@link Callback#onPictureTaken(CameraView, JpegImage)}.
+     *
+     * @param listener Told when the request is done
+     * @return The request, to follow its progress
+     */
+    public PictureRequest takePicture(@Nullable PictureRequest.Listener listener) {
+        return cameraViewImpl.takePicture(listener);
+    }
+
+    /**
+     * Take a picture and write it straight to a file, without copying it to the heap. The
+     * outcome will be returned to
+     * {@link Callback#onPictureSaved(CameraView, PictureWriter.Result)}.
+     *
+     * @param file The destination file, replaced if it exists
+     * @return The request, to follow its progress
+     */
+    public PictureRequest takePicture(@NonNull File file) {
+        return cameraViewImpl.takePicture(file, null);
+    }
+
+    /**
+     * @param file The destination file, replaced if it exists
+     * @param listener Told when the request is done
+     * @return The request, to follow its progress
+     * @see #takePicture(File)
+     */
+    public PictureRequest takePicture(@NonNull File file,
+            @Nullable PictureRequest.Listener listener) {
+        return cameraViewImpl.takePicture(file, listener);
+    }
+
+    /**
+     * Take a picture and write it to a stream. The outcome will be returned to
+     * {@link Callback#onPictureSaved(CameraView, PictureWriter.Result)}.
+     *
+     * @param out The destination stream, flushed but left open
+     * @return The request, to follow its progress
+     */
+    public PictureRequest takePicture(@NonNull OutputStream out) {
+        return cameraViewImpl.takePicture(out, null);
+    }
+
+    /**
+     * @param out The destination stream, flushed but left open
+     * @param listener Told when the request is done
+     * @return The request, to follow its progress
+     * @see #takePicture(OutputStream)
+     */
+    public PictureRequest takePicture(@NonNull OutputStream out,
+            @Nullable PictureRequest.Listener listener) {
+        return cameraViewImpl.takePicture(out, listener);
+    }
+
+    /**
+     * Take a picture and write it to a file along with its RAW version, as a DNG file. Each of
+     * them is reported to {@link Callback#onPictureSaved(CameraView, PictureWriter.Result)};
+     * the RAW one is written on its own thread and usually comes last.
+     *
+     * @param file The destination of the JPEG picture, or {@code null} to only write the RAW one
+     * @param rawFile The destination of the RAW picture, replaced if it exists
+     * @return The request, done once both pictures are written
+     * @throws IllegalStateException if RAW capture is not enabled
+     * @see #setRawCapture(boolean)
+     */
+    public PictureRequest takePicture(@Nullable File file, @NonNull File rawFile) {
+        return cameraViewImpl.takePicture(file, rawFile, null);
+    }
+
+    /**
+     * @param file The destination of the JPEG picture, or {@code null} to only write the RAW one
+     * @param rawFile The destination of the RAW picture, replaced if it exists
+     * @param listener Told when the request is done
+     * @return The request, to follow its progress
+     * @see #takePicture(File, File)
+     */
+    public PictureRequest takePicture(@Nullable File file, @NonNull File rawFile,
+            @Nullable PictureRequest.Listener listener) {
+        return cameraViewImpl.takePicture(file, rawFile, listener);
+    }
+
+    /**
+     * Sets how many pictures are captured at a time. Camera1 only captures one.
+     *
+     * @param count The number of pictures, 2 by default
+     */
+    public void setMaxPicturesInFlight(int count) {
+        cameraViewImpl.setMaxPicturesInFlight(count);
+    }
+
+    public int getMaxPicturesInFlight() {
+        return cameraViewImpl.getMaxPicturesInFlight();
+    }
+
+    /**
+     * Sets how many picture requests may wait while the camera is busy, and what happens to
+     * requests made when the queue is full. By default 4 requests wait and the next ones are
+     * dropped. Taking a picture never blocks, whatever the policy.
+     *
+     * @param capacity The number of waiting requests
+     * @param overflowPolicy What to do with the requests beyond
      */
-    public void takePicture() {
-        cameraViewImpl.takePicture();
+    public void setPictureQueue(int capacity,
+            @NonNull CaptureScheduler.OverflowPolicy overflowPolicy) {
+        cameraViewImpl.setPictureQueue(capacity, overflowPolicy);
+    }
+
+    /**
+     * @return The counts of picture requests so far, and the ones in progress.
+     */
+    public CaptureScheduler.Stats getPictureRequestStats() {
+        return cameraViewImpl.getCaptureScheduler().getStats();
+    }
+
+    /**
+     * Gets the latencies of the pictures taken so far, per phase of the capture: focus lock,
+     * exposure metering, shutter lag, capture and delivery.
+     *
+     * @return The live metrics, which can be {@link CaptureMetrics#reset() reset}
+     */
+    public CaptureMetrics getCaptureMetrics() {
+        return captureMetrics;
+    }
+
+    /**
+     * Gets the rate of the preview frames: instantaneous and rolling frame rates, jitter, and
+     * the frames dropped or failed. Only Camera2 reports its frames; on Camera1 the monitor
+     * stays empty.
+     *
+     * @return The live monitor, whose {@link FrameRateMonitor#getStats() stats} can be read
+     * from any thread
+     */
+    public FrameRateMonitor getFrameRateMonitor() {
+        return frameRateMonitor;
+    }
+
+    /**
+     * Take a burst of pictures as fast as the camera allows, without stopping the preview. On
+     * Camera2 the frames are submitted as a single burst and the image reader grows to hold as
+     * many of them as the burst memory budget allows; Camera1 takes them one after the other.
+     *
+     * @param count The number of pictures
+     * @param listener Receives the frames in order, then the sustained frame rate
+     * @return {@code false} if the burst can't start now, for example while another one is
+     * running.
+     * @see #setBurstMemoryBudget(long)
+     */
+    public boolean takeBurst(int count, @NonNull BurstListener listener) {
+        return cameraViewImpl.takeBurst(count, listener);
+    }
+
+    /**
+     * Take an exposure bracket: one frame per exposure, submitted as a single burst, merged
+     * into a single picture with well exposed shadows and highlights. The merge runs on a pool
+     * of one thread per core, the preview keeps running and the flash stays off. Only Camera2
+     * devices with manual sensor control support it; the first bracket sets up a YUV stream,
+     * which takes a session reconfiguration.
+     *
+     * @param exposureStops The exposure of each frame, in stops from the metered one, for
+     * example {@code {-2, 0, 2}}. At most {@link ExposureFusion#MAX_FRAMES} frames.
+     * @param listener Receives the merged picture
+     * @return {@code false} if the bracket can't start now, for example while pictures are
+     * being taken, or if it is not supported.
+     * @see #setBurstMemoryBudget(long)
+     */
+    public boolean takeBracket(@NonNull float[] exposureStops, @NonNull BracketListener listener) {
+        return cameraViewImpl.takeBracket(exposureStops, listener);
+    }
+
+    /**
+     * Sets how much memory the camera may hold in flight for a burst. A larger budget lets the
+     * camera run further ahead of slow listeners.
+     *
+     * @param bytes The budget in bytes, 64 MiB by default
+     */
+    public void setBurstMemoryBudget(long bytes) {
+        cameraViewImpl.setBurstMemoryBudget(bytes);
+    }
+
+    /**
+     * Sets the format pictures are captured in. With
+     * {@link android.graphics.ImageFormat#YUV_420_888}, Camera2 encodes them on a pool of worker
+     * threads, one per core, which keeps up with higher capture rates than the camera JPEG
+     * encoder on some devices. Pictures are still delivered as JPEG, in capture order.
+     *
+     * @param format {@link android.graphics.ImageFormat#JPEG} (the default) or
+     * {@link android.graphics.ImageFormat#YUV_420_888}
+     * @return {@code false} if the format is not supported; Camera1 only supports JPEG.
+     */
+    public boolean setPictureFormat(int format) {
+        return cameraViewImpl.setPictureFormat(format);
+    }
+
+    public int getPictureFormat() {
+        return cameraViewImpl.getPictureFormat();
+    }
+
+    /**
+     * Sets the encoder used for pictures captured as YUV and zero shutter lag pictures.
+     *
+     * @param jpegEncoder The encoder, must be thread-safe. {@link YuvImageJpegEncoder} by default.
+     */
+    public void setJpegEncoder(@NonNull JpegEncoder jpegEncoder) {
+        cameraViewImpl.setJpegEncoder(jpegEncoder);
+    }
+
+    /**
+     * Gets the shutter-to-preview-resumed latency of the last picture: the time from the start
+     * of its exposure to the start of exposure of the next preview frame, from their sensor
+     * timestamps. Camera2 keeps the preview running around stills, so this stays around one
+     * frame duration there.
+     *
+     * @return The latency in nanoseconds, or -1 if not measured (always on Camera1).
+     */
+    public long getPreviewResumeLatencyNanos() {
+        return cameraViewImpl.getPreviewResumeLatencyNanos();
+    }
+
+    /**
+     * Enables zero shutter lag. The camera then keeps its last frames at full size, and
+     * {@link #takePicture()} encodes the one closest to the call instead of running the focus
+     * and exposure sequence. Only used with the flash off or in torch mode; Camera1 does not
+     * support it.
+     *
+     * @return {@code false} if zero shutter lag is not supported.
+     * @see #setZslDepth(int)
+     */
+    public boolean setZeroShutterLag(boolean enabled) {
+        return cameraViewImpl.setZeroShutterLag(enabled);
+    }
+
+    public boolean getZeroShutterLag() {
+        return cameraViewImpl.getZeroShutterLag();
+    }
+
+    /**
+     * Enables the RAW stream, so that {@link #takePicture(File, File)} can write the sensor
+     * data as DNG files. Only devices with the RAW capability support it, and zero shutter lag
+     * is off while it runs; Camera1 does not support it.
+     *
+     * @return {@code false} if RAW capture is not supported.
+     */
+    public boolean setRawCapture(boolean enabled) {
+        return cameraViewImpl.setRawCapture(enabled);
+    }
+
+    public boolean getRawCapture() {
+        return cameraViewImpl.getRawCapture();
+    }
+
+    /**
+     * Sets the size of the thumbnail embedded in the pictures, which
+     * {@link JpegImage#getExifThumbnail()} extracts without decoding the picture. The closest
+     * size the camera supports is used; 0x0 leaves the thumbnail out.
+     *
+     * @param size The wanted size, or {@code null} for the camera default
+     */
+    public void setJpegThumbnailSize(@Nullable Size size) {
+        cameraViewImpl.setJpegThumbnailSize(size);
+    }
+
+    @Nullable
+    public Size getJpegThumbnailSize() {
+        return cameraViewImpl.getJpegThumbnailSize();
+    }
+
+    /**
+     * Bounds the time a picture waits for the focus to lock and for the exposure to converge,
+     * 1.5 s and 1 s by default. When a deadline passes, the picture is taken as is rather than
+     * hanging on a scene the camera can't settle on.
+     *
+     * @param focusMillis The focus lock deadline, 0 to wait as long as it takes
+     * @param exposureMillis The exposure metering deadline, 0 to wait as long as it takes
+     */
+    public void setConvergenceTimeouts(long focusMillis, long exposureMillis) {
+        cameraViewImpl.setConvergenceTimeouts(focusMillis, exposureMillis);
+    }
+
+    /**
+     * Sets how many frames are kept for zero shutter lag. Each of them holds width * height *
+     * 1.5 bytes, about 18 MiB at 12 megapixels.
+     *
+     * @param frames The depth of the ring, 3 by default
+     */
+    public void setZslDepth(int frames) {
+        cameraViewImpl.setZslDepth(frames);
+    }
+
+    public int getZslDepth() {
+        return cameraViewImpl.getZslDepth();
+    }
+
+    /**
+     * @return The usage of the zero shutter lag ring, or {@code null} if it is not running.
+     */
+    @Nullable
+    public FrameRing.Stats getZslStats() {
+        return cameraViewImpl.getZslStats();
+    }
+
+    /**
+     * Sets a processor to analyze the preview frames, for example to scan codes or detect
+     * faces, in place of any other. Frames are delivered as YUV 4:2:0 with their rotation and
+     * sensor timestamp, on a dedicated analysis thread. What happens to the frames when the
+     * processor is busy is set with
+     * {@link #setFrameBackpressure(FrameDispatcher.Backpressure, int)}.
+     *
+     * @param processor The processor, or {@code null} to stop the analysis
+     */
+    public void setFrameProcessor(@Nullable FrameProcessor processor) {
+        cameraViewImpl.setFrameProcessor(processor);
+    }
+
+    /**
+     * @return The first of the frame processors, or {@code null} if there is none.
+     */
+    @Nullable
+    public FrameProcessor getFrameProcessor() {
+        return cameraViewImpl.getFrameProcessor();
+    }
+
+    /**
+     * Adds a processor of the preview frames next to the others, for example a light meter at
+     * 30 fps next to a motion detector at 5 fps. The processors share a single analysis stream
+     * and the same frames, without copies; each frame is given back to the camera once the
+     * last processor releases it. Adding a processor which was already added updates its
+     * settings.
+     *
+     * @param processor The processor
+     * @param maxFps The maximum number of frames per second it gets, 0 for every frame
+     * @param executor Where it runs, or {@code null} to run on the analysis thread. A processor
+     * with an executor skips the frames which come while it is busy; one without is subject
+     * to the {@link #setFrameBackpressure(FrameDispatcher.Backpressure, int) backpressure}.
+     */
+    public void addFrameProcessor(@NonNull FrameProcessor processor, float maxFps,
+            @Nullable Executor executor) {
+        cameraViewImpl.addFrameProcessor(processor, maxFps, executor);
+    }
+
+    public void removeFrameProcessor(@NonNull FrameProcessor processor) {
+        cameraViewImpl.removeFrameProcessor(processor);
+    }
+
+    /**
+     * Sets the smallest size of the frames given to the frame processors, so that they don't
+     * pay for more pixels than they need. The frames get the smallest size the camera supports
+     * at the preview aspect ratio which covers it, whatever the size of the preview. With
+     * Camera1, the frames always have the size of the preview.
+     *
+     * @param size The size, in either orientation, 640x480 by default
+     */
+    public void setAnalysisSize(@NonNull Size size) {
+        cameraViewImpl.setAnalysisSize(size);
+    }
+
+    @NonNull
+    public Size getAnalysisSize() {
+        return cameraViewImpl.getAnalysisSize();
+    }
+
+    /**
+     * Sets what happens to the preview frames when the frame processor is slower than the
+     * camera:
+     * <ul>
+     * <li>{@link FrameDispatcher.Backpressure#KEEP_ONLY_LATEST} releases stale frames right
+     * away, so the processor always gets the freshest one. This is the default.</li>
+     * <li>{@link FrameDispatcher.Backpressure#QUEUE} lets up to {@code queueDepth} frames wait,
+     * dropping the oldest ones beyond that.</li>
+     * <li>{@link FrameDispatcher.Backpressure#BLOCK} lets up to {@code queueDepth} frames wait,
+     * then holds the next ones back so the camera skips frames instead. On Camera2, once the
+     * analysis stream is full the camera waits for it, which may slow the preview down.</li>
+     * </ul>
+     *
+     * @param backpressure The strategy
+     * @param queueDepth The number of frames which may wait for the processor, ignored for
+     * {@link FrameDispatcher.Backpressure#KEEP_ONLY_LATEST}
+     */
+    public void setFrameBackpressure(@NonNull FrameDispatcher.Backpressure backpressure,
+            int queueDepth) {
+        cameraViewImpl.setFrameBackpressure(backpressure, queueDepth);
+    }
+
+    @NonNull
+    public FrameDispatcher.Backpressure getFrameBackpressure() {
+        return cameraViewImpl.getFrameBackpressure();
+    }
+
+    /**
+     * @return How many frames were produced, analyzed and dropped since the camera was created.
+     */
+    @NonNull
+    public FrameDispatcher.Stats getFrameAnalysisStats() {
+        return cameraViewImpl.getFrameAnalysisStats();
+    }
+
+    /**
+     * @return The usage of the buffers Camera1 delivers the frames to the processors in, or
+     * {@code null} with Camera2.
+     */
+    @Nullable
+    public PreviewBufferPool.Stats getPreviewBufferStats() {
+        return cameraViewImpl.getPreviewBufferStats();
+    }
+
+    /**
+     * Sets how written pictures are synced to storage before being reported as saved.
+     *
+     * @param fsyncPolicy The policy, {@link PictureWriter.FsyncPolicy#NONE} by default
+     */
+    public void setFsyncPolicy(@NonNull PictureWriter.FsyncPolicy fsyncPolicy) {
+        pictureWriter.setFsyncPolicy(fsyncPolicy);
+    }
+
+    public PictureWriter.FsyncPolicy getFsyncPolicy() {
+        return pictureWriter.getFsyncPolicy();
     }
 
     /**
@@ -504,6 +1015,26 @@ public class CameraView extends CameraViewLayout {
         return cameraViewImpl.getPictureSize();
     }
 
+    /**
+     * Gets the pool shared by the capture paths for picture buffers. Use it to tune the memory
+     * limit, read the hit rate, or trim it from {@link android.content.ComponentCallbacks2}.
+     *
+     * @return The {@link BufferPool} of this view
+     * @see JpegImage#copy()
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Releases pooled buffers in response to a low memory signal.
+     *
+     * @param level The level given to {@link android.content.ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void trimMemory(int level) {
+        bufferPool.trimMemory(level);
+    }
+
     @Override
     protected void onTapToFocus(float x, float y) {
         // TODO: 21/09/2018 Focus implementation
@@ -523,6 +1054,43 @@ public class CameraView extends CameraViewLayout {
         return cameraViewImpl.getZoom();
     }
 
+    /**
+     * Keeps the frame rate of the preview and the recordings within a range, for example
+     * {@link FrameRateRange#FIXED_30} for a steady rate to analyze; the closest range the
+     * camera supports is used. Without one, the rate is up to the camera, often a variable
+     * range which halves it in low light.
+     *
+     * @param min The lowest rate, in frames per second
+     * @param max The highest rate, in frames per second
+     * @see #getSupportedFrameRateRanges()
+     */
+    public void setFrameRateRange(int min, int max) {
+        setFrameRateRange(new FrameRateRange(min, max));
+    }
+
+    /**
+     * @param range The range, or {@code null} for the default of the camera
+     * @see #setFrameRateRange(int, int)
+     */
+    public void setFrameRateRange(@Nullable FrameRateRange range) {
+        cameraViewImpl.setFrameRateRange(range);
+    }
+
+    /**
+     * @return The range set by {@link #setFrameRateRange(FrameRateRange)}, or {@code null}.
+     */
+    @Nullable
+    public FrameRateRange getFrameRateRange() {
+        return cameraViewImpl.getFrameRateRange();
+    }
+
+    /**
+     * @return The frame rate ranges the camera supports, empty until it is opened.
+     */
+    public Set<FrameRateRange> getSupportedFrameRateRanges() {
+        return cameraViewImpl.getSupportedFrameRateRanges();
+    }
+
     public void setVideoQuality(@NonNull VideoQuality videoQuality) {
         cameraViewImpl.setVideoQuality(videoQuality);
     }
@@ -572,9 +1140,16 @@ public class CameraView extends CameraViewLayout {
         }
 
         @Override
-        public void onPictureTaken(byte[] data) {
+        public void onPictureTaken(JpegImage image) {
             for (Callback callback : callbacks) {
-                callback.onPictureTaken(cameraView.get(), data);
+                callback.onPictureTaken(cameraView.get(), image);
+            }
+        }
+
+        @Override
+        public void onPictureSaved(PictureWriter.Result result) {
+            for (Callback callback : callbacks) {
+                callback.onPictureSaved(cameraView.get(), result);
             }
         }
 
@@ -606,6 +1181,8 @@ public class CameraView extends CameraViewLayout {
 
         Size pictureSize;
 
+        FrameRateRange frameRateRange;
+
         @SuppressWarnings("WrongConstant")
         public SavedState(Parcel source, ClassLoader loader) {
             super(source);
@@ -615,6 +1192,9 @@ public class CameraView extends CameraViewLayout {
             flash = source.readInt();
             zoom = source.readFloat();
             pictureSize = source.readParcelable(loader);
+            int minFps = source.readInt();
+            int maxFps = source.readInt();
+            frameRateRange = maxFps > 0 ? new FrameRateRange(minFps, maxFps) : null;
         }
 
         public SavedState(Parcelable superState) {
@@ -630,6 +1210,8 @@ public class CameraView extends CameraViewLayout {
             out.writeInt(flash);
             out.writeFloat(zoom);
             out.writeParcelable(pictureSize, flags);
+            out.writeInt(frameRateRange != null ? frameRateRange.getMin() : 0);
+            out.writeInt(frameRateRange != null ? frameRateRange.getMax() : 0);
         }
 
         public static final Parcelable.Creator<SavedState> CREATOR =
@@ -674,12 +1256,24 @@ public class CameraView extends CameraViewLayout {
         }
 
         /**
-         * Called when a picture is taken.
+         * Called when a picture is taken. The image is only valid during this call, unless it is
+         * {@link JpegImage#acquire() acquired}; release it as soon as possible as the camera
+         * can't reuse its buffer until then.
          *
          * @param cameraView The associated {@link CameraView}.
-         * @param data JPEG data.
+         * @param image JPEG data.
          */
-        public void onPictureTaken(CameraView cameraView, byte[] data) {
+        public void onPictureTaken(CameraView cameraView, JpegImage image) {
+        }
+
+        /**
+         * Called when a picture taken with {@link #takePicture(File)} or
+         * {@link #takePicture(OutputStream)} is written, or failed to be.
+         *
+         * @param cameraView The associated {@link CameraView}.
+         * @param result The written file, byte count and write latency.
+         */
+        public void onPictureSaved(CameraView cameraView, PictureWriter.Result result) {
         }
 
         /**
@@ -691,4 +1285,27 @@ public class CameraView extends CameraViewLayout {
         public void onVideoRecorded(CameraView cameraView, File videoFile) {
         }
     }
+
+    /**
+     * {@link Callback} which receives taken pictures as {@code byte[]}. Each picture is copied to
+     * a new array, so prefer {@link Callback#onPictureTaken(CameraView, JpegImage)} unless the
+     * array is really needed.
+     */
+    @SuppressWarnings("UnusedParameters")
+    public abstract static class ByteArrayCallback extends Callback {
+
+        @Override
+        public final void onPictureTaken(CameraView cameraView, JpegImage image) {
+            onPictureTaken(cameraView, image.toByteArray());
+        }
+
+        /**
+         * Called when a picture is taken.
+         *
+         * @param cameraView The associated {@link CameraView}.
+         * @param data JPEG data.
+         */
+        public void onPictureTaken(CameraView cameraView, byte[] data) {
+        }
+    }
 }
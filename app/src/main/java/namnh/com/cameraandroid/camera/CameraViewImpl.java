@@ -17,15 +17,37 @@
 package namnh.com.cameraandroid.camera;
 
 import android.graphics.SurfaceTexture;
+import android.os.SystemClock;
 import android.view.View;
 
 import java.io.File;
+import java.io.OutputStream;
+import java.util.List;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.Executor;
 
 import namnh.com.cameraandroid.camera.base.AspectRatio;
+import namnh.com.cameraandroid.camera.base.BracketListener;
+import namnh.com.cameraandroid.camera.base.BufferPool;
+import namnh.com.cameraandroid.camera.base.BurstListener;
+import namnh.com.cameraandroid.camera.base.CaptureMetrics;
+import namnh.com.cameraandroid.camera.base.CaptureScheduler;
+import namnh.com.cameraandroid.camera.base.Constants;
+import namnh.com.cameraandroid.camera.base.FrameDispatcher;
+import namnh.com.cameraandroid.camera.base.FrameFanOut;
+import namnh.com.cameraandroid.camera.base.FrameProcessor;
+import namnh.com.cameraandroid.camera.base.FrameRateMonitor;
+import namnh.com.cameraandroid.camera.base.FrameRateRange;
+import namnh.com.cameraandroid.camera.base.FrameRing;
+import namnh.com.cameraandroid.camera.base.JpegEncoder;
+import namnh.com.cameraandroid.camera.base.JpegImage;
+import namnh.com.cameraandroid.camera.base.PictureRequest;
+import namnh.com.cameraandroid.camera.base.PictureWriter;
+import namnh.com.cameraandroid.camera.base.PreviewBufferPool;
 import namnh.com.cameraandroid.camera.base.Size;
 import namnh.com.cameraandroid.camera.base.VideoQuality;
+import namnh.com.cameraandroid.camera.base.YuvImageJpegEncoder;
 
 public abstract class CameraViewImpl {
 
@@ -33,9 +55,107 @@ public abstract class CameraViewImpl {
 
     protected final PreviewImpl preview;
 
+    protected BufferPool bufferPool = new BufferPool(BufferPool.DEFAULT_MAX_BYTES);
+
+    protected PictureWriter pictureWriter = new PictureWriter();
+
+    /** Compresses the pictures captured as YUV. */
+    protected JpegEncoder jpegEncoder = new YuvImageJpegEncoder();
+
+    /** Memory the camera may hold in flight for a burst, in bytes. */
+    protected long burstMemoryBudget = 64 * 1024 * 1024;
+
+    /** Number of recent frames kept for zero shutter lag pictures. */
+    protected int zslDepth = 3;
+
+    /**
+     * How long a picture waits for the focus to lock before it is taken anyway, in
+     * milliseconds, 0 to wait as long as it takes.
+     */
+    protected long focusLockTimeoutMillis = 1500;
+
+    /** Same as {@link #focusLockTimeoutMillis}, for the exposure metering. */
+    protected long exposureTimeoutMillis = 1000;
+
+    /** Size of the thumbnail embedded in the JPEG pictures, or {@code null} for the default. */
+    protected Size jpegThumbnailSize;
+
+    /** Hands the preview frames to {@link #frameFanOut}, on the analysis thread. */
+    protected final FrameDispatcher frameDispatcher = new FrameDispatcher();
+
+    /** The processors of the preview frames. */
+    protected FrameFanOut frameFanOut = new FrameFanOut();
+
+    /** The smallest size of the frames given to the processors. */
+    protected Size analysisSize = Constants.DEFAULT_ANALYSIS_SIZE;
+
+    /** Latencies of the phases pictures go through. */
+    protected CaptureMetrics captureMetrics = new CaptureMetrics();
+
+    /** Rate of the preview frames, from the capture results. */
+    protected FrameRateMonitor frameRateMonitor = new FrameRateMonitor();
+
+    /** Orders the picture requests, see {@link #startPictureCapture(PictureRequest)}. */
+    protected final CaptureScheduler captureScheduler =
+            new CaptureScheduler(new CaptureScheduler.Starter() {
+                @Override
+                public boolean startCapture(PictureRequest request) {
+                    captureMetrics.record(CaptureMetrics.Phase.QUEUE_WAIT,
+                            request.getStartNanos() - request.getSubmitNanos());
+                    return startPictureCapture(request);
+                }
+            });
+
     public CameraViewImpl(Callback callback, PreviewImpl preview) {
         this.callback = callback;
         this.preview = preview;
+        captureScheduler.setMaxInFlight(Math.min(CaptureScheduler.DEFAULT_MAX_IN_FLIGHT,
+                getMaxPicturesInFlightLimit()));
+    }
+
+    /**
+     * Sets the pool that {@link JpegImage#copy()}, the JPEG encode pipeline and brackets borrow
+     * their buffers from. Pictures backed by camera memory do not use it.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Sets the writer used by {@link #takePicture(File)} and {@link #takePicture(OutputStream)}.
+     */
+    public void setPictureWriter(PictureWriter pictureWriter) {
+        this.pictureWriter = pictureWriter;
+    }
+
+    /**
+     * Sets where the latencies of the pictures are recorded.
+     */
+    public void setCaptureMetrics(CaptureMetrics captureMetrics) {
+        this.captureMetrics = captureMetrics;
+    }
+
+    public CaptureMetrics getCaptureMetrics() {
+        return captureMetrics;
+    }
+
+    /**
+     * Sets where the preview frames are recorded.
+     */
+    public void setFrameRateMonitor(FrameRateMonitor frameRateMonitor) {
+        this.frameRateMonitor = frameRateMonitor;
+    }
+
+    public FrameRateMonitor getFrameRateMonitor() {
+        return frameRateMonitor;
+    }
+
+    public void setJpegEncoder(JpegEncoder jpegEncoder) {
+        this.jpegEncoder = jpegEncoder;
     }
 
     public View getView() {
@@ -89,7 +209,330 @@ public abstract class CameraViewImpl {
 
     public abstract float getZoom();
 
-    public abstract void takePicture();
+    /**
+     * @return The frame rate ranges the camera supports, empty until it is opened.
+     */
+    public abstract Set<FrameRateRange> getSupportedFrameRateRanges();
+
+    /**
+     * @param range The range to keep the preview and the recordings within, the closest
+     * supported one is used; {@code null} for the default of the camera
+     */
+    public abstract void setFrameRateRange(FrameRateRange range);
+
+    /**
+     * @return The range set by {@link #setFrameRateRange(FrameRateRange)}.
+     */
+    public abstract FrameRateRange getFrameRateRange();
+
+    /**
+     * Takes a picture, delivered to {@link Callback#onPictureTaken(JpegImage)}.
+     *
+     * @param listener Told when the request is done, or {@code null}
+     */
+    public PictureRequest takePicture(PictureRequest.Listener listener) {
+        return submitPicture(null, null, null, listener);
+    }
+
+    /**
+     * Takes a picture and writes it straight to {@code file}. The outcome is returned to
+     * {@link Callback#onPictureSaved(PictureWriter.Result)}.
+     *
+     * @param listener Told when the request is done, or {@code null}
+     */
+    public PictureRequest takePicture(File file, PictureRequest.Listener listener) {
+        return submitPicture(file, null, null, listener);
+    }
+
+    /**
+     * Takes a picture and writes it to {@code out}, which is left open. The outcome is returned
+     * to {@link Callback#onPictureSaved(PictureWriter.Result)}.
+     *
+     * @param listener Told when the request is done, or {@code null}
+     */
+    public PictureRequest takePicture(OutputStream out, PictureRequest.Listener listener) {
+        return submitPicture(null, out, null, listener);
+    }
+
+    /**
+     * Takes a picture along with its RAW version, see {@link #setRawCapture(boolean)}.
+     *
+     * @param file The file to write the JPEG picture to, or {@code null} to only keep the RAW one
+     * @param rawFile The DNG file to write the RAW picture to
+     * @param listener Told when both pictures are written, or {@code null}
+     * @throws IllegalStateException if RAW capture is not enabled.
+     */
+    public PictureRequest takePicture(File file, File rawFile, PictureRequest.Listener listener) {
+        if (!getRawCapture()) {
+            throw new IllegalStateException("RAW capture is not enabled");
+        }
+        return submitPicture(file, null, rawFile, listener);
+    }
+
+    /**
+     * Submits a picture request stamped with the current time, which zero shutter lag captures
+     * match against the sensor timestamps.
+     */
+    private PictureRequest submitPicture(File file, OutputStream out, File rawFile,
+            PictureRequest.Listener listener) {
+        return captureScheduler.submit(file, out, rawFile, SystemClock.elapsedRealtimeNanos(),
+                listener);
+    }
+
+    /**
+     * Enables or disables the RAW stream, needed to take RAW pictures. It only runs on devices
+     * with the RAW capability, and replaces zero shutter lag.
+     *
+     * @return {@code false} if RAW capture is not supported.
+     */
+    public abstract boolean setRawCapture(boolean enabled);
+
+    public abstract boolean getRawCapture();
+
+    /**
+     * Starts capturing the picture of {@code request}, once the {@link #captureScheduler} has a
+     * free slot. This may be called from any thread. The picture must be handed to
+     * {@link #dispatchPictureTaken(JpegImage)}, or the failure reported with
+     * {@link #failPictureCapture()}, in the order the captures were started.
+     *
+     * @return {@code false} if the capture can't start, the request then fails.
+     */
+    protected abstract boolean startPictureCapture(PictureRequest request);
+
+    /**
+     * @return The most pictures this camera can capture at a time.
+     */
+    protected int getMaxPicturesInFlightLimit() {
+        return Integer.MAX_VALUE;
+    }
+
+    public void setMaxPicturesInFlight(int count) {
+        captureScheduler.setMaxInFlight(Math.min(count, getMaxPicturesInFlightLimit()));
+    }
+
+    public int getMaxPicturesInFlight() {
+        return captureScheduler.getMaxInFlight();
+    }
+
+    /**
+     * Sets how many picture requests may wait for a free slot, and what happens to the ones
+     * beyond.
+     */
+    public void setPictureQueue(int capacity, CaptureScheduler.OverflowPolicy overflowPolicy) {
+        captureScheduler.setQueueCapacity(capacity);
+        captureScheduler.setOverflowPolicy(overflowPolicy);
+    }
+
+    public CaptureScheduler getCaptureScheduler() {
+        return captureScheduler;
+    }
+
+    /**
+     * Takes {@code count} pictures as fast as the camera allows.
+     *
+     * @return {@code false} if the burst can't start now, for example while another one is
+     * running.
+     */
+    public abstract boolean takeBurst(int count, BurstListener listener);
+
+    /**
+     * Takes one frame per exposure as a single burst, and merges them into a single picture.
+     *
+     * @param exposureStops The exposure of each frame, in stops from the metered one
+     * @return {@code false} if the bracket can't start now, or is not supported.
+     */
+    public abstract boolean takeBracket(float[] exposureStops, BracketListener listener);
+
+    public void setBurstMemoryBudget(long bytes) {
+        burstMemoryBudget = bytes;
+    }
+
+    /**
+     * Sets the format the camera captures pictures in: {@link android.graphics.ImageFormat#JPEG},
+     * or {@link android.graphics.ImageFormat#YUV_420_888} to encode them with
+     * {@link #jpegEncoder} instead.
+     *
+     * @return {@code false} if the format is not supported.
+     */
+    public abstract boolean setPictureFormat(int format);
+
+    public abstract int getPictureFormat();
+
+    /**
+     * Enables or disables zero shutter lag: recent frames are kept in a ring and a picture is
+     * taken from the one closest to the press instead of running a capture sequence.
+     *
+     * @return {@code false} if zero shutter lag is not supported.
+     */
+    public abstract boolean setZeroShutterLag(boolean enabled);
+
+    public abstract boolean getZeroShutterLag();
+
+    /**
+     * Sets the size of the thumbnail embedded in the EXIF data of the pictures, see
+     * {@link JpegImage#getExifThumbnail()}. The closest size supported by the camera is used,
+     * and 0x0 leaves the thumbnail out.
+     *
+     * @param size The wanted size, or {@code null} for the camera default
+     */
+    public void setJpegThumbnailSize(Size size) {
+        jpegThumbnailSize = size;
+    }
+
+    public Size getJpegThumbnailSize() {
+        return jpegThumbnailSize;
+    }
+
+    /**
+     * Bounds the time pictures wait for the focus and the exposure to settle; once a deadline
+     * passes the picture is taken as is.
+     *
+     * @param focusMillis The focus lock deadline, 0 to wait as long as it takes
+     * @param exposureMillis The exposure metering deadline, 0 to wait as long as it takes
+     */
+    public void setConvergenceTimeouts(long focusMillis, long exposureMillis) {
+        if (focusMillis < 0 || exposureMillis < 0) {
+            throw new IllegalArgumentException("Timeouts can't be negative: " + focusMillis
+                    + ", " + exposureMillis);
+        }
+        focusLockTimeoutMillis = focusMillis;
+        exposureTimeoutMillis = exposureMillis;
+    }
+
+    public long getFocusLockTimeoutMillis() {
+        return focusLockTimeoutMillis;
+    }
+
+    public long getExposureTimeoutMillis() {
+        return exposureTimeoutMillis;
+    }
+
+    public void setZslDepth(int frames) {
+        if (frames <= 0) {
+            throw new IllegalArgumentException("frames must be positive: " + frames);
+        }
+        zslDepth = frames;
+    }
+
+    public int getZslDepth() {
+        return zslDepth;
+    }
+
+    /**
+     * @return The time from the start of exposure of the last still to the one of the next
+     * preview frame, in nanoseconds, or -1 if not measured.
+     */
+    public long getPreviewResumeLatencyNanos() {
+        return -1;
+    }
+
+    /**
+     * @return The usage of the preview callback buffers, or {@code null} if the frames are not
+     * delivered through them.
+     */
+    public PreviewBufferPool.Stats getPreviewBufferStats() {
+        return null;
+    }
+
+    /**
+     * @return The usage of the zero shutter lag ring, or {@code null} if it is not running.
+     */
+    public abstract FrameRing.Stats getZslStats();
+
+    /**
+     * Sets the processors of the preview frames, shared with another implementation.
+     */
+    public void setFrameFanOut(FrameFanOut frameFanOut) {
+        this.frameFanOut = frameFanOut;
+        updateFrameProcessors();
+    }
+
+    /**
+     * Sets the processor the preview frames are delivered to, on a dedicated analysis thread,
+     * in place of any other.
+     *
+     * @param processor The processor, or {@code null} to stop the analysis
+     */
+    public void setFrameProcessor(FrameProcessor processor) {
+        frameFanOut.clear();
+        if (processor != null) {
+            frameFanOut.addConsumer(processor, 0, null);
+        }
+        updateFrameProcessors();
+    }
+
+    /**
+     * @return The first of the frame processors, or {@code null} if there is none.
+     */
+    public FrameProcessor getFrameProcessor() {
+        List<FrameProcessor> processors = frameFanOut.getConsumers();
+        return processors.isEmpty() ? null : processors.get(0);
+    }
+
+    /**
+     * Adds a processor of the preview frames, next to the others.
+     *
+     * @see FrameFanOut#addConsumer(FrameProcessor, float, Executor)
+     */
+    public void addFrameProcessor(FrameProcessor processor, float maxFps,
+            Executor executor) {
+        frameFanOut.addConsumer(processor, maxFps, executor);
+        updateFrameProcessors();
+    }
+
+    public void removeFrameProcessor(FrameProcessor processor) {
+        if (frameFanOut.removeConsumer(processor)) {
+            updateFrameProcessors();
+        }
+    }
+
+    private void updateFrameProcessors() {
+        frameDispatcher.setProcessor(frameFanOut.isEmpty() ? null : frameFanOut);
+        onFrameProcessorsChanged();
+    }
+
+    /**
+     * Called when frame processors are added or removed, to start, resize or stop the
+     * analysis stream.
+     */
+    protected abstract void onFrameProcessorsChanged();
+
+    /**
+     * Sets what happens to the preview frames when the frame processor is slower than the
+     * camera.
+     *
+     * @param backpressure The strategy
+     * @param queueDepth The number of frames which may wait for the processor
+     */
+    public void setFrameBackpressure(FrameDispatcher.Backpressure backpressure, int queueDepth) {
+        frameDispatcher.setBackpressure(backpressure, queueDepth);
+    }
+
+    public FrameDispatcher.Backpressure getFrameBackpressure() {
+        return frameDispatcher.getBackpressure();
+    }
+
+    public int getFrameQueueDepth() {
+        return frameDispatcher.getQueueDepth();
+    }
+
+    /**
+     * Sets the smallest size of the frames given to the processors. The frames have the
+     * smallest size the camera supports at the preview aspect ratio which covers it.
+     *
+     * @param size The size, in either orientation
+     */
+    public void setAnalysisSize(Size size) {
+        analysisSize = size;
+    }
+
+    public Size getAnalysisSize() {
+        return analysisSize;
+    }
+
+    public FrameDispatcher.Stats getFrameAnalysisStats() {
+        return frameDispatcher.getStats();
+    }
 
     public abstract void setVideoQuality(VideoQuality videoQuality);
 
@@ -107,13 +550,113 @@ public abstract class CameraViewImpl {
 
     public abstract Size getPreviewSize();
 
+    /**
+     * Delivers a taken picture to the request it was captured for, along with the requests
+     * coalesced into it, and then drops the reference owned by the camera, so the picture is
+     * given back unless a listener acquired it.
+     */
+    protected void dispatchPictureTaken(JpegImage image) {
+        // Frees the slot first, so the next capture overlaps with the delivery
+        dispatchPictureTaken(captureScheduler.onCaptureCompleted(), image);
+    }
+
+    /**
+     * Same as {@link #dispatchPictureTaken(JpegImage)}, for a request already reported to
+     * {@link CaptureScheduler#onCaptureCompleted()}.
+     *
+     * @param request The request, or {@code null} to only notify {@link #callback}
+     */
+    protected void dispatchPictureTaken(PictureRequest request, JpegImage image) {
+        try {
+            if (request == null) {
+                callback.onPictureTaken(image);
+                return;
+            }
+            captureMetrics.record(CaptureMetrics.Phase.TOTAL,
+                    System.nanoTime() - request.getStartNanos());
+            deliverPicture(request, image, true);
+            for (PictureRequest coalesced : request.getCoalescedRequests()) {
+                deliverPicture(coalesced, image, false);
+            }
+        } finally {
+            image.release();
+        }
+    }
+
+    private void deliverPicture(PictureRequest request, JpegImage image, boolean broadcast) {
+        PictureWriter.Result result = null;
+        if (request.getFile() != null) {
+            result = pictureWriter.write(image.getBuffer(), request.getFile());
+        } else if (request.getOutputStream() != null) {
+            result = pictureWriter.write(image.getBuffer(), request.getOutputStream());
+        }
+        if (result != null) {
+            callback.onPictureSaved(result);
+        } else if (broadcast && !request.isRawOnly()) {
+            callback.onPictureTaken(image);
+        }
+        captureScheduler.finish(request, result);
+    }
+
+    /**
+     * Reports the outcome of writing the RAW picture of {@code request}.
+     */
+    protected void dispatchRawPictureSaved(PictureRequest request, PictureWriter.Result result) {
+        callback.onPictureSaved(result);
+        captureScheduler.finishRaw(request, result);
+    }
+
+    /**
+     * Reports that the oldest picture capture in flight failed.
+     */
+    protected void failPictureCapture() {
+        captureScheduler.onCaptureFailed();
+    }
+
+    /**
+     * Reports that the capture of {@code request} failed, for pictures which may complete out
+     * of order.
+     */
+    protected void failPictureCapture(PictureRequest request) {
+        captureScheduler.onCaptureFailed(request);
+    }
+
+    /**
+     * Delivers the picture of {@code request}, for pictures which may complete out of order.
+     * The picture is dropped if the request is no longer in flight.
+     *
+     * @param image The picture; this method takes over its reference
+     */
+    protected void completePictureCapture(PictureRequest request, JpegImage image) {
+        if (captureScheduler.onCaptureCompleted(request)) {
+            dispatchPictureTaken(request, image);
+        } else {
+            image.release();
+        }
+    }
+
+    /**
+     * @return {@code true} if the picture of {@code request} is going to be written to a file or
+     * a stream rather than delivered to the callback.
+     */
+    protected static boolean isWrittenToTarget(PictureRequest request) {
+        if (request == null) return false;
+        if (request.hasTarget()) return true;
+        for (PictureRequest coalesced : request.getCoalescedRequests()) {
+            if (coalesced.hasTarget()) return true;
+        }
+        return false;
+    }
+
     public interface Callback {
 
         void onCameraOpened();
 
         void onCameraClosed();
 
-        void onPictureTaken(byte[] data);
+        void onPictureTaken(JpegImage image);
+
+        void onPictureSaved(PictureWriter.Result result);
 
         void onVideoRecorded(File videoFile);
     }
@@ -0,0 +1,148 @@
+package namnh.com.cameraandroid.camera.base;
+
+/**
+ * Keeps track of a running bracketed capture: copies its frames to NV21 as they arrive, so the
+ * camera gets its buffers back, and tells when every requested frame is accounted for.
+ */
+public class BracketCapture {
+
+    private final float[] exposureStops;
+
+    private final BracketListener listener;
+
+    private final BufferPool pool;
+
+    private final byte[][] frames;
+
+    private int deliveredCount;
+
+    private int failedCount;
+
+    private int width;
+
+    private int height;
+
+    private long timestamp;
+
+    private boolean finished;
+
+    /**
+     * @param exposureStops The exposure of each frame, in stops from the metered one
+     * @param listener Receives the merged picture
+     * @param pool The pool the NV21 copies are borrowed from
+     */
+    public BracketCapture(float[] exposureStops, BracketListener listener, BufferPool pool) {
+        if (exposureStops.length == 0 || exposureStops.length > ExposureFusion.MAX_FRAMES) {
+            throw new IllegalArgumentException("A bracket needs between 1 and "
+                    + ExposureFusion.MAX_FRAMES + " frames: " + exposureStops.length);
+        }
+        this.exposureStops = exposureStops.clone();
+        this.listener = listener;
+        this.pool = pool;
+        frames = new byte[exposureStops.length][];
+    }
+
+    public int getFrameCount() {
+        return exposureStops.length;
+    }
+
+    public float getExposureStops(int index) {
+        return exposureStops[index];
+    }
+
+    public BracketListener getListener() {
+        return listener;
+    }
+
+    public synchronized boolean isDone() {
+        return deliveredCount + failedCount >= exposureStops.length;
+    }
+
+    /**
+     * Copies the next frame and releases it. Frames must be given in capture order, and all be
+     * of the same size.
+     *
+     * @param frame The frame, this method takes over its reference
+     * @return {@code true} if every frame is accounted for
+     */
+    public boolean onFrame(YuvFrame frame) {
+        byte[] nv21 = null;
+        try {
+            nv21 = pool.acquire(frame.getNv21Length());
+            frame.toNv21(nv21);
+        } catch (RuntimeException e) {
+            pool.release(nv21);
+            return onFrameFailed();
+        } finally {
+            frame.release();
+        }
+        synchronized (this) {
+            if (deliveredCount == 0) {
+                width = frame.getCropWidth();
+                height = frame.getCropHeight();
+                timestamp = frame.getTimestamp();
+            } else if (frame.getCropWidth() != width || frame.getCropHeight() != height) {
+                pool.release(nv21);
+                failedCount++;
+                return isDone();
+            }
+            frames[deliveredCount++] = nv21;
+            return isDone();
+        }
+    }
+
+    /**
+     * Accounts for a frame that will never be delivered.
+     *
+     * @return {@code true} if every frame is accounted for
+     */
+    public synchronized boolean onFrameFailed() {
+        failedCount++;
+        return isDone();
+    }
+
+    /**
+     * @return The NV21 copies of the delivered frames, in capture order.
+     */
+    public synchronized byte[][] getFrames() {
+        byte[][] delivered = new byte[deliveredCount][];
+        System.arraycopy(frames, 0, delivered, 0, deliveredCount);
+        return delivered;
+    }
+
+    public synchronized int getWidth() {
+        return width;
+    }
+
+    public synchronized int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return The sensor timestamp of the first frame, in nanoseconds.
+     */
+    public synchronized long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Claims the outcome of this bracket, for either its merge or its failure.
+     *
+     * @return {@code true} for the first call only
+     */
+    public synchronized boolean finish() {
+        if (finished) return false;
+        finished = true;
+        return true;
+    }
+
+    /**
+     * Gives the NV21 copies back to the pool.
+     */
+    public synchronized void release() {
+        for (int i = 0; i < frames.length; i++) {
+            pool.release(frames[i]);
+            frames[i] = null;
+        }
+    }
+}
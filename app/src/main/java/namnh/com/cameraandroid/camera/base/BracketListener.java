@@ -0,0 +1,23 @@
+package namnh.com.cameraandroid.camera.base;
+
+/**
+ * Receives the outcome of a bracketed capture started with
+ * {@link namnh.com.cameraandroid.camera.CameraView#takeBracket(float[], BracketListener)}.
+ */
+public interface BracketListener {
+
+    /**
+     * Called once the frames are merged and encoded. The image is only valid during this call
+     * unless it is acquired or copied.
+     *
+     * @param frameCount The number of merged frames, lower than requested if some failed
+     * @param image The JPEG data
+     */
+    void onBracketCompleted(int frameCount, JpegImage image);
+
+    /**
+     * Called instead of {@link #onBracketCompleted(int, JpegImage)} if no frame could be
+     * captured, or the merge failed.
+     */
+    void onBracketFailed(Exception error);
+}
@@ -0,0 +1,245 @@
+package namnh.com.cameraandroid.camera.base;
+
+import android.content.ComponentCallbacks2;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A pool of {@code byte[]} buffers grouped in size classes, so capture paths can reuse picture
+ * and frame buffers instead of allocating new ones for every shot.
+ * <p>
+ * Size classes grow by quarters of a power of two (4096, 5120, 6144, 7168, 8192, 10240...), so
+ * a borrowed buffer is at most 25% larger than requested. The pool never retains more than
+ * {@link #getMaxBytes()}; buffers given back above that limit are left to the garbage collector.
+ * <p>
+ * This class is thread-safe.
+ */
+public class BufferPool {
+
+    /** Default limit of retained memory. */
+    public static final int DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    /** Buffers smaller than this are not worth pooling. */
+    private static final int MIN_SHIFT = 12;
+
+    private static final int MAX_SHIFT = 30;
+
+    private static final int CLASSES_PER_SHIFT = 4;
+
+    private final List<ArrayDeque<byte[]>> freeBuffers;
+
+    private int maxBytes;
+
+    private long retainedBytes;
+
+    private long hitCount;
+
+    private long missCount;
+
+    private long evictionCount;
+
+    public BufferPool(int maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        // The deques are created on first release, most size classes are never used
+        freeBuffers = new ArrayList<>(Collections.<ArrayDeque<byte[]>>nCopies(
+                (MAX_SHIFT - MIN_SHIFT + 1) * CLASSES_PER_SHIFT, null));
+    }
+
+    /**
+     * Borrows a buffer of at least {@code minLength} bytes. The buffer is usually longer than
+     * requested and its content is undefined.
+     *
+     * @param minLength The minimum length of the buffer
+     * @return A buffer to give back with {@link #release(byte[])} once done
+     */
+    public byte[] acquire(int minLength) {
+        int index = ceilClassIndex(minLength);
+        if (index < 0) {
+            synchronized (this) {
+                missCount++;
+            }
+            return new byte[Math.max(minLength, 0)];
+        }
+        synchronized (this) {
+            ArrayDeque<byte[]> buffers = freeBuffers.get(index);
+            if (buffers != null && !buffers.isEmpty()) {
+                byte[] buffer = buffers.pop();
+                retainedBytes -= buffer.length;
+                hitCount++;
+                return buffer;
+            }
+            missCount++;
+        }
+        return new byte[classSize(index)];
+    }
+
+    /**
+     * Gives a buffer back to the pool. Any array can be given back, not only the ones borrowed
+     * from this pool. The caller must not touch the buffer afterwards.
+     *
+     * @param buffer The buffer to give back
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) return;
+        int index = floorClassIndex(buffer.length);
+        if (index < 0) return;
+        synchronized (this) {
+            if (retainedBytes + buffer.length > maxBytes) {
+                evictionCount++;
+                return;
+            }
+            ArrayDeque<byte[]> buffers = freeBuffers.get(index);
+            if (buffers == null) {
+                buffers = new ArrayDeque<>();
+                freeBuffers.set(index, buffers);
+            }
+            buffers.push(buffer);
+            retainedBytes += buffer.length;
+        }
+    }
+
+    /**
+     * Drops retained buffers, largest first, until at most {@code bytes} are retained.
+     */
+    public synchronized void trimToSize(long bytes) {
+        for (int i = freeBuffers.size() - 1; i >= 0 && retainedBytes > bytes; i--) {
+            ArrayDeque<byte[]> buffers = freeBuffers.get(i);
+            while (buffers != null && !buffers.isEmpty() && retainedBytes > bytes) {
+                retainedBytes -= buffers.pop().length;
+                evictionCount++;
+            }
+        }
+    }
+
+    /**
+     * Releases memory in response to {@link ComponentCallbacks2#onTrimMemory(int)}.
+     *
+     * @param level The trim level given to {@code onTrimMemory}
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            // Also covers every level where the UI is hidden, the camera is not in use then.
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            synchronized (this) {
+                trimToSize(retainedBytes / 2);
+            }
+        }
+    }
+
+    public void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized void setMaxBytes(int maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hitCount, missCount, evictionCount, retainedBytes, maxBytes);
+    }
+
+    /**
+     * @return The index of the smallest class holding {@code length} bytes, or -1 if such
+     * buffers are not pooled.
+     */
+    private static int ceilClassIndex(int length) {
+        if (length <= 1 << MIN_SHIFT) {
+            return length < 0 ? -1 : 0;
+        }
+        int shift = 31 - Integer.numberOfLeadingZeros(length);
+        int step = 1 << (shift - 2);
+        int index = (shift - MIN_SHIFT) * CLASSES_PER_SHIFT
+                + ((length - (1 << shift)) + step - 1) / step;
+        return index < (MAX_SHIFT - MIN_SHIFT + 1) * CLASSES_PER_SHIFT ? index : -1;
+    }
+
+    /**
+     * @return The index of the largest class fitting in {@code length} bytes, or -1 if such
+     * buffers are not pooled.
+     */
+    private static int floorClassIndex(int length) {
+        if (length < 1 << MIN_SHIFT) {
+            return -1;
+        }
+        int shift = 31 - Integer.numberOfLeadingZeros(length);
+        int step = 1 << (shift - 2);
+        return (shift - MIN_SHIFT) * CLASSES_PER_SHIFT + (length - (1 << shift)) / step;
+    }
+
+    private static int classSize(int index) {
+        int shift = MIN_SHIFT + index / CLASSES_PER_SHIFT;
+        return (CLASSES_PER_SHIFT + index % CLASSES_PER_SHIFT) << (shift - 2);
+    }
+
+    /**
+     * Immutable snapshot of the pool usage.
+     */
+    public static class Stats {
+
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+        private final long retainedBytes;
+        private final int maxBytes;
+
+        Stats(long hitCount, long missCount, long evictionCount, long retainedBytes,
+                int maxBytes) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.retainedBytes = retainedBytes;
+            this.maxBytes = maxBytes;
+        }
+
+        /** @return The number of buffers served from the pool. */
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        /** @return The number of buffers that had to be allocated. */
+        public long getMissCount() {
+            return missCount;
+        }
+
+        /** @return The fraction of borrowed buffers served from the pool, 0 if none. */
+        public float getHitRate() {
+            long total = hitCount + missCount;
+            return total == 0 ? 0f : (float) hitCount / total;
+        }
+
+        /** @return The number of buffers dropped because of the memory limit or a trim. */
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        /** @return The number of bytes currently held by the pool. */
+        public long getRetainedBytes() {
+            return retainedBytes;
+        }
+
+        public int getMaxBytes() {
+            return maxBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "BufferPool.Stats{hits=" + hitCount + ", misses=" + missCount
+                    + ", evictions=" + evictionCount + ", retained=" + retainedBytes + "/"
+                    + maxBytes + "}";
+        }
+    }
+}
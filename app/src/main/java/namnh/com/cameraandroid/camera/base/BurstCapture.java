@@ -0,0 +1,97 @@
+package namnh.com.cameraandroid.camera.base;
+
+/**
+ * Keeps track of a running burst: numbers its frames, counts the failed ones and reports the
+ * sustained frame rate once every requested frame is accounted for.
+ */
+public class BurstCapture {
+
+    private final int frameCount;
+
+    private final BurstListener listener;
+
+    private int deliveredCount;
+
+    private int failedCount;
+
+    private long firstTimestamp;
+
+    private long lastTimestamp;
+
+    private boolean completed;
+
+    public BurstCapture(int frameCount, BurstListener listener) {
+        if (frameCount <= 0) {
+            throw new IllegalArgumentException("A burst needs at least one frame: " + frameCount);
+        }
+        this.frameCount = frameCount;
+        this.listener = listener;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public synchronized boolean isDone() {
+        return deliveredCount + failedCount >= frameCount;
+    }
+
+    /**
+     * Delivers the next frame to the listener. Frames must be given in capture order.
+     *
+     * @param timestamp The sensor timestamp of the frame, in nanoseconds
+     * @param image The JPEG data, still owned by the caller
+     * @return {@code true} if the burst is over
+     */
+    public boolean onFrame(long timestamp, JpegImage image) {
+        int index;
+        synchronized (this) {
+            index = deliveredCount;
+            if (index == 0) {
+                firstTimestamp = timestamp;
+            }
+            lastTimestamp = timestamp;
+            deliveredCount++;
+        }
+        listener.onBurstFrame(index, timestamp, image);
+        return completeIfDone();
+    }
+
+    /**
+     * Accounts for a frame that will never be delivered.
+     *
+     * @return {@code true} if the burst is over
+     */
+    public boolean onFrameFailed() {
+        synchronized (this) {
+            failedCount++;
+        }
+        return completeIfDone();
+    }
+
+    /**
+     * @return The rate between the first and the latest frame, 0 until two frames arrived.
+     */
+    public synchronized float getFramesPerSecond() {
+        if (deliveredCount < 2 || lastTimestamp <= firstTimestamp) {
+            return 0f;
+        }
+        return (deliveredCount - 1) * 1e9f / (lastTimestamp - firstTimestamp);
+    }
+
+    private boolean completeIfDone() {
+        int delivered;
+        synchronized (this) {
+            if (completed) {
+                return true;
+            }
+            if (deliveredCount + failedCount < frameCount) {
+                return false;
+            }
+            completed = true;
+            delivered = deliveredCount;
+        }
+        listener.onBurstCompleted(delivered, getFramesPerSecond());
+        return true;
+    }
+}
@@ -0,0 +1,26 @@
+package namnh.com.cameraandroid.camera.base;
+
+/**
+ * Receives the frames of a burst started with
+ * {@link namnh.com.cameraandroid.camera.CameraView#takeBurst(int, BurstListener)}.
+ */
+public interface BurstListener {
+
+    /**
+     * Called for each frame, in capture order. The image is only valid during this call unless
+     * it is acquired or copied; keep this short, the next frames wait for its buffer.
+     *
+     * @param index The index of the frame in the burst, from 0
+     * @param timestamp The sensor timestamp of the frame, in nanoseconds
+     * @param image The JPEG data
+     */
+    void onBurstFrame(int index, long timestamp, JpegImage image);
+
+    /**
+     * Called once the burst is over.
+     *
+     * @param frameCount The number of delivered frames, lower than requested if some failed
+     * @param framesPerSecond The sustained rate between the first and the last frame
+     */
+    void onBurstCompleted(int frameCount, float framesPerSecond);
+}
@@ -3,6 +3,7 @@ package namnh.com.cameraandroid.camera.base;
 import android.media.CamcorderProfile;
 import android.os.Build;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 public class CameraUtil {
     /**
@@ -48,4 +49,30 @@ public class CameraUtil {
                 return CamcorderProfile.get(cameraId, CamcorderProfile.QUALITY_LOW);
         }
     }
+
+    /**
+     * Picks the JPEG thumbnail size to use among the ones a camera supports: {@code requested}
+     * itself if supported, otherwise the smallest size covering it, otherwise the largest one.
+     *
+     * @param supported The supported sizes, 0x0 meaning no thumbnail
+     * @param requested The wanted size
+     * @return The size to use, or {@code null} if nothing is supported
+     */
+    @Nullable
+    public static Size chooseJpegThumbnailSize(Iterable<Size> supported, Size requested) {
+        Size covering = null;
+        Size largest = null;
+        for (Size size : supported) {
+            if (size.equals(requested)) return size;
+            if (size.getWidth() >= requested.getWidth()
+                    && size.getHeight() >= requested.getHeight()
+                    && (covering == null || size.compareTo(covering) < 0)) {
+                covering = size;
+            }
+            if (largest == null || size.compareTo(largest) > 0) {
+                largest = size;
+            }
+        }
+        return covering != null ? covering : largest;
+    }
 }
@@ -0,0 +1,71 @@
+package namnh.com.cameraandroid.camera.base;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Latency histograms of the phases a picture goes through, from the request to its delivery.
+ * Phases a camera doesn't go through for a picture are simply not recorded.
+ */
+public class CaptureMetrics {
+
+    public enum Phase {
+        /** From the request to the start of its capture, waiting for a free slot. */
+        QUEUE_WAIT,
+        /** Locking the focus: Camera2 LOCKING state, Camera1 {@code autoFocus}. */
+        FOCUS_LOCK,
+        /** Triggering the auto exposure precapture: Camera2 PRECAPTURE state. */
+        PRECAPTURE,
+        /** Waiting for the exposure to converge: Camera2 WAITING state. */
+        AE_CONVERGENCE,
+        /** From the start of the capture to the start of the exposure, Camera2 only. */
+        SHUTTER_LAG,
+        /** From the still request submission to its completion, or the JPEG on Camera1. */
+        CAPTURE,
+        /** From the still request completion to its image, Camera2 only. */
+        IMAGE,
+        /** From the start of the capture to the delivery of the picture. */
+        TOTAL
+    }
+
+    private final Map<Phase, LatencyHistogram> histograms = new EnumMap<>(Phase.class);
+
+    public CaptureMetrics() {
+        for (Phase phase : Phase.values()) {
+            histograms.put(phase, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * @param nanos The time spent in {@code phase}
+     */
+    public void record(Phase phase, long nanos) {
+        histograms.get(phase).record(nanos);
+    }
+
+    public LatencyHistogram getHistogram(Phase phase) {
+        return histograms.get(phase);
+    }
+
+    public LatencyHistogram.Stats getStats(Phase phase) {
+        return histograms.get(phase).getStats();
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("CaptureMetrics{");
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram.Stats stats = getStats(phase);
+            if (stats.getCount() == 0) continue;
+            if (builder.length() > "CaptureMetrics{".length()) builder.append(", ");
+            builder.append(phase).append('=').append(stats);
+        }
+        return builder.append('}').toString();
+    }
+}
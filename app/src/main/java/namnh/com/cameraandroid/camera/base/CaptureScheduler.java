@@ -0,0 +1,393 @@
+package namnh.com.cameraandroid.camera.base;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Schedules picture requests so overlapping {@code takePicture()} calls never race inside the
+ * camera: at most {@link #getMaxInFlight()} pictures are captured at a time, the next ones wait
+ * in a bounded queue, and requests beyond the queue are handled by the {@link OverflowPolicy}.
+ * <p>
+ * The camera reports each picture with {@link #onCaptureCompleted()} or {@link
+ * #onCaptureFailed()}, in the order the captures were started, or with the request itself when
+ * its pictures may come out of order. Either frees a slot for the next queued request.
+ * <p>
+ * This class is thread-safe.
+ */
+public class CaptureScheduler {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 2;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+    /**
+     * What to do with a request when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Drop the new request. */
+        DROP,
+        /**
+         * Merge the new request into the last waiting one, so both get the same picture. The
+         * request is dropped when there is no waiting one to merge into.
+         */
+        COALESCE
+    }
+
+    /**
+     * Starts the capture of a request, typically asynchronously.
+     */
+    public interface Starter {
+
+        /**
+         * @return {@code false} if the capture can't start, the request then fails.
+         */
+        boolean startCapture(PictureRequest request);
+    }
+
+    private final Starter starter;
+
+    private final ArrayDeque<PictureRequest> queue = new ArrayDeque<>();
+
+    private final ArrayDeque<PictureRequest> inFlight = new ArrayDeque<>();
+
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+
+    private long nextId = 1;
+
+    private long submittedCount;
+
+    private long completedCount;
+
+    private long failedCount;
+
+    private long droppedCount;
+
+    private long coalescedCount;
+
+    public CaptureScheduler(Starter starter) {
+        this.starter = starter;
+    }
+
+    public synchronized void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    public synchronized int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public synchronized void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 0) {
+            throw new IllegalArgumentException("queueCapacity must not be negative: "
+                    + queueCapacity);
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    public synchronized int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public synchronized void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public synchronized OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Submits a picture request; it is started right away if a slot is free. This never blocks,
+     * so it can be called from the main thread, where the camera reports the pictures.
+     *
+     * @param file The file to write the picture to, or {@code null}
+     * @param stream The stream to write the picture to, or {@code null}
+     * @param listener Told when the request is done, or {@code null}
+     * @return The request, which may already be done if it was dropped
+     */
+    public PictureRequest submit(File file, OutputStream stream,
+            PictureRequest.Listener listener) {
+        return submit(file, stream, null, 0, listener);
+    }
+
+    /**
+     * Same as {@link #submit(File, OutputStream, PictureRequest.Listener)}, also asking for a
+     * RAW picture. Requests with a RAW picture are never coalesced, in either direction: they
+     * would not share a single picture.
+     *
+     * @param rawFile The DNG file to write the RAW picture to, or {@code null}
+     * @param pressRealtimeNanos When the picture was asked for, in
+     * {@code SystemClock.elapsedRealtimeNanos()} time, or 0 if unknown
+     */
+    public PictureRequest submit(File file, OutputStream stream, File rawFile,
+            long pressRealtimeNanos, PictureRequest.Listener listener) {
+        PictureRequest request;
+        boolean start = false;
+        boolean dropped = false;
+        synchronized (this) {
+            request = new PictureRequest(nextId++, file, stream, rawFile, pressRealtimeNanos,
+                    listener);
+            submittedCount++;
+            if (queue.isEmpty() && inFlight.size() < maxInFlight) {
+                request.setInFlight();
+                inFlight.add(request);
+                start = true;
+            } else if (queue.size() < queueCapacity) {
+                queue.add(request);
+            } else if (overflowPolicy == OverflowPolicy.COALESCE && coalesce(request)) {
+                coalescedCount++;
+            } else {
+                droppedCount++;
+                dropped = true;
+            }
+        }
+        if (dropped) {
+            request.finish(PictureRequest.Status.DROPPED, null);
+        } else if (start) {
+            start(request);
+        }
+        return request;
+    }
+
+    /**
+     * Merges {@code request} into the last waiting one. A request in flight is never merged
+     * into: its picture may already be on its way.
+     *
+     * @return {@code false} if there is no waiting request to merge into
+     */
+    private boolean coalesce(PictureRequest request) {
+        PictureRequest last = queue.peekLast();
+        if (last == null || request.getRawFile() != null || last.getRawFile() != null) {
+            return false;
+        }
+        return last.addCoalesced(request);
+    }
+
+    /**
+     * Reports that the oldest capture in flight produced its picture, and starts the next
+     * queued request. The caller delivers the picture, then calls
+     * {@link #finish(PictureRequest, PictureWriter.Result)}.
+     *
+     * @return The request of the picture, or {@code null} if none was in flight
+     */
+    public PictureRequest onCaptureCompleted() {
+        PictureRequest request;
+        synchronized (this) {
+            request = inFlight.poll();
+            if (request == null) return null;
+            completedCount++;
+        }
+        startNext();
+        return request;
+    }
+
+    /**
+     * Same as {@link #onCaptureCompleted()}, for the picture of a given request.
+     *
+     * @return {@code false} if the request is not in flight, for example because it was
+     * cancelled; the picture has no request then.
+     */
+    public boolean onCaptureCompleted(PictureRequest request) {
+        synchronized (this) {
+            if (!inFlight.remove(request)) return false;
+            completedCount++;
+        }
+        startNext();
+        return true;
+    }
+
+    /**
+     * Reports that the oldest capture in flight failed, and starts the next queued request.
+     *
+     * @return The failed request, or {@code null} if none was in flight
+     */
+    public PictureRequest onCaptureFailed() {
+        PictureRequest request;
+        synchronized (this) {
+            request = inFlight.poll();
+            if (request == null) return null;
+            failedCount++;
+        }
+        fail(request, PictureRequest.Status.FAILED);
+        startNext();
+        return request;
+    }
+
+    /**
+     * Same as {@link #onCaptureFailed()}, for a given request.
+     *
+     * @return {@code false} if the request is not in flight
+     */
+    public boolean onCaptureFailed(PictureRequest request) {
+        synchronized (this) {
+            if (!inFlight.remove(request)) return false;
+            failedCount++;
+        }
+        fail(request, PictureRequest.Status.FAILED);
+        startNext();
+        return true;
+    }
+
+    /**
+     * Marks the JPEG picture of a request delivered by the camera. Coalesced requests are
+     * finished one by one.
+     *
+     * @param result The outcome of writing the picture to its target, or {@code null} if it has
+     * none
+     */
+    public void finish(PictureRequest request, PictureWriter.Result result) {
+        request.finishOutput(false, result);
+    }
+
+    /**
+     * Marks the RAW picture of a request written. Requests with a RAW picture are done once
+     * both this and {@link #finish(PictureRequest, PictureWriter.Result)} were called.
+     *
+     * @param result The outcome of writing the DNG file
+     */
+    public void finishRaw(PictureRequest request, PictureWriter.Result result) {
+        request.finishOutput(true, result);
+    }
+
+    /**
+     * Cancels every queued and in-flight request, typically because the camera stopped.
+     */
+    public void cancelAll() {
+        List<PictureRequest> cancelled;
+        synchronized (this) {
+            cancelled = new ArrayList<>(inFlight);
+            cancelled.addAll(queue);
+            inFlight.clear();
+            queue.clear();
+        }
+        for (PictureRequest request : cancelled) {
+            fail(request, PictureRequest.Status.CANCELLED);
+        }
+    }
+
+    /**
+     * @return The oldest request in flight, whose picture comes next, or {@code null}.
+     */
+    public synchronized PictureRequest peekInFlight() {
+        return inFlight.peek();
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(submittedCount, completedCount, failedCount, droppedCount,
+                coalescedCount, inFlight.size(), queue.size());
+    }
+
+    private void startNext() {
+        PictureRequest next = null;
+        synchronized (this) {
+            if (!queue.isEmpty() && inFlight.size() < maxInFlight) {
+                next = queue.poll();
+                next.setInFlight();
+                inFlight.add(next);
+            }
+        }
+        if (next != null) {
+            start(next);
+        }
+    }
+
+    private void start(PictureRequest request) {
+        if (starter.startCapture(request)) return;
+        boolean removed;
+        synchronized (this) {
+            removed = inFlight.remove(request);
+            if (removed) {
+                failedCount++;
+            }
+        }
+        if (removed) {
+            fail(request, PictureRequest.Status.FAILED);
+            startNext();
+        }
+    }
+
+    private static void fail(PictureRequest request, PictureRequest.Status status) {
+        request.finish(status, null);
+        for (PictureRequest coalesced : request.getCoalescedRequests()) {
+            coalesced.finish(status, null);
+        }
+    }
+
+    /**
+     * Immutable snapshot of the scheduler activity.
+     */
+    public static class Stats {
+
+        private final long submittedCount;
+        private final long completedCount;
+        private final long failedCount;
+        private final long droppedCount;
+        private final long coalescedCount;
+        private final int inFlightCount;
+        private final int queuedCount;
+
+        Stats(long submittedCount, long completedCount, long failedCount, long droppedCount,
+                long coalescedCount, int inFlightCount, int queuedCount) {
+            this.submittedCount = submittedCount;
+            this.completedCount = completedCount;
+            this.failedCount = failedCount;
+            this.droppedCount = droppedCount;
+            this.coalescedCount = coalescedCount;
+            this.inFlightCount = inFlightCount;
+            this.queuedCount = queuedCount;
+        }
+
+        public long getSubmittedCount() {
+            return submittedCount;
+        }
+
+        /** @return The number of pictures the camera delivered. */
+        public long getCompletedCount() {
+            return completedCount;
+        }
+
+        public long getFailedCount() {
+            return failedCount;
+        }
+
+        /** @return The number of requests dropped because the queue was full. */
+        public long getDroppedCount() {
+            return droppedCount;
+        }
+
+        /** @return The number of requests merged into a waiting one. */
+        public long getCoalescedCount() {
+            return coalescedCount;
+        }
+
+        public int getInFlightCount() {
+            return inFlightCount;
+        }
+
+        public int getQueuedCount() {
+            return queuedCount;
+        }
+
+        @Override
+        public String toString() {
+            return "CaptureScheduler.Stats{submitted=" + submittedCount + ", completed="
+                    + completedCount + ", failed=" + failedCount + ", dropped=" + droppedCount
+                    + ", coalesced=" + coalescedCount + ", inFlight=" + inFlightCount
+                    + ", queued=" + queuedCount + "}";
+        }
+    }
+}
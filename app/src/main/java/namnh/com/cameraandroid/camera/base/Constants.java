@@ -21,6 +21,9 @@ public interface Constants {
 
     AspectRatio DEFAULT_ASPECT_RATIO = AspectRatio.of(16, 9);
 
+    /** Enough for most frame analysis, at a fraction of the cost of the preview size. */
+    Size DEFAULT_ANALYSIS_SIZE = new Size(640, 480);
+
     int FACING_BACK = 0;
     int FACING_FRONT = 1;
 
@@ -30,6 +33,9 @@ public interface Constants {
     int FLASH_AUTO = 3;
     int FLASH_RED_EYE = 4;
 
+    int PREVIEW_TEXTURE_VIEW = 0;
+    int PREVIEW_SURFACE_VIEW = 1;
+
     int LANDSCAPE_90 = 90;
     int LANDSCAPE_270 = 270;
 
@@ -0,0 +1,140 @@
+package namnh.com.cameraandroid.camera.base;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Finds the thumbnail embedded in the EXIF data of a JPEG, without decoding the picture.
+ * <p>
+ * Only the markers before the image data and the two first IFDs are read, and the thumbnail is
+ * returned as a view of the picture buffer, so nothing is copied.
+ */
+public final class ExifThumbnail {
+
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_APP1 = 0xE1;
+
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    private static final int IFD_ENTRY_SIZE = 12;
+
+    private ExifThumbnail() {
+    }
+
+    /**
+     * @param jpeg The JPEG data, from its position to its limit. The position is not moved.
+     * @return A read-only view of the thumbnail JPEG, positioned at 0, or {@code null} if the
+     * picture has none.
+     */
+    public static ByteBuffer find(ByteBuffer jpeg) {
+        ByteBuffer in = jpeg.slice();
+        int limit = in.limit();
+        if (limit < 4 || (in.get(0) & 0xFF) != 0xFF || (in.get(1) & 0xFF) != MARKER_SOI) {
+            return null;
+        }
+        int offset = 2;
+        while (offset + 4 <= limit) {
+            if ((in.get(offset) & 0xFF) != 0xFF) return null;
+            int marker = in.get(offset + 1) & 0xFF;
+            if (marker == 0xFF) {
+                // Fill byte
+                offset++;
+                continue;
+            }
+            if (marker == MARKER_SOS || marker == MARKER_EOI) return null;
+            int length = in.getShort(offset + 2) & 0xFFFF;
+            if (length < 2) return null;
+            int start = offset + 4;
+            int end = offset + 2 + length;
+            if (end > limit) return null;
+            if (marker == MARKER_APP1 && isExif(in, start, end)) {
+                return findInTiff(in, start + 6, end);
+            }
+            offset = end;
+        }
+        return null;
+    }
+
+    private static boolean isExif(ByteBuffer in, int start, int end) {
+        return end - start >= 6 && in.get(start) == 'E' && in.get(start + 1) == 'x'
+                && in.get(start + 2) == 'i' && in.get(start + 3) == 'f'
+                && in.get(start + 4) == 0 && in.get(start + 5) == 0;
+    }
+
+    /**
+     * @param start The offset of the TIFF header, which IFD offsets are relative to
+     * @param end The end of the APP1 segment
+     */
+    private static ByteBuffer findInTiff(ByteBuffer in, int start, int end) {
+        if (end - start < 8) return null;
+        // The slice is ours, its byte order can follow the TIFF header
+        int order = in.getShort(start) & 0xFFFF;
+        if (order == 0x4949) {
+            in.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (order == 0x4D4D) {
+            in.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            return null;
+        }
+        if (in.getShort(start + 2) != 42) return null;
+        long ifd0 = in.getInt(start + 4) & 0xFFFFFFFFL;
+        // IFD1, the thumbnail, follows IFD0
+        long ifd1 = nextIfd(in, start, end, ifd0);
+        if (ifd1 <= 0) return null;
+        return readThumbnail(in, start, end, ifd1);
+    }
+
+    /**
+     * @return The offset of the IFD after the one at {@code ifd}, 0 if there is none, or -1 if
+     * the data is corrupt.
+     */
+    private static long nextIfd(ByteBuffer in, int start, int end, long ifd) {
+        if (ifd < 8 || start + ifd + 2 > end) return -1;
+        int count = in.getShort((int) (start + ifd)) & 0xFFFF;
+        long next = start + ifd + 2 + (long) count * IFD_ENTRY_SIZE;
+        if (next + 4 > end) return -1;
+        return in.getInt((int) next) & 0xFFFFFFFFL;
+    }
+
+    private static ByteBuffer readThumbnail(ByteBuffer in, int start, int end, long ifd) {
+        if (start + ifd + 2 > end) return null;
+        int entries = (int) (start + ifd + 2);
+        int count = in.getShort(entries - 2) & 0xFFFF;
+        if (entries + (long) count * IFD_ENTRY_SIZE > end) return null;
+        long thumbOffset = -1;
+        long thumbLength = -1;
+        for (int i = 0; i < count; i++) {
+            int entry = entries + i * IFD_ENTRY_SIZE;
+            int tag = in.getShort(entry) & 0xFFFF;
+            if (tag == TAG_JPEG_INTERCHANGE_FORMAT) {
+                thumbOffset = readValue(in, entry);
+            } else if (tag == TAG_JPEG_INTERCHANGE_FORMAT_LENGTH) {
+                thumbLength = readValue(in, entry);
+            }
+        }
+        if (thumbOffset <= 0 || thumbLength < 4 || start + thumbOffset + thumbLength > end) {
+            return null;
+        }
+        int from = (int) (start + thumbOffset);
+        if ((in.get(from) & 0xFF) != 0xFF || (in.get(from + 1) & 0xFF) != MARKER_SOI) {
+            return null;
+        }
+        ByteBuffer thumbnail = in.duplicate();
+        thumbnail.limit(from + (int) thumbLength);
+        thumbnail.position(from);
+        return thumbnail.slice().asReadOnlyBuffer();
+    }
+
+    private static long readValue(ByteBuffer in, int entry) {
+        int type = in.getShort(entry + 2) & 0xFFFF;
+        if (type == TYPE_LONG) return in.getInt(entry + 8) & 0xFFFFFFFFL;
+        if (type == TYPE_SHORT) return in.getShort(entry + 8) & 0xFFFF;
+        return -1;
+    }
+}
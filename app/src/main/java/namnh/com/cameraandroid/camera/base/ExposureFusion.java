@@ -0,0 +1,240 @@
+package namnh.com.cameraandroid.camera.base;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Merges NV21 frames of the same scene taken at different exposures into a single frame, on a
+ * fork-join pool.
+ * <p>
+ * Each 2x2 block of the output is a weighted average of the same block in every frame. A
+ * frame weighs more where its block is well exposed (mid-gray luma) and has detail (luma
+ * contrast), so highlights come from the short exposures and shadows from the long ones. This
+ * is a single scale fusion: it is fast, but wide transitions between exposures are less smooth
+ * than with a pyramid blend.
+ * <p>
+ * The work is split by rows, so it scales with the cores of the pool. This class is
+ * thread-safe.
+ */
+public class ExposureFusion {
+
+    public static final int MAX_FRAMES = 16;
+
+    /** Weights are fixed point, the best exposed luma weighs this much. */
+    private static final int WEIGHT_ONE = 1 << 10;
+
+    /** The spread of the well exposedness curve around mid-gray, as a fraction of the range. */
+    private static final double EXPOSEDNESS_SIGMA = 0.2;
+
+    /** Keeps flat blocks in the average, they have no contrast at all. */
+    private static final int CONTRAST_BIAS = 16;
+
+    /** Splitting finer than this many block rows costs more than it saves. */
+    private static final int MIN_SPLIT_ROWS = 8;
+
+    private static final int[] EXPOSEDNESS = new int[256];
+
+    static {
+        for (int luma = 0; luma < 256; luma++) {
+            double distance = (luma - 127.5) / 255;
+            double weight = Math.exp(-distance * distance
+                    / (2 * EXPOSEDNESS_SIGMA * EXPOSEDNESS_SIGMA));
+            // Never 0, so blocks clipped in every frame still get an average
+            EXPOSEDNESS[luma] = Math.max(1, (int) Math.round(weight * WEIGHT_ONE));
+        }
+    }
+
+    /**
+     * Receives the outcome of {@link #fuseAsync(byte[][], int, int, byte[], Callback)}, on a
+     * thread of the pool.
+     */
+    public interface Callback {
+
+        /**
+         * @param out The merged frame
+         */
+        void onFused(byte[] out);
+
+        void onFuseFailed(RuntimeException error);
+    }
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates an instance running on its own pool, one thread per core.
+     */
+    public ExposureFusion() {
+        this(new ForkJoinPool(Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param pool The pool the merges run on
+     */
+    public ExposureFusion(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Merges {@code frames} into {@code out}, waiting for the merge to complete.
+     *
+     * @param frames The NV21 frames, from 1 to {@link #MAX_FRAMES}, all of the same size
+     * @param width The width of the frames, must be even
+     * @param height The height of the frames, must be even
+     * @param out The destination, at least {@code width * height * 3 / 2} bytes long. It may be
+     * one of the frames.
+     */
+    public void fuse(byte[][] frames, int width, int height, byte[] out) {
+        checkArguments(frames, width, height, out);
+        pool.invoke(new FuseTask(frames, width, height, out, 0, height / 2,
+                splitRows(height)));
+    }
+
+    /**
+     * Same as {@link #fuse(byte[][], int, int, byte[])}, without waiting.
+     *
+     * @param callback Receives the outcome once the merge is done
+     * @throws java.util.concurrent.RejectedExecutionException if the pool is shut down.
+     */
+    public void fuseAsync(byte[][] frames, int width, int height, final byte[] out,
+            final Callback callback) {
+        checkArguments(frames, width, height, out);
+        final FuseTask task = new FuseTask(frames, width, height, out, 0, height / 2,
+                splitRows(height));
+        pool.execute(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                try {
+                    task.invoke();
+                } catch (RuntimeException e) {
+                    callback.onFuseFailed(e);
+                    return;
+                }
+                callback.onFused(out);
+            }
+        });
+    }
+
+    /**
+     * Stops accepting merges. The merges already started complete.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Splits into a few tasks per thread, so that threads which finish early steal the rest.
+     */
+    private int splitRows(int height) {
+        return Math.max(MIN_SPLIT_ROWS, height / 2 / (pool.getParallelism() * 4));
+    }
+
+    private static void checkArguments(byte[][] frames, int width, int height, byte[] out) {
+        if (frames.length == 0 || frames.length > MAX_FRAMES) {
+            throw new IllegalArgumentException("Between 1 and " + MAX_FRAMES
+                    + " frames can be merged: " + frames.length);
+        }
+        if (width <= 0 || height <= 0 || (width | height) % 2 != 0) {
+            throw new IllegalArgumentException("Invalid frame size: " + width + "x" + height);
+        }
+        int length = width * height + width * height / 2;
+        for (byte[] frame : frames) {
+            if (frame.length < length) {
+                throw new IllegalArgumentException("frame is too small: " + frame.length);
+            }
+        }
+        if (out.length < length) {
+            throw new IllegalArgumentException("out is too small: " + out.length);
+        }
+    }
+
+    /**
+     * Merges the block rows {@code [from, to)}, splitting them in halves while there are more
+     * than {@code splitRows}.
+     */
+    private static class FuseTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[][] frames;
+        private final int width;
+        private final int height;
+        private final byte[] out;
+        private final int from;
+        private final int to;
+        private final int splitRows;
+
+        FuseTask(byte[][] frames, int width, int height, byte[] out, int from, int to,
+                int splitRows) {
+            this.frames = frames;
+            this.width = width;
+            this.height = height;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+            this.splitRows = splitRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > splitRows) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new FuseTask(frames, width, height, out, from, middle, splitRows),
+                        new FuseTask(frames, width, height, out, middle, to, splitRows));
+                return;
+            }
+            int[] weights = new int[frames.length];
+            int frameSize = width * height;
+            for (int blockRow = from; blockRow < to; blockRow++) {
+                int top = blockRow * 2 * width;
+                int chroma = frameSize + blockRow * width;
+                for (int x = 0; x < width; x += 2) {
+                    int i0 = top + x;
+                    int i1 = i0 + 1;
+                    int i2 = i0 + width;
+                    int i3 = i2 + 1;
+                    long total = 0;
+                    for (int k = 0; k < frames.length; k++) {
+                        byte[] frame = frames[k];
+                        int y0 = frame[i0] & 0xFF;
+                        int y1 = frame[i1] & 0xFF;
+                        int y2 = frame[i2] & 0xFF;
+                        int y3 = frame[i3] & 0xFF;
+                        int max = Math.max(Math.max(y0, y1), Math.max(y2, y3));
+                        int min = Math.min(Math.min(y0, y1), Math.min(y2, y3));
+                        int weight = EXPOSEDNESS[(y0 + y1 + y2 + y3 + 2) >> 2]
+                                * (CONTRAST_BIAS + max - min);
+                        weights[k] = weight;
+                        total += weight;
+                    }
+                    long sum0 = 0;
+                    long sum1 = 0;
+                    long sum2 = 0;
+                    long sum3 = 0;
+                    long sumV = 0;
+                    long sumU = 0;
+                    for (int k = 0; k < frames.length; k++) {
+                        byte[] frame = frames[k];
+                        long weight = weights[k];
+                        sum0 += weight * (frame[i0] & 0xFF);
+                        sum1 += weight * (frame[i1] & 0xFF);
+                        sum2 += weight * (frame[i2] & 0xFF);
+                        sum3 += weight * (frame[i3] & 0xFF);
+                        sumV += weight * (frame[chroma + x] & 0xFF);
+                        sumU += weight * (frame[chroma + x + 1] & 0xFF);
+                    }
+                    long half = total / 2;
+                    out[i0] = (byte) ((sum0 + half) / total);
+                    out[i1] = (byte) ((sum1 + half) / total);
+                    out[i2] = (byte) ((sum2 + half) / total);
+                    out[i3] = (byte) ((sum3 + half) / total);
+                    out[chroma + x] = (byte) ((sumV + half) / total);
+                    out[chroma + x + 1] = (byte) ((sumU + half) / total);
+                }
+            }
+        }
+    }
+}
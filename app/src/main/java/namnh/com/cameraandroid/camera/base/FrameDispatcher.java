@@ -0,0 +1,264 @@
+package namnh.com.cameraandroid.camera.base;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands camera frames to a {@link FrameProcessor} on a dedicated analysis thread, so the
+ * camera threads never wait for the analysis unless asked to.
+ * <p>
+ * Frames wait for the processor in a queue of fixed depth, and what happens when it is full
+ * is up to the {@link Backpressure}. The thread stops when it is idle and starts again with
+ * the next frame.
+ * <p>
+ * This class is thread-safe.
+ */
+public class FrameDispatcher {
+
+    private static final String TAG = "FrameDispatcher";
+
+    private static final long KEEP_ALIVE_MILLIS = 5000;
+
+    /**
+     * What to do with a frame when the queue is full, that is when the processor is slower
+     * than the camera.
+     */
+    public enum Backpressure {
+        /** Release the waiting frame and keep the new one; the queue holds a single frame. */
+        KEEP_ONLY_LATEST,
+        /** Release the oldest waiting frame and queue the new one. */
+        QUEUE,
+        /** Block the thread delivering the frame until there is room in the queue. */
+        BLOCK
+    }
+
+    private FrameProcessor processor;
+
+    private Backpressure backpressure = Backpressure.KEEP_ONLY_LATEST;
+
+    private int queueDepth = 1;
+
+    private final ArrayDeque<YuvFrame> queue = new ArrayDeque<>();
+
+    private Thread worker;
+
+    /** Incremented by {@link #clear()}, so blocked producers give up. */
+    private int generation;
+
+    private long producedCount;
+
+    private long analyzedCount;
+
+    private long droppedCount;
+
+    public void setProcessor(FrameProcessor processor) {
+        synchronized (this) {
+            this.processor = processor;
+        }
+        if (processor == null) {
+            clear();
+        }
+    }
+
+    public synchronized FrameProcessor getProcessor() {
+        return processor;
+    }
+
+    /**
+     * @param backpressure What to do with a frame when the queue is full
+     * @param queueDepth The number of frames which may wait for the processor, ignored for
+     * {@link Backpressure#KEEP_ONLY_LATEST}
+     */
+    public void setBackpressure(Backpressure backpressure, int queueDepth) {
+        if (queueDepth <= 0) {
+            throw new IllegalArgumentException("queueDepth must be positive: " + queueDepth);
+        }
+        List<YuvFrame> stale = new ArrayList<>(0);
+        synchronized (this) {
+            this.backpressure = backpressure;
+            this.queueDepth = backpressure == Backpressure.KEEP_ONLY_LATEST ? 1 : queueDepth;
+            while (queue.size() > this.queueDepth) {
+                stale.add(queue.poll());
+                droppedCount++;
+            }
+            notifyAll();
+        }
+        release(stale);
+    }
+
+    public synchronized Backpressure getBackpressure() {
+        return backpressure;
+    }
+
+    public synchronized int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Queues {@code frame} for the processor.
+     *
+     * @param frame The frame, this method takes over its reference
+     * @return {@code false} if the frame is dropped; it is released then.
+     */
+    public boolean dispatch(YuvFrame frame) {
+        List<YuvFrame> stale = new ArrayList<>(0);
+        boolean accepted = false;
+        synchronized (this) {
+            producedCount++;
+            int startGeneration = generation;
+            while (processor != null && generation == startGeneration) {
+                if (queue.size() < queueDepth) {
+                    queue.add(frame);
+                    accepted = true;
+                    break;
+                }
+                if (backpressure != Backpressure.BLOCK) {
+                    stale.add(queue.poll());
+                    droppedCount++;
+                    continue;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (accepted) {
+                startWorker();
+            } else {
+                droppedCount++;
+                stale.add(frame);
+            }
+        }
+        release(stale);
+        return accepted;
+    }
+
+    /**
+     * Releases the frames waiting for the processor, and lets blocked {@link #dispatch} calls
+     * return. The frame being processed is left to its processor.
+     */
+    public void clear() {
+        List<YuvFrame> stale;
+        synchronized (this) {
+            generation++;
+            stale = new ArrayList<>(queue);
+            droppedCount += queue.size();
+            queue.clear();
+            notifyAll();
+        }
+        release(stale);
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(producedCount, analyzedCount, droppedCount, queue.size());
+    }
+
+    private void startWorker() {
+        if (worker != null) {
+            notifyAll();
+            return;
+        }
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWorker();
+            }
+        }, "CameraAnalysis");
+        worker.start();
+    }
+
+    private void runWorker() {
+        while (true) {
+            YuvFrame frame;
+            FrameProcessor target;
+            synchronized (this) {
+                long idleSince = System.currentTimeMillis();
+                while (queue.isEmpty()) {
+                    long idle = System.currentTimeMillis() - idleSince;
+                    if (idle >= KEEP_ALIVE_MILLIS) {
+                        worker = null;
+                        return;
+                    }
+                    try {
+                        wait(KEEP_ALIVE_MILLIS - idle);
+                    } catch (InterruptedException e) {
+                        worker = null;
+                        return;
+                    }
+                }
+                frame = queue.poll();
+                target = processor;
+                // Room for a blocked producer
+                notifyAll();
+            }
+            try {
+                if (target != null) {
+                    target.process(frame);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Frame processor failed.", e);
+            } finally {
+                frame.release();
+            }
+            synchronized (this) {
+                analyzedCount++;
+            }
+        }
+    }
+
+    private static void release(List<YuvFrame> frames) {
+        for (YuvFrame frame : frames) {
+            frame.release();
+        }
+    }
+
+    /**
+     * Immutable snapshot of the analysis activity.
+     */
+    public static class Stats {
+
+        private final long producedCount;
+        private final long analyzedCount;
+        private final long droppedCount;
+        private final int queuedCount;
+
+        Stats(long producedCount, long analyzedCount, long droppedCount, int queuedCount) {
+            this.producedCount = producedCount;
+            this.analyzedCount = analyzedCount;
+            this.droppedCount = droppedCount;
+            this.queuedCount = queuedCount;
+        }
+
+        /** @return The number of frames the camera handed over. */
+        public long getProducedCount() {
+            return producedCount;
+        }
+
+        /** @return The number of frames the processor went through. */
+        public long getAnalyzedCount() {
+            return analyzedCount;
+        }
+
+        /** @return The number of frames released without reaching the processor. */
+        public long getDroppedCount() {
+            return droppedCount;
+        }
+
+        /** @return The number of frames waiting for the processor. */
+        public int getQueuedCount() {
+            return queuedCount;
+        }
+
+        @Override
+        public String toString() {
+            return "FrameDispatcher.Stats{produced=" + producedCount + ", analyzed="
+                    + analyzedCount + ", dropped=" + droppedCount + ", queued=" + queuedCount
+                    + "}";
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package namnh.com.cameraandroid.camera.base;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Shares the frames of a single analysis stream between several processors, without copying
+ * them: each processor gets its own reference to the frame, which gives its memory back once
+ * the last of them is released.
+ * <p>
+ * Each processor has its own maximum rate and its own executor. A processor with an executor
+ * runs there and skips the frames which come while it is busy; one without runs on the thread
+ * calling {@link #process(YuvFrame)}, one after the other.
+ * <p>
+ * This class is thread-safe, but {@link #process(YuvFrame)} must be called from one thread at
+ * a time.
+ */
+public class FrameFanOut implements FrameProcessor {
+
+    private static final String TAG = "FrameFanOut";
+
+    private final CopyOnWriteArrayList<Consumer> consumers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Adds a processor, or updates its settings if it was already added.
+     *
+     * @param processor The processor
+     * @param maxFps The maximum number of frames per second it gets, 0 for every frame
+     * @param executor Where it runs, or {@code null} to run on the thread delivering the frames
+     */
+    public void addConsumer(FrameProcessor processor, float maxFps, Executor executor) {
+        if (!(maxFps >= 0)) {
+            throw new IllegalArgumentException("maxFps must be positive or 0: " + maxFps);
+        }
+        Consumer consumer = new Consumer(processor, maxFps, executor);
+        synchronized (this) {
+            for (int i = 0; i < consumers.size(); i++) {
+                if (consumers.get(i).processor == processor) {
+                    consumers.set(i, consumer);
+                    return;
+                }
+            }
+            consumers.add(consumer);
+        }
+    }
+
+    /**
+     * @return {@code false} if the processor was not added.
+     */
+    public synchronized boolean removeConsumer(FrameProcessor processor) {
+        for (Consumer consumer : consumers) {
+            if (consumer.processor == processor) {
+                return consumers.remove(consumer);
+            }
+        }
+        return false;
+    }
+
+    public void clear() {
+        consumers.clear();
+    }
+
+    public boolean isEmpty() {
+        return consumers.isEmpty();
+    }
+
+    public List<FrameProcessor> getConsumers() {
+        List<FrameProcessor> processors = new ArrayList<>(consumers.size());
+        for (Consumer consumer : consumers) {
+            processors.add(consumer.processor);
+        }
+        return processors;
+    }
+
+    /**
+     * @return The number of processors with an executor, that is the number of frames the
+     * processors may hold on top of the one being delivered.
+     */
+    public int getExecutorConsumerCount() {
+        int count = 0;
+        for (Consumer consumer : consumers) {
+            if (consumer.executor != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void process(YuvFrame frame) {
+        for (Consumer consumer : consumers) {
+            consumer.offer(frame);
+        }
+    }
+
+    private static final class Consumer {
+
+        final FrameProcessor processor;
+        final Executor executor;
+        /** The time between two frames, 0 for every frame */
+        private final long intervalNanos;
+        /** How early a frame may come and still count as due, for the sensor jitter */
+        private final long slackNanos;
+        /** When the next frame is due, on the delivering thread */
+        private long dueNanos = Long.MIN_VALUE;
+        private final AtomicBoolean busy = new AtomicBoolean();
+
+        Consumer(FrameProcessor processor, float maxFps, Executor executor) {
+            this.processor = processor;
+            this.executor = executor;
+            intervalNanos = maxFps > 0 ? (long) (1000000000L / (double) maxFps) : 0;
+            slackNanos = intervalNanos / 8;
+        }
+
+        void offer(YuvFrame frame) {
+            long timestamp = frame.getTimestamp();
+            if (intervalNanos > 0 && dueNanos != Long.MIN_VALUE
+                    && timestamp < dueNanos - slackNanos) {
+                return;
+            }
+            if (executor == null) {
+                schedule(timestamp);
+                try {
+                    processor.process(frame);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Frame processor failed.", e);
+                }
+                return;
+            }
+            if (!busy.compareAndSet(false, true)) {
+                // Still on the previous frame, this one is skipped
+                return;
+            }
+            final YuvFrame shared = frame.acquire();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            processor.process(shared);
+                        } catch (RuntimeException e) {
+                            Log.e(TAG, "Frame processor failed.", e);
+                        } finally {
+                            shared.release();
+                            busy.set(false);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                shared.release();
+                busy.set(false);
+                return;
+            }
+            schedule(timestamp);
+        }
+
+        /**
+         * Keeps the frames on the schedule of the rate, so that the jitter of the sensor
+         * doesn't lower the average rate; after a gap, the schedule starts over.
+         */
+        private void schedule(long timestamp) {
+            if (intervalNanos == 0) return;
+            if (dueNanos == Long.MIN_VALUE || timestamp - dueNanos >= intervalNanos) {
+                dueNanos = timestamp + intervalNanos;
+            } else {
+                dueNanos += intervalNanos;
+            }
+        }
+    }
+}
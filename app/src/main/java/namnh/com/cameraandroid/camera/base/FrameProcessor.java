@@ -0,0 +1,17 @@
+package namnh.com.cameraandroid.camera.base;
+
+/**
+ * Analyzes preview frames, set with
+ * {@link namnh.com.cameraandroid.camera.CameraView#setFrameProcessor(FrameProcessor)}.
+ */
+public interface FrameProcessor {
+
+    /**
+     * Called for each analyzed frame, on the analysis thread. The frame is only valid during
+     * this call unless it is {@link YuvFrame#acquire() acquired}; frames which can't be
+     * delivered while this runs are dropped, so keep it short or hand the frame over.
+     *
+     * @param frame The frame, with its planes, strides, rotation and sensor timestamp
+     */
+    void process(YuvFrame frame);
+}
@@ -0,0 +1,252 @@
+package namnh.com.cameraandroid.camera.base;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures the rate of the preview frames from their sensor timestamps: instantaneous and
+ * rolling frame rates, the jitter between frames, and the frames dropped along the way.
+ * <p>
+ * The timestamps of the latest frames are kept in a ring written by a single thread, the one
+ * delivering the capture results, and read without locks from any other by
+ * {@link #getStats()}.
+ */
+public class FrameRateMonitor {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /** How much longer than expected an interval has to be to count as a gap */
+    private static final double GAP_FACTOR = 1.5;
+
+    private final AtomicLongArray timestamps;
+
+    private final int mask;
+
+    /** The number of frames recorded so far, that is the index of the next one */
+    private final AtomicLong head = new AtomicLong();
+
+    /** The index of the first frame of the current timeline, see {@link #restart()} */
+    private final AtomicLong startIndex = new AtomicLong();
+
+    /** The index of the first frame since {@link #reset()} */
+    private final AtomicLong resetIndex = new AtomicLong();
+
+    private final AtomicLong lastFrameNumber = new AtomicLong(-1);
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private final AtomicLong abortedCount = new AtomicLong();
+
+    /** The usual interval, for frames without an expected duration; on the writer thread */
+    private long typicalIntervalNanos;
+
+    public FrameRateMonitor() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The number of frames the rolling statistics cover, rounded up to a power
+     * of two
+     */
+    public FrameRateMonitor(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        timestamps = new AtomicLongArray(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Records a completed frame. Must be called from a single thread at a time.
+     *
+     * @param frameNumber The frame number of the capture result
+     * @param timestampNanos The sensor timestamp of the frame
+     * @param frameDurationNanos The expected time between two frames, or 0 if unknown
+     */
+    public void onFrameCompleted(long frameNumber, long timestampNanos, long frameDurationNanos) {
+        long index = head.get();
+        if (index > startIndex.get()) {
+            long interval = timestampNanos - timestamps.get((int) ((index - 1) & mask));
+            if (interval <= 0) {
+                // Out of order, or a result of a previous session
+                return;
+            }
+            long expected = frameDurationNanos > 0 ? frameDurationNanos : typicalIntervalNanos;
+            if (expected > 0 && interval > expected * GAP_FACTOR) {
+                droppedCount.addAndGet(Math.max(1, Math.round((double) interval / expected) - 1));
+            } else {
+                typicalIntervalNanos = typicalIntervalNanos == 0 ? interval
+                        : (typicalIntervalNanos * 7 + interval) / 8;
+            }
+        }
+        timestamps.set((int) (index & mask), timestampNanos);
+        lastFrameNumber.set(frameNumber);
+        head.set(index + 1);
+    }
+
+    /**
+     * Records a frame the camera failed to capture.
+     */
+    public void onFrameFailed() {
+        failedCount.incrementAndGet();
+    }
+
+    /**
+     * Records a capture sequence aborted before all its frames were delivered, for example
+     * when the session is closed.
+     */
+    public void onSequenceAborted() {
+        abortedCount.incrementAndGet();
+    }
+
+    /**
+     * Starts a new timeline, for example for a new capture session: the next frame is not
+     * compared to the previous ones. The counts are kept.
+     */
+    public void restart() {
+        startIndex.set(head.get());
+    }
+
+    /**
+     * Starts a new timeline and clears the counts.
+     */
+    public void reset() {
+        long index = head.get();
+        startIndex.set(index);
+        resetIndex.set(index);
+        droppedCount.set(0);
+        failedCount.set(0);
+        abortedCount.set(0);
+    }
+
+    public Stats getStats() {
+        long end = head.get();
+        long timelineStart = Math.min(startIndex.get(), end);
+        long start = Math.max(timelineStart, end - timestamps.length());
+        int count = (int) (end - start);
+        long[] window = new long[count];
+        for (int i = 0; i < count; i++) {
+            window[i] = timestamps.get((int) ((start + i) & mask));
+        }
+        // The writer may have wrapped around while reading: those entries are left out
+        long valid = Math.max(start, head.get() - timestamps.length() + 1);
+        int first = (int) Math.min(count, valid - start);
+        return new Stats(end - Math.min(resetIndex.get(), end), lastFrameNumber.get(), window,
+                first, droppedCount.get(), failedCount.get(), abortedCount.get());
+    }
+
+    /**
+     * Immutable snapshot of the frame rate.
+     */
+    public static class Stats {
+
+        private final long frameCount;
+        private final long lastFrameNumber;
+        private final double instantFps;
+        private final double rollingFps;
+        private final long meanIntervalNanos;
+        private final long maxIntervalNanos;
+        private final long jitterNanos;
+        private final long droppedCount;
+        private final long failedCount;
+        private final long abortedCount;
+
+        Stats(long frameCount, long lastFrameNumber, long[] timestamps, int first,
+                long droppedCount, long failedCount, long abortedCount) {
+            this.frameCount = frameCount;
+            this.lastFrameNumber = lastFrameNumber;
+            this.droppedCount = droppedCount;
+            this.failedCount = failedCount;
+            this.abortedCount = abortedCount;
+            int last = timestamps.length - 1;
+            int intervals = last - first;
+            if (intervals <= 0) {
+                instantFps = 0;
+                rollingFps = 0;
+                meanIntervalNanos = 0;
+                maxIntervalNanos = 0;
+                jitterNanos = 0;
+                return;
+            }
+            long span = timestamps[last] - timestamps[first];
+            double mean = (double) span / intervals;
+            long max = 0;
+            double squares = 0;
+            for (int i = first + 1; i <= last; i++) {
+                long interval = timestamps[i] - timestamps[i - 1];
+                max = Math.max(max, interval);
+                squares += (interval - mean) * (interval - mean);
+            }
+            instantFps = 1e9 / (timestamps[last] - timestamps[last - 1]);
+            rollingFps = 1e9 / mean;
+            meanIntervalNanos = Math.round(mean);
+            maxIntervalNanos = max;
+            jitterNanos = Math.round(Math.sqrt(squares / intervals));
+        }
+
+        /** @return The number of frames since the monitor was started or reset. */
+        public long getFrameCount() {
+            return frameCount;
+        }
+
+        /** @return The frame number of the latest frame, -1 if there was none. */
+        public long getLastFrameNumber() {
+            return lastFrameNumber;
+        }
+
+        /** @return The rate given by the interval between the last two frames. */
+        public double getInstantFps() {
+            return instantFps;
+        }
+
+        /** @return The rate over the frames in the ring. */
+        public double getRollingFps() {
+            return rollingFps;
+        }
+
+        public long getMeanIntervalNanos() {
+            return meanIntervalNanos;
+        }
+
+        public long getMaxIntervalNanos() {
+            return maxIntervalNanos;
+        }
+
+        /** @return The standard deviation of the intervals between frames. */
+        public long getJitterNanos() {
+            return jitterNanos;
+        }
+
+        /**
+         * @return The number of frames missing from the timeline, from the gaps between the
+         * timestamps whatever their cause.
+         */
+        public long getDroppedCount() {
+            return droppedCount;
+        }
+
+        /** @return The number of frames the camera reported as failed. */
+        public long getFailedCount() {
+            return failedCount;
+        }
+
+        /** @return The number of capture sequences aborted. */
+        public long getAbortedCount() {
+            return abortedCount;
+        }
+
+        @Override
+        public String toString() {
+            return "FrameRateMonitor.Stats{frames=" + frameCount + ", instantFps="
+                    + Math.round(instantFps * 10) / 10.0 + ", rollingFps="
+                    + Math.round(rollingFps * 10) / 10.0 + ", meanIntervalMs="
+                    + meanIntervalNanos / 1000000.0 + ", maxIntervalMs="
+                    + maxIntervalNanos / 1000000.0 + ", jitterMs=" + jitterNanos / 1000000.0
+                    + ", dropped=" + droppedCount + ", failed=" + failedCount + ", aborted="
+                    + abortedCount + "}";
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package namnh.com.cameraandroid.camera.base;
+
+import java.util.Collection;
+
+/**
+ * Immutable range of frame rates the auto exposure keeps the camera within, in frames per
+ * second. A fixed range, such as {@link #FIXED_30}, keeps the rate steady in low light at the
+ * cost of darker frames; a variable one lets the exposure time grow instead.
+ */
+public class FrameRateRange {
+
+    /** A steady 30 frames per second, for analysis workloads. */
+    public static final FrameRateRange FIXED_30 = new FrameRateRange(30, 30);
+
+    private final int min;
+    private final int max;
+
+    /**
+     * @param min The lowest rate, in frames per second
+     * @param max The highest rate, in frames per second
+     */
+    public FrameRateRange(int min, int max) {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("Invalid frame rate range: [" + min + ", " + max
+                    + "]");
+        }
+        this.min = min;
+        this.max = max;
+    }
+
+    public int getMin() {
+        return min;
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    public boolean isFixed() {
+        return min == max;
+    }
+
+    /**
+     * Chooses the range of {@code supported} closest to {@code requested}: the highest rate
+     * matters most, then the lowest, then the narrowest range.
+     *
+     * @return The chosen range, or {@code null} if {@code supported} is empty.
+     */
+    public static FrameRateRange chooseClosest(Collection<FrameRateRange> supported,
+            FrameRateRange requested) {
+        FrameRateRange best = null;
+        for (FrameRateRange range : supported) {
+            if (best == null || compareDistance(range, best, requested) < 0) {
+                best = range;
+            }
+        }
+        return best;
+    }
+
+    private static int compareDistance(FrameRateRange a, FrameRateRange b,
+            FrameRateRange requested) {
+        int result = Math.abs(a.max - requested.max) - Math.abs(b.max - requested.max);
+        if (result != 0) return result;
+        result = Math.abs(a.min - requested.min) - Math.abs(b.min - requested.min);
+        if (result != 0) return result;
+        return (a.max - a.min) - (b.max - b.min);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (other instanceof FrameRateRange) {
+            FrameRateRange range = (FrameRateRange) other;
+            return min == range.min && max == range.max;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return min * 31 + max;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + min + ", " + max + "]";
+    }
+}
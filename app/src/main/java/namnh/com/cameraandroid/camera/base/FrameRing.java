@@ -0,0 +1,231 @@
+package namnh.com.cameraandroid.camera.base;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded ring of the most recent frames, indexed by timestamp. Adding a frame to a full ring
+ * evicts the oldest one, which is handed to the {@link Recycler}.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @param <T> The type of the frames
+ */
+public class FrameRing<T> {
+
+    /**
+     * Gives back frames which are evicted or cleared from the ring.
+     */
+    public interface Recycler<T> {
+        void recycle(T frame);
+    }
+
+    private final long[] timestamps;
+
+    private final Object[] frames;
+
+    private final long bytesPerFrame;
+
+    private final Recycler<T> recycler;
+
+    /** Index of the oldest frame. */
+    private int head;
+
+    private int size;
+
+    private long addedCount;
+
+    private long evictedCount;
+
+    private long takenCount;
+
+    /**
+     * @param capacity The maximum number of frames held
+     * @param bytesPerFrame The memory held by each frame, only used for {@link Stats}
+     * @param recycler Gives back evicted frames
+     */
+    public FrameRing(int capacity, long bytesPerFrame, Recycler<T> recycler) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        timestamps = new long[capacity];
+        frames = new Object[capacity];
+        this.bytesPerFrame = bytesPerFrame;
+        this.recycler = recycler;
+    }
+
+    /**
+     * Adds a frame, evicting the oldest one if the ring is full. Frames are expected in
+     * timestamp order.
+     */
+    public void add(long timestamp, T frame) {
+        T evicted = null;
+        synchronized (this) {
+            int index = (head + size) % frames.length;
+            if (size == frames.length) {
+                evicted = frameAt(head);
+                index = head;
+                head = (head + 1) % frames.length;
+                evictedCount++;
+            } else {
+                size++;
+            }
+            timestamps[index] = timestamp;
+            frames[index] = frame;
+            addedCount++;
+        }
+        if (evicted != null) {
+            recycler.recycle(evicted);
+        }
+    }
+
+    /**
+     * Removes the frame whose timestamp is the closest to {@code timestamp}. Ownership of the
+     * frame moves to the caller.
+     *
+     * @return The frame, or {@code null} if the ring is empty
+     */
+    public synchronized T takeClosest(long timestamp) {
+        if (size == 0) {
+            return null;
+        }
+        int best = 0;
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            long distance = Math.abs(timestamps[(head + i) % frames.length] - timestamp);
+            // Overflow when comparing against far away timestamps; keep the latest frame then
+            if (distance < 0) {
+                distance = Long.MAX_VALUE - 1;
+            }
+            if (distance <= bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        T frame = frameAt((head + best) % frames.length);
+        // Close the gap by shifting the newer frames back
+        for (int i = best; i < size - 1; i++) {
+            int to = (head + i) % frames.length;
+            int from = (head + i + 1) % frames.length;
+            timestamps[to] = timestamps[from];
+            frames[to] = frames[from];
+        }
+        size--;
+        frames[(head + size) % frames.length] = null;
+        takenCount++;
+        return frame;
+    }
+
+    /**
+     * Removes the most recent frame. Ownership of the frame moves to the caller.
+     *
+     * @return The frame, or {@code null} if the ring is empty
+     */
+    public synchronized T takeLatest() {
+        if (size == 0) {
+            return null;
+        }
+        size--;
+        int index = (head + size) % frames.length;
+        T frame = frameAt(index);
+        frames[index] = null;
+        takenCount++;
+        return frame;
+    }
+
+    /**
+     * Recycles every frame held by the ring.
+     */
+    public void clear() {
+        List<T> cleared;
+        synchronized (this) {
+            cleared = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                int index = (head + i) % frames.length;
+                cleared.add(frameAt(index));
+                frames[index] = null;
+            }
+            head = 0;
+            size = 0;
+        }
+        for (T frame : cleared) {
+            recycler.recycle(frame);
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return frames.length;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(size, frames.length, size * bytesPerFrame, addedCount, evictedCount,
+                takenCount);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T frameAt(int index) {
+        return (T) frames[index];
+    }
+
+    /**
+     * Immutable snapshot of the ring usage.
+     */
+    public static class Stats {
+
+        private final int size;
+        private final int capacity;
+        private final long retainedBytes;
+        private final long addedCount;
+        private final long evictedCount;
+        private final long takenCount;
+
+        Stats(int size, int capacity, long retainedBytes, long addedCount, long evictedCount,
+                long takenCount) {
+            this.size = size;
+            this.capacity = capacity;
+            this.retainedBytes = retainedBytes;
+            this.addedCount = addedCount;
+            this.evictedCount = evictedCount;
+            this.takenCount = takenCount;
+        }
+
+        /** @return The number of frames currently held. */
+        public int getSize() {
+            return size;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /** @return The memory held by the current frames, in bytes. */
+        public long getRetainedBytes() {
+            return retainedBytes;
+        }
+
+        public long getAddedCount() {
+            return addedCount;
+        }
+
+        /** @return The number of frames dropped because the ring was full. */
+        public long getEvictedCount() {
+            return evictedCount;
+        }
+
+        /** @return The number of frames taken out for a picture. */
+        public long getTakenCount() {
+            return takenCount;
+        }
+
+        @Override
+        public String toString() {
+            return "FrameRing.Stats{size=" + size + "/" + capacity + ", retained="
+                    + retainedBytes + ", added=" + addedCount + ", evicted=" + evictedCount
+                    + ", taken=" + takenCount + "}";
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package namnh.com.cameraandroid.camera.base;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes {@link YuvFrame}s to JPEG on a bounded pool of worker threads.
+ * <p>
+ * Each worker crops and rotates its frame to NV21, releases the frame as soon as it is copied,
+ * so the camera gets its buffer back early, then runs the {@link JpegEncoder}. Frames are
+ * encoded in parallel but delivered to their callbacks in submission order, one at a time.
+ * <p>
+ * This class is thread-safe.
+ */
+public class JpegEncodePipeline {
+
+    public static final int DEFAULT_QUALITY = 95;
+
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    /**
+     * Receives the outcome of an encode, on a worker thread.
+     */
+    public interface Callback {
+
+        /**
+         * @param timestamp The timestamp of the source frame
+         * @param image The picture; its single reference is released once this returns
+         */
+        void onEncoded(long timestamp, JpegImage image);
+
+        /**
+         * @param timestamp The timestamp of the source frame
+         * @param error The failure
+         */
+        void onEncodeFailed(long timestamp, Exception error);
+    }
+
+    private final JpegEncoder encoder;
+
+    private final BufferPool pool;
+
+    private final ThreadPoolExecutor executor;
+
+    private volatile int quality = DEFAULT_QUALITY;
+
+    /** Outcomes waiting for the ones submitted before them, by sequence number. */
+    private final Map<Long, Outcome> completed = new HashMap<>();
+
+    private long nextSequence;
+
+    private long nextDelivery;
+
+    private boolean delivering;
+
+    private long encodedCount;
+
+    private long failedCount;
+
+    private long rejectedCount;
+
+    /**
+     * Creates a pipeline with one worker per core.
+     */
+    public JpegEncodePipeline(JpegEncoder encoder, BufferPool pool) {
+        this(encoder, pool, Runtime.getRuntime().availableProcessors(),
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param encoder Compresses the frames
+     * @param pool The pool NV21 and JPEG buffers are borrowed from
+     * @param threads The number of workers
+     * @param queueCapacity The number of frames waiting for a worker before
+     * {@link #submit(YuvFrame, int, Callback)} rejects new ones
+     */
+    public JpegEncodePipeline(JpegEncoder encoder, BufferPool pool, int threads,
+            int queueCapacity) {
+        if (threads <= 0 || queueCapacity < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid pool size: " + threads + " threads, " + queueCapacity + " queued");
+        }
+        this.encoder = encoder;
+        this.pool = pool;
+        executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)),
+                new WorkerThreadFactory());
+        // Idle workers go away between shots
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public void setQuality(int quality) {
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("quality must be within [0, 100]: " + quality);
+        }
+        this.quality = quality;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    public int getThreadCount() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Queues a frame for encoding. The pipeline takes over the reference held by the caller,
+     * even if the frame is rejected.
+     *
+     * @param frame The frame to encode
+     * @param rotation The clockwise rotation to apply: 0, 90, 180 or 270
+     * @param callback Receives the outcome
+     * @return {@code false} if every worker is busy and the queue is full, or the pipeline is
+     * shut down. The frame is released then.
+     */
+    public boolean submit(YuvFrame frame, int rotation, Callback callback) {
+        synchronized (this) {
+            long sequence = nextSequence++;
+            try {
+                executor.execute(new EncodeTask(sequence, frame, rotation, callback));
+                return true;
+            } catch (RejectedExecutionException e) {
+                nextSequence--;
+                rejectedCount++;
+            }
+        }
+        frame.release();
+        return false;
+    }
+
+    /**
+     * Stops accepting frames. Frames already submitted are still encoded and delivered.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Waits for the submitted frames to be delivered after {@link #shutdown()}.
+     *
+     * @return {@code false} if the timeout elapsed first.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(encodedCount, failedCount, rejectedCount,
+                executor.getQueue().size() + executor.getActiveCount());
+    }
+
+    private JpegImage encode(YuvFrame frame, int rotation) throws IOException {
+        int width = frame.getCropWidth();
+        int height = frame.getCropHeight();
+        int length = frame.getNv21Length();
+        byte[] nv21 = null;
+        byte[] rotated = null;
+        try {
+            try {
+                nv21 = pool.acquire(length);
+                frame.toNv21(nv21);
+            } finally {
+                frame.release();
+            }
+            byte[] data = nv21;
+            if (rotation != 0) {
+                rotated = pool.acquire(length);
+                YuvUtil.rotateNv21(nv21, width, height, rotation, rotated);
+                data = rotated;
+                if (rotation != 180) {
+                    int swap = width;
+                    width = height;
+                    height = swap;
+                }
+            }
+            // Most pictures compress well below 2 bits per pixel; the stream grows if needed
+            PooledOutputStream out = new PooledOutputStream(pool, width * height / 4);
+            try {
+                encoder.encode(data, width, height, quality, out);
+            } catch (IOException | RuntimeException e) {
+                out.close();
+                throw e;
+            }
+            return out.toJpegImage();
+        } finally {
+            pool.release(nv21);
+            pool.release(rotated);
+        }
+    }
+
+    /**
+     * Records an outcome and delivers every outcome that is now next in line. Only one thread
+     * delivers at a time, the others go back to encoding.
+     */
+    private void complete(long sequence, Outcome outcome) {
+        synchronized (this) {
+            completed.put(sequence, outcome);
+            if (outcome.image != null) {
+                encodedCount++;
+            } else {
+                failedCount++;
+            }
+            if (delivering) return;
+            delivering = true;
+        }
+        while (true) {
+            Outcome next;
+            synchronized (this) {
+                next = completed.remove(nextDelivery);
+                if (next == null) {
+                    delivering = false;
+                    return;
+                }
+                nextDelivery++;
+            }
+            next.deliver();
+        }
+    }
+
+    private class EncodeTask implements Runnable {
+
+        private final long sequence;
+        private final YuvFrame frame;
+        private final int rotation;
+        private final Callback callback;
+
+        EncodeTask(long sequence, YuvFrame frame, int rotation, Callback callback) {
+            this.sequence = sequence;
+            this.frame = frame;
+            this.rotation = rotation;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            long timestamp = frame.getTimestamp();
+            Outcome outcome;
+            try {
+                outcome = new Outcome(callback, timestamp, encode(frame, rotation), null);
+            } catch (IOException | RuntimeException e) {
+                outcome = new Outcome(callback, timestamp, null, e);
+            } catch (OutOfMemoryError e) {
+                // Keep the delivery order going, the next frames may fit
+                outcome = new Outcome(callback, timestamp, null, new IOException(e));
+            }
+            complete(sequence, outcome);
+        }
+    }
+
+    private static class Outcome {
+
+        final Callback callback;
+        final long timestamp;
+        final JpegImage image;
+        final Exception error;
+
+        Outcome(Callback callback, long timestamp, JpegImage image, Exception error) {
+            this.callback = callback;
+            this.timestamp = timestamp;
+            this.image = image;
+            this.error = error;
+        }
+
+        void deliver() {
+            if (image == null) {
+                callback.onEncodeFailed(timestamp, error);
+                return;
+            }
+            try {
+                callback.onEncoded(timestamp, image);
+            } finally {
+                image.release();
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "JpegEncoder-" + count.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+
+    /**
+     * Immutable snapshot of the pipeline activity.
+     */
+    public static class Stats {
+
+        private final long encodedCount;
+        private final long failedCount;
+        private final long rejectedCount;
+        private final int pendingCount;
+
+        Stats(long encodedCount, long failedCount, long rejectedCount, int pendingCount) {
+            this.encodedCount = encodedCount;
+            this.failedCount = failedCount;
+            this.rejectedCount = rejectedCount;
+            this.pendingCount = pendingCount;
+        }
+
+        public long getEncodedCount() {
+            return encodedCount;
+        }
+
+        public long getFailedCount() {
+            return failedCount;
+        }
+
+        /** @return The number of frames dropped because the pipeline was saturated. */
+        public long getRejectedCount() {
+            return rejectedCount;
+        }
+
+        /** @return The number of frames queued or being encoded. */
+        public int getPendingCount() {
+            return pendingCount;
+        }
+
+        @Override
+        public String toString() {
+            return "JpegEncodePipeline.Stats{encoded=" + encodedCount + ", failed=" + failedCount
+                    + ", rejected=" + rejectedCount + ", pending=" + pendingCount + "}";
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package namnh.com.cameraandroid.camera.base;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses NV21 images to JPEG. Implementations must be safe to call from several threads at
+ * once.
+ */
+public interface JpegEncoder {
+
+    /**
+     * @param nv21 The image, starting at 0
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param quality The JPEG quality, from 0 to 100
+     * @param out Receives the JPEG data
+     * @throws IOException if the image couldn't be encoded.
+     */
+    void encode(byte[] nv21, int width, int height, int quality, OutputStream out)
+            throws IOException;
+}
@@ -0,0 +1,167 @@
+package namnh.com.cameraandroid.camera.base;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted handle to the JPEG data of a taken picture.
+ * <p>
+ * A new handle holds a single reference owned by the camera, which is dropped as soon as the
+ * picture callbacks return. Listeners that need the data after that must call {@link #acquire()}
+ * and later {@link #release()}, since the backing buffer (for example an
+ * {@link android.media.Image} plane) is handed back to the camera once the last reference is gone.
+ */
+public class JpegImage {
+
+    private final ByteBuffer data;
+
+    private final BufferPool pool;
+
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    /**
+     * Wraps JPEG data that is already on the heap. Releasing the handle does nothing.
+     *
+     * @param data The JPEG bytes
+     * @return A new {@link JpegImage}
+     */
+    public static JpegImage wrap(byte[] data) {
+        return new JpegImage(ByteBuffer.wrap(data), null);
+    }
+
+    /**
+     * Wraps JPEG data that is already on the heap. The array is given to {@code pool} once the
+     * image is released, so later copies can reuse it.
+     *
+     * @param data The JPEG bytes
+     * @param length The number of valid bytes in {@code data}
+     * @param pool The pool to give {@code data} back to
+     * @return A new {@link JpegImage}
+     */
+    public static JpegImage wrap(final byte[] data, int length, final BufferPool pool) {
+        return new JpegImage(ByteBuffer.wrap(data, 0, length), pool) {
+            @Override
+            protected void onReleased() {
+                pool.release(data);
+            }
+        };
+    }
+
+    /**
+     * @param data The JPEG data, from its position to its limit. The buffer is not copied.
+     * @param pool The pool {@link #copy()} borrows from, or {@code null}.
+     */
+    public JpegImage(ByteBuffer data, BufferPool pool) {
+        this.data = data.slice().asReadOnlyBuffer();
+        this.pool = pool;
+    }
+
+    /**
+     * Gets a read-only view of the JPEG data. Each call returns a new view with its own
+     * position, so several readers don't interfere with each other.
+     *
+     * @return The JPEG data, positioned at 0
+     * @throws IllegalStateException if this image has been released.
+     */
+    public ByteBuffer getBuffer() {
+        checkNotReleased();
+        return data.duplicate();
+    }
+
+    /**
+     * @return The size of the JPEG data in bytes
+     */
+    public int getSize() {
+        return data.capacity();
+    }
+
+    /**
+     * Finds the thumbnail embedded in the EXIF data, which is much cheaper to decode than the
+     * picture for a review. See
+     * {@link namnh.com.cameraandroid.camera.CameraView#setJpegThumbnailSize(Size)}.
+     *
+     * @return A read-only view of the thumbnail JPEG, only valid until this image is released,
+     * or {@code null} if the picture has none.
+     * @throws IllegalStateException if this image has been released.
+     */
+    public ByteBuffer getExifThumbnail() {
+        return ExifThumbnail.find(getBuffer());
+    }
+
+    /**
+     * Copies the JPEG data to the heap. This is what the data used to cost on every shot, so
+     * only use it when a {@code byte[]} is really needed.
+     *
+     * @return A new array holding the JPEG data
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[getSize()];
+        getBuffer().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Copies the JPEG data into a buffer borrowed from the camera's {@link BufferPool}.
+     * <p>
+     * Use this rather than {@link #acquire()} to keep pictures around while shooting quickly:
+     * the camera only holds a couple of images in flight, and acquired ones are not available
+     * for the next shots until released. Releasing the copy gives its buffer back to the pool.
+     *
+     * @return A new image holding its own reference
+     */
+    public JpegImage copy() {
+        int size = getSize();
+        byte[] bytes = pool != null ? pool.acquire(size) : new byte[size];
+        getBuffer().get(bytes, 0, size);
+        return pool != null ? wrap(bytes, size, pool) : wrap(bytes);
+    }
+
+    /**
+     * Adds a reference to this image, so its data stays valid until a matching call to
+     * {@link #release()}.
+     *
+     * @return This image
+     * @throws IllegalStateException if this image has already been released.
+     */
+    public JpegImage acquire() {
+        while (true) {
+            int count = refCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("JpegImage is already released");
+            }
+            if (refCount.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Drops a reference to this image. The backing buffer is given back when the last
+     * reference is released.
+     */
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            onReleased();
+        } else if (count < 0) {
+            refCount.incrementAndGet();
+            throw new IllegalStateException("JpegImage is already released");
+        }
+    }
+
+    public boolean isReleased() {
+        return refCount.get() <= 0;
+    }
+
+    /**
+     * Called once the last reference is released. Subclasses give back the backing buffer here.
+     */
+    protected void onReleased() {
+    }
+
+    private void checkNotReleased() {
+        if (isReleased()) {
+            throw new IllegalStateException("JpegImage is already released");
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package namnh.com.cameraandroid.camera.base;
+
+import java.util.Arrays;
+
+/**
+ * Thread-safe histogram of latencies, with buckets growing geometrically: four per power of
+ * two, so percentiles are within about 12% from nanoseconds to centuries in a fixed 2 KiB.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = 63 * SUB_BUCKETS;
+
+    private final long[] buckets = new long[BUCKET_COUNT];
+
+    private long count;
+
+    private long sum;
+
+    private long min = Long.MAX_VALUE;
+
+    private long max;
+
+    /**
+     * @param nanos A latency, negative values are ignored
+     */
+    public synchronized void record(long nanos) {
+        if (nanos < 0) return;
+        buckets[bucketOf(nanos)]++;
+        count++;
+        sum += nanos;
+        if (nanos < min) min = nanos;
+        if (nanos > max) max = nanos;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(buckets, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return An estimate of the latency below which {@code percentile} percent of the recorded
+     * ones fall, in nanoseconds, or 0 if nothing was recorded.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be in [0, 100]: " + percentile);
+        }
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                // The middle of the bucket, within what was actually recorded
+                long value = lowerBound(i) + (upperBound(i) - lowerBound(i)) / 2;
+                return Math.max(min, Math.min(max, value));
+            }
+        }
+        return max;
+    }
+
+    public synchronized Stats getStats() {
+        if (count == 0) return new Stats(0, 0, 0, 0, 0, 0, 0);
+        return new Stats(count, min, sum / count, getPercentile(50), getPercentile(90),
+                getPercentile(99), max);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return exponent * SUB_BUCKETS + sub;
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS;
+        return lowerBound(bucket) + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Immutable snapshot of a {@link LatencyHistogram}, in nanoseconds.
+     */
+    public static class Stats {
+
+        private final long count;
+        private final long min;
+        private final long mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        Stats(long count, long min, long mean, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.min = min;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMin() {
+            return min;
+        }
+
+        public long getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "LatencyHistogram.Stats{count=" + count + ", min=" + min / 1000 + "us, mean="
+                    + mean / 1000 + "us, p50=" + p50 / 1000 + "us, p90=" + p90 / 1000
+                    + "us, p99=" + p99 / 1000 + "us, max=" + max / 1000 + "us}";
+        }
+    }
+}
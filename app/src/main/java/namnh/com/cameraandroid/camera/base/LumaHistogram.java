@@ -0,0 +1,229 @@
+package namnh.com.cameraandroid.camera.base;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Frame processor measuring the brightness of the frames: a 256 bin histogram of the luma, its
+ * mean and percentiles, and the ratios of clipped pixels, published as an immutable
+ * {@link Stats} after each frame.
+ * <p>
+ * Only a grid of samples within a region of the frame is read. The grid gets coarser as the
+ * frames get larger so that no more than {@link #setSampling maxSamples} are read, which keeps
+ * the cost of a frame fixed whatever the resolution.
+ * <p>
+ * This class is thread-safe.
+ */
+public class LumaHistogram implements FrameProcessor {
+
+    /** Luma at or below which a pixel counts as clipped to black */
+    public static final int DARK_CLIP_LEVEL = 3;
+
+    /** Luma at or above which a pixel counts as clipped to white */
+    public static final int BRIGHT_CLIP_LEVEL = 252;
+
+    private static final int DEFAULT_STEP = 2;
+
+    private static final int DEFAULT_MAX_SAMPLES = 128 * 128;
+
+    /**
+     * Receives the statistics of each frame, on the thread processing the frames.
+     */
+    public interface Listener {
+        void onLumaStats(Stats stats);
+    }
+
+    private final int[] bins = new int[256];
+
+    private int step = DEFAULT_STEP;
+
+    private int maxSamples = DEFAULT_MAX_SAMPLES;
+
+    private float regionLeft;
+    private float regionTop;
+    private float regionRight = 1;
+    private float regionBottom = 1;
+
+    private Listener listener;
+
+    private volatile Stats stats;
+
+    /**
+     * @param step The distance between two samples, in pixels, in both directions
+     * @param maxSamples The maximum number of samples read per frame, the step grows as needed
+     * to stay below it; 0 for no maximum
+     */
+    public synchronized void setSampling(int step, int maxSamples) {
+        if (step <= 0 || maxSamples < 0) {
+            throw new IllegalArgumentException("Invalid sampling: step " + step
+                    + ", maxSamples " + maxSamples);
+        }
+        this.step = step;
+        this.maxSamples = maxSamples;
+    }
+
+    /**
+     * Restricts the measure to a region of the frames, in fractions of their width and height,
+     * before any rotation.
+     */
+    public synchronized void setRegion(float left, float top, float right, float bottom) {
+        if (!(left >= 0 && top >= 0 && right <= 1 && bottom <= 1 && left < right
+                && top < bottom)) {
+            throw new IllegalArgumentException("Invalid region: " + left + ", " + top + ", "
+                    + right + ", " + bottom);
+        }
+        regionLeft = left;
+        regionTop = top;
+        regionRight = right;
+        regionBottom = bottom;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return The statistics of the last frame, or {@code null} before the first one.
+     */
+    public Stats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void process(YuvFrame frame) {
+        Stats result;
+        Listener target;
+        synchronized (this) {
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            int left = (int) (regionLeft * width);
+            int top = (int) (regionTop * height);
+            int right = Math.max(left + 1, (int) (regionRight * width));
+            int bottom = Math.max(top + 1, (int) (regionBottom * height));
+            int stride = effectiveStep(right - left, bottom - top);
+            ByteBuffer y = frame.getYPlane();
+            int rowStride = frame.getYRowStride();
+            int start = y.position();
+            Arrays.fill(bins, 0);
+            long sum = 0;
+            int count = 0;
+            // Start half a step in, so the grid is centered on the region
+            for (int row = top + stride / 2; row < bottom; row += stride) {
+                int rowStart = start + row * rowStride;
+                for (int col = left + stride / 2; col < right; col += stride) {
+                    int luma = y.get(rowStart + col) & 0xFF;
+                    bins[luma]++;
+                    sum += luma;
+                    count++;
+                }
+            }
+            result = new Stats(frame.getTimestamp(), bins, count, sum);
+            stats = result;
+            target = listener;
+        }
+        if (target != null) {
+            target.onLumaStats(result);
+        }
+    }
+
+    private int effectiveStep(int width, int height) {
+        if (maxSamples == 0) return step;
+        int result = Math.max(step,
+                (int) Math.sqrt((double) width * height / Math.max(1, maxSamples)));
+        while ((long) ((width + result - 1) / result) * ((height + result - 1) / result)
+                > maxSamples) {
+            result++;
+        }
+        return result;
+    }
+
+    /**
+     * Immutable snapshot of the brightness of a frame.
+     */
+    public static class Stats {
+
+        private final long timestamp;
+        private final int[] bins;
+        private final int sampleCount;
+        private final double mean;
+
+        Stats(long timestamp, int[] bins, int sampleCount, long sum) {
+            this.timestamp = timestamp;
+            this.bins = bins.clone();
+            this.sampleCount = sampleCount;
+            mean = sampleCount == 0 ? 0 : (double) sum / sampleCount;
+        }
+
+        /** @return The timestamp of the frame, in nanoseconds. */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /** @return The number of pixels read. */
+        public int getSampleCount() {
+            return sampleCount;
+        }
+
+        /** @return The number of samples of the given luma, from 0 to 255. */
+        public int getBin(int luma) {
+            return bins[luma];
+        }
+
+        /** @return A copy of the 256 bins. */
+        public int[] getBins() {
+            return bins.clone();
+        }
+
+        /** @return The mean luma, from 0 to 255. */
+        public double getMean() {
+            return mean;
+        }
+
+        /**
+         * @param percentile Between 0 and 100
+         * @return The luma below or at which {@code percentile} percent of the samples fall, or
+         * 0 if there were none.
+         */
+        public int getPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("percentile must be in [0, 100]: "
+                        + percentile);
+            }
+            if (sampleCount == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * sampleCount));
+            long seen = 0;
+            for (int i = 0; i < bins.length; i++) {
+                seen += bins[i];
+                if (seen >= rank) return i;
+            }
+            return bins.length - 1;
+        }
+
+        /** @return The fraction of samples at or below {@link #DARK_CLIP_LEVEL}. */
+        public float getDarkClippedRatio() {
+            return ratio(0, DARK_CLIP_LEVEL);
+        }
+
+        /** @return The fraction of samples at or above {@link #BRIGHT_CLIP_LEVEL}. */
+        public float getBrightClippedRatio() {
+            return ratio(BRIGHT_CLIP_LEVEL, 255);
+        }
+
+        private float ratio(int from, int to) {
+            if (sampleCount == 0) return 0;
+            int count = 0;
+            for (int i = from; i <= to; i++) {
+                count += bins[i];
+            }
+            return (float) count / sampleCount;
+        }
+
+        @Override
+        public String toString() {
+            return "LumaHistogram.Stats{samples=" + sampleCount + ", mean=" + mean + ", p5="
+                    + getPercentile(5) + ", p50=" + getPercentile(50) + ", p95="
+                    + getPercentile(95) + ", darkClipped=" + getDarkClippedRatio()
+                    + ", brightClipped=" + getBrightClippedRatio() + "}";
+        }
+    }
+}
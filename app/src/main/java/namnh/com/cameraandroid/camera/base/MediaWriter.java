@@ -0,0 +1,440 @@
+package namnh.com.cameraandroid.camera.base;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves pictures to a directory on a single background thread, shared by every screen of an
+ * app.
+ * <p>
+ * Writes wait in a bounded queue and are done in batches: every picture of a batch is written
+ * to a temporary file first, then they are synced back to back and renamed into place, so a
+ * file either holds a whole picture or doesn't exist. Writes are refused up front when the
+ * queue is full or the storage is about to run out of space.
+ * <p>
+ * This class is thread-safe.
+ */
+public class MediaWriter {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+    /** Leaves room for the rest of the system, and for the files being written. */
+    public static final long DEFAULT_MIN_FREE_BYTES = 50 * 1024 * 1024;
+
+    private static final int MAX_BATCH_SIZE = 8;
+
+    private static final long KEEP_ALIVE_MILLIS = 10000;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Receives the outcome of a write, on the writer thread.
+     */
+    public interface Callback {
+
+        void onWritten(PictureWriter.Result result);
+    }
+
+    private final File directory;
+
+    private final int queueCapacity;
+
+    private final long minFreeBytes;
+
+    private volatile PictureWriter.FsyncPolicy fsyncPolicy = PictureWriter.FsyncPolicy.DATA;
+
+    private final ArrayDeque<Job> queue = new ArrayDeque<>();
+
+    /** The bytes of the queued and batched writes, not on the storage yet. */
+    private long pendingBytes;
+
+    private Thread worker;
+
+    private boolean writing;
+
+    private boolean shutdown;
+
+    private final SimpleDateFormat nameFormat =
+            new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US);
+
+    private long lastNameMillis;
+
+    private long writtenCount;
+
+    private long failedCount;
+
+    private long rejectedCount;
+
+    private long lowSpaceCount;
+
+    private long writtenBytes;
+
+    private long writeNanos;
+
+    private long batchCount;
+
+    public MediaWriter(File directory) {
+        this(directory, DEFAULT_QUEUE_CAPACITY, DEFAULT_MIN_FREE_BYTES);
+    }
+
+    /**
+     * @param directory The directory {@link #newFile(String, String)} names files in
+     * @param queueCapacity The number of writes which may wait for the writer thread
+     * @param minFreeBytes The free space to leave on the storage
+     */
+    public MediaWriter(File directory, int queueCapacity, long minFreeBytes) {
+        if (queueCapacity <= 0 || minFreeBytes < 0) {
+            throw new IllegalArgumentException("Invalid limits: " + queueCapacity + " writes, "
+                    + minFreeBytes + " bytes");
+        }
+        this.directory = directory;
+        this.queueCapacity = queueCapacity;
+        this.minFreeBytes = minFreeBytes;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param fsyncPolicy How hard to push the pictures to the storage before reporting them
+     * written, {@link PictureWriter.FsyncPolicy#DATA} by default
+     */
+    public void setFsyncPolicy(PictureWriter.FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    public PictureWriter.FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /**
+     * Names a new file in the directory, creating the directory if needed. Names are made of
+     * the time to the millisecond, and go up with each call even within the same millisecond,
+     * so they neither collide nor go out of order in rapid shooting.
+     *
+     * @param prefix The start of the name, such as {@code "IMG_"}
+     * @param extension The end of the name, such as {@code ".jpg"}
+     * @return A file that doesn't exist yet
+     * @throws IOException if the directory can't be created.
+     */
+    public synchronized File newFile(String prefix, String extension) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        long millis = Math.max(System.currentTimeMillis(), lastNameMillis + 1);
+        File file;
+        while (true) {
+            file = new File(directory, prefix + nameFormat.format(new Date(millis)) + extension);
+            // Left over from an earlier run, or still being written
+            if (!file.exists() && !tempFile(file).exists()) break;
+            millis++;
+        }
+        lastNameMillis = millis;
+        return file;
+    }
+
+    /**
+     * Queues {@code image} to be written to {@code file}, replacing it. The picture is copied,
+     * see {@link JpegImage#copy()}, so the camera gets its buffer back right away rather than
+     * once the write is synced.
+     *
+     * @param image The picture, only read during this call
+     * @param file The destination, usually from {@link #newFile(String, String)}
+     * @param callback Receives the outcome, or {@code null}
+     * @return {@code false} if the queue is full, the storage is short of space, or this writer
+     * is shut down. The callback is not called then.
+     */
+    public boolean write(JpegImage image, File file, Callback callback) {
+        long size = image.getSize();
+        // A missing directory reports no space, the write fails on its own then
+        File parent = file.getAbsoluteFile().getParentFile();
+        long usableSpace = parent != null && parent.exists() ? parent.getUsableSpace()
+                : Long.MAX_VALUE;
+        synchronized (this) {
+            if (shutdown || queue.size() >= queueCapacity) {
+                rejectedCount++;
+                return false;
+            }
+            if (usableSpace < pendingBytes + size + minFreeBytes) {
+                lowSpaceCount++;
+                rejectedCount++;
+                return false;
+            }
+            queue.add(new Job(image.copy(), file, callback));
+            pendingBytes += size;
+            if (worker == null) {
+                worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runWorker();
+                    }
+                }, "MediaWriter");
+                worker.setPriority(Thread.NORM_PRIORITY - 1);
+                worker.start();
+            } else {
+                notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops accepting writes. The queued ones are still written.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+    }
+
+    /**
+     * Waits for the queued writes to be done.
+     *
+     * @return {@code false} if the timeout elapsed first.
+     */
+    public synchronized boolean awaitIdle(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!queue.isEmpty() || writing) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return false;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(queue.size(), writtenCount, failedCount, rejectedCount, lowSpaceCount,
+                writtenBytes, writeNanos, batchCount);
+    }
+
+    private void runWorker() {
+        List<Job> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (true) {
+            synchronized (this) {
+                writing = false;
+                notifyAll();
+                long idleSince = System.currentTimeMillis();
+                while (queue.isEmpty()) {
+                    long idle = System.currentTimeMillis() - idleSince;
+                    if (shutdown || idle >= KEEP_ALIVE_MILLIS) {
+                        // The next write starts a new thread
+                        worker = null;
+                        return;
+                    }
+                    try {
+                        wait(KEEP_ALIVE_MILLIS - idle);
+                    } catch (InterruptedException e) {
+                        worker = null;
+                        return;
+                    }
+                }
+                while (!queue.isEmpty() && batch.size() < MAX_BATCH_SIZE) {
+                    batch.add(queue.poll());
+                }
+                writing = true;
+            }
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes every job to its temporary file, then syncs and renames them all. Syncing back to
+     * back lets the storage commit the batch at once, rather than once per picture between
+     * writes.
+     */
+    private void writeBatch(List<Job> batch) {
+        long start = System.nanoTime();
+        for (Job job : batch) {
+            job.writeTemp();
+        }
+        PictureWriter.FsyncPolicy policy = fsyncPolicy;
+        for (Job job : batch) {
+            job.commit(policy);
+        }
+        long nanos = System.nanoTime() - start;
+        synchronized (this) {
+            batchCount++;
+            writeNanos += nanos;
+            for (Job job : batch) {
+                pendingBytes -= job.size;
+                if (job.error == null) {
+                    writtenCount++;
+                    writtenBytes += job.count;
+                } else {
+                    failedCount++;
+                }
+            }
+        }
+        for (Job job : batch) {
+            if (job.callback != null) {
+                job.callback.onWritten(new PictureWriter.Result(job.file, job.count,
+                        job.finishedNanos - job.startNanos, job.error));
+            }
+        }
+    }
+
+    private static File tempFile(File file) {
+        return new File(file.getParentFile(), "." + file.getName() + TEMP_SUFFIX);
+    }
+
+    private static class Job {
+
+        final JpegImage image;
+        final File file;
+        final File temp;
+        final Callback callback;
+        final long size;
+        long startNanos;
+        long finishedNanos;
+        FileOutputStream out;
+        long count;
+        IOException error;
+
+        Job(JpegImage image, File file, Callback callback) {
+            this.image = image;
+            this.file = file;
+            this.callback = callback;
+            size = image.getSize();
+            temp = tempFile(file);
+        }
+
+        void writeTemp() {
+            startNanos = System.nanoTime();
+            try {
+                out = new FileOutputStream(temp);
+                FileChannel channel = out.getChannel();
+                ByteBuffer data = image.getBuffer();
+                while (data.hasRemaining()) {
+                    count += channel.write(data);
+                }
+            } catch (IOException e) {
+                fail(e);
+            } finally {
+                image.release();
+            }
+        }
+
+        void commit(PictureWriter.FsyncPolicy policy) {
+            if (error == null) {
+                try {
+                    if (policy != PictureWriter.FsyncPolicy.NONE) {
+                        out.getChannel().force(
+                                policy == PictureWriter.FsyncPolicy.DATA_AND_METADATA);
+                    }
+                    out.close();
+                    out = null;
+                    if (!temp.renameTo(file)) {
+                        throw new IOException("Cannot rename " + temp + " to " + file);
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+            finishedNanos = System.nanoTime();
+        }
+
+        private void fail(IOException e) {
+            error = e;
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+                out = null;
+            }
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+
+    /**
+     * Immutable snapshot of the writer activity.
+     */
+    public static class Stats {
+
+        private final int queueDepth;
+        private final long writtenCount;
+        private final long failedCount;
+        private final long rejectedCount;
+        private final long lowSpaceCount;
+        private final long writtenBytes;
+        private final long writeNanos;
+        private final long batchCount;
+
+        Stats(int queueDepth, long writtenCount, long failedCount, long rejectedCount,
+                long lowSpaceCount, long writtenBytes, long writeNanos, long batchCount) {
+            this.queueDepth = queueDepth;
+            this.writtenCount = writtenCount;
+            this.failedCount = failedCount;
+            this.rejectedCount = rejectedCount;
+            this.lowSpaceCount = lowSpaceCount;
+            this.writtenBytes = writtenBytes;
+            this.writeNanos = writeNanos;
+            this.batchCount = batchCount;
+        }
+
+        /**
+         * @return The number of writes waiting for the writer thread.
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public long getWrittenCount() {
+            return writtenCount;
+        }
+
+        public long getFailedCount() {
+            return failedCount;
+        }
+
+        /**
+         * @return The number of refused writes, including the ones refused for space.
+         */
+        public long getRejectedCount() {
+            return rejectedCount;
+        }
+
+        public long getLowSpaceCount() {
+            return lowSpaceCount;
+        }
+
+        public long getWrittenBytes() {
+            return writtenBytes;
+        }
+
+        /**
+         * @return The write rate while the writer thread is busy, syncs included.
+         */
+        public long getBytesPerSecond() {
+            return writeNanos > 0 ? (long) (writtenBytes * 1e9 / writeNanos) : 0;
+        }
+
+        /**
+         * @return The average number of pictures synced together.
+         */
+        public float getAverageBatchSize() {
+            return batchCount > 0 ? (float) (writtenCount + failedCount) / batchCount : 0f;
+        }
+
+        @Override
+        public String toString() {
+            return "MediaWriter.Stats{queued=" + queueDepth + ", written=" + writtenCount
+                    + ", failed=" + failedCount + ", rejected=" + rejectedCount + ", lowSpace="
+                    + lowSpaceCount + ", bytes=" + writtenBytes + ", bytesPerSecond="
+                    + getBytesPerSecond() + ", batchSize=" + getAverageBatchSize() + "}";
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package namnh.com.cameraandroid.camera.base;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A picture asked for with {@code takePicture()}, scheduled by a {@link CaptureScheduler}.
+ * <p>
+ * The request works as a future: poll {@link #getStatus()}, block on {@link #await(long,
+ * TimeUnit)}, or register a {@link Listener} to learn when it is done.
+ */
+public class PictureRequest {
+
+    public enum Status {
+        /** Waiting in the queue for a free capture slot. */
+        QUEUED,
+        /** Being captured. */
+        IN_FLIGHT,
+        /** Delivered, or written to its targets. */
+        COMPLETED,
+        /** The capture or the write failed. */
+        FAILED,
+        /** Rejected because the queue was full. */
+        DROPPED,
+        /** Abandoned because the camera stopped. */
+        CANCELLED
+    }
+
+    /**
+     * Told once a request is done, on the thread which finished it.
+     */
+    public interface Listener {
+        void onPictureRequestDone(PictureRequest request);
+    }
+
+    private final long id;
+
+    private final File file;
+
+    private final OutputStream stream;
+
+    private final File rawFile;
+
+    private final Listener listener;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile Status status = Status.QUEUED;
+
+    private volatile PictureWriter.Result writeResult;
+
+    private volatile PictureWriter.Result rawWriteResult;
+
+    /** Whether the JPEG picture, and the RAW one if any, were delivered */
+    private boolean jpegDone;
+
+    private boolean rawDone;
+
+    private final long submitNanos = System.nanoTime();
+
+    private volatile long startNanos;
+
+    /** When the picture was asked for, in elapsed realtime, 0 if unknown */
+    private final long pressRealtimeNanos;
+
+    /** Later requests merged into this one by {@link CaptureScheduler.OverflowPolicy#COALESCE}. */
+    private final List<PictureRequest> coalesced = new ArrayList<>(0);
+
+    PictureRequest(long id, File file, OutputStream stream, File rawFile,
+            long pressRealtimeNanos, Listener listener) {
+        this.id = id;
+        this.file = file;
+        this.stream = stream;
+        this.rawFile = rawFile;
+        this.pressRealtimeNanos = pressRealtimeNanos;
+        this.listener = listener;
+    }
+
+    /**
+     * @return When the request was submitted, in {@link System#nanoTime()} time.
+     */
+    public long getSubmitNanos() {
+        return submitNanos;
+    }
+
+    /**
+     * @return When the picture was asked for, in {@code SystemClock.elapsedRealtimeNanos()}
+     * time, the time base of the sensor timestamps; 0 if unknown.
+     */
+    public long getPressRealtimeNanos() {
+        return pressRealtimeNanos;
+    }
+
+    /**
+     * @return When the capture of the request started, in {@link System#nanoTime()} time, or 0
+     * if it has not.
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * @return The capture ID, increasing in submission order.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return The file the picture is written to, or {@code null}.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The stream the picture is written to, or {@code null}.
+     */
+    public OutputStream getOutputStream() {
+        return stream;
+    }
+
+    /**
+     * @return The DNG file the RAW picture is written to, or {@code null} for no RAW picture.
+     */
+    public File getRawFile() {
+        return rawFile;
+    }
+
+    /**
+     * @return Whether only the RAW picture was asked for. The camera may still capture the JPEG
+     * one, but it is not delivered.
+     */
+    public boolean isRawOnly() {
+        return rawFile != null && file == null && stream == null;
+    }
+
+    /**
+     * @return Whether the picture is written to a file or a stream rather than delivered to the
+     * picture callbacks.
+     */
+    public boolean hasTarget() {
+        return file != null || stream != null;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * @return The outcome of the write to the target, or {@code null} if the request has no
+     * target or is not done.
+     */
+    public PictureWriter.Result getWriteResult() {
+        return writeResult;
+    }
+
+    /**
+     * @return The outcome of the DNG write, or {@code null} if the request has no RAW picture
+     * or it is not written yet.
+     */
+    public PictureWriter.Result getRawWriteResult() {
+        return rawWriteResult;
+    }
+
+    /**
+     * Waits for the request to be done.
+     *
+     * @return {@code false} if the timeout elapsed first.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    /**
+     * @return The requests merged into this one, which are done with it.
+     */
+    public synchronized List<PictureRequest> getCoalescedRequests() {
+        return Collections.unmodifiableList(new ArrayList<>(coalesced));
+    }
+
+    /**
+     * Merges {@code request} into this one, as long as this one is still waiting: once it is in
+     * flight its coalesced requests may already have been read for delivery.
+     *
+     * @return {@code false} if this request is no longer waiting
+     */
+    synchronized boolean addCoalesced(PictureRequest request) {
+        if (status != Status.QUEUED) return false;
+        coalesced.add(request);
+        return true;
+    }
+
+    synchronized void setInFlight() {
+        startNanos = System.nanoTime();
+        status = Status.IN_FLIGHT;
+    }
+
+    /**
+     * Records the delivery of one of the pictures, and marks this request done once all of
+     * them are.
+     *
+     * @param raw Whether it is the RAW picture
+     * @param result The outcome of the write, or {@code null} if there was no target
+     */
+    void finishOutput(boolean raw, PictureWriter.Result result) {
+        Status status;
+        synchronized (this) {
+            if (isDone()) return;
+            if (raw) {
+                rawWriteResult = result;
+                rawDone = true;
+            } else {
+                writeResult = result;
+                jpegDone = true;
+            }
+            if (!jpegDone || rawFile != null && !rawDone) return;
+            status = isFailed(writeResult) || isFailed(rawWriteResult) ? Status.FAILED
+                    : Status.COMPLETED;
+        }
+        finish(status, writeResult);
+    }
+
+    private static boolean isFailed(PictureWriter.Result result) {
+        return result != null && !result.isSuccessful();
+    }
+
+    /**
+     * Marks this request done. Only the first call has an effect.
+     */
+    void finish(Status status, PictureWriter.Result writeResult) {
+        synchronized (this) {
+            if (isDone()) return;
+            this.writeResult = writeResult;
+            this.status = status;
+            done.countDown();
+        }
+        if (listener != null) {
+            listener.onPictureRequestDone(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PictureRequest{id=" + id + ", status=" + status
+                + (file != null ? ", file=" + file : "")
+                + (rawFile != null ? ", rawFile=" + rawFile : "") + "}";
+    }
+}
@@ -0,0 +1,224 @@
+package namnh.com.cameraandroid.camera.base;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.DngCreator;
+import android.media.Image;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes picture data straight from its {@link ByteBuffer} to a file or a stream through NIO
+ * channels, so direct buffers such as {@link android.media.Image} planes never get copied to
+ * the heap.
+ */
+public class PictureWriter {
+
+    /**
+     * How hard to push written pictures to the storage device before reporting them as saved.
+     */
+    public enum FsyncPolicy {
+        /** Leave it to the kernel; a crash or power loss may lose the latest pictures. */
+        NONE,
+        /** Flush the file content, like {@code fdatasync}. */
+        DATA,
+        /** Flush the file content and metadata, like {@code fsync}. */
+        DATA_AND_METADATA
+    }
+
+    private static final int DNG_BUFFER_SIZE = 256 * 1024;
+
+    private volatile FsyncPolicy fsyncPolicy = FsyncPolicy.NONE;
+
+    public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /**
+     * Writes {@code data} to {@code file}, replacing its content.
+     *
+     * @param data The bytes to write, from the position to the limit. The position is moved.
+     * @param file The destination file
+     * @return The outcome, never {@code null}
+     */
+    public Result write(ByteBuffer data, File file) {
+        long start = System.nanoTime();
+        long count = 0;
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            count = writeFully(out.getChannel(), data);
+            force(out.getChannel());
+            out.close();
+            out = null;
+            return new Result(file, count, System.nanoTime() - start, null);
+        } catch (IOException e) {
+            return new Result(file, count, System.nanoTime() - start, e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Writes {@code data} to {@code out}. The stream is flushed but not closed. The fsync policy
+     * only applies to {@link FileOutputStream}s.
+     *
+     * @param data The bytes to write, from the position to the limit. The position is moved.
+     * @param out The destination stream
+     * @return The outcome, never {@code null}
+     */
+    public Result write(ByteBuffer data, OutputStream out) {
+        long start = System.nanoTime();
+        long count = 0;
+        try {
+            if (out instanceof FileOutputStream) {
+                FileChannel channel = ((FileOutputStream) out).getChannel();
+                count = writeFully(channel, data);
+                force(channel);
+            } else {
+                count = writeFully(Channels.newChannel(out), data);
+                out.flush();
+            }
+            return new Result(null, count, System.nanoTime() - start, null);
+        } catch (IOException e) {
+            return new Result(null, count, System.nanoTime() - start, e);
+        }
+    }
+
+    /**
+     * Writes a RAW {@code image} to {@code file} as a DNG. The image is not closed.
+     *
+     * @param creator Holds the metadata of the capture of {@code image}
+     * @return The outcome, never {@code null}
+     */
+    @TargetApi(21)
+    public Result writeDng(DngCreator creator, Image image, File file) {
+        long start = System.nanoTime();
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            // DngCreator writes in small chunks, the whole sensor a few rows at a time
+            BufferedOutputStream buffered = new BufferedOutputStream(out, DNG_BUFFER_SIZE);
+            creator.writeImage(buffered, image);
+            buffered.flush();
+            long count = out.getChannel().position();
+            force(out.getChannel());
+            out.close();
+            out = null;
+            return new Result(file, count, System.nanoTime() - start, null);
+        } catch (IOException e) {
+            return new Result(file, 0, System.nanoTime() - start, e);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            // The image or its metadata don't make a valid DNG
+            return new Result(file, 0, System.nanoTime() - start, new IOException(e));
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static long writeFully(WritableByteChannel channel, ByteBuffer data)
+            throws IOException {
+        long count = 0;
+        while (data.hasRemaining()) {
+            count += channel.write(data);
+        }
+        return count;
+    }
+
+    private void force(FileChannel channel) throws IOException {
+        switch (fsyncPolicy) {
+            case DATA:
+                channel.force(false);
+                break;
+            case DATA_AND_METADATA:
+                channel.force(true);
+                break;
+            case NONE:
+            default:
+                break;
+        }
+    }
+
+    private static void closeQuietly(OutputStream out) {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Immutable outcome of a picture write.
+     */
+    public static class Result {
+
+        private final File file;
+        private final long byteCount;
+        private final long latencyNanos;
+        private final IOException error;
+
+        /**
+         * @return The outcome of a picture lost before it could be written to {@code file}.
+         */
+        public static Result failure(File file, IOException error) {
+            return new Result(file, 0, 0, error);
+        }
+
+        Result(File file, long byteCount, long latencyNanos, IOException error) {
+            this.file = file;
+            this.byteCount = byteCount;
+            this.latencyNanos = latencyNanos;
+            this.error = error;
+        }
+
+        /**
+         * @return The written file, or {@code null} if the picture went to a stream.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return The number of bytes written.
+         */
+        public long getByteCount() {
+            return byteCount;
+        }
+
+        /**
+         * @return The time spent writing and syncing, in nanoseconds.
+         */
+        public long getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        /**
+         * @return The failure, or {@code null} if the picture was written.
+         */
+        public IOException getError() {
+            return error;
+        }
+
+        public boolean isSuccessful() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            return "PictureWriter.Result{file=" + file + ", bytes=" + byteCount + ", latency="
+                    + latencyNanos / 1000 + "us" + (error != null ? ", error=" + error : "")
+                    + "}";
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package namnh.com.cameraandroid.camera.base;
+
+import java.io.OutputStream;
+
+/**
+ * An {@link OutputStream} collecting bytes in buffers borrowed from a {@link BufferPool}, so
+ * encoders can produce pictures without allocating a new array for each of them.
+ */
+public class PooledOutputStream extends OutputStream {
+
+    private final BufferPool pool;
+
+    private byte[] buffer;
+
+    private int count;
+
+    /**
+     * @param pool The pool to borrow from
+     * @param initialCapacity The expected number of bytes
+     */
+    public PooledOutputStream(BufferPool pool, int initialCapacity) {
+        this.pool = pool;
+        buffer = pool.acquire(initialCapacity);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Hands the written bytes over as a {@link JpegImage}; releasing it gives the buffer back
+     * to the pool. The stream must not be used afterwards.
+     */
+    public JpegImage toJpegImage() {
+        checkNotRecycled();
+        JpegImage image = JpegImage.wrap(buffer, count, pool);
+        buffer = null;
+        return image;
+    }
+
+    /**
+     * Gives the buffer back to the pool without handing it over.
+     */
+    @Override
+    public void close() {
+        if (buffer == null) return;
+        pool.release(buffer);
+        buffer = null;
+    }
+
+    private void ensureCapacity(int capacity) {
+        checkNotRecycled();
+        if (capacity <= buffer.length) return;
+        byte[] larger = pool.acquire(Math.max(capacity, buffer.length * 2));
+        System.arraycopy(buffer, 0, larger, 0, count);
+        pool.release(buffer);
+        buffer = larger;
+    }
+
+    private void checkNotRecycled() {
+        if (buffer == null) {
+            throw new IllegalStateException("The stream is already handed over or closed");
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package namnh.com.cameraandroid.camera.base;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Preallocated buffers for the Camera1 preview callbacks, so the camera fills the same arrays
+ * over and over instead of allocating one per frame.
+ * <p>
+ * The buffers are allocated for a preview size and format by {@link #configure}, and handed to
+ * the camera by the caller. Each buffer the camera fills is reported with {@link #onFilled},
+ * then {@link #recycle recycled} into the camera once its consumers are done with it. Buffers
+ * of a previous configuration are let go instead.
+ * <p>
+ * This class is thread-safe.
+ */
+public class PreviewBufferPool {
+
+    /** The buffers of the current configuration, by identity */
+    private final Set<byte[]> buffers =
+            Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+
+    private int width;
+
+    private int height;
+
+    private int bufferBytes;
+
+    /** Buffers filled by the camera and not recycled yet */
+    private int inUseCount;
+
+    private long allocatedCount;
+
+    private long filledCount;
+
+    private long recycledCount;
+
+    private long exhaustedCount;
+
+    private long staleCount;
+
+    /**
+     * Allocates {@code count} buffers for frames of the given size and format, unless the
+     * current ones already fit.
+     *
+     * @param bitsPerPixel The bits per pixel of the preview format, see
+     * {@link android.graphics.ImageFormat#getBitsPerPixel(int)}
+     * @return The new buffers, to hand to the camera, or {@code null} if the current ones are
+     * kept.
+     */
+    public synchronized List<byte[]> configure(int width, int height, int bitsPerPixel,
+            int count) {
+        if (width <= 0 || height <= 0 || bitsPerPixel <= 0 || count <= 0) {
+            throw new IllegalArgumentException("Invalid configuration: " + width + "x" + height
+                    + ", " + bitsPerPixel + " bpp, " + count + " buffers");
+        }
+        int bytes = (int) ((long) width * height * bitsPerPixel / 8);
+        if (width == this.width && height == this.height && bytes == bufferBytes
+                && count == buffers.size()) {
+            return null;
+        }
+        clear();
+        this.width = width;
+        this.height = height;
+        bufferBytes = bytes;
+        List<byte[]> allocated = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] buffer = new byte[bytes];
+            buffers.add(buffer);
+            allocated.add(buffer);
+        }
+        allocatedCount += count;
+        return allocated;
+    }
+
+    /**
+     * Lets go of every buffer; those still in use are not recycled.
+     */
+    public synchronized void clear() {
+        buffers.clear();
+        inUseCount = 0;
+        width = 0;
+        height = 0;
+        bufferBytes = 0;
+    }
+
+    public synchronized boolean isConfigured() {
+        return !buffers.isEmpty();
+    }
+
+    public synchronized int getWidth() {
+        return width;
+    }
+
+    public synchronized int getHeight() {
+        return height;
+    }
+
+    /**
+     * Reports a buffer the camera filled.
+     *
+     * @return {@code false} if the buffer is not of the current configuration and must be let
+     * go.
+     */
+    public synchronized boolean onFilled(byte[] buffer) {
+        if (!buffers.contains(buffer)) {
+            staleCount++;
+            return false;
+        }
+        filledCount++;
+        inUseCount++;
+        if (inUseCount == buffers.size()) {
+            // The camera skips the frames until a buffer comes back
+            exhaustedCount++;
+        }
+        return true;
+    }
+
+    /**
+     * Takes back a buffer whose consumers are done with it.
+     *
+     * @return {@code true} if the buffer is to be handed back to the camera, {@code false} if
+     * it is of a previous configuration.
+     */
+    public synchronized boolean recycle(byte[] buffer) {
+        if (!buffers.contains(buffer)) {
+            staleCount++;
+            return false;
+        }
+        inUseCount--;
+        recycledCount++;
+        return true;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(buffers.size(), bufferBytes, inUseCount, allocatedCount, filledCount,
+                recycledCount, exhaustedCount, staleCount);
+    }
+
+    /**
+     * Immutable snapshot of the pool activity.
+     */
+    public static class Stats {
+
+        private final int bufferCount;
+        private final int bufferBytes;
+        private final int inUseCount;
+        private final long allocatedCount;
+        private final long filledCount;
+        private final long recycledCount;
+        private final long exhaustedCount;
+        private final long staleCount;
+
+        Stats(int bufferCount, int bufferBytes, int inUseCount, long allocatedCount,
+                long filledCount, long recycledCount, long exhaustedCount, long staleCount) {
+            this.bufferCount = bufferCount;
+            this.bufferBytes = bufferBytes;
+            this.inUseCount = inUseCount;
+            this.allocatedCount = allocatedCount;
+            this.filledCount = filledCount;
+            this.recycledCount = recycledCount;
+            this.exhaustedCount = exhaustedCount;
+            this.staleCount = staleCount;
+        }
+
+        public int getBufferCount() {
+            return bufferCount;
+        }
+
+        /** @return The size of each buffer, in bytes. */
+        public int getBufferBytes() {
+            return bufferBytes;
+        }
+
+        /** @return The number of buffers filled by the camera and not recycled yet. */
+        public int getInUseCount() {
+            return inUseCount;
+        }
+
+        /** @return The number of buffers allocated since the pool was created. */
+        public long getAllocatedCount() {
+            return allocatedCount;
+        }
+
+        /** @return The number of frames the camera delivered in the buffers. */
+        public long getFilledCount() {
+            return filledCount;
+        }
+
+        public long getRecycledCount() {
+            return recycledCount;
+        }
+
+        /** @return The number of times the camera was left without a buffer to fill. */
+        public long getExhaustedCount() {
+            return exhaustedCount;
+        }
+
+        /** @return The number of buffers of a previous configuration let go. */
+        public long getStaleCount() {
+            return staleCount;
+        }
+
+        @Override
+        public String toString() {
+            return "PreviewBufferPool.Stats{buffers=" + bufferCount + ", bufferBytes="
+                    + bufferBytes + ", inUse=" + inUseCount + ", allocated=" + allocatedCount
+                    + ", filled=" + filledCount + ", recycled=" + recycledCount
+                    + ", exhausted=" + exhaustedCount + ", stale=" + staleCount + "}";
+        }
+    }
+}
@@ -70,6 +70,31 @@ public class SizeMap {
         return ratios.get(ratio);
     }
 
+    /**
+     * Chooses the smallest size of an aspect ratio which covers {@code minimum}, whatever the
+     * orientation of either.
+     *
+     * @param ratio The aspect ratio
+     * @param minimum The smallest acceptable size
+     * @return The size, the largest one of the ratio if none covers {@code minimum}, or
+     * {@code null} if there is no size of this ratio.
+     */
+    public Size chooseAtLeast(AspectRatio ratio, Size minimum) {
+        SortedSet<Size> sizes = ratios.get(ratio);
+        if (sizes == null || sizes.isEmpty()) {
+            return null;
+        }
+        int minLonger = Math.max(minimum.getWidth(), minimum.getHeight());
+        int minShorter = Math.min(minimum.getWidth(), minimum.getHeight());
+        for (Size size : sizes) {
+            if (Math.max(size.getWidth(), size.getHeight()) >= minLonger
+                    && Math.min(size.getWidth(), size.getHeight()) >= minShorter) {
+                return size;
+            }
+        }
+        return sizes.last();
+    }
+
     public void clear() {
         ratios.clear();
     }
@@ -0,0 +1,133 @@
+package namnh.com.cameraandroid.camera.base;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Pairs two kinds of items produced for the same frame, such as a capture result and its image,
+ * which show up in any order and on different threads. Unmatched items are bounded: past the
+ * capacity, the oldest one is dropped.
+ *
+ * @param <A> The first kind of item
+ * @param <B> The second kind of item
+ */
+public class TimestampMatcher<A, B> {
+
+    /**
+     * Called outside of the matcher lock, on the thread which added the last item.
+     */
+    public interface Listener<A, B> {
+
+        void onMatched(long timestamp, A first, B second);
+
+        /**
+         * Called for an item whose pair never showed up; the other one is {@code null}.
+         */
+        void onDropped(long timestamp, A first, B second);
+    }
+
+    private final int capacity;
+
+    private final Listener<A, B> listener;
+
+    /** The pairs waiting for one of their items, oldest first. */
+    private final LinkedHashMap<Long, Pending<A, B>> pending = new LinkedHashMap<>();
+
+    public TimestampMatcher(int capacity, Listener<A, B> listener) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.listener = listener;
+    }
+
+    public void addFirst(long timestamp, A first) {
+        add(timestamp, first, null);
+    }
+
+    public void addSecond(long timestamp, B second) {
+        add(timestamp, null, second);
+    }
+
+    private void add(long timestamp, A first, B second) {
+        Pending<A, B> matched = null;
+        List<Pending<A, B>> dropped = null;
+        synchronized (this) {
+            Pending<A, B> entry = pending.get(timestamp);
+            if (entry == null) {
+                entry = new Pending<>(timestamp);
+                pending.put(timestamp, entry);
+            }
+            if (first != null) entry.first = first;
+            if (second != null) entry.second = second;
+            if (entry.first != null && entry.second != null) {
+                pending.remove(timestamp);
+                matched = entry;
+            } else if (pending.size() > capacity) {
+                dropped = new ArrayList<>(1);
+                Iterator<Pending<A, B>> it = pending.values().iterator();
+                while (pending.size() > capacity) {
+                    dropped.add(it.next());
+                    it.remove();
+                }
+            }
+        }
+        if (matched != null) {
+            listener.onMatched(timestamp, matched.first, matched.second);
+        }
+        if (dropped != null) {
+            drop(dropped);
+        }
+    }
+
+    /**
+     * Drops the oldest unmatched pair, for an item known to be lost without its timestamp.
+     *
+     * @return {@code false} if there was none
+     */
+    public boolean dropOldest() {
+        Pending<A, B> dropped;
+        synchronized (this) {
+            Iterator<Pending<A, B>> it = pending.values().iterator();
+            if (!it.hasNext()) return false;
+            dropped = it.next();
+            it.remove();
+        }
+        listener.onDropped(dropped.timestamp, dropped.first, dropped.second);
+        return true;
+    }
+
+    /**
+     * Drops every unmatched item.
+     */
+    public void clear() {
+        List<Pending<A, B>> dropped;
+        synchronized (this) {
+            dropped = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        drop(dropped);
+    }
+
+    private void drop(List<Pending<A, B>> dropped) {
+        for (Pending<A, B> entry : dropped) {
+            listener.onDropped(entry.timestamp, entry.first, entry.second);
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    private static final class Pending<A, B> {
+        final long timestamp;
+        A first;
+        B second;
+
+        Pending(long timestamp) {
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package namnh.com.cameraandroid.camera.base;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted handle to a YUV 4:2:0 frame, described by its three planes the way
+ * {@link android.media.Image} describes {@link android.graphics.ImageFormat#YUV_420_888}.
+ * <p>
+ * A new handle holds a single reference. The planes stay valid until the last reference is
+ * released, then the backing memory (for example the {@link android.media.Image}) is given back
+ * in {@link #onReleased()}.
+ */
+public class YuvFrame {
+
+    private final int width;
+    private final int height;
+    private final ByteBuffer y;
+    private final ByteBuffer u;
+    private final ByteBuffer v;
+    private final int yRowStride;
+    private final int uvRowStride;
+    private final int uvPixelStride;
+    private final long timestamp;
+
+    private int rotation;
+
+    private int cropLeft;
+    private int cropTop;
+    private int cropRight;
+    private int cropBottom;
+
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    /**
+     * Wraps an NV21 image, as delivered by the Camera1 preview callbacks.
+     *
+     * @param data The NV21 bytes
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param timestamp The capture time, in nanoseconds
+     * @return A new {@link YuvFrame}; releasing it does nothing
+     */
+    public static YuvFrame wrapNv21(byte[] data, int width, int height, long timestamp) {
+        return new YuvFrame(data, width, height, timestamp);
+    }
+
+    /**
+     * Wraps an NV21 image, for subclasses which give its buffer back in {@link #onReleased()}.
+     *
+     * @see #wrapNv21(byte[], int, int, long)
+     */
+    protected YuvFrame(byte[] data, int width, int height, long timestamp) {
+        this(width, height, ByteBuffer.wrap(data, 0, width * height),
+                ByteBuffer.wrap(data, width * height + 1, width * height / 2 - 1),
+                ByteBuffer.wrap(data, width * height, width * height / 2 - 1),
+                width, width, 2, timestamp);
+    }
+
+    /**
+     * @param width The width of the frame
+     * @param height The height of the frame
+     * @param y The Y plane, from its position. The buffer is not copied.
+     * @param u The U plane, from its position. The buffer is not copied.
+     * @param v The V plane, from its position. The buffer is not copied.
+     * @param yRowStride The row stride of the Y plane
+     * @param uvRowStride The row stride of the U and V planes
+     * @param uvPixelStride The pixel stride of the U and V planes
+     * @param timestamp The capture time, in nanoseconds
+     */
+    public YuvFrame(int width, int height, ByteBuffer y, ByteBuffer u, ByteBuffer v,
+            int yRowStride, int uvRowStride, int uvPixelStride, long timestamp) {
+        this.width = width;
+        this.height = height;
+        this.y = y.slice();
+        this.u = u.slice();
+        this.v = v.slice();
+        this.yRowStride = yRowStride;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+        this.timestamp = timestamp;
+        cropRight = width;
+        cropBottom = height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return The clockwise rotation which turns the frame upright: 0, 90, 180 or 270.
+     */
+    public int getRotation() {
+        return rotation;
+    }
+
+    public void setRotation(int rotation) {
+        if (rotation % 90 != 0 || rotation < 0 || rotation >= 360) {
+            throw new IllegalArgumentException("Unsupported rotation: " + rotation);
+        }
+        this.rotation = rotation;
+    }
+
+    /**
+     * Restricts the frame to a region, rounded out to even pixels.
+     */
+    public void setCropRect(int left, int top, int right, int bottom) {
+        if (left < 0 || top < 0 || right > width || bottom > height || left >= right
+                || top >= bottom) {
+            throw new IllegalArgumentException("Invalid crop rect: " + left + ", " + top + ", "
+                    + right + ", " + bottom);
+        }
+        cropLeft = left & ~1;
+        cropTop = top & ~1;
+        cropRight = Math.min(width, (right + 1) & ~1);
+        cropBottom = Math.min(height, (bottom + 1) & ~1);
+    }
+
+    public int getCropWidth() {
+        return cropRight - cropLeft;
+    }
+
+    public int getCropHeight() {
+        return cropBottom - cropTop;
+    }
+
+    /**
+     * @return The number of bytes {@link #toNv21(byte[])} writes.
+     */
+    public int getNv21Length() {
+        int size = getCropWidth() * getCropHeight();
+        return size + size / 2;
+    }
+
+    /**
+     * Copies the cropped region of this frame to NV21.
+     *
+     * @param out The destination, at least {@link #getNv21Length()} bytes long
+     * @throws IllegalStateException if this frame has been released.
+     */
+    public void toNv21(byte[] out) {
+        checkNotReleased();
+        YuvUtil.yuv420ToNv21(y, u, v, yRowStride, uvRowStride, uvPixelStride, cropLeft, cropTop,
+                getCropWidth(), getCropHeight(), out);
+    }
+
+    /**
+     * @throws IllegalStateException if this frame has been released.
+     */
+    public ByteBuffer getYPlane() {
+        checkNotReleased();
+        return y.duplicate();
+    }
+
+    public int getYRowStride() {
+        return yRowStride;
+    }
+
+    /**
+     * @throws IllegalStateException if this frame has been released.
+     */
+    public ByteBuffer getUPlane() {
+        checkNotReleased();
+        return u.duplicate();
+    }
+
+    /**
+     * @throws IllegalStateException if this frame has been released.
+     */
+    public ByteBuffer getVPlane() {
+        checkNotReleased();
+        return v.duplicate();
+    }
+
+    public int getUvRowStride() {
+        return uvRowStride;
+    }
+
+    /**
+     * @return The distance between two samples of a row of the U and V planes: 1 for planar
+     * layouts, 2 for interleaved ones such as NV21.
+     */
+    public int getUvPixelStride() {
+        return uvPixelStride;
+    }
+
+    /**
+     * Adds a reference to this frame, so its planes stay valid until a matching call to
+     * {@link #release()}.
+     *
+     * @return This frame
+     * @throws IllegalStateException if this frame has already been released.
+     */
+    public YuvFrame acquire() {
+        while (true) {
+            int count = refCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("YuvFrame is already released");
+            }
+            if (refCount.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Drops a reference to this frame. The backing memory is given back when the last
+     * reference is released.
+     */
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            onReleased();
+        } else if (count < 0) {
+            refCount.incrementAndGet();
+            throw new IllegalStateException("YuvFrame is already released");
+        }
+    }
+
+    public boolean isReleased() {
+        return refCount.get() <= 0;
+    }
+
+    /**
+     * Called once the last reference is released. Subclasses give back the backing memory here.
+     */
+    protected void onReleased() {
+    }
+
+    private void checkNotReleased() {
+        if (isReleased()) {
+            throw new IllegalStateException("YuvFrame is already released");
+        }
+    }
+}
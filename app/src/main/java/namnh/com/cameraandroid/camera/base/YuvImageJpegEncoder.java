@@ -0,0 +1,23 @@
+package namnh.com.cameraandroid.camera.base;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The platform {@link JpegEncoder}, backed by {@link YuvImage}.
+ */
+public class YuvImageJpegEncoder implements JpegEncoder {
+
+    @Override
+    public void encode(byte[] nv21, int width, int height, int quality, OutputStream out)
+            throws IOException {
+        YuvImage image = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+        if (!image.compressToJpeg(new Rect(0, 0, width, height), quality, out)) {
+            throw new IOException("Failed to compress a " + width + "x" + height + " image");
+        }
+    }
+}
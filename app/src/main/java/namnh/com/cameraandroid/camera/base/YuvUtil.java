@@ -0,0 +1,660 @@
+package namnh.com.cameraandroid.camera.base;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Conversions, rotations, crops and downscales of the YUV 4:2:0 layouts produced by the
+ * cameras:
+ * <ul>
+ * <li>NV21: the full Y plane followed by interleaved V and U samples, as delivered by Camera1
+ * and accepted by {@link android.graphics.YuvImage}.</li>
+ * <li>I420: the full Y plane followed by the U plane and the V plane.</li>
+ * <li>YUV_420_888: three {@link ByteBuffer} planes with row and pixel strides, as in the
+ * {@link android.media.Image}s of {@link android.graphics.ImageFormat#YUV_420_888}.</li>
+ * </ul>
+ * Every operation writes into a destination provided by the caller and allocates nothing, so
+ * it can run on each frame. Widths and heights are even unless stated otherwise.
+ */
+public final class YuvUtil {
+
+    /** Fixed point precision of the ARGB lookup tables */
+    private static final int ARGB_SHIFT = 16;
+
+    /** ITU-R BT.601 video range coefficients, in fixed point */
+    private static final int[] Y_TO_RGB = new int[256];
+    private static final int[] V_TO_R = new int[256];
+    private static final int[] U_TO_G = new int[256];
+    private static final int[] V_TO_G = new int[256];
+    private static final int[] U_TO_B = new int[256];
+
+    /** Clamps a color component to [0, 255], from CLAMP_OFFSET below 0 */
+    private static final int CLAMP_OFFSET = 512;
+    private static final int[] CLAMP = new int[CLAMP_OFFSET * 2 + 256];
+
+    static {
+        double one = 1 << ARGB_SHIFT;
+        for (int i = 0; i < 256; i++) {
+            // Rounds the sum, the chroma terms are added to the luma one
+            Y_TO_RGB[i] = (int) Math.round(1.164 * (i - 16) * one) + (1 << (ARGB_SHIFT - 1));
+            V_TO_R[i] = (int) Math.round(1.596 * (i - 128) * one);
+            U_TO_G[i] = (int) Math.round(0.391 * (i - 128) * one);
+            V_TO_G[i] = (int) Math.round(0.813 * (i - 128) * one);
+            U_TO_B[i] = (int) Math.round(2.018 * (i - 128) * one);
+        }
+        for (int i = 0; i < CLAMP.length; i++) {
+            CLAMP[i] = Math.min(255, Math.max(0, i - CLAMP_OFFSET));
+        }
+    }
+
+    private YuvUtil() {
+    }
+
+    /**
+     * Copies a YUV 4:2:0 image, such as the planes of a
+     * {@link android.graphics.ImageFormat#YUV_420_888} image, to NV21 (the full Y plane followed
+     * by interleaved V and U samples).
+     *
+     * @param y The Y plane, starting at its position
+     * @param u The U plane, starting at its position
+     * @param v The V plane, starting at its position
+     * @param yRowStride The row stride of the Y plane
+     * @param uvRowStride The row stride of the U and V planes
+     * @param uvPixelStride The pixel stride of the U and V planes
+     * @param width The width of the image, must be even
+     * @param height The height of the image, must be even
+     * @param out The destination, at least {@code width * height * 3 / 2} bytes long
+     */
+    public static void yuv420ToNv21(ByteBuffer y, ByteBuffer u, ByteBuffer v, int yRowStride,
+            int uvRowStride, int uvPixelStride, int width, int height, byte[] out) {
+        yuv420ToNv21(y, u, v, yRowStride, uvRowStride, uvPixelStride, 0, 0, width, height, out);
+    }
+
+    /**
+     * Copies a region of a YUV 4:2:0 image to NV21.
+     *
+     * @param left The left edge of the region, must be even
+     * @param top The top edge of the region, must be even
+     * @param width The width of the region, must be even
+     * @param height The height of the region, must be even
+     * @param out The destination, at least {@code width * height * 3 / 2} bytes long
+     * @see #yuv420ToNv21(ByteBuffer, ByteBuffer, ByteBuffer, int, int, int, int, int, byte[])
+     */
+    public static void yuv420ToNv21(ByteBuffer y, ByteBuffer u, ByteBuffer v, int yRowStride,
+            int uvRowStride, int uvPixelStride, int left, int top, int width, int height,
+            byte[] out) {
+        checkRegion(left, top, width, height);
+        checkLength("out", out.length, width, height);
+        copyPlane(y, yRowStride, left, top, width, height, out, 0);
+        int frameSize = width * height;
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int chromaOffset = top / 2 * uvRowStride + left / 2 * uvPixelStride;
+        int uStart = u.position() + chromaOffset;
+        int vStart = v.position() + chromaOffset;
+        v = v.duplicate();
+        for (int row = 0; row < chromaHeight; row++) {
+            int uRow = uStart + row * uvRowStride;
+            int vRow = vStart + row * uvRowStride;
+            int offset = frameSize + row * width;
+            // Bulk read the V samples straight into the destination row, buffer access per
+            // sample is much slower on direct buffers
+            if (uvPixelStride == 2) {
+                v.position(vRow);
+                v.get(out, offset, width - 1);
+                for (int col = 0; col < chromaWidth; col++) {
+                    out[offset + col * 2 + 1] = u.get(uRow + col * 2);
+                }
+            } else if (uvPixelStride == 1) {
+                // Read into the second half of the row, then spread front to back: each write
+                // lands on a sample already read
+                v.position(vRow);
+                v.get(out, offset + chromaWidth, chromaWidth);
+                for (int col = 0; col < chromaWidth; col++) {
+                    out[offset + col * 2] = out[offset + chromaWidth + col];
+                    out[offset + col * 2 + 1] = u.get(uRow + col);
+                }
+            } else {
+                for (int col = 0; col < chromaWidth; col++) {
+                    out[offset + col * 2] = v.get(vRow + col * uvPixelStride);
+                    out[offset + col * 2 + 1] = u.get(uRow + col * uvPixelStride);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies a region of a YUV 4:2:0 image to I420.
+     *
+     * @param out The destination, at least {@code width * height * 3 / 2} bytes long
+     * @see #yuv420ToNv21(ByteBuffer, ByteBuffer, ByteBuffer, int, int, int, int, int, int, int,
+     * byte[])
+     */
+    public static void yuv420ToI420(ByteBuffer y, ByteBuffer u, ByteBuffer v, int yRowStride,
+            int uvRowStride, int uvPixelStride, int left, int top, int width, int height,
+            byte[] out) {
+        checkRegion(left, top, width, height);
+        checkLength("out", out.length, width, height);
+        int frameSize = width * height;
+        copyPlane(y, yRowStride, left, top, width, height, out, 0);
+        if (uvPixelStride == 1) {
+            copyPlane(u, uvRowStride, left / 2, top / 2, width / 2, height / 2, out, frameSize);
+            copyPlane(v, uvRowStride, left / 2, top / 2, width / 2, height / 2, out,
+                    frameSize + frameSize / 4);
+            return;
+        }
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int chromaOffset = top / 2 * uvRowStride + left / 2 * uvPixelStride;
+        int uStart = u.position() + chromaOffset;
+        int vStart = v.position() + chromaOffset;
+        int uOut = frameSize;
+        int vOut = frameSize + frameSize / 4;
+        for (int row = 0; row < chromaHeight; row++) {
+            int uRow = uStart + row * uvRowStride;
+            int vRow = vStart + row * uvRowStride;
+            for (int col = 0; col < chromaWidth; col++) {
+                out[uOut++] = u.get(uRow + col * uvPixelStride);
+                out[vOut++] = v.get(vRow + col * uvPixelStride);
+            }
+        }
+    }
+
+    /**
+     * Copies an NV21 image to YUV 4:2:0 planes, such as those of an
+     * {@link android.media.Image} to be filled. The positions of the planes are left as is.
+     *
+     * @param in The NV21 image
+     * @param y The Y plane, starting at its position
+     * @param u The U plane, starting at its position
+     * @param v The V plane, starting at its position
+     */
+    public static void nv21ToYuv420(byte[] in, int width, int height, ByteBuffer y,
+            ByteBuffer u, ByteBuffer v, int yRowStride, int uvRowStride, int uvPixelStride) {
+        checkSize(width, height);
+        checkLength("in", in.length, width, height);
+        writePlane(in, 0, width, height, y, yRowStride);
+        int frameSize = width * height;
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int uStart = u.position();
+        int vStart = v.position();
+        for (int row = 0; row < chromaHeight; row++) {
+            int from = frameSize + row * width;
+            int uRow = uStart + row * uvRowStride;
+            int vRow = vStart + row * uvRowStride;
+            for (int col = 0; col < chromaWidth; col++) {
+                v.put(vRow + col * uvPixelStride, in[from + col * 2]);
+                u.put(uRow + col * uvPixelStride, in[from + col * 2 + 1]);
+            }
+        }
+    }
+
+    /**
+     * Copies an I420 image to YUV 4:2:0 planes.
+     *
+     * @see #nv21ToYuv420(byte[], int, int, ByteBuffer, ByteBuffer, ByteBuffer, int, int, int)
+     */
+    public static void i420ToYuv420(byte[] in, int width, int height, ByteBuffer y,
+            ByteBuffer u, ByteBuffer v, int yRowStride, int uvRowStride, int uvPixelStride) {
+        checkSize(width, height);
+        checkLength("in", in.length, width, height);
+        int frameSize = width * height;
+        writePlane(in, 0, width, height, y, yRowStride);
+        if (uvPixelStride == 1) {
+            writePlane(in, frameSize, width / 2, height / 2, u, uvRowStride);
+            writePlane(in, frameSize + frameSize / 4, width / 2, height / 2, v, uvRowStride);
+            return;
+        }
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int uStart = u.position();
+        int vStart = v.position();
+        int uIn = frameSize;
+        int vIn = frameSize + frameSize / 4;
+        for (int row = 0; row < chromaHeight; row++) {
+            int uRow = uStart + row * uvRowStride;
+            int vRow = vStart + row * uvRowStride;
+            for (int col = 0; col < chromaWidth; col++) {
+                u.put(uRow + col * uvPixelStride, in[uIn++]);
+                v.put(vRow + col * uvPixelStride, in[vIn++]);
+            }
+        }
+    }
+
+    /**
+     * Converts an NV21 image to I420.
+     *
+     * @param out The destination, at least {@code width * height * 3 / 2} bytes long and
+     * distinct from {@code in}
+     */
+    public static void nv21ToI420(byte[] in, int width, int height, byte[] out) {
+        checkSize(width, height);
+        checkLength("in", in.length, width, height);
+        checkLength("out", out.length, width, height);
+        int frameSize = width * height;
+        int quarter = frameSize / 4;
+        System.arraycopy(in, 0, out, 0, frameSize);
+        for (int i = 0; i < quarter; i++) {
+            out[frameSize + quarter + i] = in[frameSize + i * 2];
+            out[frameSize + i] = in[frameSize + i * 2 + 1];
+        }
+    }
+
+    /**
+     * Converts an I420 image to NV21.
+     *
+     * @param out The destination, at least {@code width * height * 3 / 2} bytes long and
+     * distinct from {@code in}
+     */
+    public static void i420ToNv21(byte[] in, int width, int height, byte[] out) {
+        checkSize(width, height);
+        checkLength("in", in.length, width, height);
+        checkLength("out", out.length, width, height);
+        int frameSize = width * height;
+        int quarter = frameSize / 4;
+        System.arraycopy(in, 0, out, 0, frameSize);
+        for (int i = 0; i < quarter; i++) {
+            out[frameSize + i * 2] = in[frameSize + quarter + i];
+            out[frameSize + i * 2 + 1] = in[frameSize + i];
+        }
+    }
+
+    /**
+     * Rotates an NV21 image clockwise.
+     *
+     * @param in The source image
+     * @param width The width of the source image
+     * @param height The height of the source image
+     * @param degrees One of 0, 90, 180 or 270
+     * @param out The destination, at least {@code width * height * 3 / 2} bytes long and distinct
+     * from {@code in}. Its width and height are swapped for 90 and 270 degrees.
+     */
+    public static void rotateNv21(byte[] in, int width, int height, int degrees, byte[] out) {
+        checkRotation(degrees);
+        checkLength("out", out.length, width, height);
+        int frameSize = width * height;
+        rotatePlane(in, 0, width, height, 1, degrees, out, 0);
+        // The chroma plane rotates as a (width / 2) x (height / 2) image of VU pairs
+        rotatePlane(in, frameSize, width / 2, height / 2, 2, degrees, out, frameSize);
+    }
+
+    /**
+     * Rotates an I420 image clockwise.
+     *
+     * @see #rotateNv21(byte[], int, int, int, byte[])
+     */
+    public static void rotateI420(byte[] in, int width, int height, int degrees, byte[] out) {
+        checkRotation(degrees);
+        checkLength("out", out.length, width, height);
+        int frameSize = width * height;
+        int quarter = frameSize / 4;
+        rotatePlane(in, 0, width, height, 1, degrees, out, 0);
+        rotatePlane(in, frameSize, width / 2, height / 2, 1, degrees, out, frameSize);
+        rotatePlane(in, frameSize + quarter, width / 2, height / 2, 1, degrees, out,
+                frameSize + quarter);
+    }
+
+    /**
+     * Copies a region of an NV21 image.
+     *
+     * @param left The left edge of the region, must be even
+     * @param top The top edge of the region, must be even
+     * @param cropWidth The width of the region, must be even
+     * @param cropHeight The height of the region, must be even
+     * @param out The destination, at least {@code cropWidth * cropHeight * 3 / 2} bytes long
+     */
+    public static void cropNv21(byte[] in, int width, int height, int left, int top,
+            int cropWidth, int cropHeight, byte[] out) {
+        checkCrop(width, height, left, top, cropWidth, cropHeight);
+        checkLength("out", out.length, cropWidth, cropHeight);
+        int frameSize = width * height;
+        for (int row = 0; row < cropHeight; row++) {
+            System.arraycopy(in, (top + row) * width + left, out, row * cropWidth, cropWidth);
+        }
+        int outFrameSize = cropWidth * cropHeight;
+        for (int row = 0; row < cropHeight / 2; row++) {
+            System.arraycopy(in, frameSize + (top / 2 + row) * width + left, out,
+                    outFrameSize + row * cropWidth, cropWidth);
+        }
+    }
+
+    /**
+     * Copies a region of an I420 image.
+     *
+     * @see #cropNv21(byte[], int, int, int, int, int, int, byte[])
+     */
+    public static void cropI420(byte[] in, int width, int height, int left, int top,
+            int cropWidth, int cropHeight, byte[] out) {
+        checkCrop(width, height, left, top, cropWidth, cropHeight);
+        checkLength("out", out.length, cropWidth, cropHeight);
+        int frameSize = width * height;
+        int outFrameSize = cropWidth * cropHeight;
+        for (int row = 0; row < cropHeight; row++) {
+            System.arraycopy(in, (top + row) * width + left, out, row * cropWidth, cropWidth);
+        }
+        int chromaWidth = width / 2;
+        int cropChromaWidth = cropWidth / 2;
+        for (int plane = 0; plane < 2; plane++) {
+            int from = frameSize + plane * frameSize / 4;
+            int to = outFrameSize + plane * outFrameSize / 4;
+            for (int row = 0; row < cropHeight / 2; row++) {
+                System.arraycopy(in, from + (top / 2 + row) * chromaWidth + left / 2, out,
+                        to + row * cropChromaWidth, cropChromaWidth);
+            }
+        }
+    }
+
+    /**
+     * @return The width or height of an image downscaled by
+     * {@link #downscaleNv21(byte[], int, int, int, byte[])}.
+     */
+    public static int downscaledDimension(int dimension, int factor) {
+        return (dimension / factor) & ~1;
+    }
+
+    /**
+     * Shrinks an NV21 image by an integer factor, each output sample being the average of a
+     * {@code factor x factor} box. Pixels past the last whole box are left out, the output is
+     * {@link #downscaledDimension(int, int) downscaledDimension(width, factor)} x
+     * {@code downscaledDimension(height, factor)}.
+     *
+     * @param factor The factor, at least 1
+     * @param out The destination, large enough for the downscaled image and distinct from
+     * {@code in}
+     */
+    public static void downscaleNv21(byte[] in, int width, int height, int factor, byte[] out) {
+        downscale(in, width, height, factor, out, true);
+    }
+
+    /**
+     * Shrinks an I420 image by an integer factor.
+     *
+     * @see #downscaleNv21(byte[], int, int, int, byte[])
+     */
+    public static void downscaleI420(byte[] in, int width, int height, int factor, byte[] out) {
+        downscale(in, width, height, factor, out, false);
+    }
+
+    private static void downscale(byte[] in, int width, int height, int factor, byte[] out,
+            boolean interleaved) {
+        checkSize(width, height);
+        if (factor < 1) {
+            throw new IllegalArgumentException("factor must be at least 1: " + factor);
+        }
+        checkLength("in", in.length, width, height);
+        int outWidth = downscaledDimension(width, factor);
+        int outHeight = downscaledDimension(height, factor);
+        if (outWidth == 0 || outHeight == 0) {
+            throw new IllegalArgumentException("Can't downscale " + width + "x" + height
+                    + " by " + factor);
+        }
+        checkLength("out", out.length, outWidth, outHeight);
+        int frameSize = width * height;
+        int outFrameSize = outWidth * outHeight;
+        downscalePlane(in, 0, width, 1, factor, out, 0, outWidth, outHeight);
+        if (interleaved) {
+            downscalePlane(in, frameSize, width / 2, 2, factor, out, outFrameSize,
+                    outWidth / 2, outHeight / 2);
+        } else {
+            downscalePlane(in, frameSize, width / 2, 1, factor, out, outFrameSize,
+                    outWidth / 2, outHeight / 2);
+            downscalePlane(in, frameSize + frameSize / 4, width / 2, 1, factor, out,
+                    outFrameSize + outFrameSize / 4, outWidth / 2, outHeight / 2);
+        }
+    }
+
+    /**
+     * @param channels 1 for a plane of samples, 2 for a plane of interleaved pairs
+     */
+    private static void downscalePlane(byte[] in, int inOffset, int width, int channels,
+            int factor, byte[] out, int outOffset, int outWidth, int outHeight) {
+        int area = factor * factor;
+        int half = area / 2;
+        int stride = width * channels;
+        for (int outRow = 0; outRow < outHeight; outRow++) {
+            int top = inOffset + outRow * factor * stride;
+            int to = outOffset + outRow * outWidth * channels;
+            for (int outCol = 0; outCol < outWidth; outCol++) {
+                int boxLeft = top + outCol * factor * channels;
+                for (int channel = 0; channel < channels; channel++) {
+                    int sum = 0;
+                    for (int row = 0; row < factor; row++) {
+                        int index = boxLeft + row * stride + channel;
+                        for (int col = 0; col < factor; col++) {
+                            sum += in[index] & 0xFF;
+                            index += channels;
+                        }
+                    }
+                    out[to++] = (byte) ((sum + half) / area);
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts an NV21 image to ARGB_8888 colors, with the ITU-R BT.601 video range
+     * coefficients cameras use.
+     *
+     * @param out The destination, at least {@code width * height} long, for example to give to
+     * {@link android.graphics.Bitmap#setPixels}
+     */
+    public static void nv21ToArgb(byte[] in, int width, int height, int[] out) {
+        checkSize(width, height);
+        checkLength("in", in.length, width, height);
+        checkArgbLength(out, width, height);
+        int frameSize = width * height;
+        for (int row = 0; row < height; row += 2) {
+            int chroma = frameSize + row / 2 * width;
+            for (int col = 0; col < width; col += 2) {
+                int v = in[chroma + col] & 0xFF;
+                int u = in[chroma + col + 1] & 0xFF;
+                argbBlock(in, row * width + col, width, u, v, out, row * width + col, width);
+            }
+        }
+    }
+
+    /**
+     * Converts an I420 image to ARGB_8888 colors.
+     *
+     * @see #nv21ToArgb(byte[], int, int, int[])
+     */
+    public static void i420ToArgb(byte[] in, int width, int height, int[] out) {
+        checkSize(width, height);
+        checkLength("in", in.length, width, height);
+        checkArgbLength(out, width, height);
+        int frameSize = width * height;
+        int chromaWidth = width / 2;
+        for (int row = 0; row < height; row += 2) {
+            int uRow = frameSize + row / 2 * chromaWidth;
+            int vRow = uRow + frameSize / 4;
+            for (int col = 0; col < width; col += 2) {
+                int u = in[uRow + col / 2] & 0xFF;
+                int v = in[vRow + col / 2] & 0xFF;
+                argbBlock(in, row * width + col, width, u, v, out, row * width + col, width);
+            }
+        }
+    }
+
+    /**
+     * Converts a YUV 4:2:0 image to ARGB_8888 colors.
+     *
+     * @see #yuv420ToNv21(ByteBuffer, ByteBuffer, ByteBuffer, int, int, int, int, int, byte[])
+     * @see #nv21ToArgb(byte[], int, int, int[])
+     */
+    public static void yuv420ToArgb(ByteBuffer y, ByteBuffer u, ByteBuffer v, int yRowStride,
+            int uvRowStride, int uvPixelStride, int width, int height, int[] out) {
+        checkSize(width, height);
+        checkArgbLength(out, width, height);
+        int yStart = y.position();
+        int uStart = u.position();
+        int vStart = v.position();
+        for (int row = 0; row < height; row += 2) {
+            int top = yStart + row * yRowStride;
+            int bottom = top + yRowStride;
+            int chromaRow = row / 2 * uvRowStride;
+            for (int col = 0; col < width; col += 2) {
+                int chroma = chromaRow + col / 2 * uvPixelStride;
+                int u0 = u.get(uStart + chroma) & 0xFF;
+                int v0 = v.get(vStart + chroma) & 0xFF;
+                int r = V_TO_R[v0];
+                int g = -U_TO_G[u0] - V_TO_G[v0];
+                int b = U_TO_B[u0];
+                int to = row * width + col;
+                out[to] = argb(Y_TO_RGB[y.get(top + col) & 0xFF], r, g, b);
+                out[to + 1] = argb(Y_TO_RGB[y.get(top + col + 1) & 0xFF], r, g, b);
+                out[to + width] = argb(Y_TO_RGB[y.get(bottom + col) & 0xFF], r, g, b);
+                out[to + width + 1] = argb(Y_TO_RGB[y.get(bottom + col + 1) & 0xFF], r, g, b);
+            }
+        }
+    }
+
+    /**
+     * Converts the 2x2 luma block at {@code from}, which shares a single chroma sample.
+     */
+    private static void argbBlock(byte[] in, int from, int width, int u, int v, int[] out,
+            int to, int outWidth) {
+        int r = V_TO_R[v];
+        int g = -U_TO_G[u] - V_TO_G[v];
+        int b = U_TO_B[u];
+        out[to] = argb(Y_TO_RGB[in[from] & 0xFF], r, g, b);
+        out[to + 1] = argb(Y_TO_RGB[in[from + 1] & 0xFF], r, g, b);
+        out[to + outWidth] = argb(Y_TO_RGB[in[from + width] & 0xFF], r, g, b);
+        out[to + outWidth + 1] = argb(Y_TO_RGB[in[from + width + 1] & 0xFF], r, g, b);
+    }
+
+    private static int argb(int luma, int r, int g, int b) {
+        return 0xFF000000
+                | CLAMP[((luma + r) >> ARGB_SHIFT) + CLAMP_OFFSET] << 16
+                | CLAMP[((luma + g) >> ARGB_SHIFT) + CLAMP_OFFSET] << 8
+                | CLAMP[((luma + b) >> ARGB_SHIFT) + CLAMP_OFFSET];
+    }
+
+    /**
+     * Rotates a plane clockwise, one loop per angle so that the inner loops only add.
+     *
+     * @param sampleBytes The bytes per sample, 2 for interleaved chroma pairs
+     */
+    private static void rotatePlane(byte[] in, int inOffset, int width, int height,
+            int sampleBytes, int degrees, byte[] out, int outOffset) {
+        int length = width * height * sampleBytes;
+        switch (degrees) {
+            case 0:
+                System.arraycopy(in, inOffset, out, outOffset, length);
+                break;
+            case 90: {
+                // Source row r becomes destination column height - 1 - r
+                int step = height * sampleBytes;
+                for (int row = 0; row < height; row++) {
+                    int from = inOffset + row * width * sampleBytes;
+                    int to = outOffset + (height - 1 - row) * sampleBytes;
+                    for (int col = 0; col < width; col++) {
+                        for (int k = 0; k < sampleBytes; k++) {
+                            out[to + k] = in[from + k];
+                        }
+                        from += sampleBytes;
+                        to += step;
+                    }
+                }
+                break;
+            }
+            case 180: {
+                int to = outOffset + length - sampleBytes;
+                for (int from = inOffset; from < inOffset + length; from += sampleBytes) {
+                    for (int k = 0; k < sampleBytes; k++) {
+                        out[to + k] = in[from + k];
+                    }
+                    to -= sampleBytes;
+                }
+                break;
+            }
+            default: {
+                // Source row r becomes destination column r, read bottom up
+                int step = height * sampleBytes;
+                for (int row = 0; row < height; row++) {
+                    int from = inOffset + row * width * sampleBytes;
+                    int to = outOffset + ((width - 1) * height + row) * sampleBytes;
+                    for (int col = 0; col < width; col++) {
+                        for (int k = 0; k < sampleBytes; k++) {
+                            out[to + k] = in[from + k];
+                        }
+                        from += sampleBytes;
+                        to -= step;
+                    }
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Copies a region of a plane to {@code out}, without moving the position of the plane.
+     */
+    private static void copyPlane(ByteBuffer plane, int rowStride, int left, int top,
+            int width, int height, byte[] out, int outOffset) {
+        plane = plane.duplicate();
+        int start = plane.position() + top * rowStride + left;
+        if (rowStride == width) {
+            plane.position(start);
+            plane.get(out, outOffset, width * height);
+            return;
+        }
+        for (int row = 0; row < height; row++) {
+            plane.position(start + row * rowStride);
+            plane.get(out, outOffset + row * width, width);
+        }
+    }
+
+    /**
+     * Copies {@code in} to a plane, without moving the position of the plane.
+     */
+    private static void writePlane(byte[] in, int inOffset, int width, int height,
+            ByteBuffer plane, int rowStride) {
+        plane = plane.duplicate();
+        int start = plane.position();
+        for (int row = 0; row < height; row++) {
+            plane.position(start + row * rowStride);
+            plane.put(in, inOffset + row * width, width);
+        }
+    }
+
+    private static void checkSize(int width, int height) {
+        if (width <= 0 || height <= 0 || (width | height) % 2 != 0) {
+            throw new IllegalArgumentException("Invalid image size: " + width + "x" + height);
+        }
+    }
+
+    private static void checkRegion(int left, int top, int width, int height) {
+        if (width <= 0 || height <= 0 || (left | top | width | height) % 2 != 0) {
+            throw new IllegalArgumentException("The region must be aligned on even pixels");
+        }
+    }
+
+    private static void checkCrop(int width, int height, int left, int top, int cropWidth,
+            int cropHeight) {
+        checkSize(width, height);
+        checkRegion(left, top, cropWidth, cropHeight);
+        if (left < 0 || top < 0 || left + cropWidth > width || top + cropHeight > height) {
+            throw new IllegalArgumentException("The region is out of the image: " + left + ", "
+                    + top + ", " + cropWidth + "x" + cropHeight);
+        }
+    }
+
+    private static void checkRotation(int degrees) {
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException("Unsupported rotation: " + degrees);
+        }
+    }
+
+    private static void checkLength(String name, int length, int width, int height) {
+        int frameSize = width * height;
+        if (length < frameSize + frameSize / 2) {
+            throw new IllegalArgumentException(name + " is too small: " + length);
+        }
+    }
+
+    private static void checkArgbLength(int[] out, int width, int height) {
+        if (out.length < width * height) {
+            throw new IllegalArgumentException("out is too small: " + out.length);
+        }
+    }
+}
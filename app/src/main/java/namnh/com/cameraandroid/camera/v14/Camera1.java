@@ -17,15 +17,24 @@
 package namnh.com.cameraandroid.camera.v14;
 
 import android.annotation.SuppressLint;
+import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.media.CamcorderProfile;
 import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.util.SparseArrayCompat;
+import android.util.Log;
 import android.view.SurfaceHolder;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.SortedSet;
@@ -35,17 +44,36 @@ import namnh.com.cameraandroid.camera.CameraView;
 import namnh.com.cameraandroid.camera.CameraViewImpl;
 import namnh.com.cameraandroid.camera.PreviewImpl;
 import namnh.com.cameraandroid.camera.base.AspectRatio;
+import namnh.com.cameraandroid.camera.base.BracketListener;
+import namnh.com.cameraandroid.camera.base.BurstCapture;
+import namnh.com.cameraandroid.camera.base.BurstListener;
 import namnh.com.cameraandroid.camera.base.CameraUtil;
+import namnh.com.cameraandroid.camera.base.CaptureMetrics;
 import namnh.com.cameraandroid.camera.base.Constants;
+import namnh.com.cameraandroid.camera.base.FrameDispatcher;
+import namnh.com.cameraandroid.camera.base.FrameRateRange;
+import namnh.com.cameraandroid.camera.base.FrameRing;
+import namnh.com.cameraandroid.camera.base.JpegImage;
+import namnh.com.cameraandroid.camera.base.PictureRequest;
+import namnh.com.cameraandroid.camera.base.PreviewBufferPool;
 import namnh.com.cameraandroid.camera.base.Size;
 import namnh.com.cameraandroid.camera.base.SizeMap;
 import namnh.com.cameraandroid.camera.base.VideoQuality;
+import namnh.com.cameraandroid.camera.base.YuvFrame;
 
 @SuppressWarnings("deprecation")
 public class Camera1 extends CameraViewImpl {
 
+    private static final String TAG = "Camera1";
+
     private static final int INVALID_CAMERA_ID = -1;
 
+    /**
+     * Preview buffers handed to the camera for analysis on top of the frame queue: one being
+     * processed, one being filled
+     */
+    private static final int PREVIEW_EXTRA_BUFFERS = 2;
+
     private static final SparseArrayCompat<String> FLASH_MODES = new SparseArrayCompat<>();
 
     static {
@@ -71,11 +99,38 @@ public class Camera1 extends CameraViewImpl {
     private int flash = CameraView.Flash.FLASH_OFF;
     private int displayOrientation;
     private float zoomLevel;
+    private FrameRateRange frameRateRange;
+    /** The preview frame rate range of the camera before any change, in fps * 1000 */
+    private final int[] defaultFpsRange = new int[2];
     private SurfaceTexture previewTexture;
     private MediaRecorder mediaRecorder;
     private File videoFile;
     private boolean isRecordingVideo;
     private VideoQuality videoQuality = VideoQuality.DEFAULT;
+    private BurstCapture burstCapture;
+    /** When the current picture was handed to {@link Camera#takePicture}, on the main thread */
+    private long shotNanos;
+    private HandlerThread writerThread;
+    private Handler writerHandler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final PreviewBufferPool previewBufferPool = new PreviewBufferPool();
+
+    private final Camera.PreviewCallback previewCallback = new Camera.PreviewCallback() {
+        @Override
+        public void onPreviewFrame(final byte[] data, final Camera camera) {
+            // Buffers left over from another preview size are not reused
+            if (data == null || !previewBufferPool.onFilled(data)) return;
+            YuvFrame frame = new YuvFrame(data, previewBufferPool.getWidth(),
+                    previewBufferPool.getHeight(), SystemClock.elapsedRealtimeNanos()) {
+                @Override
+                protected void onReleased() {
+                    recyclePreviewBuffer(camera, data);
+                }
+            };
+            frame.setRotation(calcCameraRotation(displayOrientation));
+            frameDispatcher.dispatch(frame);
+        }
+    };
 
     public Camera1(CameraViewImpl.Callback callback, PreviewImpl preview) {
         super(callback, preview);
@@ -113,13 +168,18 @@ public class Camera1 extends CameraViewImpl {
             camera.stopPreview();
             camera.setPreviewCallback(null);
         }
+        previewBufferPool.clear();
+        frameDispatcher.clear();
         showingPreview = false;
+        abortBurst();
+        captureScheduler.cancelAll();
         releaseRecorder();
         if (isRecordingVideo) {
             callback.onVideoRecorded(videoFile);
             isRecordingVideo = false;
         }
         releaseCamera();
+        stopWriterThread();
     }
 
     private void restart() {
@@ -271,6 +331,37 @@ public class Camera1 extends CameraViewImpl {
         return zoomLevel;
     }
 
+    @Override
+    public Set<FrameRateRange> getSupportedFrameRateRanges() {
+        Set<FrameRateRange> ranges = new LinkedHashSet<>();
+        if (cameraParameters == null) return ranges;
+        List<int[]> supported = cameraParameters.getSupportedPreviewFpsRange();
+        if (supported != null) {
+            for (int[] range : supported) {
+                ranges.add(toFrameRateRange(range));
+            }
+        }
+        return ranges;
+    }
+
+    @Override
+    public void setFrameRateRange(FrameRateRange range) {
+        if (range == null ? frameRateRange == null : range.equals(frameRateRange)) return;
+        frameRateRange = range;
+        if (isCameraOpened() && setFrameRateRangeInternal(range)) {
+            try {
+                camera.setParameters(cameraParameters);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to set the frame rate range " + range + ".", e);
+            }
+        }
+    }
+
+    @Override
+    public FrameRateRange getFrameRateRange() {
+        return frameRateRange;
+    }
+
     @Override
     public void pinchToZoom(float oldSpacing, float newSpacing) {
         if (cameraParameters != null && cameraParameters.isZoomSupported()) {
@@ -291,38 +382,324 @@ public class Camera1 extends CameraViewImpl {
     }
 
     @Override
-    public void takePicture() {
-        if (!isCameraOpened()) {
-            throw new IllegalStateException(
-                    "Camera is not ready. Call start() before takePicture().");
+    protected boolean startPictureCapture(PictureRequest request) {
+        if (!isCameraOpened() || burstCapture != null) return false;
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            focusAndTakePicture();
+        } else {
+            // The camera was opened on the main thread, and its callbacks run there
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    focusAndTakePicture();
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * A single picture at a time: the camera can't take a new one until the previous one is
+     * delivered and the preview restarted.
+     */
+    @Override
+    protected int getMaxPicturesInFlightLimit() {
+        return 1;
+    }
+
+    private void focusAndTakePicture() {
+        if (!isCameraOpened() || burstCapture != null) {
+            failPictureCapture();
+            return;
         }
         if (getAutoFocus()) {
             camera.cancelAutoFocus();
+            final long focusStartNanos = System.nanoTime();
+            final AtomicBoolean focusDone = new AtomicBoolean();
+            final Runnable focusTimeout = new Runnable() {
+                @Override
+                public void run() {
+                    if (focusDone.getAndSet(true)) return;
+                    // Low texture or low light can keep the focus from ever locking
+                    if (isCameraOpened()) {
+                        camera.cancelAutoFocus();
+                    }
+                    onFocusDone(focusStartNanos);
+                }
+            };
             camera.autoFocus(new Camera.AutoFocusCallback() {
                 @Override
                 public void onAutoFocus(boolean success, Camera camera) {
-                    takePictureInternal();
+                    mainHandler.removeCallbacks(focusTimeout);
+                    if (focusDone.getAndSet(true)) return;
+                    onFocusDone(focusStartNanos);
                 }
             });
-        } else {
-            takePictureInternal();
+            if (focusLockTimeoutMillis > 0) {
+                mainHandler.postDelayed(focusTimeout, focusLockTimeoutMillis);
+            }
+        } else if (!takePictureInternal()) {
+            failPictureCapture();
+        }
+    }
+
+    private void onFocusDone(long focusStartNanos) {
+        captureMetrics.record(CaptureMetrics.Phase.FOCUS_LOCK,
+                System.nanoTime() - focusStartNanos);
+        if (!isCameraOpened() || !takePictureInternal()) {
+            failPictureCapture();
+        }
+    }
+
+    /**
+     * Camera1 has no burst API, so the frames are taken one after the other, each as soon as
+     * the preview is back from the previous one.
+     */
+    @Override
+    public boolean takeBurst(int count, BurstListener listener) {
+        if (!isCameraOpened() || burstCapture != null || isPictureCaptureInProgress.get()
+                || captureScheduler.getInFlightCount() > 0) {
+            return false;
+        }
+        burstCapture = new BurstCapture(count, listener);
+        if (!takePictureInternal()) {
+            burstCapture = null;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Camera1 has no per frame exposure control.
+     */
+    @Override
+    public boolean takeBracket(float[] exposureStops, BracketListener listener) {
+        return false;
+    }
+
+    @Override
+    public void setJpegThumbnailSize(Size size) {
+        super.setJpegThumbnailSize(size);
+        if (setJpegThumbnailSizeInternal(size)) {
+            camera.setParameters(cameraParameters);
+        }
+    }
+
+    /**
+     * @return {@code true} if {@link #cameraParameters} was modified.
+     */
+    private boolean setJpegThumbnailSizeInternal(Size size) {
+        if (size == null || !isCameraOpened()) return false;
+        List<Camera.Size> supported = cameraParameters.getSupportedJpegThumbnailSizes();
+        if (supported == null) return false;
+        List<Size> sizes = new ArrayList<>(supported.size());
+        for (Camera.Size s : supported) {
+            sizes.add(new Size(s.width, s.height));
+        }
+        Size chosen = CameraUtil.chooseJpegThumbnailSize(sizes, size);
+        if (chosen == null) return false;
+        cameraParameters.setJpegThumbnailSize(chosen.getWidth(), chosen.getHeight());
+        return true;
+    }
+
+    /**
+     * Camera1 only ever hands out processed pictures.
+     */
+    @Override
+    public boolean setRawCapture(boolean enabled) {
+        return !enabled;
+    }
+
+    @Override
+    public boolean getRawCapture() {
+        return false;
+    }
+
+    @Override
+    public boolean setPictureFormat(int format) {
+        return format == ImageFormat.JPEG;
+    }
+
+    @Override
+    public int getPictureFormat() {
+        return ImageFormat.JPEG;
+    }
+
+    /**
+     * Camera1 only hands out preview frames at preview resolution, which are no substitute for
+     * a picture.
+     */
+    @Override
+    public boolean setZeroShutterLag(boolean enabled) {
+        return !enabled;
+    }
+
+    @Override
+    public boolean getZeroShutterLag() {
+        return false;
+    }
+
+    @Override
+    public FrameRing.Stats getZslStats() {
+        return null;
+    }
+
+    @Override
+    protected void onFrameProcessorsChanged() {
+        if (isCameraOpened()) {
+            updatePreviewCallback();
+        }
+    }
+
+    @Override
+    public void setFrameBackpressure(FrameDispatcher.Backpressure backpressure,
+            int queueDepth) {
+        super.setFrameBackpressure(backpressure, queueDepth);
+        if (isCameraOpened()) {
+            updatePreviewCallback();
+        }
+    }
+
+    /**
+     * Feeds the preview frames to the frame processor through preallocated buffers, so the
+     * camera doesn't allocate a new array for each of them.
+     * <p>
+     * The camera skips the frames it has no buffer for, without stalling the preview. This is
+     * how {@link FrameDispatcher.Backpressure#BLOCK} throttles it: there is one buffer less than
+     * the processor and the queue can hold, so the main thread never blocks on the queue.
+     */
+    private void updatePreviewCallback() {
+        if (frameDispatcher.getProcessor() == null) {
+            // Also clears the buffers queued in the camera
+            camera.setPreviewCallbackWithBuffer(null);
+            previewBufferPool.clear();
+            return;
+        }
+        int count = frameDispatcher.getQueueDepth() + PREVIEW_EXTRA_BUFFERS
+                + frameFanOut.getExecutorConsumerCount();
+        if (frameDispatcher.getBackpressure() == FrameDispatcher.Backpressure.BLOCK) {
+            count--;
+        }
+        int format = cameraParameters.getPreviewFormat();
+        int bitsPerPixel = ImageFormat.getBitsPerPixel(format);
+        if (format != ImageFormat.NV21 || bitsPerPixel <= 0) {
+            Log.w(TAG, "Unsupported preview format for analysis: " + format);
+            return;
+        }
+        Camera.Size size = cameraParameters.getPreviewSize();
+        List<byte[]> buffers =
+                previewBufferPool.configure(size.width, size.height, bitsPerPixel, count);
+        if (buffers == null) return;
+        // Drops the buffers of the previous configuration queued in the camera
+        camera.setPreviewCallbackWithBuffer(null);
+        for (byte[] buffer : buffers) {
+            camera.addCallbackBuffer(buffer);
         }
+        camera.setPreviewCallbackWithBuffer(previewCallback);
+    }
+
+    @Override
+    public PreviewBufferPool.Stats getPreviewBufferStats() {
+        return previewBufferPool.getStats();
     }
 
-    private void takePictureInternal() {
-        if (!isPictureCaptureInProgress.getAndSet(true)) {
+    /**
+     * Gives a preview buffer back to the camera once its frame is released, unless the camera
+     * was closed or the buffers were reallocated meanwhile.
+     */
+    private void recyclePreviewBuffer(final Camera owner, final byte[] data) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (previewBufferPool.recycle(data) && camera == owner) {
+                    owner.addCallbackBuffer(data);
+                }
+            }
+        });
+    }
+
+    private void abortBurst() {
+        BurstCapture burst = burstCapture;
+        burstCapture = null;
+        if (burst == null) return;
+        while (!burst.onFrameFailed()) {
+            // Keep going until every frame is accounted for
+        }
+    }
+
+    /**
+     * @return {@code false} if the picture couldn't be started.
+     */
+    private boolean takePictureInternal() {
+        if (isPictureCaptureInProgress.getAndSet(true)) return false;
+        try {
+            shotNanos = System.nanoTime();
             camera.takePicture(null, null, null, new Camera.PictureCallback() {
                 @Override
                 public void onPictureTaken(byte[] data, Camera camera) {
+                    if (burstCapture == null) {
+                        captureMetrics.record(CaptureMetrics.Phase.CAPTURE,
+                                System.nanoTime() - shotNanos);
+                    }
                     isPictureCaptureInProgress.set(false);
                     camera.cancelAutoFocus();
                     camera.startPreview();
-                    callback.onPictureTaken(data);
+                    // The camera allocates a new array for every picture and never borrows
+                    // from the pool, giving it these would only keep dead arrays alive
+                    final JpegImage image = new JpegImage(ByteBuffer.wrap(data), bufferPool);
+                    BurstCapture burst = burstCapture;
+                    if (burst != null) {
+                        try {
+                            if (burst.onFrame(SystemClock.elapsedRealtimeNanos(), image)) {
+                                burstCapture = null;
+                            } else if (!takePictureInternal()) {
+                                abortBurst();
+                            }
+                        } finally {
+                            image.release();
+                        }
+                        return;
+                    }
+                    final PictureRequest request = captureScheduler.onCaptureCompleted();
+                    if (!isWrittenToTarget(request)) {
+                        dispatchPictureTaken(request, image);
+                        return;
+                    }
+                    // Pictures are delivered on the main thread, keep the disk away from it
+                    getWriterHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            dispatchPictureTaken(request, image);
+                        }
+                    });
                 }
             });
+            return true;
+        } catch (RuntimeException e) {
+            // Thrown when the camera is not ready, for example while it restarts the preview
+            e.printStackTrace();
+            isPictureCaptureInProgress.set(false);
+            return false;
         }
     }
 
+    private Handler getWriterHandler() {
+        if (writerHandler == null) {
+            writerThread = new HandlerThread("CameraWriter");
+            writerThread.start();
+            writerHandler = new Handler(writerThread.getLooper());
+        }
+        return writerHandler;
+    }
+
+    private void stopWriterThread() {
+        if (writerThread == null) return;
+        // Let the pending pictures be written
+        writerThread.quitSafely();
+        writerThread = null;
+        writerHandler = null;
+    }
+
     @Override
     public void setVideoQuality(VideoQuality videoQuality) {
         if (this.videoQuality == videoQuality || isRecordingVideo) return;
@@ -394,10 +771,12 @@ public class Camera1 extends CameraViewImpl {
         }
         camera.stopPreview();
         try {
-            if (previewTexture == null) {
-                camera.setPreviewTexture((SurfaceTexture) preview.getSurfaceTexture());
-            } else {
+            if (previewTexture != null) {
                 camera.setPreviewTexture(previewTexture);
+            } else if (preview.getOutputClass() == SurfaceHolder.class) {
+                camera.setPreviewDisplay(preview.getSurfaceHolder());
+            } else {
+                camera.setPreviewTexture((SurfaceTexture) preview.getSurfaceTexture());
             }
             this.previewTexture = previewTexture;
             startCameraPreview();
@@ -433,6 +812,7 @@ public class Camera1 extends CameraViewImpl {
         try {
             camera = Camera.open(cameraId);
             cameraParameters = camera.getParameters();
+            cameraParameters.getPreviewFpsRange(defaultFpsRange);
             // Supported preview sizes
             previewSizes.clear();
             for (Camera.Size size : cameraParameters.getSupportedPreviewSizes()) {
@@ -492,8 +872,11 @@ public class Camera1 extends CameraViewImpl {
         setFlashInternal(flash);
         setAspectRatio(aspectRatio);
         setZoomInternal(zoomLevel);
+        setFrameRateRangeInternal(frameRateRange);
+        setJpegThumbnailSizeInternal(jpegThumbnailSize);
         // apply all settings
         camera.setParameters(cameraParameters);
+        updatePreviewCallback();
         if (showingPreview) {
             camera.startPreview();
         }
@@ -629,6 +1012,38 @@ public class Camera1 extends CameraViewImpl {
         }
     }
 
+    /**
+     * Sets the supported preview frame rate range closest to {@code range}, or the default one
+     * of the camera for {@code null}, on {@link #cameraParameters}.
+     *
+     * @return {@code true} if the parameters were changed.
+     */
+    private boolean setFrameRateRangeInternal(FrameRateRange range) {
+        if (cameraParameters == null) return false;
+        int[] target = defaultFpsRange;
+        List<int[]> supported = cameraParameters.getSupportedPreviewFpsRange();
+        if (range != null && supported != null && !supported.isEmpty()) {
+            List<FrameRateRange> ranges = new ArrayList<>(supported.size());
+            for (int[] fpsRange : supported) {
+                ranges.add(toFrameRateRange(fpsRange));
+            }
+            target = supported.get(ranges.indexOf(FrameRateRange.chooseClosest(ranges, range)));
+        }
+        if (target[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] == 0) return false;
+        cameraParameters.setPreviewFpsRange(target[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                target[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+        return true;
+    }
+
+    /**
+     * @param fpsRange A preview frame rate range, in fps * 1000
+     */
+    private static FrameRateRange toFrameRateRange(int[] fpsRange) {
+        int min = Math.max(1, (fpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] + 500) / 1000);
+        int max = Math.max(min, (fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] + 500) / 1000);
+        return new FrameRateRange(min, max);
+    }
+
     private boolean setZoomInternal(float newZoomLevel) {
         if (isCameraOpened() && cameraParameters != null && cameraParameters.isZoomSupported()) {
             int maxZoom = cameraParameters.getMaxZoom();
@@ -0,0 +1,109 @@
+package namnh.com.cameraandroid.camera.v14;
+
+import android.content.Context;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import android.view.View;
+import android.view.ViewGroup;
+import namnh.com.cameraandroid.R;
+import namnh.com.cameraandroid.camera.PreviewImpl;
+
+/**
+ * Preview on a {@link SurfaceView}, composed by the system straight from the camera buffers:
+ * no GPU pass and no frame of latency as with a {@link android.view.TextureView}, but no
+ * transform or alpha either. The rotation is left to the camera and the compositor.
+ */
+public class SurfaceViewPreview extends PreviewImpl {
+
+    private final SurfaceView surfaceView;
+
+    /** The buffer size asked for by {@link #setBufferSize(int, int)}, 0 for none */
+    private int bufferWidth;
+    private int bufferHeight;
+
+    /** The size of the surface, as last reported by the holder */
+    private int surfaceWidth;
+    private int surfaceHeight;
+
+    public SurfaceViewPreview(Context context, ViewGroup parent) {
+        final View view = View.inflate(context, R.layout.surface_view, parent);
+        surfaceView = view.findViewById(R.id.surface_view);
+        // With a fixed buffer size the surface doesn't change with the view
+        surfaceView.addOnLayoutChangeListener(new View.OnLayoutChangeListener() {
+            @Override
+            public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                    int oldLeft, int oldTop, int oldRight, int oldBottom) {
+                if (surfaceWidth != 0) {
+                    setSize(right - left, bottom - top);
+                }
+            }
+        });
+        surfaceView.getHolder().addCallback(new SurfaceHolder.Callback() {
+
+            @Override
+            public void surfaceCreated(SurfaceHolder holder) {
+            }
+
+            @Override
+            public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+                surfaceWidth = width;
+                surfaceHeight = height;
+                setSize(surfaceView.getWidth(), surfaceView.getHeight());
+                if (isReady()) {
+                    dispatchSurfaceChanged();
+                }
+            }
+
+            @Override
+            public void surfaceDestroyed(SurfaceHolder holder) {
+                surfaceWidth = 0;
+                surfaceHeight = 0;
+                setSize(0, 0);
+                dispatchSurfaceDestroyed();
+            }
+        });
+    }
+
+    /**
+     * Resizes the buffers of the surface, which the view scales to its own size. Camera2
+     * needs the surface at one of its output sizes; the preview is ready again once the
+     * surface has been resized.
+     */
+    @Override
+    public void setBufferSize(int width, int height) {
+        bufferWidth = width;
+        bufferHeight = height;
+        surfaceView.getHolder().setFixedSize(width, height);
+    }
+
+    @Override
+    public Surface getSurface() {
+        return surfaceView.getHolder().getSurface();
+    }
+
+    @Override
+    public SurfaceHolder getSurfaceHolder() {
+        return surfaceView.getHolder();
+    }
+
+    @Override
+    public View getView() {
+        return surfaceView;
+    }
+
+    @Override
+    public Class getOutputClass() {
+        return SurfaceHolder.class;
+    }
+
+    @Override
+    public void setDisplayOrientation(int displayOrientation) {
+    }
+
+    @Override
+    public boolean isReady() {
+        if (surfaceWidth == 0 || surfaceHeight == 0) return false;
+        return bufferWidth == 0 || (surfaceWidth == bufferWidth && surfaceHeight == bufferHeight);
+    }
+}
@@ -26,39 +26,65 @@ import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.DngCreator;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.CamcorderProfile;
+import android.media.ExifInterface;
 import android.media.Image;
 import android.media.ImageReader;
 import android.media.MediaRecorder;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.util.Log;
+import android.util.Range;
 import android.util.SparseIntArray;
 import android.view.Surface;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import namnh.com.cameraandroid.camera.CameraView;
 import namnh.com.cameraandroid.camera.CameraViewImpl;
 import namnh.com.cameraandroid.camera.PreviewImpl;
 import namnh.com.cameraandroid.camera.base.AspectRatio;
+import namnh.com.cameraandroid.camera.base.BracketCapture;
+import namnh.com.cameraandroid.camera.base.BracketListener;
+import namnh.com.cameraandroid.camera.base.BurstCapture;
+import namnh.com.cameraandroid.camera.base.BurstListener;
+import namnh.com.cameraandroid.camera.base.CameraUtil;
+import namnh.com.cameraandroid.camera.base.CaptureMetrics;
 import namnh.com.cameraandroid.camera.base.Constants;
+import namnh.com.cameraandroid.camera.base.ExposureFusion;
+import namnh.com.cameraandroid.camera.base.FrameDispatcher;
+import namnh.com.cameraandroid.camera.base.FrameRateRange;
+import namnh.com.cameraandroid.camera.base.FrameRing;
+import namnh.com.cameraandroid.camera.base.JpegEncodePipeline;
+import namnh.com.cameraandroid.camera.base.JpegEncoder;
+import namnh.com.cameraandroid.camera.base.JpegImage;
+import namnh.com.cameraandroid.camera.base.PictureRequest;
+import namnh.com.cameraandroid.camera.base.PictureWriter;
 import namnh.com.cameraandroid.camera.base.Size;
 import namnh.com.cameraandroid.camera.base.SizeMap;
+import namnh.com.cameraandroid.camera.base.TimestampMatcher;
 import namnh.com.cameraandroid.camera.base.VideoQuality;
+import namnh.com.cameraandroid.camera.base.YuvFrame;
 
 @SuppressWarnings("MissingPermission")
 @TargetApi(21)
@@ -81,6 +107,36 @@ public class Camera2 extends CameraViewImpl {
      * Max preview height that is guaranteed by Camera2 API
      */
     private static final int MAX_PREVIEW_HEIGHT = 1080;
+    /**
+     * Images the reader holds for single shots
+     */
+    private static final int DEFAULT_MAX_IMAGES = 2;
+    /**
+     * Worst case size of a JPEG buffer, in bytes per pixel, used to size the reader for bursts
+     */
+    private static final float JPEG_BYTES_PER_PIXEL = 1.5f;
+    /**
+     * Images the zero shutter lag reader holds on top of the ring: one being added while the
+     * ring is full, one being encoded
+     */
+    private static final int ZSL_EXTRA_IMAGES = 2;
+    /**
+     * RAW images the reader holds: one per picture in flight, and one left over from a capture
+     * whose result never showed up
+     */
+    private static final int RAW_MAX_IMAGES = DEFAULT_MAX_IMAGES + 1;
+    /**
+     * Frames the analysis reader holds on top of the frame queue: one being processed, one
+     * being filled
+     */
+    private static final int ANALYSIS_EXTRA_IMAGES = 2;
+    private static final FrameRing.Recycler<Image> IMAGE_RECYCLER =
+            new FrameRing.Recycler<Image>() {
+                @Override
+                public void recycle(Image image) {
+                    image.close();
+                }
+            };
     private final CameraManager cameraManager;
     private String cameraId;
     private CameraCharacteristics cameraCharacteristics;
@@ -88,8 +144,12 @@ public class Camera2 extends CameraViewImpl {
     private CameraCaptureSession captureSession;
     private CaptureRequest.Builder previewRequestBuilder;
     private ImageReader imageReader;
+    /** {@link #imageReader} with the count of its images held by pictures not released yet */
+    private volatile ImageStream pictureStream;
     private final SizeMap previewSizes = new SizeMap();
     private final SizeMap pictureSizes = new SizeMap();
+    /** The YUV sizes, for analysis streams; not capped like the preview ones */
+    private final SizeMap analysisSizes = new SizeMap();
     private Size pictureSize;
     private int facing;
     private AspectRatio aspectRatio = Constants.DEFAULT_ASPECT_RATIO;
@@ -104,9 +164,61 @@ public class Camera2 extends CameraViewImpl {
     private Handler uiHandler = new Handler(Looper.getMainLooper());
     private HandlerThread backgroundThread;
     private Handler backgroundHandler;
+    private HandlerThread imageThread;
+    private Handler imageHandler;
     private float zoomLevel = 1f;
+
+    /** The frame rate ranges of {@link CaptureRequest#CONTROL_AE_TARGET_FPS_RANGE} */
+    private final List<FrameRateRange> frameRateRanges = new ArrayList<>();
+
+    private FrameRateRange frameRateRange;
     private Surface previewSurface;
     private VideoQuality videoQuality = VideoQuality.DEFAULT;
+    private volatile BurstCapture burstCapture;
+    private boolean burstPending;
+    private boolean zslEnabled;
+    private ImageReader zslReader;
+    private volatile FrameRing<Image> zslRing;
+    private int pictureFormat = ImageFormat.JPEG;
+    /** When the running still sequence started, on the background thread */
+    private long stillStartNanos;
+    /** Whether the running still sequence triggered the auto focus */
+    private boolean focusTriggered;
+    /** When the still requests completed, by sensor timestamp, until their image shows up */
+    private final Map<Long, Long> stillCompletedNanos = new ConcurrentHashMap<>();
+    /** The last still request built, reused while the settings it was built for hold */
+    private CaptureRequest stillRequest;
+    private StillRequestKey stillRequestKey;
+    /** Same as {@link #stillRequest}, for bursts */
+    private CaptureRequest burstRequest;
+    private StillRequestKey burstRequestKey;
+    /** Stills waiting for the running focus and exposure sequence, on the background thread */
+    private final ArrayDeque<PictureRequest> pendingStills = new ArrayDeque<>();
+    /** The request of the running still sequence, on the background thread */
+    private PictureRequest currentStill;
+    private boolean rawEnabled;
+    private ImageReader rawReader;
+    /** DNG files are large and slow to write, they get their own thread */
+    private HandlerThread rawWriterThread;
+    private Handler rawWriterHandler;
+    private JpegEncodePipeline encodePipeline;
+    private volatile BracketCapture bracketCapture;
+    private boolean bracketPending;
+    /** YUV frames of brackets, kept across brackets to spare a session reconfiguration each */
+    private ImageReader bracketReader;
+    private ExposureFusion exposureFusion;
+    /** The exposure the preview metered last, which brackets are relative to */
+    private volatile long previewExposureNanos;
+    private volatile int previewSensitivity;
+    /** The sensor timestamp of the last still, its start of exposure; 0 once the preview is back */
+    private long stillShutterTimestamp;
+    private long stillFrameNumber;
+    private volatile long previewResumeLatencyNanos = -1;
+    /** Preview sized YUV frames for the frame processor, while there is one */
+    private volatile ImageStream analysisStream;
+    /** Takes the analysis frames, it may block on the frame queue and has its own thread */
+    private HandlerThread analysisReaderThread;
+    private Handler analysisReaderHandler;
 
     private final CameraDevice.StateCallback cameraDeviceCallback =
             new CameraDevice.StateCallback() {
@@ -147,6 +259,9 @@ public class Camera2 extends CameraViewImpl {
                     updateAutoFocus();
                     updateFlash();
                     updateZoom();
+                    updateFrameRateRange();
+                    // The timestamps of the new session don't follow those of the previous one
+                    frameRateMonitor.restart();
                     try {
                         captureSession.setRepeatingRequest(previewRequestBuilder.build(),
                                 captureCallback, backgroundHandler);
@@ -157,11 +272,50 @@ public class Camera2 extends CameraViewImpl {
                     } catch (IllegalStateException e) {
                         Log.e(TAG, "Failed to start camera preview.", e);
                     }
+                    if (burstPending) {
+                        burstPending = false;
+                        captureBurst();
+                    }
+                    if (bracketPending) {
+                        bracketPending = false;
+                        captureBracket();
+                    }
                 }
 
                 @Override
                 public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+                    if (bracketReader != null) {
+                        Log.w(TAG, "Bracket stream not supported next to the others.");
+                        abortBracket(new IllegalStateException("Bracket stream not supported"));
+                        closeBracketReader();
+                        startCaptureSession();
+                        return;
+                    }
+                    if (zslReader != null) {
+                        // The extra full size stream is beyond this device, go on without it
+                        Log.w(TAG, "Zero shutter lag stream not supported, disabling it.");
+                        zslEnabled = false;
+                        closeZslReader();
+                        startCaptureSession();
+                        return;
+                    }
+                    if (rawReader != null) {
+                        Log.w(TAG, "RAW stream not supported next to the others, disabling it.");
+                        rawEnabled = false;
+                        closeRawReader();
+                        startCaptureSession();
+                        return;
+                    }
+                    if (analysisStream != null) {
+                        Log.w(TAG, "Analysis stream not supported next to the others, "
+                                + "disabling the frame processors.");
+                        frameDispatcher.setProcessor(null);
+                        closeAnalysisReader();
+                        startCaptureSession();
+                        return;
+                    }
                     Log.e(TAG, "Failed to configure capture session.");
+                    abortBurst();
                 }
 
                 @Override
@@ -174,6 +328,64 @@ public class Camera2 extends CameraViewImpl {
 
     private PictureCaptureCallback captureCallback = new PictureCaptureCallback() {
 
+        @Override
+        void onStateLeft(int state, long nanos) {
+            switch (state) {
+                case STATE_LOCKING:
+                    captureMetrics.record(CaptureMetrics.Phase.FOCUS_LOCK, nanos);
+                    break;
+                case STATE_PRECAPTURE:
+                    captureMetrics.record(CaptureMetrics.Phase.PRECAPTURE, nanos);
+                    break;
+                case STATE_WAITING:
+                    captureMetrics.record(CaptureMetrics.Phase.AE_CONVERGENCE, nanos);
+                    break;
+            }
+        }
+
+        @Override
+        public void onCaptureStarted(@NonNull CameraCaptureSession session,
+                                     @NonNull CaptureRequest request, long timestamp,
+                                     long frameNumber) {
+            // Both are sensor timestamps, the start of exposure of the frames
+            if (stillShutterTimestamp != 0 && frameNumber > stillFrameNumber) {
+                previewResumeLatencyNanos = timestamp - stillShutterTimestamp;
+                stillShutterTimestamp = 0;
+            }
+        }
+
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                       @NonNull CaptureRequest request,
+                                       @NonNull TotalCaptureResult result) {
+            super.onCaptureCompleted(session, request, result);
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (timestamp != null) {
+                Long frameDuration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+                frameRateMonitor.onFrameCompleted(result.getFrameNumber(), timestamp,
+                        frameDuration != null ? frameDuration : 0);
+            }
+            Long exposure = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+            if (exposure != null && sensitivity != null) {
+                previewExposureNanos = exposure;
+                previewSensitivity = sensitivity;
+            }
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                    @NonNull CaptureRequest request,
+                                    @NonNull CaptureFailure failure) {
+            frameRateMonitor.onFrameFailed();
+        }
+
+        @Override
+        public void onCaptureSequenceAborted(@NonNull CameraCaptureSession session,
+                                             int sequenceId) {
+            frameRateMonitor.onSequenceAborted();
+        }
+
         @Override
         public void onPreCaptureRequired() {
             previewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
@@ -185,6 +397,9 @@ public class Camera2 extends CameraViewImpl {
                         CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
             } catch (CameraAccessException e) {
                 Log.e(TAG, "Failed to run preCapture sequence.", e);
+                setState(STATE_PREVIEW);
+                failPictureCapture(currentStill);
+                startQueuedStill();
             }
         }
 
@@ -199,19 +414,301 @@ public class Camera2 extends CameraViewImpl {
 
                 @Override
                 public void onImageAvailable(ImageReader reader) {
-                    try (Image image = reader.acquireNextImage()) {
-                        Image.Plane[] planes = image.getPlanes();
-                        if (planes.length > 0) {
-                            ByteBuffer buffer = planes[0].getBuffer();
-                            byte[] data = new byte[buffer.remaining()];
-                            buffer.get(data);
-                            if (image.getFormat() == ImageFormat.JPEG) {
-                                callback.onPictureTaken(data);
+                    final Image image;
+                    try {
+                        image = reader.acquireNextImage();
+                    } catch (IllegalStateException e) {
+                        // Every image is held by a picture not released yet
+                        Log.e(TAG, "Failed to acquire the captured image.", e);
+                        onPictureFailed();
+                        return;
+                    }
+                    if (image == null) return;
+                    final ImageStream stream = pictureStream;
+                    if (stream == null || stream.reader != reader || !stream.open()) {
+                        // The reader was replaced while the picture was on its way
+                        image.close();
+                        onPictureFailed();
+                        return;
+                    }
+                    Long completedNanos = stillCompletedNanos.remove(image.getTimestamp());
+                    if (completedNanos != null) {
+                        captureMetrics.record(CaptureMetrics.Phase.IMAGE,
+                                System.nanoTime() - completedNanos);
+                    }
+                    if (burstCapture == null) {
+                        // Zero shutter lag pictures may complete meanwhile, the still has to
+                        // find its own request
+                        stillMatcher.addSecond(image.getTimestamp(),
+                                new StillImage(image, stream));
+                    } else {
+                        deliverImage(null, image, stream);
+                    }
+                }
+            };
+
+    /**
+     * Pairs the images of the still requests with the requests they were captured for, from
+     * the start of their capture. Either can show up first.
+     */
+    private final TimestampMatcher<PictureRequest, StillImage> stillMatcher =
+            new TimestampMatcher<>(DEFAULT_MAX_IMAGES * 2,
+                    new TimestampMatcher.Listener<PictureRequest, StillImage>() {
+
+                        @Override
+                        public void onMatched(long timestamp, final PictureRequest request,
+                                final StillImage still) {
+                            Handler handler = imageHandler;
+                            if (handler == null) {
+                                still.close();
+                                failPictureCapture(request);
+                                return;
+                            }
+                            // Pictures are delivered, and maybe written, on the image thread
+                            handler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    deliverImage(request, still.image, still.stream);
+                                }
+                            });
+                        }
+
+                        @Override
+                        public void onDropped(long timestamp, PictureRequest request,
+                                StillImage still) {
+                            if (still != null) {
+                                still.close();
+                            }
+                            if (request != null) {
+                                failPictureCapture(request);
+                            }
+                        }
+                    });
+
+    /**
+     * Encodes or wraps an image of {@link #imageReader} and hands the picture to its request, or
+     * to the running burst.
+     *
+     * @param request The request of the picture, {@code null} for a burst frame
+     * @param stream The stream the image was {@link ImageStream#open() opened} from
+     */
+    private void deliverImage(PictureRequest request, final Image image,
+            final ImageStream stream) {
+        if (image.getFormat() == ImageFormat.YUV_420_888) {
+            JpegEncodePipeline.Callback callback = request == null ? encodeCallback
+                    : new StillEncodeCallback(request);
+            if (!getEncodePipeline().submit(wrapYuvImage(image, stream),
+                    getOutputRotation(displayOrientation), callback)) {
+                onPictureFailed(request);
+            }
+            return;
+        }
+        Image.Plane[] planes = image.getPlanes();
+        if (planes.length == 0 || image.getFormat() != ImageFormat.JPEG) {
+            stream.closeImage(image);
+            onPictureFailed(request);
+            return;
+        }
+        // Hand out the plane itself; the image goes back to the reader once the last listener
+        // releases it, and the reader outlives it.
+        JpegImage picture = new JpegImage(planes[0].getBuffer(), bufferPool) {
+            @Override
+            protected void onReleased() {
+                stream.closeImage(image);
+            }
+        };
+        if (request == null) {
+            onPictureAvailable(image.getTimestamp(), picture);
+        } else {
+            completePictureCapture(request, picture);
+            // Pictures taken right after a burst delay the restore of the reader
+            restoreImageReaderLater();
+        }
+    }
+
+    /** Delivers the encoded frames of a YUV burst. */
+    private final JpegEncodePipeline.Callback encodeCallback = new JpegEncodePipeline.Callback() {
+
+        @Override
+        public void onEncoded(long timestamp, JpegImage image) {
+            onPictureAvailable(timestamp, image.acquire());
+        }
+
+        @Override
+        public void onEncodeFailed(long timestamp, Exception error) {
+            Log.e(TAG, "Failed to encode a picture.", error);
+            onPictureFailed();
+        }
+    };
+
+    /**
+     * Reports a picture lost after its capture, to the burst running or to the oldest still
+     * waiting for its image.
+     */
+    private void onPictureFailed() {
+        BurstCapture burst = burstCapture;
+        if (burst == null) {
+            stillMatcher.dropOldest();
+        } else if (burst.onFrameFailed()) {
+            finishBurst(burst);
+        }
+    }
+
+    /**
+     * Same as {@link #onPictureFailed()}, for the picture of {@code request}.
+     *
+     * @param request The request of the picture, {@code null} for a burst frame
+     */
+    private void onPictureFailed(PictureRequest request) {
+        if (request == null) {
+            onPictureFailed();
+        } else {
+            failPictureCapture(request);
+        }
+    }
+
+    /**
+     * Delivers an encoded still or zero shutter lag picture to the request it was taken for.
+     */
+    private final class StillEncodeCallback implements JpegEncodePipeline.Callback {
+
+        private final PictureRequest request;
+
+        StillEncodeCallback(PictureRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public void onEncoded(long timestamp, JpegImage image) {
+            completePictureCapture(request, image.acquire());
+            restoreImageReaderLater();
+        }
+
+        @Override
+        public void onEncodeFailed(long timestamp, Exception error) {
+            Log.e(TAG, "Failed to encode a picture.", error);
+            failPictureCapture(request);
+        }
+    }
+
+    private final ImageReader.OnImageAvailableListener onZslImageAvailableListener =
+            new ImageReader.OnImageAvailableListener() {
+
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    FrameRing<Image> ring = zslRing;
+                    Image image;
+                    try {
+                        image = reader.acquireNextImage();
+                    } catch (IllegalStateException e) {
+                        Log.w(TAG, "Dropped a zero shutter lag frame.", e);
+                        return;
+                    }
+                    if (image == null) return;
+                    if (ring == null) {
+                        image.close();
+                        return;
+                    }
+                    ring.add(image.getTimestamp(), image);
+                }
+            };
+
+    private final ImageReader.OnImageAvailableListener onBracketImageAvailableListener =
+            new ImageReader.OnImageAvailableListener() {
+
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    Image image;
+                    try {
+                        image = reader.acquireNextImage();
+                    } catch (IllegalStateException e) {
+                        Log.w(TAG, "Dropped a bracket frame.", e);
+                        return;
+                    }
+                    if (image == null) return;
+                    BracketCapture bracket = bracketCapture;
+                    if (bracket == null) {
+                        image.close();
+                        return;
+                    }
+                    // The frame is copied, and the image closed, before the next one comes
+                    if (bracket.onFrame(wrapYuvImage(image))) {
+                        mergeBracket(bracket);
+                    }
+                }
+            };
+
+    /**
+     * Pairs the RAW images with the results of their still requests, which DngCreator needs
+     * for the metadata. Either can show up first.
+     */
+    private final TimestampMatcher<RawCapture, Image> rawMatcher =
+            new TimestampMatcher<>(RAW_MAX_IMAGES - 1,
+                    new TimestampMatcher.Listener<RawCapture, Image>() {
+
+                        @Override
+                        public void onMatched(long timestamp, RawCapture capture, Image image) {
+                            writeRawPicture(capture, image);
+                        }
+
+                        @Override
+                        public void onDropped(long timestamp, RawCapture capture, Image image) {
+                            if (image != null) {
+                                image.close();
                             }
-                            image.close();
+                            if (capture != null && capture.request.getRawWriteResult() == null) {
+                                Log.w(TAG, "RAW image lost for " + capture.request);
+                                dispatchRawPictureSaved(capture.request,
+                                        PictureWriter.Result.failure(capture.request.getRawFile(),
+                                                new IOException("RAW image lost")));
+                            }
+                        }
+                    });
+
+    private final ImageReader.OnImageAvailableListener onRawImageAvailableListener =
+            new ImageReader.OnImageAvailableListener() {
+
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    Image image;
+                    try {
+                        image = reader.acquireNextImage();
+                    } catch (IllegalStateException e) {
+                        Log.w(TAG, "Dropped a RAW image.", e);
+                        return;
+                    }
+                    if (image == null) return;
+                    rawMatcher.addSecond(image.getTimestamp(), image);
+                }
+            };
+
+    private final ImageReader.OnImageAvailableListener onAnalysisImageAvailableListener =
+            new ImageReader.OnImageAvailableListener() {
+
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    Image image;
+                    try {
+                        if (frameDispatcher.getBackpressure()
+                                == FrameDispatcher.Backpressure.KEEP_ONLY_LATEST) {
+                            // Frames the processor had no time for are closed right away
+                            image = reader.acquireLatestImage();
+                        } else {
+                            image = reader.acquireNextImage();
                         }
-                    } catch (Exception ignored) {
+                    } catch (IllegalStateException e) {
+                        Log.w(TAG, "Dropped an analysis frame.", e);
+                        return;
+                    }
+                    if (image == null) return;
+                    ImageStream stream = analysisStream;
+                    if (stream == null || stream.reader != reader || !stream.open()) {
+                        image.close();
+                        return;
                     }
+                    YuvFrame frame = wrapYuvImage(image, stream);
+                    frame.setRotation(getOutputRotation(displayOrientation));
+                    frameDispatcher.dispatch(frame);
                 }
             };
 
@@ -258,21 +755,39 @@ public class Camera2 extends CameraViewImpl {
         setAspectRatio(initialRatio);
         initialRatio = null;
         prepareImageReader();
+        prepareRawReader();
+        prepareZslReader();
         startOpeningCamera();
         return true;
     }
 
     @Override
     public void stop() {
+        abortBurst();
+        abortBracket(new IllegalStateException("Camera stopped"));
+        captureScheduler.cancelAll();
+        stillMatcher.clear();
+        stillRequest = null;
+        stillRequestKey = null;
+        stillCompletedNanos.clear();
+        pendingStills.clear();
+        currentStill = null;
+        burstRequest = null;
+        burstRequestKey = null;
         resetCaptureSession();
         if (isCameraOpened()) {
             camera.close();
             camera = null;
         }
-        if (imageReader != null) {
-            imageReader.close();
-            imageReader = null;
-        }
+        closeImageReader();
+        closeZslReader();
+        closeRawReader();
+        closeBracketReader();
+        closeAnalysisReader();
+        frameDispatcher.clear();
+        stopAnalysisReaderThread();
+        shutdownEncodePipeline();
+        shutdownExposureFusion();
         releaseRecorder();
         if (isRecordingVideo) {
             callback.onVideoRecorded(videoFile);
@@ -280,6 +795,7 @@ public class Camera2 extends CameraViewImpl {
         }
         // Thread must stop after everything is cleared
         stopBackgroundThread();
+        stopRawWriterThread();
     }
 
     private void restartCamera() {
@@ -296,20 +812,62 @@ public class Camera2 extends CameraViewImpl {
         backgroundThread = new HandlerThread("CameraBackground");
         backgroundThread.start();
         backgroundHandler = new Handler(backgroundThread.getLooper());
+        // Captured images are consumed (and possibly written to disk) on their own thread, so
+        // they never hold up the camera callbacks.
+        imageThread = new HandlerThread("CameraImage");
+        imageThread.start();
+        imageHandler = new Handler(imageThread.getLooper());
     }
 
     private void stopBackgroundThread() {
         if (backgroundThread == null) return;
         backgroundThread.quitSafely();
+        imageThread.quitSafely();
         try {
             backgroundThread.join();
+            imageThread.join();
             backgroundThread = null;
             backgroundHandler = null;
+            imageThread = null;
+            imageHandler = null;
         } catch (InterruptedException ex) {
             ex.printStackTrace();
         }
     }
 
+    /**
+     * YUV pictures and zero shutter lag frames are encoded on the worker pool, so the encoding
+     * never holds up the camera threads. Called from the image thread, and from the fusion pool
+     * for brackets.
+     */
+    private synchronized JpegEncodePipeline getEncodePipeline() {
+        if (encodePipeline == null) {
+            encodePipeline = new JpegEncodePipeline(jpegEncoder, bufferPool);
+        }
+        return encodePipeline;
+    }
+
+    private synchronized void shutdownEncodePipeline() {
+        if (encodePipeline == null) return;
+        // Pictures already submitted are still delivered
+        encodePipeline.shutdown();
+        encodePipeline = null;
+    }
+
+    private synchronized ExposureFusion getExposureFusion() {
+        if (exposureFusion == null) {
+            exposureFusion = new ExposureFusion();
+        }
+        return exposureFusion;
+    }
+
+    private synchronized void shutdownExposureFusion() {
+        if (exposureFusion == null) return;
+        // Merges already started are still encoded
+        exposureFusion.shutdown();
+        exposureFusion = null;
+    }
+
     @Override
     public void setFacing(int facing) {
         if (this.facing == facing) {
@@ -349,11 +907,10 @@ public class Camera2 extends CameraViewImpl {
                 captureSession = null;
             }
         }
-        if (imageReader != null) {
-            imageReader.close();
-        }
+        closeImageReader();
         this.pictureSize = pictureSize;
         prepareImageReader();
+        prepareZslReader();
         startCaptureSession();
     }
 
@@ -375,6 +932,7 @@ public class Camera2 extends CameraViewImpl {
         aspectRatio = ratio;
         pictureSize = pictureSizes.sizes(aspectRatio).last();
         prepareImageReader();
+        prepareZslReader();
         // restartCamera capture session
         resetCaptureSession();
         startCaptureSession();
@@ -453,6 +1011,44 @@ public class Camera2 extends CameraViewImpl {
         return zoomLevel;
     }
 
+    @Override
+    public Set<FrameRateRange> getSupportedFrameRateRanges() {
+        return new LinkedHashSet<>(frameRateRanges);
+    }
+
+    @Override
+    public void setFrameRateRange(FrameRateRange range) {
+        if (range == null ? frameRateRange == null : range.equals(frameRateRange)) return;
+        frameRateRange = range;
+        if (captureSession == null || previewRequestBuilder == null) return;
+        if (range == null && !isRecordingVideo) {
+            // Back to the default of the template, which only a new request has
+            resetCaptureSession();
+            startCaptureSession();
+            return;
+        }
+        try {
+            if (range == null) {
+                // The recorder surface stays in the session, so copy the default of a new
+                // record request instead of restarting it
+                previewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE,
+                        camera.createCaptureRequest(CameraDevice.TEMPLATE_RECORD)
+                                .get(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE));
+            } else {
+                updateFrameRateRange();
+            }
+            captureSession.setRepeatingRequest(previewRequestBuilder.build(), captureCallback,
+                    backgroundHandler);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Failed to set the frame rate range " + range + ".", e);
+        }
+    }
+
+    @Override
+    public FrameRateRange getFrameRateRange() {
+        return frameRateRange;
+    }
+
     @Override
     public void pinchToZoom(float oldSpacing, float newSpacing) {
         Float maxZoom =
@@ -509,33 +1105,260 @@ public class Camera2 extends CameraViewImpl {
     }
 
     @Override
-    public void takePicture() {
-        if (autoFocus) {
+    protected boolean startPictureCapture(final PictureRequest request) {
+        Handler handler = backgroundHandler;
+        if (handler == null) return false;
+        // The capture sequence runs on the background thread, like its callbacks
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (captureSession == null || burstCapture != null
+                        || request.getRawFile() != null && rawReader == null) {
+                    Log.w(TAG, "Can't take a picture now.");
+                    failPictureCapture(request);
+                    return;
+                }
+                if (zslRing != null && request.getRawFile() == null
+                        && (flash == Constants.FLASH_OFF || flash == Constants.FLASH_TORCH)
+                        && takeZslPicture(request)) {
+                    return;
+                }
+                if (captureCallback.getState() != PictureCaptureCallback.STATE_PREVIEW) {
+                    // Another still is locking focus and exposure, this one goes next
+                    pendingStills.add(request);
+                } else {
+                    startStill(request);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * The images of the pictures in flight are held by the reader until delivered.
+     */
+    @Override
+    protected int getMaxPicturesInFlightLimit() {
+        return DEFAULT_MAX_IMAGES;
+    }
+
+    private void startStill(PictureRequest request) {
+        currentStill = request;
+        stillStartNanos = System.nanoTime();
+        captureCallback.setTimeouts(focusLockTimeoutMillis, exposureTimeoutMillis);
+        if (autoFocus && flash != Constants.FLASH_ON && captureCallback.isConverged()) {
+            // The preview already settled focus and exposure, the triggers would only add
+            // frames of latency. The flash needs the precapture to meter.
+            captureCallback.setState(PictureCaptureCallback.STATE_CAPTURING);
+            captureStillPicture();
+        } else if (autoFocus) {
             lockFocus();
         } else {
             captureStillPicture();
         }
     }
 
-    @Override
-    public void setVideoQuality(VideoQuality videoQuality) {
-        if (this.videoQuality == videoQuality || isRecordingVideo) return;
-        this.videoQuality = videoQuality;
+    /**
+     * Starts the next still waiting for the focus and exposure sequence, once it is back to
+     * {@link PictureCaptureCallback#STATE_PREVIEW}.
+     */
+    private void startQueuedStill() {
+        PictureRequest request = pendingStills.poll();
+        if (request == null) return;
+        if (captureSession == null) {
+            failPictureCapture(request);
+            startQueuedStill();
+            return;
+        }
+        startStill(request);
     }
 
     @Override
-    public VideoQuality getVideoQuality() {
-        return videoQuality;
+    public boolean takeBurst(int count, BurstListener listener) {
+        if (captureSession == null || imageReader == null || burstCapture != null
+                || captureScheduler.getInFlightCount() > 0) {
+            return false;
+        }
+        burstCapture = new BurstCapture(count, listener);
+        int maxImages = chooseBurstMaxImages(count);
+        if (maxImages <= imageReader.getMaxImages()) {
+            captureBurst();
+            return true;
+        }
+        // The reader is too shallow to keep up, grow it and start the burst once the new
+        // session is configured.
+        burstPending = true;
+        resetCaptureSession();
+        prepareImageReader(maxImages);
+        startCaptureSession();
+        return true;
     }
 
+    /**
+     * The frames are taken with manual exposure, relative to the one the preview metered last,
+     * so it takes a device with the MANUAL_SENSOR capability. They go to a YUV reader of their
+     * own, set up by the first bracket.
+     */
     @Override
-    public boolean startRecordingVideo(File videoFile, boolean recordAudio) {
-        return startRecordingVideo(videoFile, displayOrientation, recordAudio);
+    public boolean takeBracket(float[] exposureStops, BracketListener listener) {
+        if (captureSession == null || imageReader == null || burstCapture != null
+                || bracketCapture != null || captureScheduler.getInFlightCount() > 0
+                || !isManualSensorSupported() || previewExposureNanos == 0) {
+            return false;
+        }
+        BracketCapture bracket = new BracketCapture(exposureStops, listener, bufferPool);
+        if (bracketReader != null && bracketReader.getMaxImages()
+                >= chooseBracketMaxImages(bracket.getFrameCount())) {
+            bracketCapture = bracket;
+            captureBracket();
+            return true;
+        }
+        Size size = chooseYuvSize();
+        if (size == null) return false;
+        bracketCapture = bracket;
+        bracketPending = true;
+        resetCaptureSession();
+        prepareBracketReader(size, bracket.getFrameCount());
+        startCaptureSession();
+        return true;
     }
 
     @Override
-    public boolean startRecordingVideo(File videoFile, int rotationAngle, boolean recordAudio) {
-        if (isRecordingVideo) return false;
+    public boolean setZeroShutterLag(boolean enabled) {
+        if (zslEnabled == enabled) return true;
+        if (enabled && cameraCharacteristics != null && !isZslSupported()) return false;
+        zslEnabled = enabled;
+        if (imageReader == null) return true;
+        resetCaptureSession();
+        prepareZslReader();
+        startCaptureSession();
+        return true;
+    }
+
+    @Override
+    public boolean getZeroShutterLag() {
+        return zslEnabled;
+    }
+
+    @Override
+    public boolean setRawCapture(boolean enabled) {
+        if (rawEnabled == enabled) return true;
+        if (enabled && cameraCharacteristics != null && !isRawSupported()) return false;
+        rawEnabled = enabled;
+        if (imageReader == null) return true;
+        resetCaptureSession();
+        prepareRawReader();
+        prepareZslReader();
+        startCaptureSession();
+        return true;
+    }
+
+    @Override
+    public boolean getRawCapture() {
+        return rawEnabled;
+    }
+
+    @Override
+    public void setZslDepth(int frames) {
+        if (frames == zslDepth) return;
+        super.setZslDepth(frames);
+        if (zslReader == null) return;
+        resetCaptureSession();
+        prepareZslReader();
+        startCaptureSession();
+    }
+
+    @Override
+    protected void onFrameProcessorsChanged() {
+        updateAnalysisStream();
+    }
+
+    @Override
+    public void setFrameBackpressure(FrameDispatcher.Backpressure backpressure,
+            int queueDepth) {
+        super.setFrameBackpressure(backpressure, queueDepth);
+        updateAnalysisStream();
+    }
+
+    @Override
+    public void setAnalysisSize(Size size) {
+        if (size.equals(analysisSize)) return;
+        super.setAnalysisSize(size);
+        if (analysisStream == null) return;
+        resetCaptureSession();
+        closeAnalysisReader();
+        startCaptureSession();
+    }
+
+    /**
+     * Reconfigures the session if the analysis stream has to start, stop or change its depth.
+     */
+    private void updateAnalysisStream() {
+        if (imageReader == null) return;
+        boolean enabled = frameDispatcher.getProcessor() != null;
+        ImageStream stream = analysisStream;
+        if (stream == null ? !enabled
+                : enabled && stream.reader.getMaxImages() == chooseAnalysisMaxImages()) {
+            return;
+        }
+        resetCaptureSession();
+        closeAnalysisReader();
+        startCaptureSession();
+    }
+
+    @Override
+    public boolean setPictureFormat(int format) {
+        if (format != ImageFormat.JPEG && format != ImageFormat.YUV_420_888) return false;
+        if (pictureFormat == format) return true;
+        pictureFormat = format;
+        if (imageReader == null) return true;
+        resetCaptureSession();
+        prepareImageReader();
+        startCaptureSession();
+        return true;
+    }
+
+    @Override
+    public int getPictureFormat() {
+        return pictureFormat;
+    }
+
+    @Override
+    public void setJpegEncoder(JpegEncoder jpegEncoder) {
+        super.setJpegEncoder(jpegEncoder);
+        shutdownEncodePipeline();
+    }
+
+    @Override
+    public long getPreviewResumeLatencyNanos() {
+        return previewResumeLatencyNanos;
+    }
+
+    @Override
+    public FrameRing.Stats getZslStats() {
+        FrameRing<Image> ring = zslRing;
+        return ring != null ? ring.getStats() : null;
+    }
+
+    @Override
+    public void setVideoQuality(VideoQuality videoQuality) {
+        if (this.videoQuality == videoQuality || isRecordingVideo) return;
+        this.videoQuality = videoQuality;
+    }
+
+    @Override
+    public VideoQuality getVideoQuality() {
+        return videoQuality;
+    }
+
+    @Override
+    public boolean startRecordingVideo(File videoFile, boolean recordAudio) {
+        return startRecordingVideo(videoFile, displayOrientation, recordAudio);
+    }
+
+    @Override
+    public boolean startRecordingVideo(File videoFile, int rotationAngle, boolean recordAudio) {
+        if (isRecordingVideo) return false;
         setupMediaRecorder(videoFile, rotationAngle, recordAudio);
         try {
             mediaRecorder.prepare();
@@ -664,6 +1487,21 @@ public class Camera2 extends CameraViewImpl {
         }
         pictureSizes.clear();
         collectPictureSizes(pictureSizes, map);
+        frameRateRanges.clear();
+        Range<Integer>[] fpsRanges = cameraCharacteristics.get(
+                CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        if (fpsRanges != null) {
+            for (Range<Integer> range : fpsRanges) {
+                frameRateRanges.add(new FrameRateRange(range.getLower(), range.getUpper()));
+            }
+        }
+        analysisSizes.clear();
+        android.util.Size[] yuvSizes = map.getOutputSizes(ImageFormat.YUV_420_888);
+        if (yuvSizes != null) {
+            for (android.util.Size size : yuvSizes) {
+                analysisSizes.add(new Size(size.getWidth(), size.getHeight()));
+            }
+        }
         for (AspectRatio ratio : previewSizes.ratios()) {
             if (!pictureSizes.ratios().contains(ratio)) {
                 previewSizes.remove(ratio);
@@ -682,18 +1520,361 @@ public class Camera2 extends CameraViewImpl {
     }
 
     private void prepareImageReader() {
+        prepareImageReader(DEFAULT_MAX_IMAGES);
+    }
+
+    private void prepareImageReader(int maxImages) {
         if (pictureSizes.isEmpty() || pictureSizes.sizes(aspectRatio) == null) {
             // FIXME: 25/09/2018 Handle start, stop camera too fast
             return;
         }
-        if (imageReader != null) {
-            imageReader.close();
+        closeImageReader();
+        Size largest = pictureFormat == ImageFormat.YUV_420_888
+                ? chooseYuvSize() : pictureSizes.sizes(aspectRatio).last();
+        if (largest == null) {
+            Log.w(TAG, "No YUV output, capturing JPEG pictures.");
+            pictureFormat = ImageFormat.JPEG;
+            largest = pictureSizes.sizes(aspectRatio).last();
         }
-        Size largest = pictureSizes.sizes(aspectRatio).last();
         imageReader =
-                ImageReader.newInstance(largest.getWidth(), largest.getHeight(), ImageFormat.JPEG,
-                        2);
-        imageReader.setOnImageAvailableListener(onImageAvailableListener, backgroundHandler);
+                ImageReader.newInstance(largest.getWidth(), largest.getHeight(), pictureFormat,
+                        maxImages);
+        imageReader.setOnImageAvailableListener(onImageAvailableListener, imageHandler);
+        pictureStream = new ImageStream(imageReader);
+    }
+
+    /**
+     * Closes {@link #imageReader}, once the pictures still holding its images are released.
+     */
+    private void closeImageReader() {
+        ImageStream stream = pictureStream;
+        pictureStream = null;
+        imageReader = null;
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    /**
+     * <p>(Re)creates {@link #zslReader} and {@link #zslRing} if zero shutter lag is enabled, or
+     * releases them otherwise.</p>
+     * <p>The reader streams YUV frames at the largest size of the current aspect ratio, no
+     * larger than {@link #pictureSize}.</p>
+     */
+    private void prepareZslReader() {
+        closeZslReader();
+        if (!zslEnabled || cameraCharacteristics == null) return;
+        if (rawReader != null) {
+            // Preview, JPEG, RAW and YUV streams at once are beyond most devices
+            Log.w(TAG, "Zero shutter lag doesn't run next to RAW capture.");
+            return;
+        }
+        Size size = isZslSupported() ? chooseYuvSize() : null;
+        if (size == null) {
+            Log.w(TAG, "No YUV output for zero shutter lag, disabling it.");
+            zslEnabled = false;
+            return;
+        }
+        zslReader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                ImageFormat.YUV_420_888, zslDepth + ZSL_EXTRA_IMAGES);
+        zslReader.setOnImageAvailableListener(onZslImageAvailableListener, imageHandler);
+        long frameBytes = (long) size.getWidth() * size.getHeight()
+                * ImageFormat.getBitsPerPixel(ImageFormat.YUV_420_888) / 8;
+        zslRing = new FrameRing<>(zslDepth, frameBytes, IMAGE_RECYCLER);
+    }
+
+    private void closeZslReader() {
+        FrameRing<Image> ring = zslRing;
+        zslRing = null;
+        if (ring != null) {
+            ring.clear();
+        }
+        if (zslReader != null) {
+            zslReader.close();
+            zslReader = null;
+        }
+    }
+
+    private Size chooseYuvSize() {
+        StreamConfigurationMap map =
+                cameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map == null) return null;
+        android.util.Size[] sizes = map.getOutputSizes(ImageFormat.YUV_420_888);
+        if (sizes == null) return null;
+        Size chosen = null;
+        for (android.util.Size size : sizes) {
+            Size candidate = new Size(size.getWidth(), size.getHeight());
+            if (!aspectRatio.matches(candidate)
+                    || pictureSize != null && candidate.getWidth() > pictureSize.getWidth()) {
+                continue;
+            }
+            if (chosen == null || candidate.getWidth() > chosen.getWidth()) {
+                chosen = candidate;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Zero shutter lag runs on devices which can stream full size YUV frames next to the
+     * preview, which is guaranteed from the LIMITED hardware level up.
+     */
+    private boolean isZslSupported() {
+        if (cameraCharacteristics == null) return false;
+        Integer level =
+                cameraCharacteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+        return level != null && level != CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+    }
+
+    private boolean isRawSupported() {
+        if (cameraCharacteristics == null) return false;
+        int[] capabilities =
+                cameraCharacteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        if (capabilities == null) return false;
+        for (int capability : capabilities) {
+            if (capability == CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_RAW) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void prepareRawReader() {
+        closeRawReader();
+        if (!rawEnabled || cameraCharacteristics == null) return;
+        Size size = isRawSupported() ? chooseRawSize() : null;
+        if (size == null) {
+            Log.w(TAG, "No RAW output, disabling RAW capture.");
+            rawEnabled = false;
+            return;
+        }
+        rawReader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                ImageFormat.RAW_SENSOR, RAW_MAX_IMAGES);
+        rawReader.setOnImageAvailableListener(onRawImageAvailableListener, imageHandler);
+    }
+
+    private void closeRawReader() {
+        rawMatcher.clear();
+        final ImageReader reader = rawReader;
+        rawReader = null;
+        if (reader == null) return;
+        synchronized (this) {
+            // Closing the reader invalidates its images, let the DNG files being written finish
+            if (rawWriterHandler != null) {
+                rawWriterHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        reader.close();
+                    }
+                });
+                return;
+            }
+        }
+        reader.close();
+    }
+
+    /**
+     * RAW pictures are always full sensor, there is no cropping them to the aspect ratio.
+     */
+    private Size chooseRawSize() {
+        StreamConfigurationMap map =
+                cameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map == null) return null;
+        android.util.Size[] sizes = map.getOutputSizes(ImageFormat.RAW_SENSOR);
+        if (sizes == null) return null;
+        Size chosen = null;
+        for (android.util.Size size : sizes) {
+            if (chosen == null || (long) size.getWidth() * size.getHeight()
+                    > (long) chosen.getWidth() * chosen.getHeight()) {
+                chosen = new Size(size.getWidth(), size.getHeight());
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Holds as many frames as the burst memory budget allows, up to a whole bracket; the frames
+     * are copied as they come, so a shallower reader only slows the bracket down.
+     */
+    private int chooseBracketMaxImages(int count) {
+        Size size = chooseYuvSize();
+        if (size == null) return count;
+        long frameBytes = (long) size.getWidth() * size.getHeight()
+                * ImageFormat.getBitsPerPixel(ImageFormat.YUV_420_888) / 8;
+        long affordable = frameBytes > 0 ? burstMemoryBudget / frameBytes : count;
+        return (int) Math.max(DEFAULT_MAX_IMAGES, Math.min(count, affordable));
+    }
+
+    private void prepareBracketReader(Size size, int count) {
+        closeBracketReader();
+        bracketReader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                ImageFormat.YUV_420_888, chooseBracketMaxImages(count));
+        bracketReader.setOnImageAvailableListener(onBracketImageAvailableListener, imageHandler);
+    }
+
+    private void closeBracketReader() {
+        if (bracketReader != null) {
+            bracketReader.close();
+            bracketReader = null;
+        }
+    }
+
+    /**
+     * Opens the analysis stream, keeping the current one if it fits.
+     */
+    private void prepareAnalysisReader(Size previewSize) {
+        if (frameDispatcher.getProcessor() == null) {
+            closeAnalysisReader();
+            return;
+        }
+        Size size = analysisSizes.chooseAtLeast(aspectRatio, analysisSize);
+        if (size == null) {
+            // Devices stream YUV at the preview size next to the preview
+            size = previewSize;
+        }
+        int maxImages = chooseAnalysisMaxImages();
+        ImageStream stream = analysisStream;
+        if (stream != null && stream.reader.getWidth() == size.getWidth()
+                && stream.reader.getHeight() == size.getHeight()
+                && stream.reader.getMaxImages() == maxImages) {
+            return;
+        }
+        closeAnalysisReader();
+        ImageReader reader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                ImageFormat.YUV_420_888, maxImages);
+        reader.setOnImageAvailableListener(onAnalysisImageAvailableListener,
+                getAnalysisReaderHandler());
+        analysisStream = new ImageStream(reader);
+    }
+
+    /**
+     * Past the queue depth, frames are dropped or held back by the frame dispatcher before the
+     * reader runs out of images. Each processor with its own executor holds one more.
+     */
+    private int chooseAnalysisMaxImages() {
+        return frameDispatcher.getQueueDepth() + ANALYSIS_EXTRA_IMAGES
+                + frameFanOut.getExecutorConsumerCount();
+    }
+
+    private synchronized Handler getAnalysisReaderHandler() {
+        if (analysisReaderHandler == null) {
+            analysisReaderThread = new HandlerThread("CameraAnalysisReader");
+            analysisReaderThread.start();
+            analysisReaderHandler = new Handler(analysisReaderThread.getLooper());
+        }
+        return analysisReaderHandler;
+    }
+
+    private synchronized void stopAnalysisReaderThread() {
+        if (analysisReaderThread != null) {
+            analysisReaderThread.quitSafely();
+            analysisReaderThread = null;
+            analysisReaderHandler = null;
+        }
+    }
+
+    private void closeAnalysisReader() {
+        ImageStream stream = analysisStream;
+        analysisStream = null;
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    private boolean isManualSensorSupported() {
+        if (cameraCharacteristics == null) return false;
+        int[] capabilities =
+                cameraCharacteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        if (capabilities == null) return false;
+        for (int capability : capabilities) {
+            if (capability == CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_MANUAL_SENSOR) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called from the image and background threads, whichever completes a pair.
+     */
+    private synchronized Handler getRawWriterHandler() {
+        if (rawWriterHandler == null) {
+            rawWriterThread = new HandlerThread("CameraRawWriter");
+            rawWriterThread.start();
+            rawWriterHandler = new Handler(rawWriterThread.getLooper());
+        }
+        return rawWriterHandler;
+    }
+
+    /**
+     * Lets the DNG files already handed over finish writing.
+     */
+    private synchronized void stopRawWriterThread() {
+        if (rawWriterThread != null) {
+            rawWriterThread.quitSafely();
+            rawWriterThread = null;
+            rawWriterHandler = null;
+        }
+    }
+
+    /**
+     * Writes {@code image} as a DNG file on the RAW writer thread, and closes it.
+     */
+    private void writeRawPicture(final RawCapture capture, final Image image) {
+        final CameraCharacteristics characteristics = cameraCharacteristics;
+        getRawWriterHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                PictureWriter.Result result;
+                DngCreator creator = null;
+                try {
+                    creator = new DngCreator(characteristics, capture.result);
+                    creator.setOrientation(toExifOrientation(capture.orientation));
+                    result = pictureWriter.writeDng(creator, image, capture.request.getRawFile());
+                } catch (IllegalArgumentException e) {
+                    result = PictureWriter.Result.failure(capture.request.getRawFile(),
+                            new IOException("Cannot create the DNG metadata", e));
+                } finally {
+                    if (creator != null) {
+                        creator.close();
+                    }
+                    image.close();
+                }
+                dispatchRawPictureSaved(capture.request, result);
+            }
+        });
+    }
+
+    private static int toExifOrientation(int degrees) {
+        switch (degrees) {
+            case 90:
+                return ExifInterface.ORIENTATION_ROTATE_90;
+            case 180:
+                return ExifInterface.ORIENTATION_ROTATE_180;
+            case 270:
+                return ExifInterface.ORIENTATION_ROTATE_270;
+            default:
+                return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    /**
+     * Whether the sensor timestamps are comparable to {@link SystemClock#elapsedRealtimeNanos()},
+     * which is only reported from API 23.
+     */
+    protected boolean isSensorTimestampRealtime(CameraCharacteristics characteristics) {
+        return false;
+    }
+
+    /**
+     * Chooses how many images the reader should hold for a burst: one per frame, as long as
+     * they fit in {@link #burstMemoryBudget}.
+     */
+    private int chooseBurstMaxImages(int count) {
+        long frameBytes = (long) (imageReader.getWidth() * (long) imageReader.getHeight()
+                * JPEG_BYTES_PER_PIXEL);
+        long affordable = frameBytes > 0 ? burstMemoryBudget / frameBytes : count;
+        return (int) Math.max(DEFAULT_MAX_IMAGES, Math.min(count, affordable));
     }
 
     /**
@@ -719,12 +1900,47 @@ public class Camera2 extends CameraViewImpl {
         }
         Size previewSize = chooseOptimalSize();
         preview.setBufferSize(previewSize.getWidth(), previewSize.getHeight());
+        if (!preview.isReady()) {
+            // The surface is being resized, the preview calls back once it is done
+            return;
+        }
         Surface surface = getPreviewSurface();
         try {
-            previewRequestBuilder = camera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            List<Surface> outputs = new ArrayList<>(3);
+            outputs.add(surface);
+            outputs.add(imageReader.getSurface());
+            if (rawReader != null) {
+                outputs.add(rawReader.getSurface());
+            }
+            if (bracketReader != null) {
+                outputs.add(bracketReader.getSurface());
+            }
+            prepareAnalysisReader(previewSize);
+            ImageStream analysis = analysisStream;
+            if (analysis != null) {
+                outputs.add(analysis.reader.getSurface());
+            }
+            previewRequestBuilder = null;
+            if (zslReader != null) {
+                try {
+                    previewRequestBuilder =
+                            camera.createCaptureRequest(CameraDevice.TEMPLATE_ZERO_SHUTTER_LAG);
+                } catch (IllegalArgumentException e) {
+                    // Not supported without reprocessing, the preview template does the job too
+                }
+            }
+            if (previewRequestBuilder == null) {
+                previewRequestBuilder = camera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            }
             previewRequestBuilder.addTarget(surface);
-            camera.createCaptureSession(Arrays.asList(surface, imageReader.getSurface()),
-                    sessionCallback, backgroundHandler);
+            if (analysis != null) {
+                previewRequestBuilder.addTarget(analysis.reader.getSurface());
+            }
+            if (zslReader != null) {
+                previewRequestBuilder.addTarget(zslReader.getSurface());
+                outputs.add(zslReader.getSurface());
+            }
+            camera.createCaptureSession(outputs, sessionCallback, backgroundHandler);
         } catch (CameraAccessException e) {
             throw new RuntimeException("Failed to start camera session");
         }
@@ -820,15 +2036,31 @@ public class Camera2 extends CameraViewImpl {
     private void lockFocus() {
         previewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
                 CaptureRequest.CONTROL_AF_TRIGGER_START);
+        focusTriggered = true;
         try {
             captureCallback.setState(PictureCaptureCallback.STATE_LOCKING);
             captureSession.capture(previewRequestBuilder.build(), captureCallback,
                     backgroundHandler);
-        } catch (CameraAccessException e) {
+        } catch (CameraAccessException | IllegalStateException e) {
             Log.e(TAG, "Failed to lock focus.", e);
+            captureCallback.setState(PictureCaptureCallback.STATE_PREVIEW);
+            failPictureCapture(currentStill);
+            startQueuedStill();
         }
     }
 
+    /**
+     * Updates the internal state of the frame rate range to {@link #frameRateRange}, the
+     * template default is kept if it is {@code null}.
+     */
+    private void updateFrameRateRange() {
+        if (frameRateRange == null) return;
+        FrameRateRange range = FrameRateRange.chooseClosest(frameRateRanges, frameRateRange);
+        if (range == null) return;
+        previewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE,
+                new Range<>(range.getMin(), range.getMax()));
+    }
+
     private void updateZoom() {
         updateZoom(1f);
     }
@@ -851,83 +2083,478 @@ public class Camera2 extends CameraViewImpl {
         previewRequestBuilder.set(CaptureRequest.SCALER_CROP_REGION, rectZoom);
     }
 
+    /**
+     * Creates a still capture request targeting {@link #imageReader} with the current focus,
+     * orientation and zoom.
+     *
+     * @param rawTarget The RAW surface to capture to as well, or {@code null}
+     */
+    private CaptureRequest.Builder newStillRequestBuilder(Surface rawTarget)
+            throws CameraAccessException {
+        CaptureRequest.Builder captureRequestBuilder =
+                camera.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+        captureRequestBuilder.addTarget(imageReader.getSurface());
+        if (rawTarget != null) {
+            captureRequestBuilder.addTarget(rawTarget);
+        }
+        captureRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+                previewRequestBuilder.get(CaptureRequest.CONTROL_AF_MODE));
+        // Calculate JPEG orientation.
+        captureRequestBuilder.set(CaptureRequest.JPEG_ORIENTATION,
+                getOutputRotation(displayOrientation));
+        captureRequestBuilder.set(CaptureRequest.SCALER_CROP_REGION,
+                previewRequestBuilder.get(CaptureRequest.SCALER_CROP_REGION));
+        Size thumbnailSize = chooseJpegThumbnailSize();
+        if (thumbnailSize != null) {
+            captureRequestBuilder.set(CaptureRequest.JPEG_THUMBNAIL_SIZE,
+                    new android.util.Size(thumbnailSize.getWidth(), thumbnailSize.getHeight()));
+        }
+        return captureRequestBuilder;
+    }
+
+    /**
+     * @return The supported thumbnail size closest to {@link #jpegThumbnailSize}, or
+     * {@code null} to keep the default.
+     */
+    private Size chooseJpegThumbnailSize() {
+        if (jpegThumbnailSize == null || cameraCharacteristics == null) return null;
+        android.util.Size[] supported =
+                cameraCharacteristics.get(CameraCharacteristics.JPEG_AVAILABLE_THUMBNAIL_SIZES);
+        if (supported == null) return null;
+        List<Size> sizes = new ArrayList<>(supported.length);
+        for (android.util.Size size : supported) {
+            sizes.add(new Size(size.getWidth(), size.getHeight()));
+        }
+        return CameraUtil.chooseJpegThumbnailSize(sizes, jpegThumbnailSize);
+    }
+
+    /**
+     * Builds the still capture request for the current settings, flash included.
+     */
+    private CaptureRequest buildStillRequest(Surface rawTarget) throws CameraAccessException {
+        CaptureRequest.Builder captureRequestBuilder = newStillRequestBuilder(rawTarget);
+        switch (flash) {
+            case Constants.FLASH_OFF:
+                captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
+                        CaptureRequest.CONTROL_AE_MODE_ON);
+                captureRequestBuilder.set(CaptureRequest.FLASH_MODE,
+                        CaptureRequest.FLASH_MODE_OFF);
+                break;
+            case Constants.FLASH_ON:
+                captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
+                        CaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH);
+                break;
+            case Constants.FLASH_TORCH:
+                captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
+                        CaptureRequest.CONTROL_AE_MODE_ON);
+                captureRequestBuilder.set(CaptureRequest.FLASH_MODE,
+                        CaptureRequest.FLASH_MODE_TORCH);
+                break;
+            case Constants.FLASH_AUTO:
+                captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
+                        CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+                break;
+            case Constants.FLASH_RED_EYE:
+                captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
+                        CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+                break;
+        }
+        return captureRequestBuilder.build();
+    }
+
+    /**
+     * @return The settings a still request built now depends on.
+     */
+    private StillRequestKey newStillRequestKey(Surface rawTarget) {
+        return new StillRequestKey(camera, imageReader.getSurface(), rawTarget, flash,
+                jpegThumbnailSize,
+                previewRequestBuilder.get(CaptureRequest.CONTROL_AF_MODE),
+                getOutputRotation(displayOrientation),
+                previewRequestBuilder.get(CaptureRequest.SCALER_CROP_REGION));
+    }
+
     /**
      * Captures a still picture.
      */
     private void captureStillPicture() {
+        final PictureRequest pictureRequest = currentStill;
+        final Surface rawTarget = pictureRequest != null && pictureRequest.getRawFile() != null
+                && rawReader != null ? rawReader.getSurface() : null;
         try {
-            CaptureRequest.Builder captureRequestBuilder =
-                    camera.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-            captureRequestBuilder.addTarget(imageReader.getSurface());
-            captureRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
-                    previewRequestBuilder.get(CaptureRequest.CONTROL_AF_MODE));
-            switch (flash) {
-                case Constants.FLASH_OFF:
-                    captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-                            CaptureRequest.CONTROL_AE_MODE_ON);
-                    captureRequestBuilder.set(CaptureRequest.FLASH_MODE,
-                            CaptureRequest.FLASH_MODE_OFF);
-                    break;
-                case Constants.FLASH_ON:
-                    captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-                            CaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH);
-                    break;
-                case Constants.FLASH_TORCH:
-                    captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-                            CaptureRequest.CONTROL_AE_MODE_ON);
-                    captureRequestBuilder.set(CaptureRequest.FLASH_MODE,
-                            CaptureRequest.FLASH_MODE_TORCH);
-                    break;
-                case Constants.FLASH_AUTO:
-                    captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-                            CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
-                    break;
-                case Constants.FLASH_RED_EYE:
-                    captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-                            CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
-                    break;
+            StillRequestKey key = newStillRequestKey(rawTarget);
+            if (!key.equals(stillRequestKey)) {
+                stillRequest = buildStillRequest(rawTarget);
+                stillRequestKey = key;
             }
-            // Calculate JPEG orientation.
-            captureRequestBuilder.set(CaptureRequest.JPEG_ORIENTATION,
-                    getOutputRotation(displayOrientation));
-            captureRequestBuilder.set(CaptureRequest.SCALER_CROP_REGION,
-                    previewRequestBuilder.get(CaptureRequest.SCALER_CROP_REGION));
-            // Stop preview and capture a still picture.
-            captureSession.stopRepeating();
-            captureSession.capture(captureRequestBuilder.build(),
+            // The still is queued between preview frames, the preview keeps running
+            final int orientation = getOutputRotation(displayOrientation);
+            final long submitNanos = System.nanoTime();
+            captureSession.capture(stillRequest,
                     new CameraCaptureSession.CaptureCallback() {
+                        private long sensorTimestamp;
+
+                        @Override
+                        public void onCaptureStarted(@NonNull CameraCaptureSession session,
+                                                     @NonNull CaptureRequest request,
+                                                     long timestamp, long frameNumber) {
+                            stillShutterTimestamp = timestamp;
+                            stillFrameNumber = frameNumber;
+                            sensorTimestamp = timestamp;
+                            captureMetrics.record(CaptureMetrics.Phase.SHUTTER_LAG,
+                                    System.nanoTime() - stillStartNanos);
+                            if (pictureRequest != null) {
+                                stillMatcher.addFirst(timestamp, pictureRequest);
+                            }
+                        }
+
                         @Override
                         public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                                        @NonNull CaptureRequest request,
                                                        @NonNull TotalCaptureResult result) {
+                            long now = System.nanoTime();
+                            captureMetrics.record(CaptureMetrics.Phase.CAPTURE, now - submitNanos);
+                            stillCompletedNanos.put(sensorTimestamp, now);
+                            if (rawTarget != null) {
+                                rawMatcher.addFirst(sensorTimestamp,
+                                        new RawCapture(pictureRequest, result, orientation));
+                            }
+                            unlockFocus();
+                        }
+
+                        @Override
+                        public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                                    @NonNull CaptureRequest request,
+                                                    @NonNull CaptureFailure failure) {
+                            Log.e(TAG, "Still capture failed: " + failure.getReason());
+                            // Otherwise the image may still come, or is failed once dropped
+                            if (!failure.wasImageCaptured() && pictureRequest != null) {
+                                failPictureCapture(pictureRequest);
+                            }
                             unlockFocus();
                         }
                     }, backgroundHandler);
-        } catch (CameraAccessException e) {
+        } catch (CameraAccessException | IllegalStateException e) {
             Log.e(TAG, "Cannot capture a still picture.", e);
+            if (pictureRequest != null) {
+                failPictureCapture(pictureRequest);
+            }
+            captureCallback.setState(PictureCaptureCallback.STATE_PREVIEW);
+            startQueuedStill();
+        }
+    }
+
+    /**
+     * Takes the frame of {@link #zslRing} closest to when the picture was asked for and encodes
+     * it, skipping the focus and exposure sequence altogether.
+     *
+     * @return {@code false} if there is no frame yet, the picture then goes through the regular
+     * still sequence
+     */
+    private boolean takeZslPicture(PictureRequest request) {
+        // Without a comparable clock, the latest frame is the best guess
+        long pressNanos = request.getPressRealtimeNanos();
+        Image frame = pressNanos > 0 && isSensorTimestampRealtime(cameraCharacteristics)
+                ? zslRing.takeClosest(pressNanos) : zslRing.takeLatest();
+        if (frame == null) {
+            Log.w(TAG, "No zero shutter lag frame yet, capturing a still picture.");
+            return false;
+        }
+        if (!getEncodePipeline().submit(wrapYuvImage(frame),
+                getOutputRotation(displayOrientation), new StillEncodeCallback(request))) {
+            failPictureCapture(request);
+        }
+        return true;
+    }
+
+    /**
+     * Wraps a {@link ImageFormat#YUV_420_888} image; releasing the frame closes the image.
+     */
+    private static YuvFrame wrapYuvImage(Image image) {
+        return wrapYuvImage(image, null);
+    }
+
+    /**
+     * @param stream The stream the image was {@link ImageStream#open() opened} from, or
+     * {@code null}
+     */
+    private static YuvFrame wrapYuvImage(final Image image, final ImageStream stream) {
+        Image.Plane[] planes = image.getPlanes();
+        YuvFrame frame = new YuvFrame(image.getWidth(), image.getHeight(), planes[0].getBuffer(),
+                planes[1].getBuffer(), planes[2].getBuffer(), planes[0].getRowStride(),
+                planes[1].getRowStride(), planes[1].getPixelStride(), image.getTimestamp()) {
+            @Override
+            protected void onReleased() {
+                if (stream != null) {
+                    stream.closeImage(image);
+                } else {
+                    image.close();
+                }
+            }
+        };
+        Rect crop = image.getCropRect();
+        if (crop != null && crop.width() > 0 && crop.height() > 0) {
+            frame.setCropRect(crop.left, crop.top, crop.right, crop.bottom);
+        }
+        return frame;
+    }
+
+    /**
+     * Hands a picture to the running burst.
+     *
+     * @param picture The picture; this method takes over its reference
+     */
+    private void onPictureAvailable(long timestamp, JpegImage picture) {
+        BurstCapture burst = burstCapture;
+        if (burst == null) {
+            // The burst was aborted
+            picture.release();
+            return;
+        }
+        try {
+            if (burst.onFrame(timestamp, picture)) {
+                finishBurst(burst);
+            }
+        } finally {
+            picture.release();
+        }
+    }
+
+    /**
+     * Clears {@link #burstCapture} once {@code burst} is over, and brings {@link #imageReader}
+     * back to its default depth if the burst grew it.
+     */
+    private void finishBurst(BurstCapture burst) {
+        if (burstCapture != burst) return;
+        burstCapture = null;
+        restoreImageReaderLater();
+    }
+
+    /**
+     * Shrinks {@link #imageReader} back to {@link #DEFAULT_MAX_IMAGES} on the background thread,
+     * as soon as no burst is running and no picture is in flight. Pictures still holding images
+     * of the grown reader keep it open until they are released.
+     */
+    private void restoreImageReaderLater() {
+        Handler handler = backgroundHandler;
+        ImageReader reader = imageReader;
+        if (handler == null || reader == null || reader.getMaxImages() <= DEFAULT_MAX_IMAGES) {
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (imageReader == null || imageReader.getMaxImages() <= DEFAULT_MAX_IMAGES
+                        || burstCapture != null || burstPending || captureSession == null
+                        || captureScheduler.getInFlightCount() > 0) {
+                    return;
+                }
+                resetCaptureSession();
+                prepareImageReader();
+                startCaptureSession();
+            }
+        });
+    }
+
+    /**
+     * Submits the frames of {@link #burstCapture} as a single burst. The preview keeps running
+     * and the flash stays off (except for torch), it can't recharge at burst rates.
+     */
+    private void captureBurst() {
+        final BurstCapture burst = burstCapture;
+        if (burst == null) return;
+        try {
+            StillRequestKey key = newStillRequestKey(null);
+            if (!key.equals(burstRequestKey)) {
+                CaptureRequest.Builder captureRequestBuilder = newStillRequestBuilder(null);
+                captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
+                        CaptureRequest.CONTROL_AE_MODE_ON);
+                captureRequestBuilder.set(CaptureRequest.FLASH_MODE,
+                        flash == Constants.FLASH_TORCH ? CaptureRequest.FLASH_MODE_TORCH
+                                : CaptureRequest.FLASH_MODE_OFF);
+                burstRequest = captureRequestBuilder.build();
+                burstRequestKey = key;
+            }
+            List<CaptureRequest> requests =
+                    Collections.nCopies(burst.getFrameCount(), burstRequest);
+            captureSession.captureBurst(requests, new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                            @NonNull CaptureRequest request,
+                                            @NonNull CaptureFailure failure) {
+                    if (!failure.wasImageCaptured() && burst.onFrameFailed()) {
+                        finishBurst(burst);
+                    }
+                }
+            }, backgroundHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(TAG, "Cannot capture a burst.", e);
+            abortBurst();
+            restoreImageReaderLater();
+        }
+    }
+
+    /**
+     * Reports the missing frames of {@link #burstCapture} as failed, so its listener gets
+     * completed.
+     */
+    private void abortBurst() {
+        BurstCapture burst = burstCapture;
+        burstCapture = null;
+        burstPending = false;
+        if (burst == null) return;
+        while (!burst.onFrameFailed()) {
+            // Keep going until every frame is accounted for
+        }
+    }
+
+    /**
+     * Submits the frames of {@link #bracketCapture} as a single burst, each with its own manual
+     * exposure. Exposures beyond the sensor range are made up with sensitivity, as far as it
+     * goes. The preview keeps running and the flash stays off.
+     */
+    private void captureBracket() {
+        final BracketCapture bracket = bracketCapture;
+        if (bracket == null) return;
+        try {
+            Range<Long> exposureRange = cameraCharacteristics.get(
+                    CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE);
+            Range<Integer> sensitivityRange =
+                    cameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE);
+            long baseExposure = previewExposureNanos;
+            int baseSensitivity = previewSensitivity;
+            List<CaptureRequest> requests = new ArrayList<>(bracket.getFrameCount());
+            for (int i = 0; i < bracket.getFrameCount(); i++) {
+                double exposure = baseExposure * Math.pow(2, bracket.getExposureStops(i));
+                long exposureNanos = (long) exposure;
+                if (exposureRange != null) {
+                    exposureNanos = exposureRange.clamp(exposureNanos);
+                }
+                int sensitivity = (int) Math.round(baseSensitivity * exposure / exposureNanos);
+                if (sensitivityRange != null) {
+                    sensitivity = sensitivityRange.clamp(sensitivity);
+                }
+                CaptureRequest.Builder builder =
+                        camera.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+                builder.addTarget(bracketReader.getSurface());
+                builder.set(CaptureRequest.CONTROL_AF_MODE,
+                        previewRequestBuilder.get(CaptureRequest.CONTROL_AF_MODE));
+                builder.set(CaptureRequest.SCALER_CROP_REGION,
+                        previewRequestBuilder.get(CaptureRequest.SCALER_CROP_REGION));
+                builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
+                builder.set(CaptureRequest.FLASH_MODE, CaptureRequest.FLASH_MODE_OFF);
+                builder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, exposureNanos);
+                builder.set(CaptureRequest.SENSOR_SENSITIVITY, sensitivity);
+                requests.add(builder.build());
+            }
+            captureSession.captureBurst(requests, new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                            @NonNull CaptureRequest request,
+                                            @NonNull CaptureFailure failure) {
+                    if (!failure.wasImageCaptured() && bracket.onFrameFailed()) {
+                        mergeBracket(bracket);
+                    }
+                }
+            }, backgroundHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(TAG, "Cannot capture a bracket.", e);
+            abortBracket(e);
+        }
+    }
+
+    /**
+     * Merges the frames of a complete bracket on the {@link ExposureFusion} pool, then encodes
+     * the result on the {@link JpegEncodePipeline}.
+     */
+    private void mergeBracket(final BracketCapture bracket) {
+        if (!bracket.finish()) return;
+        if (bracketCapture == bracket) {
+            bracketCapture = null;
+        }
+        final BracketListener listener = bracket.getListener();
+        final byte[][] frames = bracket.getFrames();
+        if (frames.length == 0) {
+            bracket.release();
+            listener.onBracketFailed(new IOException("No bracket frame was captured"));
+            return;
         }
+        final int width = bracket.getWidth();
+        final int height = bracket.getHeight();
+        final int rotation = getOutputRotation(displayOrientation);
+        ExposureFusion.Callback fuseCallback = new ExposureFusion.Callback() {
+            @Override
+            public void onFused(byte[] out) {
+                YuvFrame merged = YuvFrame.wrapNv21(out, width, height, bracket.getTimestamp());
+                // The copy to NV21 comes first, the buffers can go back as soon as it's done
+                boolean submitted = getEncodePipeline().submit(merged, rotation,
+                        new JpegEncodePipeline.Callback() {
+                            @Override
+                            public void onEncoded(long timestamp, JpegImage image) {
+                                bracket.release();
+                                listener.onBracketCompleted(frames.length, image);
+                            }
+
+                            @Override
+                            public void onEncodeFailed(long timestamp, Exception error) {
+                                bracket.release();
+                                listener.onBracketFailed(error);
+                            }
+                        });
+                if (!submitted) {
+                    bracket.release();
+                    listener.onBracketFailed(new IOException("The encoder is busy"));
+                }
+            }
+
+            @Override
+            public void onFuseFailed(RuntimeException error) {
+                bracket.release();
+                listener.onBracketFailed(error);
+            }
+        };
+        try {
+            // In place, over the first frame
+            getExposureFusion().fuseAsync(frames, width, height, frames[0], fuseCallback);
+        } catch (RuntimeException e) {
+            fuseCallback.onFuseFailed(e);
+        }
+    }
+
+    /**
+     * Fails {@link #bracketCapture}, if any.
+     */
+    private void abortBracket(Exception error) {
+        BracketCapture bracket = bracketCapture;
+        bracketCapture = null;
+        bracketPending = false;
+        if (bracket == null || !bracket.finish()) return;
+        bracket.release();
+        bracket.getListener().onBracketFailed(error);
     }
 
     /**
-     * Unlocks the auto-focus and restartCamera camera preview. This is supposed to be called after
-     * capturing a still picture.
+     * Unlocks the auto-focus after capturing a still picture. The preview kept running, only
+     * the settings used for the next stills are reset.
      */
     private void unlockFocus() {
-        previewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
-                CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
         try {
-            captureSession.capture(previewRequestBuilder.build(), captureCallback,
-                    backgroundHandler);
+            // Without a trigger, cancelling would only make continuous focus scan again
+            if (focusTriggered) {
+                focusTriggered = false;
+                previewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                        CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
+                captureSession.capture(previewRequestBuilder.build(), captureCallback,
+                        backgroundHandler);
+            }
             updateAutoFocus();
             updateFlash();
             previewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
                     CaptureRequest.CONTROL_AF_TRIGGER_IDLE);
-            captureSession.setRepeatingRequest(previewRequestBuilder.build(), captureCallback,
-                    backgroundHandler);
-            captureCallback.setState(PictureCaptureCallback.STATE_PREVIEW);
         } catch (CameraAccessException e) {
-            Log.e(TAG, "Failed to restartCamera camera preview.", e);
+            Log.e(TAG, "Failed to unlock the focus.", e);
         }
+        captureCallback.setState(PictureCaptureCallback.STATE_PREVIEW);
+        startQueuedStill();
     }
 
     private void setupMediaRecorder(File file, int rotationAngle, boolean recordAudio) {
@@ -1017,6 +2644,139 @@ public class Camera2 extends CameraViewImpl {
         captureSession = null;
     }
 
+    /**
+     * A reader with the count of its images still held, by frame processors or by pictures.
+     * Closing the reader invalidates its images, so it only closes once the last of them is
+     * released.
+     */
+    private static final class ImageStream {
+
+        final ImageReader reader;
+        private int openImages;
+        private boolean closed;
+
+        ImageStream(ImageReader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * @return {@code false} if the stream is closed; the image must be closed then.
+         */
+        synchronized boolean open() {
+            if (closed) return false;
+            openImages++;
+            return true;
+        }
+
+        void closeImage(Image image) {
+            image.close();
+            synchronized (this) {
+                openImages--;
+                if (closed && openImages == 0) {
+                    reader.close();
+                }
+            }
+        }
+
+        synchronized void close() {
+            if (closed) return;
+            closed = true;
+            if (openImages == 0) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * An image of {@link #imageReader} waiting for the still request it was captured for.
+     */
+    private static final class StillImage {
+
+        final Image image;
+        final ImageStream stream;
+
+        StillImage(Image image, ImageStream stream) {
+            this.image = image;
+            this.stream = stream;
+        }
+
+        void close() {
+            stream.closeImage(image);
+        }
+    }
+
+    /**
+     * What a RAW image needs from its still request to be written.
+     */
+    private static final class RawCapture {
+
+        final PictureRequest request;
+        final TotalCaptureResult result;
+        final int orientation;
+
+        RawCapture(PictureRequest request, TotalCaptureResult result, int orientation) {
+            this.request = request;
+            this.result = result;
+            this.orientation = orientation;
+        }
+    }
+
+    /**
+     * The settings a cached still request was built for: the camera and readers it targets
+     * (replaced along with the picture size), flash, thumbnail size, focus mode, orientation and
+     * zoom crop.
+     */
+    private static final class StillRequestKey {
+
+        private final CameraDevice camera;
+        private final Surface target;
+        private final Surface rawTarget;
+        private final int flash;
+        private final Size thumbnailSize;
+        private final Integer afMode;
+        private final int orientation;
+        private final Rect crop;
+
+        StillRequestKey(CameraDevice camera, Surface target, Surface rawTarget, int flash,
+                Size thumbnailSize, Integer afMode, int orientation, Rect crop) {
+            this.camera = camera;
+            this.target = target;
+            this.rawTarget = rawTarget;
+            this.flash = flash;
+            this.thumbnailSize = thumbnailSize;
+            this.afMode = afMode;
+            this.orientation = orientation;
+            this.crop = crop;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof StillRequestKey)) return false;
+            StillRequestKey that = (StillRequestKey) o;
+            return camera == that.camera && target == that.target
+                    && rawTarget == that.rawTarget
+                    && flash == that.flash && orientation == that.orientation
+                    && (thumbnailSize == null ? that.thumbnailSize == null
+                    : thumbnailSize.equals(that.thumbnailSize))
+                    && (afMode == null ? that.afMode == null : afMode.equals(that.afMode))
+                    && (crop == null ? that.crop == null : crop.equals(that.crop));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(camera);
+            result = 31 * result + System.identityHashCode(target);
+            result = 31 * result + System.identityHashCode(rawTarget);
+            result = 31 * result + flash;
+            result = 31 * result + (thumbnailSize != null ? thumbnailSize.hashCode() : 0);
+            result = 31 * result + (afMode != null ? afMode.hashCode() : 0);
+            result = 31 * result + orientation;
+            result = 31 * result + (crop != null ? crop.hashCode() : 0);
+            return result;
+        }
+    }
+
     /**
      * A {@link CameraCaptureSession.CaptureCallback} for capturing a still picture.
      */
@@ -1032,11 +2792,85 @@ public class Camera2 extends CameraViewImpl {
 
         private int mState;
 
+        private long mStateNanos;
+
+        private long mFocusTimeoutNanos;
+
+        private long mExposureTimeoutNanos;
+
+        /** When the running phase gives up and captures anyway, 0 for never */
+        private long mDeadlineNanos;
+
+        /** States reported by the latest preview result, or {@code null} */
+        private Integer mPreviewAfState;
+
+        private Integer mPreviewAeState;
+
         PictureCaptureCallback() {
         }
 
         void setState(int state) {
+            long now = System.nanoTime();
+            if (state != mState) {
+                onStateLeft(mState, now - mStateNanos);
+            }
+            switch (state) {
+                case STATE_LOCKING:
+                    mDeadlineNanos = deadline(now, mFocusTimeoutNanos);
+                    break;
+                case STATE_PRECAPTURE:
+                    mDeadlineNanos = deadline(now, mExposureTimeoutNanos);
+                    break;
+                case STATE_WAITING:
+                    // Shares the precapture budget
+                    break;
+                default:
+                    mDeadlineNanos = 0;
+                    break;
+            }
             mState = state;
+            mStateNanos = now;
+        }
+
+        private static long deadline(long now, long timeoutNanos) {
+            return timeoutNanos > 0 ? now + timeoutNanos : 0;
+        }
+
+        /**
+         * @param focusMillis How long to wait for the focus to lock, 0 or less to wait forever
+         * @param exposureMillis How long to wait for the exposure to converge, 0 or less to wait
+         * forever
+         */
+        void setTimeouts(long focusMillis, long exposureMillis) {
+            mFocusTimeoutNanos = focusMillis * 1000000L;
+            mExposureTimeoutNanos = exposureMillis * 1000000L;
+        }
+
+        /**
+         * @return {@code true} if the preview reports both the focus and the exposure as
+         * settled, so a still can be taken right away.
+         */
+        boolean isConverged() {
+            Integer af = mPreviewAfState;
+            Integer ae = mPreviewAeState;
+            return af != null && ae != null
+                    && (af == CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED
+                    || af == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED)
+                    && (ae == CaptureResult.CONTROL_AE_STATE_CONVERGED
+                    || ae == CaptureResult.CONTROL_AE_STATE_LOCKED);
+        }
+
+        /**
+         * Called when the state changes.
+         *
+         * @param state The state left
+         * @param nanos The time spent in {@code state}
+         */
+        void onStateLeft(int state, long nanos) {
+        }
+
+        int getState() {
+            return mState;
         }
 
         @Override
@@ -1052,7 +2886,19 @@ public class Camera2 extends CameraViewImpl {
         }
 
         private void process(@NonNull CaptureResult result) {
+            if (mDeadlineNanos != 0 && System.nanoTime() - mDeadlineNanos > 0) {
+                // Low texture or low light can keep the 3A from ever settling
+                Log.w(TAG, "Capturing without convergence, state " + mState + " timed out.");
+                setState(STATE_CAPTURING);
+                onReady();
+                return;
+            }
             switch (mState) {
+                case STATE_PREVIEW: {
+                    mPreviewAfState = result.get(CaptureResult.CONTROL_AF_STATE);
+                    mPreviewAeState = result.get(CaptureResult.CONTROL_AE_STATE);
+                    break;
+                }
                 case STATE_LOCKING: {
                     Integer af = result.get(CaptureResult.CONTROL_AF_STATE);
                     if (af == null) {
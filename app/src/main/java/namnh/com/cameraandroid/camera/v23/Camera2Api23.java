@@ -19,6 +19,7 @@ package namnh.com.cameraandroid.camera.v23;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import namnh.com.cameraandroid.camera.CameraViewImpl;
 import namnh.com.cameraandroid.camera.PreviewImpl;
@@ -47,4 +48,11 @@ public class Camera2Api23 extends Camera2 {
         }
     }
 
+    @Override
+    protected boolean isSensorTimestampRealtime(CameraCharacteristics characteristics) {
+        Integer source = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+        return source != null
+                && source == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+    }
+
 }
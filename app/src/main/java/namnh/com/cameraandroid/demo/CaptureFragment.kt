@@ -1,9 +1,6 @@
 package namnh.com.cameraandroid.demo
 
 import android.os.Bundle
-import android.os.Environment
-import android.os.Handler
-import android.os.HandlerThread
 import android.support.v4.app.Fragment
 import android.util.Log
 import android.view.LayoutInflater
@@ -13,12 +10,11 @@ import android.widget.Toast
 import kotlinx.android.synthetic.main.fragment_capture.*
 import namnh.com.cameraandroid.R
 import namnh.com.cameraandroid.camera.CameraView
+import namnh.com.cameraandroid.camera.base.JpegImage
+import namnh.com.cameraandroid.camera.base.MediaWriter
+import namnh.com.cameraandroid.camera.base.PictureWriter
 import java.io.File
-import java.io.FileOutputStream
 import java.io.IOException
-import java.io.OutputStream
-import java.text.SimpleDateFormat
-import java.util.*
 
 
 class CaptureFragment : Fragment() {
@@ -28,8 +24,6 @@ class CaptureFragment : Fragment() {
         fun newInstance() = CaptureFragment()
     }
 
-    private var backgroundHandler: Handler? = null
-
     override fun onCreateView(inflater: LayoutInflater, container: ViewGroup?,
                               savedInstanceState: Bundle?): View? {
         return inflater.inflate(R.layout.fragment_capture, container, false)
@@ -58,47 +52,39 @@ class CaptureFragment : Fragment() {
             camera.takePicture()
         }
 
+        val mediaWriter = Storage.mediaWriter(requireContext())
         camera.addCallback(object : CameraView.Callback() {
-            override fun onPictureTaken(cameraView: CameraView?, data: ByteArray?) {
-                super.onPictureTaken(cameraView, data)
-                Log.d(TAG, "onPictureTaken " + data?.size)
-                val file = getPictureFile()
-                Toast.makeText(context, "Picture is taken ! ${file?.path}", Toast.LENGTH_SHORT).show()
-                getBackgroundHandler()?.post {
-                    var os: OutputStream? = null
-                    try {
-                        os = FileOutputStream(file)
-                        os.write(data)
-                    } catch (e: IOException) {
-                        Log.e(TAG, "Can not write taken picture !")
-                    } finally {
-                        os?.close()
+            override fun onPictureTaken(cameraView: CameraView?, image: JpegImage) {
+                val file = getPictureFile(mediaWriter)
+                if (file == null || !mediaWriter.write(image, file, onPictureWritten)) {
+                    activity?.runOnUiThread {
+                        Toast.makeText(context, "Can not save picture !",
+                                Toast.LENGTH_SHORT).show()
                     }
                 }
             }
         })
     }
 
-    private fun getBackgroundHandler(): Handler? {
-        if (backgroundHandler == null) {
-            val thread = HandlerThread("background")
-            thread.start()
-            backgroundHandler = Handler(thread.looper)
+    private val onPictureWritten = MediaWriter.Callback { result: PictureWriter.Result ->
+        Log.d(TAG, "onPictureWritten $result")
+        if (!result.isSuccessful) {
+            Log.e(TAG, "Can not write taken picture !", result.error)
+            return@Callback
+        }
+        activity?.runOnUiThread {
+            Toast.makeText(context, "Picture is taken ! ${result.file?.path}",
+                    Toast.LENGTH_SHORT).show()
         }
-        return backgroundHandler
     }
 
-
-    private fun getPictureFile(): File? {
-        val mediaStorageDir = File(Environment.getExternalStoragePublicDirectory(
-                Environment.DIRECTORY_DCIM), getString(R.string.app_name))
-        if (!mediaStorageDir.exists()) {
-            if (!mediaStorageDir.mkdirs()) return null
+    private fun getPictureFile(mediaWriter: MediaWriter): File? {
+        return try {
+            mediaWriter.newFile("PIC_", ".jpg")
+        } catch (e: IOException) {
+            Log.e(TAG, "Can not create picture file !", e)
+            null
         }
-
-        val timeStamp = SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(Date())
-
-        return File(mediaStorageDir.path + File.separator + "PIC_" + timeStamp + ".jpg")
     }
 
     override fun onResume() {
@@ -110,12 +96,4 @@ class CaptureFragment : Fragment() {
         camera.stop()
         super.onPause()
     }
-
-    override fun onDestroy() {
-        super.onDestroy()
-        if (backgroundHandler != null) {
-            backgroundHandler?.looper?.quit()
-            backgroundHandler = null
-        }
-    }
 }
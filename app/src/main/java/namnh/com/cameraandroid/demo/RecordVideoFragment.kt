@@ -1,7 +1,6 @@
 package namnh.com.cameraandroid.demo
 
 import android.os.Bundle
-import android.os.Environment
 import android.os.SystemClock
 import android.support.v4.app.Fragment
 import android.view.LayoutInflater
@@ -13,8 +12,7 @@ import kotlinx.android.synthetic.main.fragment_record_video.*
 import namnh.com.cameraandroid.R
 import namnh.com.cameraandroid.camera.CameraView
 import java.io.File
-import java.text.SimpleDateFormat
-import java.util.*
+import java.io.IOException
 
 class RecordVideoFragment : Fragment() {
 
@@ -104,15 +102,11 @@ class RecordVideoFragment : Fragment() {
     }
 
     private fun getVideoFile(): File? {
-        val mediaStorageDir = File(Environment.getExternalStoragePublicDirectory(
-                Environment.DIRECTORY_DCIM), getString(R.string.app_name))
-        if (!mediaStorageDir.exists()) {
-            if (!mediaStorageDir.mkdirs()) return null
+        return try {
+            Storage.mediaWriter(requireContext()).newFile("VID_", ".mp4")
+        } catch (e: IOException) {
+            null
         }
-
-        val timeStamp = SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(Date())
-
-        return File(mediaStorageDir.path + File.separator + "VID_" + timeStamp + ".mp4")
     }
 
     override fun onResume() {
@@ -0,0 +1,23 @@
+package namnh.com.cameraandroid.demo
+
+import android.content.Context
+import android.os.Environment
+import namnh.com.cameraandroid.R
+import namnh.com.cameraandroid.camera.base.MediaWriter
+import java.io.File
+
+/**
+ * The media writer shared by every screen, so they all save on one thread and name files
+ * without colliding.
+ */
+object Storage {
+
+    private var mediaWriter: MediaWriter? = null
+
+    @Synchronized
+    fun mediaWriter(context: Context): MediaWriter {
+        return mediaWriter ?: MediaWriter(File(Environment.getExternalStoragePublicDirectory(
+                Environment.DIRECTORY_DCIM), context.getString(R.string.app_name)))
+                .also { mediaWriter = it }
+    }
+}
@@ -0,0 +1,131 @@
+package namnh.com.cameraandroid.camera.base;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import android.content.ComponentCallbacks2;
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void acquire_roundsUpToQuarterPowerOfTwo() {
+        BufferPool pool = new BufferPool(0);
+
+        assertEquals(4096, pool.acquire(1).length);
+        assertEquals(4096, pool.acquire(4096).length);
+        assertEquals(5120, pool.acquire(4097).length);
+        assertEquals(5120, pool.acquire(5120).length);
+        assertEquals(6144, pool.acquire(5121).length);
+        assertEquals(7168, pool.acquire(7000).length);
+        assertEquals(8192, pool.acquire(7169).length);
+        assertEquals(10240, pool.acquire(8193).length);
+        assertEquals(1310720, pool.acquire(1200000).length);
+    }
+
+    @Test
+    public void acquire_negativeLengthGivesEmptyBuffer() {
+        BufferPool pool = new BufferPool(0);
+
+        assertEquals(0, pool.acquire(-1).length);
+        assertEquals(1, pool.getStats().getMissCount());
+    }
+
+    @Test
+    public void release_servesBufferOfFloorClass() {
+        BufferPool pool = new BufferPool(1 << 20);
+        byte[] buffer = new byte[6000];
+        pool.release(buffer);
+
+        // 6000 bytes only fit the 5120 class
+        assertNotSame(buffer, pool.acquire(6144));
+        assertSame(buffer, pool.acquire(5000));
+        assertEquals(0, pool.getStats().getRetainedBytes());
+    }
+
+    @Test
+    public void release_ignoresSmallBuffers() {
+        BufferPool pool = new BufferPool(1 << 20);
+        pool.release(new byte[4095]);
+
+        assertEquals(0, pool.getStats().getRetainedBytes());
+    }
+
+    @Test
+    public void release_evictsAboveMaxBytes() {
+        BufferPool pool = new BufferPool(10000);
+        pool.release(new byte[8192]);
+        pool.release(new byte[8192]);
+
+        BufferPool.Stats stats = pool.getStats();
+        assertEquals(8192, stats.getRetainedBytes());
+        assertEquals(1, stats.getEvictionCount());
+    }
+
+    @Test
+    public void getStats_countsHitsAndMisses() {
+        BufferPool pool = new BufferPool(1 << 20);
+        pool.release(pool.acquire(5000));
+        pool.acquire(5000);
+
+        BufferPool.Stats stats = pool.getStats();
+        assertEquals(1, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(0.5f, stats.getHitRate(), 0f);
+    }
+
+    @Test
+    public void trimToSize_dropsLargestFirst() {
+        BufferPool pool = new BufferPool(1 << 20);
+        byte[] small = new byte[4096];
+        pool.release(small);
+        pool.release(new byte[65536]);
+        pool.trimToSize(10000);
+
+        assertEquals(4096, pool.getStats().getRetainedBytes());
+        assertSame(small, pool.acquire(4096));
+    }
+
+    @Test
+    public void trimMemory_runningLowHalves() {
+        BufferPool pool = new BufferPool(1 << 20);
+        pool.release(new byte[8192]);
+        pool.release(new byte[8192]);
+        pool.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+
+        assertEquals(8192, pool.getStats().getRetainedBytes());
+    }
+
+    @Test
+    public void trimMemory_criticalOrHiddenClears() {
+        BufferPool pool = new BufferPool(1 << 20);
+        pool.release(new byte[8192]);
+        pool.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+        assertEquals(0, pool.getStats().getRetainedBytes());
+
+        pool.release(new byte[8192]);
+        pool.trimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(0, pool.getStats().getRetainedBytes());
+    }
+
+    @Test
+    public void trimMemory_moderateKeepsEverything() {
+        BufferPool pool = new BufferPool(1 << 20);
+        pool.release(new byte[8192]);
+        pool.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+
+        assertEquals(8192, pool.getStats().getRetainedBytes());
+    }
+
+    @Test
+    public void setMaxBytes_trimsDown() {
+        BufferPool pool = new BufferPool(1 << 20);
+        pool.release(new byte[8192]);
+        pool.release(new byte[4096]);
+        pool.setMaxBytes(5000);
+
+        assertEquals(4096, pool.getStats().getRetainedBytes());
+        assertEquals(5000, pool.getStats().getMaxBytes());
+    }
+}
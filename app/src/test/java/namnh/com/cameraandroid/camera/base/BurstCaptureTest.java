@@ -0,0 +1,102 @@
+package namnh.com.cameraandroid.camera.base;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class BurstCaptureTest {
+
+    private final List<Integer> indexes = new ArrayList<>();
+
+    private final List<Long> timestamps = new ArrayList<>();
+
+    private int completedCount;
+
+    private int completedFrames = -1;
+
+    private float completedFps;
+
+    private final BurstListener listener = new BurstListener() {
+        @Override
+        public void onBurstFrame(int index, long timestamp, JpegImage image) {
+            indexes.add(index);
+            timestamps.add(timestamp);
+        }
+
+        @Override
+        public void onBurstCompleted(int frameCount, float framesPerSecond) {
+            completedCount++;
+            completedFrames = frameCount;
+            completedFps = framesPerSecond;
+        }
+    };
+
+    private static JpegImage image() {
+        return JpegImage.wrap(new byte[]{1, 2, 3});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsEmptyBurst() {
+        new BurstCapture(0, listener);
+    }
+
+    @Test
+    public void onFrame_numbersFramesInOrder() {
+        BurstCapture burst = new BurstCapture(3, listener);
+
+        assertFalse(burst.onFrame(1000, image()));
+        assertFalse(burst.onFrame(2000, image()));
+        assertEquals(0, completedCount);
+        assertTrue(burst.onFrame(3000, image()));
+
+        assertEquals(Arrays.asList(0, 1, 2), indexes);
+        assertEquals(Arrays.asList(1000L, 2000L, 3000L), timestamps);
+        assertTrue(burst.isDone());
+        assertEquals(1, completedCount);
+        assertEquals(3, completedFrames);
+    }
+
+    @Test
+    public void onFrame_reportsSustainedRate() {
+        BurstCapture burst = new BurstCapture(3, listener);
+        assertEquals(0f, burst.getFramesPerSecond(), 0f);
+
+        burst.onFrame(0, image());
+        assertEquals(0f, burst.getFramesPerSecond(), 0f);
+        burst.onFrame(50000000L, image());
+        burst.onFrame(100000000L, image());
+
+        assertEquals(20f, completedFps, 0.001f);
+    }
+
+    @Test
+    public void onFrameFailed_countsTowardsCompletion() {
+        BurstCapture burst = new BurstCapture(3, listener);
+
+        assertFalse(burst.onFrame(1000, image()));
+        assertFalse(burst.onFrameFailed());
+        assertTrue(burst.onFrame(2000, image()));
+
+        // The index follows the delivered frames, failed ones leave no gap
+        assertEquals(Arrays.asList(0, 1), indexes);
+        assertEquals(2, completedFrames);
+    }
+
+    @Test
+    public void onFrameFailed_completesOnlyOnce() {
+        BurstCapture burst = new BurstCapture(2, listener);
+
+        assertFalse(burst.onFrameFailed());
+        assertTrue(burst.onFrameFailed());
+        assertTrue(burst.onFrameFailed());
+
+        assertEquals(1, completedCount);
+        assertEquals(0, completedFrames);
+        assertEquals(0f, completedFps, 0f);
+    }
+}
@@ -0,0 +1,177 @@
+package namnh.com.cameraandroid.camera.base;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CaptureSchedulerTest {
+
+    private final List<PictureRequest> started = new ArrayList<>();
+
+    private boolean accept = true;
+
+    private CaptureScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new CaptureScheduler(new CaptureScheduler.Starter() {
+            @Override
+            public boolean startCapture(PictureRequest request) {
+                started.add(request);
+                return accept;
+            }
+        });
+        scheduler.setMaxInFlight(2);
+        scheduler.setQueueCapacity(1);
+    }
+
+    @Test
+    public void submit_startsUpToMaxInFlightThenQueues() {
+        PictureRequest first = scheduler.submit(null, null, null);
+        PictureRequest second = scheduler.submit(null, null, null);
+        PictureRequest third = scheduler.submit(null, null, null);
+
+        assertEquals(2, started.size());
+        assertEquals(PictureRequest.Status.IN_FLIGHT, first.getStatus());
+        assertEquals(PictureRequest.Status.IN_FLIGHT, second.getStatus());
+        assertEquals(PictureRequest.Status.QUEUED, third.getStatus());
+
+        assertSame(first, scheduler.onCaptureCompleted());
+        scheduler.finish(first, null);
+        assertEquals(PictureRequest.Status.COMPLETED, first.getStatus());
+        assertEquals(3, started.size());
+        assertSame(third, started.get(2));
+        assertEquals(PictureRequest.Status.IN_FLIGHT, third.getStatus());
+    }
+
+    @Test
+    public void submit_dropsWhenQueueIsFull() {
+        scheduler.submit(null, null, null);
+        scheduler.submit(null, null, null);
+        scheduler.submit(null, null, null);
+        PictureRequest dropped = scheduler.submit(null, null, null);
+
+        assertEquals(PictureRequest.Status.DROPPED, dropped.getStatus());
+        assertTrue(dropped.isDone());
+        assertEquals(1, scheduler.getStats().getDroppedCount());
+    }
+
+    @Test
+    public void submit_coalescesIntoLastQueued() {
+        scheduler.setOverflowPolicy(CaptureScheduler.OverflowPolicy.COALESCE);
+        scheduler.submit(null, null, null);
+        scheduler.submit(null, null, null);
+        PictureRequest queued = scheduler.submit(null, null, null);
+        PictureRequest coalesced = scheduler.submit(null, null, null);
+
+        assertEquals(1, queued.getCoalescedRequests().size());
+        assertSame(coalesced, queued.getCoalescedRequests().get(0));
+
+        scheduler.onCaptureCompleted();
+        scheduler.onCaptureCompleted();
+        assertSame(queued, scheduler.onCaptureCompleted());
+        assertFalse(coalesced.isDone());
+        scheduler.finish(coalesced, null);
+        assertEquals(PictureRequest.Status.COMPLETED, coalesced.getStatus());
+    }
+
+    @Test
+    public void submit_neverCoalescesIntoInFlight() {
+        scheduler.setQueueCapacity(0);
+        scheduler.setOverflowPolicy(CaptureScheduler.OverflowPolicy.COALESCE);
+        PictureRequest first = scheduler.submit(null, null, null);
+        scheduler.submit(null, null, null);
+        PictureRequest third = scheduler.submit(null, null, null);
+
+        assertTrue(first.getCoalescedRequests().isEmpty());
+        assertEquals(PictureRequest.Status.DROPPED, third.getStatus());
+        assertEquals(1, scheduler.getStats().getDroppedCount());
+        assertEquals(0, scheduler.getStats().getCoalescedCount());
+    }
+
+    @Test
+    public void addCoalesced_refusedOnceInFlight() {
+        PictureRequest first = scheduler.submit(null, null, null);
+        PictureRequest other = new PictureRequest(99, null, null, null, 0, null);
+
+        assertFalse(first.addCoalesced(other));
+        assertTrue(first.getCoalescedRequests().isEmpty());
+    }
+
+    @Test
+    public void submit_keepsPressTime() {
+        PictureRequest request = scheduler.submit(null, null, null, 1234, null);
+
+        assertEquals(1234, request.getPressRealtimeNanos());
+        assertEquals(0, scheduler.submit(null, null, null).getPressRealtimeNanos());
+    }
+
+    @Test
+    public void onCaptureCompleted_completesGivenRequestOutOfOrder() {
+        PictureRequest first = scheduler.submit(null, null, null);
+        PictureRequest second = scheduler.submit(null, null, null);
+        PictureRequest third = scheduler.submit(null, null, null);
+
+        assertTrue(scheduler.onCaptureCompleted(second));
+        assertEquals(PictureRequest.Status.IN_FLIGHT, first.getStatus());
+        assertEquals(PictureRequest.Status.IN_FLIGHT, third.getStatus());
+        assertFalse(scheduler.onCaptureCompleted(second));
+        assertSame(first, scheduler.peekInFlight());
+
+        assertTrue(scheduler.onCaptureFailed(third));
+        assertEquals(PictureRequest.Status.FAILED, third.getStatus());
+        assertFalse(scheduler.onCaptureFailed(third));
+        assertSame(first, scheduler.onCaptureCompleted());
+    }
+
+    @Test
+    public void onCaptureFailed_failsOldestAndStartsNext() {
+        PictureRequest first = scheduler.submit(null, null, null);
+        scheduler.submit(null, null, null);
+        PictureRequest third = scheduler.submit(null, null, null);
+
+        assertSame(first, scheduler.onCaptureFailed());
+        assertEquals(PictureRequest.Status.FAILED, first.getStatus());
+        assertEquals(PictureRequest.Status.IN_FLIGHT, third.getStatus());
+    }
+
+    @Test
+    public void submit_failsWhenStarterRefuses() throws InterruptedException {
+        accept = false;
+        PictureRequest request = scheduler.submit(null, null, null);
+
+        assertTrue(request.await(1, TimeUnit.SECONDS));
+        assertEquals(PictureRequest.Status.FAILED, request.getStatus());
+        assertEquals(0, scheduler.getInFlightCount());
+    }
+
+    @Test
+    public void cancelAll_cancelsInFlightAndQueued() {
+        final List<PictureRequest> done = new ArrayList<>();
+        PictureRequest.Listener listener = new PictureRequest.Listener() {
+            @Override
+            public void onPictureRequestDone(PictureRequest request) {
+                done.add(request);
+            }
+        };
+        scheduler.submit(null, null, listener);
+        scheduler.submit(null, null, listener);
+        scheduler.submit(null, null, listener);
+        scheduler.cancelAll();
+
+        assertEquals(3, done.size());
+        for (PictureRequest request : done) {
+            assertEquals(PictureRequest.Status.CANCELLED, request.getStatus());
+        }
+        assertNull(scheduler.peekInFlight());
+        assertNull(scheduler.onCaptureCompleted());
+    }
+}
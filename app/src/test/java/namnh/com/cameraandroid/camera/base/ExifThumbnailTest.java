@@ -0,0 +1,154 @@
+package namnh.com.cameraandroid.camera.base;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class ExifThumbnailTest {
+
+    private static final byte[] THUMBNAIL = {
+            (byte) 0xFF, (byte) 0xD8, 1, 2, 3, 4, 5, (byte) 0xFF, (byte) 0xD9
+    };
+
+    @Test
+    public void find_bigEndian() {
+        ByteBuffer thumbnail = ExifThumbnail.find(ByteBuffer.wrap(
+                jpeg(true, exif(ByteOrder.BIG_ENDIAN, THUMBNAIL, true))));
+
+        assertArrayEquals(THUMBNAIL, toArray(thumbnail));
+    }
+
+    @Test
+    public void find_littleEndian() {
+        ByteBuffer thumbnail = ExifThumbnail.find(ByteBuffer.wrap(
+                jpeg(false, exif(ByteOrder.LITTLE_ENDIAN, THUMBNAIL, true))));
+
+        assertArrayEquals(THUMBNAIL, toArray(thumbnail));
+    }
+
+    @Test
+    public void find_returnsReadOnlyViewWithoutMovingPosition() {
+        byte[] data = jpeg(true, exif(ByteOrder.BIG_ENDIAN, THUMBNAIL, true));
+        byte[] padded = new byte[data.length + 3];
+        System.arraycopy(data, 0, padded, 3, data.length);
+        ByteBuffer in = ByteBuffer.wrap(padded);
+        in.position(3);
+
+        ByteBuffer thumbnail = ExifThumbnail.find(in);
+
+        assertEquals(3, in.position());
+        assertTrue(thumbnail.isReadOnly());
+        assertEquals(0, thumbnail.position());
+        assertArrayEquals(THUMBNAIL, toArray(thumbnail));
+    }
+
+    @Test
+    public void find_withoutIfd1_returnsNull() {
+        assertNull(ExifThumbnail.find(ByteBuffer.wrap(
+                jpeg(true, exif(ByteOrder.BIG_ENDIAN, THUMBNAIL, false)))));
+    }
+
+    @Test
+    public void find_withoutExif_returnsNull() {
+        assertNull(ExifThumbnail.find(ByteBuffer.wrap(jpeg(true, null))));
+    }
+
+    @Test
+    public void find_notJpeg_returnsNull() {
+        assertNull(ExifThumbnail.find(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6})));
+    }
+
+    @Test
+    public void find_truncated_returnsNull() {
+        byte[] data = jpeg(true, exif(ByteOrder.BIG_ENDIAN, THUMBNAIL, true));
+        // Everything but the scan, which comes after the APP1 segment
+        int headers = data.length - 14;
+        for (int length = 0; length < headers; length++) {
+            assertNull(ExifThumbnail.find(ByteBuffer.wrap(Arrays.copyOf(data, length))));
+        }
+    }
+
+    @Test
+    public void find_thumbnailOutOfSegment_returnsNull() {
+        byte[] exif = exif(ByteOrder.BIG_ENDIAN, THUMBNAIL, true);
+        // Corrupt the thumbnail length, the last entry of IFD1
+        ByteBuffer.wrap(exif).putInt(exif.length - THUMBNAIL.length - 4 - 4, 0x7FFF);
+
+        assertNull(ExifThumbnail.find(ByteBuffer.wrap(jpeg(true, exif))));
+    }
+
+    /**
+     * @param app0 Whether to put a JFIF segment first
+     * @param exif The content of the APP1 segment, or {@code null} for none
+     */
+    private static byte[] jpeg(boolean app0, byte[] exif) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(0xD8);
+        if (app0) {
+            writeSegment(out, 0xE0, new byte[]{'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+        }
+        if (exif != null) {
+            writeSegment(out, 0xE1, exif);
+        }
+        // Start of scan, followed by some entropy coded data
+        writeSegment(out, 0xDA, new byte[]{1, 1, 0, 0, 63, 0});
+        out.write(0x12);
+        out.write(0x34);
+        out.write(0xFF);
+        out.write(0xD9);
+        return out.toByteArray();
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] data) {
+        out.write(0xFF);
+        out.write(marker);
+        out.write((data.length + 2) >> 8);
+        out.write((data.length + 2) & 0xFF);
+        out.write(data, 0, data.length);
+    }
+
+    /**
+     * Builds an APP1 segment: the Exif header, a TIFF header, IFD0 with a single orientation
+     * entry and, if {@code withIfd1}, IFD1 pointing to {@code thumbnail} which follows it.
+     */
+    private static byte[] exif(ByteOrder order, byte[] thumbnail, boolean withIfd1) {
+        int ifd0 = 8;
+        int ifd1 = ifd0 + 2 + 12 + 4;
+        int thumbnailOffset = ifd1 + 2 + 2 * 12 + 4;
+        ByteBuffer tiff = ByteBuffer.allocate(thumbnailOffset + thumbnail.length).order(order);
+        tiff.put(order == ByteOrder.BIG_ENDIAN ? (byte) 'M' : (byte) 'I');
+        tiff.put(order == ByteOrder.BIG_ENDIAN ? (byte) 'M' : (byte) 'I');
+        tiff.putShort((short) 42);
+        tiff.putInt(ifd0);
+        // IFD0: orientation
+        tiff.putShort((short) 1);
+        tiff.putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) 1)
+                .putShort((short) 0);
+        tiff.putInt(withIfd1 ? ifd1 : 0);
+        // IFD1: thumbnail offset and length
+        tiff.putShort((short) 2);
+        tiff.putShort((short) 0x0201).putShort((short) 4).putInt(1).putInt(thumbnailOffset);
+        tiff.putShort((short) 0x0202).putShort((short) 4).putInt(1).putInt(thumbnail.length);
+        tiff.putInt(0);
+        tiff.put(thumbnail);
+
+        byte[] exif = new byte[6 + tiff.capacity()];
+        System.arraycopy(new byte[]{'E', 'x', 'i', 'f', 0, 0}, 0, exif, 0, 6);
+        System.arraycopy(tiff.array(), 0, exif, 6, tiff.capacity());
+        return exif;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
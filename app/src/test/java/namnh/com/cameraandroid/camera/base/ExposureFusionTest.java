@@ -0,0 +1,125 @@
+package namnh.com.cameraandroid.camera.base;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class ExposureFusionTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    @Test
+    public void fuse_identicalFrames_givesSameFrame() {
+        byte[] frame = randomFrame(1);
+        byte[] out = new byte[frame.length];
+
+        new ExposureFusion(new ForkJoinPool(2)).fuse(
+                new byte[][]{frame, frame.clone(), frame.clone()}, WIDTH, HEIGHT, out);
+
+        assertArrayEquals(frame, out);
+    }
+
+    @Test
+    public void fuse_favorsWellExposedFrame() {
+        byte[] under = uniformFrame(8, 100);
+        byte[] normal = uniformFrame(128, 140);
+        byte[] over = uniformFrame(250, 160);
+        byte[] out = new byte[normal.length];
+
+        new ExposureFusion(new ForkJoinPool(2)).fuse(
+                new byte[][]{under, normal, over}, WIDTH, HEIGHT, out);
+
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            assertTrue("luma " + (out[i] & 0xFF), Math.abs((out[i] & 0xFF) - 128) <= 4);
+        }
+        for (int i = WIDTH * HEIGHT; i < out.length; i++) {
+            assertTrue("chroma " + (out[i] & 0xFF), Math.abs((out[i] & 0xFF) - 140) <= 4);
+        }
+    }
+
+    @Test
+    public void fuse_sameResultOnAnyParallelism() {
+        byte[][] frames = {randomFrame(1), randomFrame(2), randomFrame(3)};
+        byte[] single = new byte[frames[0].length];
+        byte[] parallel = new byte[frames[0].length];
+
+        new ExposureFusion(new ForkJoinPool(1)).fuse(frames, WIDTH, HEIGHT, single);
+        new ExposureFusion(new ForkJoinPool(4)).fuse(frames, WIDTH, HEIGHT, parallel);
+
+        assertArrayEquals(single, parallel);
+    }
+
+    @Test
+    public void fuse_inPlace() {
+        byte[][] frames = {randomFrame(1), randomFrame(2)};
+        byte[] expected = new byte[frames[0].length];
+        ExposureFusion fusion = new ExposureFusion(new ForkJoinPool(2));
+        fusion.fuse(frames, WIDTH, HEIGHT, expected);
+
+        fusion.fuse(frames, WIDTH, HEIGHT, frames[0]);
+
+        assertArrayEquals(expected, frames[0]);
+    }
+
+    @Test
+    public void fuseAsync_deliversOnPool() throws InterruptedException {
+        byte[] frame = randomFrame(1);
+        byte[] out = new byte[frame.length];
+        final AtomicReference<byte[]> fused = new AtomicReference<>();
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        new ExposureFusion(new ForkJoinPool(2)).fuseAsync(new byte[][]{frame}, WIDTH, HEIGHT,
+                out, new ExposureFusion.Callback() {
+                    @Override
+                    public void onFused(byte[] out) {
+                        fused.set(out);
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onFuseFailed(RuntimeException error) {
+                        failure.set(error);
+                        done.countDown();
+                    }
+                });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNull(failure.get());
+        assertArrayEquals(frame, fused.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fuse_oddSize_throws() {
+        new ExposureFusion(new ForkJoinPool(1)).fuse(new byte[][]{new byte[32]}, 3, 4,
+                new byte[32]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fuse_frameTooSmall_throws() {
+        new ExposureFusion(new ForkJoinPool(1)).fuse(new byte[][]{new byte[10]}, WIDTH, HEIGHT,
+                new byte[WIDTH * HEIGHT * 3 / 2]);
+    }
+
+    private static byte[] randomFrame(long seed) {
+        byte[] frame = new byte[WIDTH * HEIGHT * 3 / 2];
+        new Random(seed).nextBytes(frame);
+        return frame;
+    }
+
+    private static byte[] uniformFrame(int luma, int chroma) {
+        byte[] frame = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (byte) (i < WIDTH * HEIGHT ? luma : chroma);
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,218 @@
+package namnh.com.cameraandroid.camera.base;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class FrameDispatcherTest {
+
+    @Test
+    public void dispatch_deliversOnAnalysisThread() throws InterruptedException {
+        final AtomicReference<Thread> thread = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        FrameDispatcher dispatcher = new FrameDispatcher();
+        dispatcher.setProcessor(new FrameProcessor() {
+            @Override
+            public void process(YuvFrame frame) {
+                thread.set(Thread.currentThread());
+                done.countDown();
+            }
+        });
+        YuvFrame frame = newFrame(1);
+
+        assertTrue(dispatcher.dispatch(frame));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), thread.get());
+        assertEquals("CameraAnalysis", thread.get().getName());
+        waitReleased(frame);
+    }
+
+    @Test
+    public void dispatch_whileBusy_keepsOnlyLatest() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final StringBuilder processed = new StringBuilder();
+        FrameDispatcher dispatcher = new FrameDispatcher();
+        dispatcher.setProcessor(new FrameProcessor() {
+            @Override
+            public void process(YuvFrame frame) {
+                started.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                synchronized (processed) {
+                    processed.append(frame.getTimestamp());
+                }
+            }
+        });
+        YuvFrame first = newFrame(1);
+        YuvFrame second = newFrame(2);
+        YuvFrame third = newFrame(3);
+
+        dispatcher.dispatch(first);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        dispatcher.dispatch(second);
+        dispatcher.dispatch(third);
+
+        assertTrue(second.isReleased());
+        assertFalse(third.isReleased());
+        proceed.countDown();
+        waitReleased(third);
+        synchronized (processed) {
+            assertEquals("13", processed.toString());
+        }
+        FrameDispatcher.Stats stats = dispatcher.getStats();
+        assertEquals(3, stats.getProducedCount());
+        assertEquals(1, stats.getDroppedCount());
+    }
+
+    @Test
+    public void dispatch_queue_dropsOldest() throws InterruptedException {
+        Gate gate = new Gate();
+        FrameDispatcher dispatcher = new FrameDispatcher();
+        dispatcher.setBackpressure(FrameDispatcher.Backpressure.QUEUE, 2);
+        dispatcher.setProcessor(gate);
+        YuvFrame[] frames = {newFrame(1), newFrame(2), newFrame(3), newFrame(4)};
+
+        dispatcher.dispatch(frames[0]);
+        assertTrue(gate.started.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < frames.length; i++) {
+            assertTrue(dispatcher.dispatch(frames[i]));
+        }
+
+        assertTrue(frames[1].isReleased());
+        assertEquals(2, dispatcher.getStats().getQueuedCount());
+        gate.proceed.countDown();
+        waitReleased(frames[3]);
+        assertEquals("134", gate.processed());
+        waitAnalyzed(dispatcher, 3);
+        assertEquals(1, dispatcher.getStats().getDroppedCount());
+    }
+
+    @Test
+    public void dispatch_block_waitsForRoom() throws InterruptedException {
+        Gate gate = new Gate();
+        final FrameDispatcher dispatcher = new FrameDispatcher();
+        dispatcher.setBackpressure(FrameDispatcher.Backpressure.BLOCK, 1);
+        dispatcher.setProcessor(gate);
+        dispatcher.dispatch(newFrame(1));
+        assertTrue(gate.started.await(5, TimeUnit.SECONDS));
+        dispatcher.dispatch(newFrame(2));
+        final CountDownLatch blocked = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatcher.dispatch(newFrame(3));
+                blocked.countDown();
+            }
+        });
+
+        producer.start();
+
+        assertFalse(blocked.await(100, TimeUnit.MILLISECONDS));
+        gate.proceed.countDown();
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        waitAnalyzed(dispatcher, 3);
+        assertEquals("123", gate.processed());
+        assertEquals(0, dispatcher.getStats().getDroppedCount());
+    }
+
+    @Test
+    public void clear_releasesBlockedProducer() throws InterruptedException {
+        Gate gate = new Gate();
+        final FrameDispatcher dispatcher = new FrameDispatcher();
+        dispatcher.setBackpressure(FrameDispatcher.Backpressure.BLOCK, 1);
+        dispatcher.setProcessor(gate);
+        dispatcher.dispatch(newFrame(1));
+        assertTrue(gate.started.await(5, TimeUnit.SECONDS));
+        YuvFrame queued = newFrame(2);
+        dispatcher.dispatch(queued);
+        final YuvFrame blockedFrame = newFrame(3);
+        final AtomicReference<Boolean> accepted = new AtomicReference<>();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accepted.set(dispatcher.dispatch(blockedFrame));
+            }
+        });
+        producer.start();
+        Thread.sleep(50);
+
+        dispatcher.clear();
+        producer.join(5000);
+
+        assertEquals(Boolean.FALSE, accepted.get());
+        assertTrue(queued.isReleased());
+        assertTrue(blockedFrame.isReleased());
+        gate.proceed.countDown();
+    }
+
+    @Test
+    public void dispatch_withoutProcessor_releasesFrame() {
+        FrameDispatcher dispatcher = new FrameDispatcher();
+        YuvFrame frame = newFrame(1);
+
+        assertFalse(dispatcher.dispatch(frame));
+        assertTrue(frame.isReleased());
+    }
+
+    /**
+     * Records the frames it processes, holding the first one until {@link #proceed} opens.
+     */
+    private static class Gate implements FrameProcessor {
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        private final StringBuilder processed = new StringBuilder();
+
+        @Override
+        public void process(YuvFrame frame) {
+            started.countDown();
+            try {
+                proceed.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            synchronized (processed) {
+                processed.append(frame.getTimestamp());
+            }
+        }
+
+        String processed() {
+            synchronized (processed) {
+                return processed.toString();
+            }
+        }
+    }
+
+    private static YuvFrame newFrame(long timestamp) {
+        return YuvFrame.wrapNv21(new byte[4 * 4 * 3 / 2], 4, 4, timestamp);
+    }
+
+    private static void waitReleased(YuvFrame frame) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!frame.isReleased() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(frame.isReleased());
+    }
+
+    private static void waitAnalyzed(FrameDispatcher dispatcher, long count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dispatcher.getStats().getAnalyzedCount() < count
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, dispatcher.getStats().getAnalyzedCount());
+    }
+}
@@ -0,0 +1,141 @@
+package namnh.com.cameraandroid.camera.base;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class FrameFanOutTest {
+
+    private static final long FRAME_NANOS = 33333333;
+
+    @Test
+    public void process_sharesFrameUntilLastRelease() {
+        final AtomicInteger recycled = new AtomicInteger();
+        QueueExecutor executor = new QueueExecutor();
+        final List<YuvFrame> received = new ArrayList<>();
+        FrameFanOut fanOut = new FrameFanOut();
+        fanOut.addConsumer(new FrameProcessor() {
+            @Override
+            public void process(YuvFrame frame) {
+                received.add(frame);
+            }
+        }, 0, executor);
+        fanOut.addConsumer(new FrameProcessor() {
+            @Override
+            public void process(YuvFrame frame) {
+                received.add(frame);
+            }
+        }, 0, executor);
+        YuvFrame frame = new YuvFrame(new byte[24], 4, 4, 0) {
+            @Override
+            protected void onReleased() {
+                recycled.incrementAndGet();
+            }
+        };
+
+        fanOut.process(frame);
+        frame.release();
+
+        assertFalse(frame.isReleased());
+        executor.runNext();
+        assertFalse(frame.isReleased());
+        executor.runNext();
+        assertTrue(frame.isReleased());
+        assertEquals(1, recycled.get());
+        assertEquals(2, received.size());
+        assertSame(received.get(0), received.get(1));
+    }
+
+    @Test
+    public void process_limitsRatePerConsumer() {
+        Counter fast = new Counter();
+        Counter slow = new Counter();
+        FrameFanOut fanOut = new FrameFanOut();
+        fanOut.addConsumer(fast, 30, null);
+        fanOut.addConsumer(slow, 5, null);
+
+        // Two seconds at 30 fps, with some jitter
+        for (int i = 0; i < 60; i++) {
+            long jitter = (i % 3 - 1) * 2000000L;
+            YuvFrame frame = newFrame(i * FRAME_NANOS + jitter);
+            fanOut.process(frame);
+            frame.release();
+        }
+
+        assertEquals(60, fast.count);
+        assertEquals(10, slow.count);
+    }
+
+    @Test
+    public void process_busyConsumer_skipsFrames() {
+        QueueExecutor executor = new QueueExecutor();
+        Counter counter = new Counter();
+        FrameFanOut fanOut = new FrameFanOut();
+        fanOut.addConsumer(counter, 0, executor);
+        YuvFrame first = newFrame(0);
+        YuvFrame second = newFrame(FRAME_NANOS);
+
+        fanOut.process(first);
+        first.release();
+        fanOut.process(second);
+        second.release();
+
+        assertTrue(second.isReleased());
+        assertEquals(1, executor.tasks.size());
+        executor.runNext();
+        assertEquals(1, counter.count);
+        YuvFrame third = newFrame(2 * FRAME_NANOS);
+        fanOut.process(third);
+        third.release();
+        executor.runNext();
+        assertEquals(2, counter.count);
+    }
+
+    @Test
+    public void addConsumer_twice_updatesIt() {
+        Counter counter = new Counter();
+        FrameFanOut fanOut = new FrameFanOut();
+        fanOut.addConsumer(counter, 0, new QueueExecutor());
+        fanOut.addConsumer(counter, 0, null);
+
+        assertEquals(1, fanOut.getConsumers().size());
+        assertEquals(0, fanOut.getExecutorConsumerCount());
+        assertTrue(fanOut.removeConsumer(counter));
+        assertTrue(fanOut.isEmpty());
+    }
+
+    private static YuvFrame newFrame(long timestamp) {
+        return YuvFrame.wrapNv21(new byte[24], 4, 4, timestamp);
+    }
+
+    private static class Counter implements FrameProcessor {
+
+        int count;
+
+        @Override
+        public void process(YuvFrame frame) {
+            count++;
+        }
+    }
+
+    private static class QueueExecutor implements Executor {
+
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runNext() {
+            tasks.remove(0).run();
+        }
+    }
+}
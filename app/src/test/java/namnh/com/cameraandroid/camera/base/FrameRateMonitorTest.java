@@ -0,0 +1,164 @@
+package namnh.com.cameraandroid.camera.base;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class FrameRateMonitorTest {
+
+    private static final long FRAME = 33333333;
+
+    @Test
+    public void stats_empty() {
+        FrameRateMonitor.Stats stats = new FrameRateMonitor().getStats();
+        assertEquals(0, stats.getFrameCount());
+        assertEquals(-1, stats.getLastFrameNumber());
+        assertEquals(0, stats.getRollingFps(), 0);
+        assertEquals(0, stats.getInstantFps(), 0);
+    }
+
+    @Test
+    public void stats_steadyRate() {
+        FrameRateMonitor monitor = new FrameRateMonitor();
+        for (int i = 0; i < 10; i++) {
+            monitor.onFrameCompleted(i, i * FRAME, FRAME);
+        }
+        FrameRateMonitor.Stats stats = monitor.getStats();
+        assertEquals(10, stats.getFrameCount());
+        assertEquals(9, stats.getLastFrameNumber());
+        assertEquals(30, stats.getRollingFps(), 0.01);
+        assertEquals(30, stats.getInstantFps(), 0.01);
+        assertEquals(FRAME, stats.getMeanIntervalNanos());
+        assertEquals(FRAME, stats.getMaxIntervalNanos());
+        assertEquals(0, stats.getJitterNanos());
+        assertEquals(0, stats.getDroppedCount());
+    }
+
+    @Test
+    public void stats_jitter() {
+        FrameRateMonitor monitor = new FrameRateMonitor();
+        // Intervals alternate between 30 and 40 ms: 35 ms on average, 5 ms apart
+        long timestamp = 0;
+        for (int i = 0; i < 9; i++) {
+            monitor.onFrameCompleted(i, timestamp, 0);
+            timestamp += i % 2 == 0 ? 30000000 : 40000000;
+        }
+        FrameRateMonitor.Stats stats = monitor.getStats();
+        assertEquals(35000000, stats.getMeanIntervalNanos());
+        assertEquals(5000000, stats.getJitterNanos());
+        assertEquals(40000000, stats.getMaxIntervalNanos());
+        assertEquals(0, stats.getDroppedCount());
+    }
+
+    @Test
+    public void onFrameCompleted_countsGaps() {
+        FrameRateMonitor monitor = new FrameRateMonitor();
+        monitor.onFrameCompleted(0, 0, FRAME);
+        monitor.onFrameCompleted(1, FRAME, FRAME);
+        // Frames 2 and 3 are missing
+        monitor.onFrameCompleted(4, 4 * FRAME, FRAME);
+        FrameRateMonitor.Stats stats = monitor.getStats();
+        assertEquals(2, stats.getDroppedCount());
+        assertEquals(3 * FRAME, stats.getMaxIntervalNanos());
+        assertEquals(1e9 / (3 * FRAME), stats.getInstantFps(), 0.01);
+    }
+
+    @Test
+    public void onFrameCompleted_countsGapsWithoutFrameDuration() {
+        FrameRateMonitor monitor = new FrameRateMonitor();
+        for (int i = 0; i < 5; i++) {
+            monitor.onFrameCompleted(i, i * FRAME, 0);
+        }
+        monitor.onFrameCompleted(6, 6 * FRAME, 0);
+        assertEquals(1, monitor.getStats().getDroppedCount());
+    }
+
+    @Test
+    public void onFrameCompleted_ignoresOutOfOrder() {
+        FrameRateMonitor monitor = new FrameRateMonitor();
+        monitor.onFrameCompleted(0, FRAME, FRAME);
+        monitor.onFrameCompleted(1, 0, FRAME);
+        assertEquals(1, monitor.getStats().getFrameCount());
+    }
+
+    @Test
+    public void stats_coverTheRingOnly() {
+        FrameRateMonitor monitor = new FrameRateMonitor(4);
+        // A slow start, out of the ring once 4 more frames come
+        monitor.onFrameCompleted(0, 0, 0);
+        long timestamp = 100 * FRAME;
+        for (int i = 1; i <= 4; i++) {
+            monitor.onFrameCompleted(i, timestamp, 0);
+            timestamp += FRAME;
+        }
+        FrameRateMonitor.Stats stats = monitor.getStats();
+        assertEquals(5, stats.getFrameCount());
+        assertEquals(30, stats.getRollingFps(), 0.01);
+        assertEquals(FRAME, stats.getMaxIntervalNanos());
+    }
+
+    @Test
+    public void restart_startsANewTimeline() {
+        FrameRateMonitor monitor = new FrameRateMonitor();
+        monitor.onFrameCompleted(0, 0, FRAME);
+        monitor.onFrameCompleted(1, FRAME, FRAME);
+        monitor.onFrameFailed();
+        monitor.restart();
+        // A new session, much later: not a gap
+        monitor.onFrameCompleted(0, 1000 * FRAME, FRAME);
+        FrameRateMonitor.Stats stats = monitor.getStats();
+        assertEquals(3, stats.getFrameCount());
+        assertEquals(0, stats.getDroppedCount());
+        assertEquals(1, stats.getFailedCount());
+        assertEquals(0, stats.getRollingFps(), 0);
+        monitor.onFrameCompleted(1, 1001 * FRAME, FRAME);
+        assertEquals(30, monitor.getStats().getRollingFps(), 0.01);
+    }
+
+    @Test
+    public void reset_clearsCounts() {
+        FrameRateMonitor monitor = new FrameRateMonitor();
+        monitor.onFrameCompleted(0, 0, FRAME);
+        monitor.onFrameCompleted(3, 3 * FRAME, FRAME);
+        monitor.onFrameFailed();
+        monitor.onSequenceAborted();
+        FrameRateMonitor.Stats before = monitor.getStats();
+        assertEquals(2, before.getDroppedCount());
+        assertEquals(1, before.getFailedCount());
+        assertEquals(1, before.getAbortedCount());
+        monitor.reset();
+        FrameRateMonitor.Stats after = monitor.getStats();
+        assertEquals(0, after.getFrameCount());
+        assertEquals(0, after.getDroppedCount());
+        assertEquals(0, after.getFailedCount());
+        assertEquals(0, after.getAbortedCount());
+    }
+
+    @Test
+    public void getStats_whileWriting() throws InterruptedException {
+        final FrameRateMonitor monitor = new FrameRateMonitor(8);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 200000; i++) {
+                    monitor.onFrameCompleted(i, i * FRAME, FRAME);
+                }
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            FrameRateMonitor.Stats stats = monitor.getStats();
+            if (stats.getMeanIntervalNanos() != 0) {
+                assertEquals(FRAME, stats.getMeanIntervalNanos());
+                assertEquals(0, stats.getJitterNanos());
+            }
+        }
+        writer.join();
+        assertEquals(0, monitor.getStats().getDroppedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_invalidCapacity() {
+        new FrameRateMonitor(1);
+    }
+}
@@ -0,0 +1,69 @@
+package namnh.com.cameraandroid.camera.base;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class FrameRateRangeTest {
+
+    private static final List<FrameRateRange> SUPPORTED = Arrays.asList(
+            new FrameRateRange(15, 15),
+            new FrameRateRange(7, 30),
+            new FrameRateRange(15, 30),
+            new FrameRateRange(24, 24),
+            new FrameRateRange(30, 30));
+
+    @Test
+    public void chooseClosest_exact() {
+        assertEquals(FrameRateRange.FIXED_30,
+                FrameRateRange.chooseClosest(SUPPORTED, FrameRateRange.FIXED_30));
+        assertEquals(new FrameRateRange(15, 30),
+                FrameRateRange.chooseClosest(SUPPORTED, new FrameRateRange(15, 30)));
+    }
+
+    @Test
+    public void chooseClosest_maxFirst() {
+        // 24 fixed is closer on the highest rate than any range up to 30
+        assertEquals(new FrameRateRange(24, 24),
+                FrameRateRange.chooseClosest(SUPPORTED, new FrameRateRange(20, 25)));
+    }
+
+    @Test
+    public void chooseClosest_thenMin() {
+        assertEquals(new FrameRateRange(7, 30),
+                FrameRateRange.chooseClosest(SUPPORTED, new FrameRateRange(5, 30)));
+        assertEquals(FrameRateRange.FIXED_30,
+                FrameRateRange.chooseClosest(SUPPORTED, new FrameRateRange(25, 30)));
+    }
+
+    @Test
+    public void chooseClosest_fixedMissing() {
+        List<FrameRateRange> supported = Arrays.asList(new FrameRateRange(15, 30),
+                new FrameRateRange(20, 30));
+        assertEquals(new FrameRateRange(20, 30),
+                FrameRateRange.chooseClosest(supported, FrameRateRange.FIXED_30));
+    }
+
+    @Test
+    public void chooseClosest_empty() {
+        assertNull(FrameRateRange.chooseClosest(Collections.<FrameRateRange>emptyList(),
+                FrameRateRange.FIXED_30));
+    }
+
+    @Test
+    public void isFixed() {
+        assertTrue(FrameRateRange.FIXED_30.isFixed());
+        assertFalse(new FrameRateRange(15, 30).isFixed());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_invalid() {
+        new FrameRateRange(30, 15);
+    }
+}
@@ -0,0 +1,127 @@
+package namnh.com.cameraandroid.camera.base;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FrameRingTest {
+
+    private final List<String> recycled = new ArrayList<>();
+
+    private FrameRing<String> ring;
+
+    @Before
+    public void setUp() {
+        ring = new FrameRing<>(3, 10, new FrameRing.Recycler<String>() {
+            @Override
+            public void recycle(String frame) {
+                recycled.add(frame);
+            }
+        });
+    }
+
+    @Test
+    public void takeClosest_emptyRing() {
+        assertNull(ring.takeClosest(100));
+        assertNull(ring.takeLatest());
+    }
+
+    @Test
+    public void takeClosest_picksNearestTimestamp() {
+        ring.add(100, "a");
+        ring.add(200, "b");
+        ring.add(300, "c");
+
+        assertEquals("b", ring.takeClosest(190));
+        assertEquals(2, ring.size());
+        assertEquals("a", ring.takeClosest(0));
+        assertEquals("c", ring.takeClosest(1000));
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void takeClosest_prefersLatestOnTie() {
+        ring.add(100, "a");
+        ring.add(200, "b");
+
+        assertEquals("b", ring.takeClosest(150));
+    }
+
+    @Test
+    public void takeClosest_farAwayTimestampKeepsLatest() {
+        ring.add(100, "a");
+        ring.add(200, "b");
+
+        assertEquals("b", ring.takeClosest(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void takeClosest_shiftsNewerFramesAcrossWrapAround() {
+        ring.add(100, "a");
+        ring.add(200, "b");
+        ring.add(300, "c");
+        // Evicts "a", the oldest frame is now in the middle of the arrays
+        ring.add(400, "d");
+        assertEquals(Arrays.asList("a"), recycled);
+
+        assertEquals("c", ring.takeClosest(300));
+        // The remaining frames keep their timestamps and order
+        assertEquals("b", ring.takeClosest(200));
+        ring.add(500, "e");
+        ring.add(600, "f");
+        assertEquals(3, ring.size());
+        assertEquals("f", ring.takeLatest());
+        assertEquals("d", ring.takeClosest(410));
+        assertEquals("e", ring.takeLatest());
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void takeLatest_takesNewestFirst() {
+        ring.add(100, "a");
+        ring.add(200, "b");
+
+        assertEquals("b", ring.takeLatest());
+        assertEquals("a", ring.takeLatest());
+        assertNull(ring.takeLatest());
+        assertEquals(2, ring.getStats().getTakenCount());
+    }
+
+    @Test
+    public void clear_recyclesEveryFrame() {
+        ring.add(100, "a");
+        ring.add(200, "b");
+        ring.add(300, "c");
+        ring.add(400, "d");
+        ring.takeClosest(300);
+        ring.clear();
+
+        assertEquals(Arrays.asList("a", "b", "d"), recycled);
+        assertEquals(0, ring.size());
+        assertNull(ring.takeLatest());
+        ring.add(500, "e");
+        assertEquals("e", ring.takeClosest(0));
+    }
+
+    @Test
+    public void getStats_countsFrames() {
+        ring.add(100, "a");
+        ring.add(200, "b");
+        ring.add(300, "c");
+        ring.add(400, "d");
+        ring.takeLatest();
+
+        FrameRing.Stats stats = ring.getStats();
+        assertEquals(2, stats.getSize());
+        assertEquals(3, stats.getCapacity());
+        assertEquals(20, stats.getRetainedBytes());
+        assertEquals(4, stats.getAddedCount());
+        assertEquals(1, stats.getEvictedCount());
+        assertEquals(1, stats.getTakenCount());
+    }
+}
@@ -0,0 +1,219 @@
+package namnh.com.cameraandroid.camera.base;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+public class JpegEncodePipelineTest {
+
+    private final BufferPool pool = new BufferPool(BufferPool.DEFAULT_MAX_BYTES);
+
+    private JpegEncodePipeline pipeline;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (pipeline != null) {
+            pipeline.shutdown();
+            pipeline.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void encode_writesRotatedNv21() throws InterruptedException {
+        pipeline = new JpegEncodePipeline(new CopyEncoder(0), pool, 2, 2);
+        final List<byte[]> results = Collections.synchronizedList(new ArrayList<byte[]>());
+        final CountDownLatch done = new CountDownLatch(1);
+        byte[] nv21 = {0, 1, 2, 3, 4, 5, 6, 7, 100, 50, 101, 51};
+        assertTrue(pipeline.submit(YuvFrame.wrapNv21(nv21, 4, 2, 42), 180,
+                new RecordingCallback(results, null, done)));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // CopyEncoder writes the dimensions, then the image
+        assertArrayEquals(new byte[]{4, 2, 7, 6, 5, 4, 3, 2, 1, 0, 101, 51, 100, 50},
+                results.get(0));
+    }
+
+    @Test
+    public void submit_deliversInOrder() throws InterruptedException {
+        int count = 64;
+        pipeline = new JpegEncodePipeline(new CopyEncoder(5), pool, 4, count);
+        List<Long> timestamps = Collections.synchronizedList(new ArrayList<Long>());
+        CountDownLatch done = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            assertTrue(pipeline.submit(newFrame(i), 0,
+                    new RecordingCallback(null, timestamps, done)));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++) {
+            assertEquals((long) i, (long) timestamps.get(i));
+        }
+        assertEquals(count, pipeline.getStats().getEncodedCount());
+    }
+
+    @Test
+    public void submit_releasesFrameBeforeEncoding() throws InterruptedException {
+        final CountDownLatch encoding = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        pipeline = new JpegEncodePipeline(new JpegEncoder() {
+            @Override
+            public void encode(byte[] nv21, int width, int height, int quality,
+                    OutputStream out) throws IOException {
+                encoding.countDown();
+                try {
+                    finish.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }, pool, 1, 1);
+        YuvFrame frame = newFrame(0);
+        CountDownLatch done = new CountDownLatch(1);
+        pipeline.submit(frame, 0, new RecordingCallback(null, null, done));
+        assertTrue(encoding.await(5, TimeUnit.SECONDS));
+        assertTrue(frame.isReleased());
+        finish.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void submit_rejectsWhenSaturated() throws InterruptedException {
+        final CountDownLatch finish = new CountDownLatch(1);
+        pipeline = new JpegEncodePipeline(new JpegEncoder() {
+            @Override
+            public void encode(byte[] nv21, int width, int height, int quality,
+                    OutputStream out) throws IOException {
+                try {
+                    finish.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }, pool, 1, 1);
+        CountDownLatch done = new CountDownLatch(2);
+        RecordingCallback callback = new RecordingCallback(null, null, done);
+        assertTrue(pipeline.submit(newFrame(0), 0, callback));
+        assertTrue(pipeline.submit(newFrame(1), 0, callback));
+        YuvFrame rejected = newFrame(2);
+        assertFalse(pipeline.submit(rejected, 0, callback));
+        assertTrue(rejected.isReleased());
+        assertEquals(1, pipeline.getStats().getRejectedCount());
+        finish.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void encodeFailure_isDeliveredInOrder() throws InterruptedException {
+        pipeline = new JpegEncodePipeline(new JpegEncoder() {
+            @Override
+            public void encode(byte[] nv21, int width, int height, int quality,
+                    OutputStream out) throws IOException {
+                if (nv21[0] == 1) {
+                    throw new IOException("Broken frame");
+                }
+                out.write(nv21[0]);
+            }
+        }, pool, 3, 3);
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(3);
+        JpegEncodePipeline.Callback callback = new JpegEncodePipeline.Callback() {
+            @Override
+            public void onEncoded(long timestamp, JpegImage image) {
+                events.add("encoded " + timestamp);
+                done.countDown();
+            }
+
+            @Override
+            public void onEncodeFailed(long timestamp, Exception error) {
+                events.add("failed " + timestamp);
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < 3; i++) {
+            pipeline.submit(newFrame(i), 0, callback);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[encoded 0, failed 1, encoded 2]", events.toString());
+        assertEquals(1, pipeline.getStats().getFailedCount());
+    }
+
+    /**
+     * @return A 4x2 frame whose first luma sample and timestamp are {@code index}.
+     */
+    private static YuvFrame newFrame(int index) {
+        byte[] nv21 = new byte[12];
+        nv21[0] = (byte) index;
+        return YuvFrame.wrapNv21(nv21, 4, 2, index);
+    }
+
+    /**
+     * Writes the dimensions and the NV21 bytes, after a random delay to shuffle completions.
+     */
+    private static class CopyEncoder implements JpegEncoder {
+
+        private final Random random = new Random(1);
+        private final int maxDelayMillis;
+
+        CopyEncoder(int maxDelayMillis) {
+            this.maxDelayMillis = maxDelayMillis;
+        }
+
+        @Override
+        public void encode(byte[] nv21, int width, int height, int quality, OutputStream out)
+                throws IOException {
+            if (maxDelayMillis > 0) {
+                int delay;
+                synchronized (random) {
+                    delay = random.nextInt(maxDelayMillis);
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            out.write(width);
+            out.write(height);
+            out.write(nv21, 0, width * height * 3 / 2);
+        }
+    }
+
+    private static class RecordingCallback implements JpegEncodePipeline.Callback {
+
+        private final List<byte[]> images;
+        private final List<Long> timestamps;
+        private final CountDownLatch done;
+
+        RecordingCallback(List<byte[]> images, List<Long> timestamps, CountDownLatch done) {
+            this.images = images;
+            this.timestamps = timestamps;
+            this.done = done;
+        }
+
+        @Override
+        public void onEncoded(long timestamp, JpegImage image) {
+            if (images != null) {
+                images.add(image.toByteArray());
+            }
+            if (timestamps != null) {
+                timestamps.add(timestamp);
+            }
+            done.countDown();
+        }
+
+        @Override
+        public void onEncodeFailed(long timestamp, Exception error) {
+            done.countDown();
+        }
+    }
+}
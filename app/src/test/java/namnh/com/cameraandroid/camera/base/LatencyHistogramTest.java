@@ -0,0 +1,69 @@
+package namnh.com.cameraandroid.camera.base;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void buckets_coverEveryValueOnce() {
+        long[] values = {0, 1, 3, 4, 5, 7, 8, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(value + " below its bucket", LatencyHistogram.lowerBound(bucket) <= value);
+            assertTrue(value + " above its bucket", LatencyHistogram.upperBound(bucket) >= value);
+        }
+        for (int bucket = 8; bucket < 63 * 4 - 1; bucket++) {
+            assertEquals(LatencyHistogram.upperBound(bucket) + 1,
+                    LatencyHistogram.lowerBound(bucket + 1));
+        }
+    }
+
+    @Test
+    public void percentiles_areWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000000L);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertNear(500000000L, histogram.getPercentile(50));
+        assertNear(900000000L, histogram.getPercentile(90));
+        assertNear(990000000L, histogram.getPercentile(99));
+        assertEquals(1000000000L, histogram.getPercentile(100));
+        assertEquals(1000000L, histogram.getPercentile(0));
+    }
+
+    @Test
+    public void stats_reportMinMeanMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.record(20);
+        histogram.record(30);
+        histogram.record(-5);
+
+        LatencyHistogram.Stats stats = histogram.getStats();
+        assertEquals(3, stats.getCount());
+        assertEquals(10, stats.getMin());
+        assertEquals(20, stats.getMean());
+        assertEquals(30, stats.getMax());
+    }
+
+    @Test
+    public void reset_clearsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(42);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getStats().getMax());
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected / 8);
+    }
+}
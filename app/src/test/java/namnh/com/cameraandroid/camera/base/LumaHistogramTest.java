@@ -0,0 +1,129 @@
+package namnh.com.cameraandroid.camera.base;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LumaHistogramTest {
+
+    /**
+     * An NV21 frame whose luma is {@code value(col)} on every row.
+     */
+    private static YuvFrame frame(int width, int height, int[] columns, long timestamp) {
+        byte[] data = new byte[width * height * 3 / 2];
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                data[row * width + col] = (byte) columns[col % columns.length];
+            }
+        }
+        return YuvFrame.wrapNv21(data, width, height, timestamp);
+    }
+
+    @Test
+    public void stats_nullBeforeFirstFrame() {
+        assertNull(new LumaHistogram().getStats());
+    }
+
+    @Test
+    public void process_everyPixel() {
+        LumaHistogram histogram = new LumaHistogram();
+        histogram.setSampling(1, 0);
+        histogram.process(frame(4, 2, new int[]{0, 100, 200, 255}, 42));
+        LumaHistogram.Stats stats = histogram.getStats();
+        assertEquals(42, stats.getTimestamp());
+        assertEquals(8, stats.getSampleCount());
+        assertEquals(2, stats.getBin(0));
+        assertEquals(2, stats.getBin(100));
+        assertEquals(2, stats.getBin(200));
+        assertEquals(2, stats.getBin(255));
+        assertEquals(138.75, stats.getMean(), 1e-9);
+        assertEquals(0, stats.getPercentile(0));
+        assertEquals(100, stats.getPercentile(50));
+        assertEquals(200, stats.getPercentile(75));
+        assertEquals(255, stats.getPercentile(100));
+        assertEquals(0.25f, stats.getDarkClippedRatio(), 1e-6f);
+        assertEquals(0.25f, stats.getBrightClippedRatio(), 1e-6f);
+    }
+
+    @Test
+    public void process_region() {
+        LumaHistogram histogram = new LumaHistogram();
+        histogram.setSampling(1, 0);
+        histogram.setRegion(0.5f, 0, 1, 1);
+        histogram.process(frame(4, 2, new int[]{0, 100, 200, 255}, 0));
+        LumaHistogram.Stats stats = histogram.getStats();
+        assertEquals(4, stats.getSampleCount());
+        assertEquals(0, stats.getBin(0));
+        assertEquals(2, stats.getBin(200));
+        assertEquals(2, stats.getBin(255));
+    }
+
+    @Test
+    public void process_step() {
+        LumaHistogram histogram = new LumaHistogram();
+        histogram.setSampling(2, 0);
+        // The grid starts half a step in, on the odd columns
+        histogram.process(frame(8, 8, new int[]{10, 20}, 0));
+        LumaHistogram.Stats stats = histogram.getStats();
+        assertEquals(16, stats.getSampleCount());
+        assertEquals(16, stats.getBin(20));
+    }
+
+    @Test
+    public void process_maxSamplesCapsTheCost() {
+        LumaHistogram histogram = new LumaHistogram();
+        histogram.setSampling(1, 100);
+        histogram.process(frame(640, 480, new int[]{50}, 0));
+        int small = histogram.getStats().getSampleCount();
+        histogram.process(frame(1920, 1080, new int[]{50}, 0));
+        int large = histogram.getStats().getSampleCount();
+        assertTrue(small > 0 && small <= 100);
+        assertTrue(large > 0 && large <= 100);
+        assertEquals(50, histogram.getStats().getMean(), 1e-9);
+    }
+
+    @Test
+    public void stats_isASnapshot() {
+        LumaHistogram histogram = new LumaHistogram();
+        histogram.setSampling(1, 0);
+        histogram.process(frame(2, 2, new int[]{10}, 0));
+        LumaHistogram.Stats first = histogram.getStats();
+        first.getBins()[10] = 0;
+        histogram.process(frame(2, 2, new int[]{20}, 1));
+        assertEquals(4, first.getBin(10));
+        assertEquals(0, first.getBin(20));
+        assertEquals(4, histogram.getStats().getBin(20));
+    }
+
+    @Test
+    public void listener_getsEachFrame() {
+        LumaHistogram histogram = new LumaHistogram();
+        final LumaHistogram.Stats[] received = new LumaHistogram.Stats[1];
+        histogram.setListener(new LumaHistogram.Listener() {
+            @Override
+            public void onLumaStats(LumaHistogram.Stats stats) {
+                received[0] = stats;
+            }
+        });
+        histogram.process(frame(4, 4, new int[]{80}, 7));
+        assertNotNull(received[0]);
+        assertSame(histogram.getStats(), received[0]);
+    }
+
+    @Test
+    public void stats_emptyFrame() {
+        LumaHistogram.Stats stats = new LumaHistogram.Stats(0, new int[256], 0, 0);
+        assertEquals(0, stats.getPercentile(50));
+        assertEquals(0, stats.getMean(), 0);
+        assertEquals(0, stats.getDarkClippedRatio(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setRegion_invalid() {
+        new LumaHistogram().setRegion(0.5f, 0, 0.5f, 1);
+    }
+}
@@ -0,0 +1,155 @@
+package namnh.com.cameraandroid.camera.base;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MediaWriterTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("MediaWriterTest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void newFile_namesAreUniqueAndOrdered() throws IOException {
+        MediaWriter writer = new MediaWriter(new File(directory, "DCIM"), 4, 0);
+        List<String> names = new ArrayList<>();
+        Set<String> unique = new HashSet<>();
+        for (int i = 0; i < 50; i++) {
+            String name = writer.newFile("IMG_", ".jpg").getName();
+            names.add(name);
+            unique.add(name);
+        }
+
+        assertEquals(50, unique.size());
+        List<String> sorted = new ArrayList<>(names);
+        Collections.sort(sorted);
+        assertEquals(sorted, names);
+        assertTrue(new File(directory, "DCIM").isDirectory());
+    }
+
+    @Test
+    public void newFile_skipsExistingFiles() throws IOException {
+        MediaWriter writer = new MediaWriter(directory, 4, 0);
+        File first = writer.newFile("IMG_", ".jpg");
+        assertTrue(first.createNewFile());
+
+        assertNotEquals(first, writer.newFile("IMG_", ".jpg"));
+    }
+
+    @Test
+    public void write_replacesFileAtomically() throws Exception {
+        MediaWriter writer = new MediaWriter(directory, 4, 0);
+        final List<PictureWriter.Result> results = new ArrayList<>();
+        MediaWriter.Callback callback = new MediaWriter.Callback() {
+            @Override
+            public void onWritten(PictureWriter.Result result) {
+                synchronized (results) {
+                    results.add(result);
+                }
+            }
+        };
+        byte[] data = {1, 2, 3, 4, 5};
+        File file = writer.newFile("IMG_", ".jpg");
+        JpegImage image = JpegImage.wrap(data);
+
+        assertTrue(writer.write(image, file, callback));
+        image.release();
+        assertTrue(writer.awaitIdle(5, TimeUnit.SECONDS));
+
+        assertEquals(1, results.size());
+        assertTrue(results.get(0).isSuccessful());
+        assertEquals(5, results.get(0).getByteCount());
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+        // No temporary file left behind
+        assertEquals(1, directory.listFiles().length);
+        MediaWriter.Stats stats = writer.getStats();
+        assertEquals(1, stats.getWrittenCount());
+        assertEquals(5, stats.getWrittenBytes());
+        assertEquals(0, stats.getQueueDepth());
+    }
+
+    @Test
+    public void write_copiesPictureBeforeQueueing() throws Exception {
+        MediaWriter writer = new MediaWriter(directory, 4, 0);
+        byte[] data = {1, 2, 3};
+        File file = writer.newFile("IMG_", ".jpg");
+        JpegImage image = JpegImage.wrap(data);
+
+        assertTrue(writer.write(image, file, null));
+        // The camera reuses its buffer as soon as the picture is released
+        image.release();
+        data[0] = 9;
+        assertTrue(writer.awaitIdle(5, TimeUnit.SECONDS));
+
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void write_failure_isReported() throws Exception {
+        MediaWriter writer = new MediaWriter(directory, 4, 0);
+        final List<PictureWriter.Result> results = new ArrayList<>();
+        File file = new File(new File(directory, "missing"), "IMG.jpg");
+
+        assertTrue(writer.write(JpegImage.wrap(new byte[]{1}), file,
+                new MediaWriter.Callback() {
+                    @Override
+                    public void onWritten(PictureWriter.Result result) {
+                        results.add(result);
+                    }
+                }));
+        assertTrue(writer.awaitIdle(5, TimeUnit.SECONDS));
+
+        assertFalse(results.get(0).isSuccessful());
+        assertEquals(1, writer.getStats().getFailedCount());
+    }
+
+    @Test
+    public void write_notEnoughSpace_isRejected() throws IOException {
+        MediaWriter writer = new MediaWriter(directory, 4, Long.MAX_VALUE / 2);
+
+        assertFalse(writer.write(JpegImage.wrap(new byte[]{1}), writer.newFile("IMG_", ".jpg"),
+                null));
+
+        assertEquals(1, writer.getStats().getLowSpaceCount());
+        assertEquals(1, writer.getStats().getRejectedCount());
+    }
+
+    @Test
+    public void write_afterShutdown_isRejected() throws IOException {
+        MediaWriter writer = new MediaWriter(directory, 4, 0);
+        writer.shutdown();
+
+        assertFalse(writer.write(JpegImage.wrap(new byte[]{1}), writer.newFile("IMG_", ".jpg"),
+                null));
+    }
+}
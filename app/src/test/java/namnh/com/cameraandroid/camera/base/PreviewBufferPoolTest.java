@@ -0,0 +1,67 @@
+package namnh.com.cameraandroid.camera.base;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import org.junit.Test;
+
+public class PreviewBufferPoolTest {
+
+    @Test
+    public void configure_sizesBuffersFromFormat() {
+        PreviewBufferPool pool = new PreviewBufferPool();
+
+        List<byte[]> buffers = pool.configure(640, 480, 12, 3);
+
+        assertEquals(3, buffers.size());
+        for (byte[] buffer : buffers) {
+            assertEquals(640 * 480 * 3 / 2, buffer.length);
+        }
+        assertEquals(640, pool.getWidth());
+        assertEquals(480, pool.getHeight());
+        assertNull(pool.configure(640, 480, 12, 3));
+        assertEquals(3, pool.getStats().getAllocatedCount());
+    }
+
+    @Test
+    public void recycle_countsBuffersInUse() {
+        PreviewBufferPool pool = new PreviewBufferPool();
+        List<byte[]> buffers = pool.configure(4, 4, 12, 2);
+
+        assertTrue(pool.onFilled(buffers.get(0)));
+        assertTrue(pool.onFilled(buffers.get(1)));
+        assertEquals(2, pool.getStats().getInUseCount());
+        assertEquals(1, pool.getStats().getExhaustedCount());
+        assertTrue(pool.recycle(buffers.get(0)));
+
+        PreviewBufferPool.Stats stats = pool.getStats();
+        assertEquals(1, stats.getInUseCount());
+        assertEquals(2, stats.getFilledCount());
+        assertEquals(1, stats.getRecycledCount());
+    }
+
+    @Test
+    public void configure_newSize_letsOldBuffersGo() {
+        PreviewBufferPool pool = new PreviewBufferPool();
+        byte[] old = pool.configure(4, 4, 12, 2).get(0);
+        assertTrue(pool.onFilled(old));
+
+        pool.configure(8, 8, 12, 2);
+
+        assertFalse(pool.recycle(old));
+        assertFalse(pool.onFilled(old));
+        assertEquals(2, pool.getStats().getStaleCount());
+        assertEquals(0, pool.getStats().getInUseCount());
+    }
+
+    @Test
+    public void onFilled_unknownBuffer_isStale() {
+        PreviewBufferPool pool = new PreviewBufferPool();
+        pool.configure(4, 4, 12, 2);
+
+        assertFalse(pool.onFilled(new byte[24]));
+    }
+}
@@ -0,0 +1,49 @@
+package namnh.com.cameraandroid.camera.base;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class SizeMapTest {
+
+    @Test
+    public void chooseAtLeast_picksSmallestCoveringSize() {
+        SizeMap map = newMap();
+
+        assertEquals(new Size(640, 480),
+                map.chooseAtLeast(AspectRatio.of(4, 3), new Size(640, 480)));
+        assertEquals(new Size(1280, 960),
+                map.chooseAtLeast(AspectRatio.of(4, 3), new Size(800, 600)));
+        assertEquals(new Size(1280, 720),
+                map.chooseAtLeast(AspectRatio.of(16, 9), new Size(640, 480)));
+    }
+
+    @Test
+    public void chooseAtLeast_ignoresOrientation() {
+        assertEquals(new Size(640, 480),
+                newMap().chooseAtLeast(AspectRatio.of(4, 3), new Size(480, 640)));
+    }
+
+    @Test
+    public void chooseAtLeast_noneLargeEnough_picksLargest() {
+        assertEquals(new Size(1920, 1080),
+                newMap().chooseAtLeast(AspectRatio.of(16, 9), new Size(4000, 3000)));
+    }
+
+    @Test
+    public void chooseAtLeast_unknownRatio_givesNull() {
+        assertNull(newMap().chooseAtLeast(AspectRatio.of(1, 1), new Size(640, 480)));
+    }
+
+    private static SizeMap newMap() {
+        SizeMap map = new SizeMap();
+        map.add(new Size(320, 240));
+        map.add(new Size(640, 480));
+        map.add(new Size(1280, 960));
+        map.add(new Size(640, 360));
+        map.add(new Size(1280, 720));
+        map.add(new Size(1920, 1080));
+        return map;
+    }
+}
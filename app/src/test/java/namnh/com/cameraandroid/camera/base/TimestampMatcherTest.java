@@ -0,0 +1,76 @@
+package namnh.com.cameraandroid.camera.base;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class TimestampMatcherTest {
+
+    private final List<String> events = new ArrayList<>();
+
+    private final TimestampMatcher<String, String> matcher =
+            new TimestampMatcher<>(2, new TimestampMatcher.Listener<String, String>() {
+                @Override
+                public void onMatched(long timestamp, String first, String second) {
+                    events.add("matched " + timestamp + " " + first + " " + second);
+                }
+
+                @Override
+                public void onDropped(long timestamp, String first, String second) {
+                    events.add("dropped " + timestamp + " " + first + " " + second);
+                }
+            });
+
+    @Test
+    public void matchesInAnyOrder() {
+        matcher.addFirst(1, "a1");
+        matcher.addSecond(2, "b2");
+        matcher.addSecond(1, "b1");
+        matcher.addFirst(2, "a2");
+
+        assertEquals(2, events.size());
+        assertEquals("matched 1 a1 b1", events.get(0));
+        assertEquals("matched 2 a2 b2", events.get(1));
+        assertEquals(0, matcher.getPendingCount());
+    }
+
+    @Test
+    public void dropsOldestBeyondCapacity() {
+        matcher.addFirst(1, "a1");
+        matcher.addSecond(2, "b2");
+        matcher.addFirst(3, "a3");
+
+        assertEquals(1, events.size());
+        assertEquals("dropped 1 a1 null", events.get(0));
+        assertEquals(2, matcher.getPendingCount());
+
+        matcher.addFirst(2, "a2");
+        assertEquals("matched 2 a2 b2", events.get(1));
+    }
+
+    @Test
+    public void dropOldest_dropsOnlyTheOldestPair() {
+        matcher.addFirst(1, "a1");
+        matcher.addFirst(2, "a2");
+
+        assertEquals(true, matcher.dropOldest());
+        assertEquals("dropped 1 a1 null", events.get(0));
+        matcher.addSecond(2, "b2");
+        assertEquals("matched 2 a2 b2", events.get(1));
+        assertEquals(false, matcher.dropOldest());
+    }
+
+    @Test
+    public void clear_dropsEverything() {
+        matcher.addFirst(1, "a1");
+        matcher.addSecond(2, "b2");
+        matcher.clear();
+
+        assertEquals(2, events.size());
+        assertEquals("dropped 1 a1 null", events.get(0));
+        assertEquals("dropped 2 null b2", events.get(1));
+        assertEquals(0, matcher.getPendingCount());
+    }
+}
@@ -0,0 +1,333 @@
+package namnh.com.cameraandroid.camera.base;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+public class YuvUtilTest {
+
+    /**
+     * A 4x2 NV21 image: Y = 0..7, then two VU pairs.
+     */
+    private static final byte[] NV21_4X2 = {
+            0, 1, 2, 3,
+            4, 5, 6, 7,
+            100, 50, 101, 51
+    };
+
+    /**
+     * The same image in I420: Y = 0..7, then the U plane and the V plane.
+     */
+    private static final byte[] I420_4X2 = {
+            0, 1, 2, 3,
+            4, 5, 6, 7,
+            50, 51,
+            100, 101
+    };
+
+    @Test
+    public void yuv420ToNv21_planar() {
+        // I420 layout with padded rows: row stride 6 for Y, 4 for chroma
+        ByteBuffer y = ByteBuffer.wrap(new byte[]{0, 1, 2, 3, -1, -1, 4, 5, 6, 7, -1, -1});
+        ByteBuffer u = ByteBuffer.wrap(new byte[]{50, 51, -1, -1});
+        ByteBuffer v = ByteBuffer.wrap(new byte[]{100, 101, -1, -1});
+        byte[] out = new byte[12];
+        YuvUtil.yuv420ToNv21(y, u, v, 6, 4, 1, 4, 2, out);
+        assertArrayEquals(NV21_4X2, out);
+    }
+
+    @Test
+    public void yuv420ToNv21_semiPlanar() {
+        YuvFrame frame = YuvFrame.wrapNv21(NV21_4X2, 4, 2, 0);
+        byte[] out = new byte[frame.getNv21Length()];
+        frame.toNv21(out);
+        assertArrayEquals(NV21_4X2, out);
+    }
+
+    @Test
+    public void yuv420ToNv21_doesNotMovePositions() {
+        ByteBuffer y = ByteBuffer.wrap(new byte[]{0, 1, 2, 3, 4, 5, 6, 7});
+        ByteBuffer u = ByteBuffer.wrap(new byte[]{50, 51});
+        ByteBuffer v = ByteBuffer.wrap(new byte[]{100, 101});
+        byte[] out = new byte[12];
+        YuvUtil.yuv420ToNv21(y, u, v, 4, 2, 1, 4, 2, out);
+        YuvUtil.yuv420ToNv21(y, u, v, 4, 2, 1, 4, 2, out);
+        assertArrayEquals(NV21_4X2, out);
+    }
+
+    @Test
+    public void yuv420ToNv21_crop() {
+        // 4x4 image, crop the bottom right 2x2 quarter
+        byte[] data = new byte[24];
+        for (int i = 0; i < 16; i++) {
+            data[i] = (byte) i;
+        }
+        // VU pairs: (row, col) -> V = 100 + 10 * row + col, U = 50 + 10 * row + col
+        for (int row = 0; row < 2; row++) {
+            for (int col = 0; col < 2; col++) {
+                data[16 + row * 4 + col * 2] = (byte) (100 + 10 * row + col);
+                data[16 + row * 4 + col * 2 + 1] = (byte) (50 + 10 * row + col);
+            }
+        }
+        YuvFrame frame = YuvFrame.wrapNv21(data, 4, 4, 0);
+        frame.setCropRect(2, 2, 4, 4);
+        byte[] out = new byte[frame.getNv21Length()];
+        frame.toNv21(out);
+        assertArrayEquals(new byte[]{10, 11, 14, 15, 111, 61}, out);
+    }
+
+    @Test
+    public void rotateNv21_0() {
+        byte[] out = new byte[12];
+        YuvUtil.rotateNv21(NV21_4X2, 4, 2, 0, out);
+        assertArrayEquals(NV21_4X2, out);
+    }
+
+    @Test
+    public void rotateNv21_90() {
+        byte[] out = new byte[12];
+        YuvUtil.rotateNv21(NV21_4X2, 4, 2, 90, out);
+        // 2x4 image; the 2x1 chroma plane becomes 1x2
+        assertArrayEquals(new byte[]{4, 0, 5, 1, 6, 2, 7, 3, 100, 50, 101, 51}, out);
+    }
+
+    @Test
+    public void rotateNv21_180() {
+        byte[] out = new byte[12];
+        YuvUtil.rotateNv21(NV21_4X2, 4, 2, 180, out);
+        assertArrayEquals(new byte[]{7, 6, 5, 4, 3, 2, 1, 0, 101, 51, 100, 50}, out);
+    }
+
+    @Test
+    public void rotateNv21_270() {
+        byte[] out = new byte[12];
+        YuvUtil.rotateNv21(NV21_4X2, 4, 2, 270, out);
+        assertArrayEquals(new byte[]{3, 7, 2, 6, 1, 5, 0, 4, 101, 51, 100, 50}, out);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rotateNv21_invalidDegrees() {
+        YuvUtil.rotateNv21(NV21_4X2, 4, 2, 45, new byte[12]);
+    }
+    @Test
+    public void nv21ToI420_andBack() {
+        byte[] i420 = new byte[12];
+        YuvUtil.nv21ToI420(NV21_4X2, 4, 2, i420);
+        assertArrayEquals(I420_4X2, i420);
+        byte[] nv21 = new byte[12];
+        YuvUtil.i420ToNv21(i420, 4, 2, nv21);
+        assertArrayEquals(NV21_4X2, nv21);
+    }
+
+    @Test
+    public void nv21ToYuv420_planar_roundTrip() {
+        byte[] nv21 = randomImage(8, 6);
+        // Padded rows: row stride 10 for Y, 6 for chroma
+        ByteBuffer y = ByteBuffer.allocate(10 * 6);
+        ByteBuffer u = ByteBuffer.allocate(6 * 3);
+        ByteBuffer v = ByteBuffer.allocate(6 * 3);
+        YuvUtil.nv21ToYuv420(nv21, 8, 6, y, u, v, 10, 6, 1);
+        byte[] out = new byte[nv21.length];
+        YuvUtil.yuv420ToNv21(y, u, v, 10, 6, 1, 8, 6, out);
+        assertArrayEquals(nv21, out);
+    }
+
+    @Test
+    public void nv21ToYuv420_semiPlanar_roundTrip() {
+        byte[] nv21 = randomImage(8, 6);
+        // Interleaved chroma, as in NV12 buffers: U and V views one byte apart
+        ByteBuffer y = ByteBuffer.allocate(8 * 6);
+        ByteBuffer chroma = ByteBuffer.allocate(8 * 3);
+        ByteBuffer u = chroma.duplicate();
+        chroma.position(1);
+        ByteBuffer v = chroma.slice();
+        YuvUtil.nv21ToYuv420(nv21, 8, 6, y, u, v, 8, 8, 2);
+        byte[] out = new byte[nv21.length];
+        YuvUtil.yuv420ToNv21(y, u, v, 8, 8, 2, 8, 6, out);
+        assertArrayEquals(nv21, out);
+    }
+
+    @Test
+    public void i420ToYuv420_roundTrip() {
+        ByteBuffer y = ByteBuffer.allocate(6 * 2);
+        ByteBuffer u = ByteBuffer.allocate(4);
+        ByteBuffer v = ByteBuffer.allocate(4);
+        YuvUtil.i420ToYuv420(I420_4X2, 4, 2, y, u, v, 6, 4, 1);
+        byte[] out = new byte[12];
+        YuvUtil.yuv420ToI420(y, u, v, 6, 4, 1, 0, 0, 4, 2, out);
+        assertArrayEquals(I420_4X2, out);
+    }
+
+    @Test
+    public void yuv420ToI420_crop() {
+        byte[] nv21 = randomImage(8, 6);
+        YuvFrame frame = YuvFrame.wrapNv21(nv21, 8, 6, 0);
+        byte[] i420 = new byte[6];
+        YuvUtil.yuv420ToI420(frame.getYPlane(), frame.getUPlane(), frame.getVPlane(),
+                frame.getYRowStride(), frame.getUvRowStride(), frame.getUvPixelStride(), 4, 2,
+                2, 2, i420);
+        byte[] cropped = new byte[6];
+        YuvUtil.cropNv21(nv21, 8, 6, 4, 2, 2, 2, cropped);
+        byte[] expected = new byte[6];
+        YuvUtil.nv21ToI420(cropped, 2, 2, expected);
+        assertArrayEquals(expected, i420);
+    }
+
+    @Test
+    public void rotateI420_matchesNv21() {
+        byte[] nv21 = randomImage(8, 6);
+        byte[] i420 = new byte[nv21.length];
+        YuvUtil.nv21ToI420(nv21, 8, 6, i420);
+        for (int degrees = 0; degrees < 360; degrees += 90) {
+            byte[] rotatedNv21 = new byte[nv21.length];
+            YuvUtil.rotateNv21(nv21, 8, 6, degrees, rotatedNv21);
+            byte[] rotatedI420 = new byte[nv21.length];
+            YuvUtil.rotateI420(i420, 8, 6, degrees, rotatedI420);
+            int width = degrees % 180 == 0 ? 8 : 6;
+            int height = degrees % 180 == 0 ? 6 : 8;
+            byte[] expected = new byte[nv21.length];
+            YuvUtil.nv21ToI420(rotatedNv21, width, height, expected);
+            assertArrayEquals("Rotation " + degrees, expected, rotatedI420);
+        }
+    }
+
+    @Test
+    public void rotateNv21_fullTurn() {
+        byte[] nv21 = randomImage(8, 6);
+        byte[] a = new byte[nv21.length];
+        byte[] b = new byte[nv21.length];
+        YuvUtil.rotateNv21(nv21, 8, 6, 90, a);
+        YuvUtil.rotateNv21(a, 6, 8, 270, b);
+        assertArrayEquals(nv21, b);
+    }
+
+    @Test
+    public void cropNv21() {
+        byte[] out = new byte[6];
+        YuvUtil.cropNv21(NV21_4X2, 4, 2, 2, 0, 2, 2, out);
+        assertArrayEquals(new byte[]{2, 3, 6, 7, 101, 51}, out);
+    }
+
+    @Test
+    public void cropI420() {
+        byte[] out = new byte[6];
+        YuvUtil.cropI420(I420_4X2, 4, 2, 2, 0, 2, 2, out);
+        assertArrayEquals(new byte[]{2, 3, 6, 7, 51, 101}, out);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cropNv21_outOfImage() {
+        YuvUtil.cropNv21(NV21_4X2, 4, 2, 2, 0, 4, 2, new byte[12]);
+    }
+
+    @Test
+    public void downscaleNv21_averagesBoxes() {
+        // 4x4 image downscaled by 2: each Y box averages to its top left + 2.5, rounded up
+        byte[] in = new byte[24];
+        for (int i = 0; i < 16; i++) {
+            in[i] = (byte) i;
+        }
+        // A single chroma box of two rows of two VU pairs
+        byte[] chroma = {10, 20, 11, 21, 12, 22, 14, 24};
+        System.arraycopy(chroma, 0, in, 16, chroma.length);
+        assertEquals(2, YuvUtil.downscaledDimension(4, 2));
+        byte[] out = new byte[6];
+        YuvUtil.downscaleNv21(in, 4, 4, 2, out);
+        assertArrayEquals(new byte[]{3, 5, 11, 13, 12, 22}, out);
+    }
+
+    @Test
+    public void downscaleI420_matchesNv21() {
+        byte[] nv21 = randomImage(16, 12);
+        byte[] i420 = new byte[nv21.length];
+        YuvUtil.nv21ToI420(nv21, 16, 12, i420);
+        // 16x12 by 3: 4x4 output, the last column of boxes is left out
+        byte[] downscaledNv21 = new byte[24];
+        YuvUtil.downscaleNv21(nv21, 16, 12, 3, downscaledNv21);
+        byte[] downscaledI420 = new byte[24];
+        YuvUtil.downscaleI420(i420, 16, 12, 3, downscaledI420);
+        byte[] expected = new byte[24];
+        YuvUtil.nv21ToI420(downscaledNv21, 4, 4, expected);
+        assertArrayEquals(expected, downscaledI420);
+    }
+
+    @Test
+    public void downscaleNv21_factorOne() {
+        byte[] out = new byte[12];
+        YuvUtil.downscaleNv21(NV21_4X2, 4, 2, 1, out);
+        assertArrayEquals(NV21_4X2, out);
+    }
+
+    @Test
+    public void nv21ToArgb_referenceColors() {
+        byte[] in = new byte[]{(byte) 235, (byte) 235, 16, 16, (byte) 235, (byte) 235, 16, 16,
+                (byte) 128, (byte) 128, (byte) 128, (byte) 128};
+        int[] out = new int[8];
+        YuvUtil.nv21ToArgb(in, 4, 2, out);
+        assertArrayEquals(new int[]{0xFFFFFFFF, 0xFFFFFFFF, 0xFF000000, 0xFF000000,
+                0xFFFFFFFF, 0xFFFFFFFF, 0xFF000000, 0xFF000000}, out);
+    }
+
+    @Test
+    public void nv21ToArgb_matchesFormula() {
+        byte[] in = randomImage(16, 16);
+        int[] out = new int[256];
+        YuvUtil.nv21ToArgb(in, 16, 16, out);
+        for (int row = 0; row < 16; row++) {
+            for (int col = 0; col < 16; col++) {
+                int chroma = 256 + row / 2 * 16 + col / 2 * 2;
+                int expected = argb(in[row * 16 + col] & 0xFF, in[chroma + 1] & 0xFF,
+                        in[chroma] & 0xFF);
+                assertColorClose(expected, out[row * 16 + col]);
+            }
+        }
+    }
+
+    @Test
+    public void argb_allPathsAgree() {
+        byte[] nv21 = randomImage(8, 6);
+        int[] fromNv21 = new int[48];
+        YuvUtil.nv21ToArgb(nv21, 8, 6, fromNv21);
+        byte[] i420 = new byte[nv21.length];
+        YuvUtil.nv21ToI420(nv21, 8, 6, i420);
+        int[] fromI420 = new int[48];
+        YuvUtil.i420ToArgb(i420, 8, 6, fromI420);
+        assertArrayEquals(fromNv21, fromI420);
+        YuvFrame frame = YuvFrame.wrapNv21(nv21, 8, 6, 0);
+        int[] fromPlanes = new int[48];
+        YuvUtil.yuv420ToArgb(frame.getYPlane(), frame.getUPlane(), frame.getVPlane(),
+                frame.getYRowStride(), frame.getUvRowStride(), frame.getUvPixelStride(), 8, 6,
+                fromPlanes);
+        assertArrayEquals(fromNv21, fromPlanes);
+    }
+
+    private static byte[] randomImage(int width, int height) {
+        byte[] data = new byte[width * height * 3 / 2];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    private static int argb(int y, int u, int v) {
+        double luma = 1.164 * (y - 16);
+        int r = clamp(luma + 1.596 * (v - 128));
+        int g = clamp(luma - 0.391 * (u - 128) - 0.813 * (v - 128));
+        int b = clamp(luma + 2.018 * (u - 128));
+        return 0xFF000000 | r << 16 | g << 8 | b;
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    private static void assertColorClose(int expected, int actual) {
+        for (int shift = 0; shift < 24; shift += 8) {
+            int difference = ((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF);
+            assertTrue(Integer.toHexString(expected) + " != " + Integer.toHexString(actual),
+                    Math.abs(difference) <= 1);
+        }
+    }
+}